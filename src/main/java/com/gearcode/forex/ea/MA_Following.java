@@ -1,10 +1,9 @@
 package com.gearcode.forex.ea;
 
 import com.dukascopy.api.*;
-
-import java.math.BigDecimal;
-
-import static java.math.BigDecimal.ROUND_HALF_UP;
+import com.gearcode.forex.ea.grid.Pipettes;
+import com.gearcode.forex.ea.indicator.EmaEngine;
+import com.gearcode.forex.ea.log.AsyncLog;
 
 /**
  * Created by jason on 17/1/4.
@@ -17,8 +16,17 @@ public class MA_Following implements IStrategy {
     private IEngine engine = null;
     private IIndicators indicators = null;
     private IConsole console = null;
+    // 日志由后台线程输出到System.out和console
+    private AsyncLog logger = null;
+
+    // EMA由onTick/onBar增量更新
+    private EmaEngine emas = null;
+
+    // 均线按5位小数取整比较
+    private final Pipettes pipettes = new Pipettes(5);
 
-    BigDecimal pre_ma;
+    // 上一tick的均线, 单位为1e-5, 还没有时为Long.MIN_VALUE
+    long pre_ma = Long.MIN_VALUE;
 
     IOrder order;
 
@@ -27,6 +35,9 @@ public class MA_Following implements IStrategy {
         engine = context.getEngine();
         indicators = context.getIndicators();
         this.console = context.getConsole();
+        logger = new AsyncLog(System.out, console.getOut());
+        emas = new EmaEngine(context.getHistory());
+        emas.register(instrument, Period.ONE_MIN, IIndicators.AppliedPrice.MEDIAN_PRICE, 10);
         console.getOut().println("Started");
 
     }
@@ -34,24 +45,29 @@ public class MA_Following implements IStrategy {
     @Override
     public void onTick(Instrument instrument, ITick tick) throws JFException {
 
+        emas.onTick(instrument, tick);
+
         if(instrument.equals(this.instrument)) {
 
-            double _ma = indicators.ema(instrument, Period.ONE_MIN, OfferSide.BID, IIndicators.AppliedPrice.MEDIAN_PRICE, 10, 0);
-            BigDecimal ma = new BigDecimal(_ma).setScale(5, ROUND_HALF_UP);
+            double _ma = emas.ema(instrument, Period.ONE_MIN, 0);
+            if(Double.isNaN(_ma)) {
+                return;
+            }
+            long ma = pipettes.toPipettes(_ma);
 
-            if(null == pre_ma) {
+            if(Long.MIN_VALUE == pre_ma) {
                 pre_ma = ma;
             } else {
-                log(pre_ma.toString() +","+ ma.toString());
+                logger.line().append(pipettes.toPrice(pre_ma)).append(',').append(pipettes.toPrice(ma)).commit();
                 // up
-                if(ma.compareTo(pre_ma) > 0) {
+                if(ma > pre_ma) {
                     if(order == null || !order.getOrderCommand().equals(IEngine.OrderCommand.BUY)) {
                         reverse(true, instrument);
                     }
                 }
 
                 // down
-                if(ma.compareTo(pre_ma) < 0) {
+                if(ma < pre_ma) {
                     if(order == null || !order.getOrderCommand().equals(IEngine.OrderCommand.SELL)) {
                         reverse(false, instrument);
                     }
@@ -64,7 +80,7 @@ public class MA_Following implements IStrategy {
 
     @Override
     public void onBar(Instrument instrument, Period period, IBar askBar, IBar bidBar) throws JFException {
-
+        emas.onBar(instrument, period, bidBar);
     }
 
     @Override
@@ -79,7 +95,7 @@ public class MA_Following implements IStrategy {
 
     @Override
     public void onStop() throws JFException {
-
+        logger.close();
     }
 
     private void reverse(boolean rising, Instrument instrument) {
@@ -104,7 +120,6 @@ public class MA_Following implements IStrategy {
     }
 
     private void log(String str) {
-        System.out.println(str);
-        console.getOut().println(str);
+        logger.log(str);
     }
 }
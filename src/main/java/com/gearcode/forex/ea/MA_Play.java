@@ -29,8 +29,10 @@
  */
 package com.gearcode.forex.ea;
 
-import com.alibaba.fastjson.JSON;
 import com.dukascopy.api.*;
+import com.gearcode.forex.ea.grid.OrderStateCache;
+import com.gearcode.forex.ea.indicator.EmaEngine;
+import com.gearcode.forex.ea.log.AsyncLog;
 
 public class MA_Play implements IStrategy {
     private IEngine engine = null;
@@ -38,11 +40,20 @@ public class MA_Play implements IStrategy {
     private int tagCounter = 0;
     private double[] ma1 = new double[Instrument.values().length];
     private IConsole console;
+    // order states, maintained from onMessage
+    private OrderStateCache orderCache = new OrderStateCache();
+    // EMA per instrument, updated from onTick/onBar
+    private EmaEngine emas = null;
+    // tick dump, written to System.out by a background thread
+    private AsyncLog tickLog = null;
 
     public void onStart(IContext context) throws JFException {
         engine = context.getEngine();
         indicators = context.getIndicators();
+        emas = new EmaEngine(context.getHistory());
         this.console = context.getConsole();
+        tickLog = new AsyncLog(16384, System.out);
+        orderCache.load(engine.getOrders());
         console.getOut().println("Started");
     }
 
@@ -50,17 +61,28 @@ public class MA_Play implements IStrategy {
         for (IOrder order : engine.getOrders()) {
             order.close();
         }
+        tickLog.close();
         console.getOut().println("Stopped");
     }
 
     public void onTick(Instrument instrument, ITick tick) throws JFException {
 
-        System.out.println(JSON.toJSONString(tick));
+        // same fields as the former JSON dump, without serialising on the tick thread
+        tickLog.line().append("{\"ask\":").append(tick.getAsk())
+                .append(",\"askVolume\":").append(tick.getAskVolume())
+                .append(",\"bid\":").append(tick.getBid())
+                .append(",\"bidVolume\":").append(tick.getBidVolume())
+                .append(",\"time\":").append(tick.getTime())
+                .append('}').commit();
+
+        // seeded from history on the first tick of each instrument
+        emas.register(instrument, Period.TEN_SECS, IIndicators.AppliedPrice.MEDIAN_PRICE, 14);
+        emas.onTick(instrument, tick);
 
         if (ma1[instrument.ordinal()] == -1) {
-            ma1[instrument.ordinal()] = indicators.ema(instrument, Period.TEN_SECS, OfferSide.BID, IIndicators.AppliedPrice.MEDIAN_PRICE, 14, 1);
+            ma1[instrument.ordinal()] = emas.ema(instrument, Period.TEN_SECS, 1);
         }
-        double ma0 = indicators.ema(instrument, Period.TEN_SECS, OfferSide.BID, IIndicators.AppliedPrice.MEDIAN_PRICE, 14, 0);
+        double ma0 = emas.ema(instrument, Period.TEN_SECS, 0);
         if (ma0 == 0 || ma1[instrument.ordinal()] == 0) {
             ma1[instrument.ordinal()] = ma0;
             return;
@@ -70,29 +92,24 @@ public class MA_Play implements IStrategy {
 
         if (positionsTotal(instrument) == 0) {
             if (diff > 1) {
-                engine.submitOrder(getLabel(instrument), instrument, IEngine.OrderCommand.SELL, 0.001, 0, 0, tick.getAsk()
-                        + instrument.getPipValue() * 10, tick.getAsk() - instrument.getPipValue() * 15);
+                orderCache.update(engine.submitOrder(getLabel(instrument), instrument, IEngine.OrderCommand.SELL, 0.001, 0, 0, tick.getAsk()
+                        + instrument.getPipValue() * 10, tick.getAsk() - instrument.getPipValue() * 15));
             }
             if (diff < -1) {
-                engine.submitOrder(getLabel(instrument), instrument, IEngine.OrderCommand.BUY, 0.001, 0, 0, tick.getBid()
-                        - instrument.getPipValue() * 10, tick.getBid() + instrument.getPipValue() * 15);
+                orderCache.update(engine.submitOrder(getLabel(instrument), instrument, IEngine.OrderCommand.BUY, 0.001, 0, 0, tick.getBid()
+                        - instrument.getPipValue() * 10, tick.getBid() + instrument.getPipValue() * 15));
             }
         }
         ma1[instrument.ordinal()] = ma0;
     }
 
     public void onBar(Instrument instrument, Period period, IBar askBar, IBar bidBar) {
+        emas.onBar(instrument, period, bidBar);
     }
 
     //count open positions
     protected int positionsTotal(Instrument instrument) throws JFException {
-        int counter = 0;
-        for (IOrder order : engine.getOrders(instrument)) {
-            if (order.getState() == IOrder.State.FILLED) {
-                counter++;
-            }
-        }
-        return counter;
+        return orderCache.getFilledCount(instrument);
     }
 
     protected String getLabel(Instrument instrument) {
@@ -104,6 +121,7 @@ public class MA_Play implements IStrategy {
     }
 
     public void onMessage(IMessage message) throws JFException {
+        orderCache.onMessage(message);
     }
 
     public void onAccount(IAccount account) throws JFException {
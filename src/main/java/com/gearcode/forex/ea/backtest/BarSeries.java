@@ -0,0 +1,225 @@
+package com.gearcode.forex.ea.backtest;
+
+import com.dukascopy.api.IBar;
+
+/**
+ * 单个周期、单个报价方的K线
+ *
+ * 已完成K线保存在定长环形数组中(超出容量时丢弃最旧的), 未完成K线单独保存,
+ * 按tick更新时不创建对象; 只有读取IBar时才创建替身
+ *
+ * @author liteng
+ *
+ */
+class BarSeries {
+
+	private final long[] times;
+	private final double[] opens;
+	private final double[] highs;
+	private final double[] lows;
+	private final double[] closes;
+	private final double[] volumes;
+
+	// 下一个写入位置及已保存的K线数
+	private int next;
+	private int count;
+
+	// 未完成K线
+	private boolean forming;
+	private long formingTime;
+	private double open, high, low, close, volume;
+
+	BarSeries(int capacity) {
+		times = new long[capacity];
+		opens = new double[capacity];
+		highs = new double[capacity];
+		lows = new double[capacity];
+		closes = new double[capacity];
+		volumes = new double[capacity];
+	}
+
+	/**
+	 * 开始新的K线
+	 * @param time K线开始时间
+	 * @param price 第一个价格
+	 * @param volume
+	 */
+	void start(long time, double price, double volume) {
+		forming = true;
+		formingTime = time;
+		open = high = low = close = price;
+		this.volume = volume;
+	}
+
+	/**
+	 * 用tick更新未完成K线
+	 * @param price
+	 * @param volume
+	 */
+	void update(double price, double volume) {
+		if(price > high) high = price;
+		if(price < low) low = price;
+		close = price;
+		this.volume += volume;
+	}
+
+	/**
+	 * 未完成K线转为已完成K线
+	 */
+	void complete() {
+		append(formingTime, open, high, low, close, volume);
+		forming = false;
+	}
+
+	/**
+	 * 加入一根已完成K线(没有tick的时段按上一收盘价补平K线)
+	 */
+	void append(long time, double open, double high, double low, double close, double volume) {
+		times[next] = time;
+		opens[next] = open;
+		highs[next] = high;
+		lows[next] = low;
+		closes[next] = close;
+		volumes[next] = volume;
+		if(++next == times.length) next = 0;
+		if(count < times.length) count++;
+	}
+
+	boolean isForming() {
+		return forming;
+	}
+
+	long getFormingTime() {
+		return formingTime;
+	}
+
+	double getFormingClose() {
+		return close;
+	}
+
+	/**
+	 * @return 已完成K线数
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * 第index根已完成K线在数组中的位置, 0为最旧
+	 */
+	private int slot(int index) {
+		int i = next - count + index;
+		return i < 0 ? i + times.length : i;
+	}
+
+	long time(int index) {
+		return times[slot(index)];
+	}
+
+	double close(int index) {
+		return closes[slot(index)];
+	}
+
+	/**
+	 * 已完成K线的价格
+	 * @param index 0为最旧
+	 * @param price 价格类型
+	 * @return
+	 */
+	double price(int index, PriceType price) {
+		int i = slot(index);
+		return price.of(opens[i], highs[i], lows[i], closes[i]);
+	}
+
+	/**
+	 * 未完成K线的价格
+	 * @param price
+	 * @return
+	 */
+	double formingPrice(PriceType price) {
+		return price.of(open, high, low, close);
+	}
+
+	/**
+	 * 时间不晚于time的最后一根已完成K线
+	 * @param time
+	 * @return 没有时返回-1
+	 */
+	int indexAtOrBefore(long time) {
+		int lo = 0, hi = count - 1, result = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(time(mid) <= time) {
+				result = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return result;
+	}
+
+	IBar bar(int index) {
+		int i = slot(index);
+		return new BarStub(times[i], opens[i], highs[i], lows[i], closes[i], volumes[i]).proxy();
+	}
+
+	IBar formingBar() {
+		return new BarStub(formingTime, open, high, low, close, volume).proxy();
+	}
+
+	/**
+	 * 价格类型(IIndicators.AppliedPrice中用到的部分)
+	 */
+	enum PriceType {
+		OPEN, HIGH, LOW, CLOSE, MEDIAN, TYPICAL, WEIGHTED;
+
+		double of(double open, double high, double low, double close) {
+			switch (this) {
+			case OPEN: return open;
+			case HIGH: return high;
+			case LOW: return low;
+			case MEDIAN: return (high + low) / 2;
+			case TYPICAL: return (high + low + close) / 3;
+			case WEIGHTED: return (high + low + close + close) / 4;
+			default: return close;
+			}
+		}
+	}
+
+	/**
+	 * K线替身, 值在创建时复制
+	 */
+	static class BarStub extends StubHandler {
+		private final long time;
+		private final double open, high, low, close, volume;
+
+		BarStub(long time, double open, double high, double low, double close, double volume) {
+			super(IBar.class);
+			this.time = time;
+			this.open = open;
+			this.high = high;
+			this.low = low;
+			this.close = close;
+			this.volume = volume;
+		}
+
+		@Override
+		protected Object handle(String method, Object[] args) {
+			switch (method) {
+			case "getTime": return time;
+			case "getOpen": return open;
+			case "getHigh": return high;
+			case "getLow": return low;
+			case "getClose": return close;
+			case "getVolume": return volume;
+			default: return UNSUPPORTED;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Bar[" + time + ", O=" + open + ", H=" + high + ", L=" + low + ", C=" + close + ", V=" + volume + "]";
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package com.gearcode.forex.ea.backtest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * CSV格式的tick数据, 每行: 时间,Ask,Bid,AskVolume,BidVolume
+ *
+ * 时间为GMT, 支持Dukascopy导出的"yyyy.MM.dd HH:mm:ss.SSS"、"dd.MM.yyyy HH:mm:ss.SSS"
+ * (日期分隔符也可以是'-'或'/')以及毫秒时间戳; 非数字开头的行(表头)跳过.
+ * 多个文件按给定顺序依次读取
+ *
+ * @author liteng
+ *
+ */
+public class CsvTickFeed implements TickFeed {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final List<File> files;
+	private int fileIndex = 0;
+	private BufferedReader reader;
+
+	private final Calendar gmt = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+	// 上一行的日期及当天0点, 同一天的行不再经过Calendar计算
+	private int lastDate = -1;
+	private long lastDayStart;
+
+	private long time;
+	private double ask;
+	private double bid;
+	private double askVolume;
+	private double bidVolume;
+
+	public CsvTickFeed(File... files) {
+		this(Arrays.asList(files));
+	}
+
+	public CsvTickFeed(List<File> files) {
+		this.files = new ArrayList<File>(files);
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		while (true) {
+			if(reader == null) {
+				if(fileIndex >= files.size()) {
+					return false;
+				}
+				reader = new BufferedReader(new InputStreamReader(new FileInputStream(files.get(fileIndex++)), UTF8), 1 << 16);
+			}
+
+			String line = reader.readLine();
+			if(line == null) {
+				reader.close();
+				reader = null;
+				continue;
+			}
+			if(line.isEmpty() || !Character.isDigit(line.charAt(0))) {
+				continue;
+			}
+			parse(line);
+			return true;
+		}
+	}
+
+	private void parse(String line) throws IOException {
+		int c1 = line.indexOf(',');
+		int c2 = line.indexOf(',', c1 + 1);
+		if(c1 < 0 || c2 < 0) {
+			throw new IOException("invalid tick line: " + line);
+		}
+		int c3 = line.indexOf(',', c2 + 1);
+		int c4 = c3 < 0 ? -1 : line.indexOf(',', c3 + 1);
+		time = parseTime(line, c1);
+		ask = Double.parseDouble(line.substring(c1 + 1, c2));
+		bid = Double.parseDouble(line.substring(c2 + 1, c3 < 0 ? line.length() : c3));
+		askVolume = c3 < 0 ? 0 : Double.parseDouble(line.substring(c3 + 1, c4 < 0 ? line.length() : c4));
+		bidVolume = c4 < 0 ? 0 : Double.parseDouble(line.substring(c4 + 1).trim());
+	}
+
+	private long parseTime(String line, int end) throws IOException {
+		// 毫秒时间戳
+		if(end < 10 || Character.isDigit(line.charAt(2)) && Character.isDigit(line.charAt(4))) {
+			return Long.parseLong(line.substring(0, end).trim());
+		}
+
+		int year, month, day;
+		if(!Character.isDigit(line.charAt(4))) {
+			// yyyy.MM.dd
+			year = digits(line, 0, 4);
+			month = digits(line, 5, 2);
+			day = digits(line, 8, 2);
+		} else {
+			// dd.MM.yyyy
+			day = digits(line, 0, 2);
+			month = digits(line, 3, 2);
+			year = digits(line, 6, 4);
+		}
+		// HH:mm:ss.SSS
+		int p = 11;
+
+		int date = (year * 100 + month) * 100 + day;
+		if(date != lastDate) {
+			gmt.clear();
+			gmt.set(year, month - 1, day);
+			lastDayStart = gmt.getTimeInMillis();
+			lastDate = date;
+		}
+
+		long millis = digits(line, p, 2) * 3600000L + digits(line, p + 3, 2) * 60000L + digits(line, p + 6, 2) * 1000L;
+		if(p + 8 < end && line.charAt(p + 8) == '.') {
+			int q = p + 9, ms = 0, n = 0;
+			while (q < end && n < 3 && Character.isDigit(line.charAt(q))) {
+				ms = ms * 10 + (line.charAt(q++) - '0');
+				n++;
+			}
+			for (; n < 3; n++) {
+				ms *= 10;
+			}
+			millis += ms;
+		}
+		return lastDayStart + millis;
+	}
+
+	private static int digits(String s, int from, int count) throws IOException {
+		int v = 0;
+		for (int i = from; i < from + count; i++) {
+			char c = s.charAt(i);
+			if(c < '0' || c > '9') {
+				throw new IOException("invalid tick time: " + s);
+			}
+			v = v * 10 + (c - '0');
+		}
+		return v;
+	}
+
+	@Override
+	public long getTime() {
+		return time;
+	}
+
+	@Override
+	public double getAsk() {
+		return ask;
+	}
+
+	@Override
+	public double getBid() {
+		return bid;
+	}
+
+	@Override
+	public double getAskVolume() {
+		return askVolume;
+	}
+
+	@Override
+	public double getBidVolume() {
+		return bidVolume;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(reader != null) {
+			reader.close();
+			reader = null;
+		}
+		fileIndex = files.size();
+	}
+}
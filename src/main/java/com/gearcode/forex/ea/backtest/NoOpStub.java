@@ -0,0 +1,52 @@
+package com.gearcode.forex.ea.backtest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * 什么都不做的替身(用于IChart等回放中没有意义的接口)
+ *
+ * 返回基本类型的方法返回0/false, 返回接口的方法返回同样什么都不做的替身,
+ * 其余返回null; 策略的画线等代码可以不加判断直接运行
+ *
+ * @author liteng
+ *
+ */
+class NoOpStub implements InvocationHandler {
+
+	private static final NoOpStub INSTANCE = new NoOpStub();
+
+	private NoOpStub() {
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T of(Class<T> type) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, INSTANCE);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if(method.getDeclaringClass() == Object.class) {
+			if("equals".equals(method.getName())) {
+				return proxy == args[0];
+			}
+			if("hashCode".equals(method.getName())) {
+				return System.identityHashCode(proxy);
+			}
+			return "NoOp[" + proxy.getClass().getInterfaces()[0].getSimpleName() + "]";
+		}
+
+		Class<?> type = method.getReturnType();
+		if(type == boolean.class) return false;
+		if(type == int.class) return 0;
+		if(type == long.class) return 0L;
+		if(type == double.class) return 0.0;
+		if(type == float.class) return 0f;
+		if(type == short.class) return (short) 0;
+		if(type == byte.class) return (byte) 0;
+		if(type == char.class) return (char) 0;
+		if(type.isInterface()) return of(type);
+		return null;
+	}
+}
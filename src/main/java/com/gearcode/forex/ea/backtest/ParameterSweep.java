@@ -0,0 +1,478 @@
+package com.gearcode.forex.ea.backtest;
+
+import com.dukascopy.api.Configurable;
+import com.dukascopy.api.IStrategy;
+import com.dukascopy.api.Instrument;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 并行参数扫描
+ *
+ * 通过反射找到策略的@Configurable字段, 按给定的取值生成参数组合(全部组合或随机抽取),
+ * 每个组合新建一个策略实例, 用TickReplay多路回放: tick只读取一次, 分发给所有实例,
+ * 实例分配到各个线程并行处理; 最后按收益排序输出结果表.
+ * 未指定取值的字段保持策略的默认值
+ *
+ * 用法: ParameterSweep &lt;策略类名&gt; &lt;货币对&gt; &lt;tick文件(.ticks或csv)&gt; 字段=取值... [-random 个数] [-threads 线程数] [-out 结果文件]
+ * 取值写成"a,b,c"或"起始:结束:步长", 例如 gap=30:80:10 martinMultiple=1.2,1.5,2
+ *
+ * @author liteng
+ *
+ */
+public class ParameterSweep {
+
+	/**
+	 * 排序方式
+	 */
+	public enum Rank {
+		/** 收益 */
+		PROFIT,
+		/** 收益/最大回撤 */
+		RECOVERY
+	}
+
+	private final Class<? extends IStrategy> strategyClass;
+	private final Instrument instrument;
+	private final TickFeed feed;
+	private final Map<String, Field> fields;
+
+	private final Map<String, List<Object>> values = new LinkedHashMap<String, List<Object>>();
+	private int random = 0;
+	private long seed = 0;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private double balance = 10000;
+	private double leverage = 100;
+	private long warmUp = 0;
+	private File filesDir;
+	private Rank rank = Rank.PROFIT;
+
+	/**
+	 * @param strategyClass 策略类, 需要有无参构造方法
+	 * @param instrument
+	 * @param feed 回放的tick, 只能run()一次
+	 */
+	public ParameterSweep(Class<? extends IStrategy> strategyClass, Instrument instrument, TickFeed feed) {
+		this.strategyClass = strategyClass;
+		this.instrument = instrument;
+		this.feed = feed;
+		this.fields = configurables(strategyClass);
+	}
+
+	/**
+	 * @param type
+	 * @return 类(含父类)中的@Configurable字段, 按字段名索引
+	 */
+	public static Map<String, Field> configurables(Class<?> type) {
+		Map<String, Field> fields = new LinkedHashMap<String, Field>();
+		List<Class<?>> classes = new ArrayList<Class<?>>();
+		for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+			classes.add(0, c);
+		}
+		for (Class<?> c : classes) {
+			for (Field field : c.getDeclaredFields()) {
+				if(field.isAnnotationPresent(Configurable.class) && !Modifier.isStatic(field.getModifiers())
+						&& !Modifier.isFinal(field.getModifiers())) {
+					field.setAccessible(true);
+					fields.put(field.getName(), field);
+				}
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * 指定字段的取值
+	 * @param name 字段名
+	 * @param values 与字段类型一致的值(数值会按字段类型转换)
+	 * @return
+	 */
+	public ParameterSweep values(String name, Object... values) {
+		Field field = field(name);
+		List<Object> list = new ArrayList<Object>();
+		for (Object value : values) {
+			list.add(value instanceof String ? parse(field.getType(), (String) value) : convert(field.getType(), value));
+		}
+		if(list.isEmpty()) {
+			throw new IllegalArgumentException("no value for " + name);
+		}
+		this.values.put(name, list);
+		return this;
+	}
+
+	/**
+	 * 用字符串指定字段的取值: "a,b,c"或数值范围"起始:结束:步长"(含结束值)
+	 * @param name
+	 * @param spec
+	 * @return
+	 */
+	public ParameterSweep values(String name, String spec) {
+		String[] range = spec.split(":");
+		if(range.length != 3) {
+			return values(name, (Object[]) spec.split(","));
+		}
+
+		BigDecimal from = new BigDecimal(range[0].trim()), to = new BigDecimal(range[1].trim()), step = new BigDecimal(range[2].trim());
+		if(step.signum() <= 0) {
+			throw new IllegalArgumentException("invalid step: " + spec);
+		}
+		List<Object> list = new ArrayList<Object>();
+		for (BigDecimal v = from; v.compareTo(to) <= 0; v = v.add(step)) {
+			list.add(v.toPlainString());
+		}
+		return values(name, list.toArray());
+	}
+
+	/**
+	 * 从全部组合中随机抽取count个(不重复), 不调用时回放全部组合
+	 * @param count
+	 * @param seed
+	 * @return
+	 */
+	public ParameterSweep random(int count, long seed) {
+		this.random = count;
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * 并行线程数, 默认CPU核数.
+	 * 多线程时各实例同时运行, 策略不能有共享的可变静态字段(如static SimpleDateFormat), 否则使用1
+	 * @param threads
+	 * @return
+	 */
+	public ParameterSweep threads(int threads) {
+		this.threads = threads;
+		return this;
+	}
+
+	public ParameterSweep balance(double balance) {
+		this.balance = balance;
+		return this;
+	}
+
+	public ParameterSweep leverage(double leverage) {
+		this.leverage = leverage;
+		return this;
+	}
+
+	/**
+	 * @see TickReplay#warmUp(long)
+	 * @param millis
+	 * @return
+	 */
+	public ParameterSweep warmUp(long millis) {
+		this.warmUp = millis;
+		return this;
+	}
+
+	/**
+	 * @see TickReplay#filesDir(File)
+	 * @param dir
+	 * @return
+	 */
+	public ParameterSweep filesDir(File dir) {
+		this.filesDir = dir;
+		return this;
+	}
+
+	public ParameterSweep rank(Rank rank) {
+		this.rank = rank;
+		return this;
+	}
+
+	/**
+	 * @return 参数组合总数(不考虑随机抽取)
+	 */
+	public long combinations() {
+		long n = 1;
+		for (List<Object> list : values.values()) {
+			n *= list.size();
+		}
+		return n;
+	}
+
+	/**
+	 * 生成参数组合
+	 * @return
+	 */
+	public List<Map<String, Object>> grid() {
+		long total = combinations();
+		List<Long> indexes = new ArrayList<Long>();
+		if(random > 0 && random < total) {
+			Random r = new Random(seed);
+			Set<Long> picked = new HashSet<Long>();
+			while (picked.size() < random) {
+				long index = (long) (r.nextDouble() * total);
+				if(picked.add(index)) {
+					indexes.add(index);
+				}
+			}
+		} else {
+			for (long i = 0; i < total; i++) {
+				indexes.add(i);
+			}
+		}
+
+		List<Map<String, Object>> grid = new ArrayList<Map<String, Object>>(indexes.size());
+		for (long index : indexes) {
+			// 按各字段取值个数拆分序号(最后一个字段变化最快)
+			Map<String, Object> params = new LinkedHashMap<String, Object>();
+			List<String> names = new ArrayList<String>(values.keySet());
+			Object[] picked = new Object[names.size()];
+			for (int i = names.size() - 1; i >= 0; i--) {
+				List<Object> list = values.get(names.get(i));
+				picked[i] = list.get((int) (index % list.size()));
+				index /= list.size();
+			}
+			for (int i = 0; i < names.size(); i++) {
+				params.put(names.get(i), picked[i]);
+			}
+			grid.add(params);
+		}
+		return grid;
+	}
+
+	/**
+	 * 一次多路回放所有参数组合
+	 * @return 按收益从高到低排序的结果, 出错的组合排在最后
+	 * @throws IOException 读取tick出错
+	 * @throws InterruptedException
+	 */
+	public List<Result> run() throws IOException, InterruptedException {
+		List<Result> results = new ArrayList<Result>();
+		List<Result> running = new ArrayList<Result>();
+		List<IStrategy> strategies = new ArrayList<IStrategy>();
+		for (Map<String, Object> params : grid()) {
+			Result result = new Result(params);
+			results.add(result);
+			try {
+				IStrategy strategy = strategyClass.newInstance();
+				for (Map.Entry<String, Object> entry : params.entrySet()) {
+					fields.get(entry.getKey()).set(strategy, entry.getValue());
+				}
+				strategies.add(strategy);
+				running.add(result);
+			} catch (Exception e) {
+				result.error = e;
+			}
+		}
+
+		List<ReplayReport> reports = new TickReplay(instrument, feed)
+				.balance(balance)
+				.leverage(leverage)
+				.warmUp(warmUp)
+				.filesDir(filesDir)
+				.console(NULL_OUT)
+				.run(strategies, threads);
+		for (int i = 0; i < running.size(); i++) {
+			Result result = running.get(i);
+			result.report = reports.get(i);
+			result.error = result.report.getError();
+		}
+
+		Collections.sort(results, new Comparator<Result>() {
+			@Override
+			public int compare(Result o1, Result o2) {
+				if(o1.error != null || o2.error != null) {
+					return (o1.error == null ? 0 : 1) - (o2.error == null ? 0 : 1);
+				}
+				return Double.compare(o2.score(rank), o1.score(rank));
+			}
+		});
+		return results;
+	}
+
+	/**
+	 * 输出结果表(制表符分隔): 名次, 各参数, 收益, 最大回撤, 收益/回撤, 已平仓单数, 未平仓单数
+	 * @param results
+	 * @param out
+	 */
+	public void print(List<Result> results, PrintStream out) {
+		StringBuilder header = new StringBuilder("rank");
+		for (String name : values.keySet()) {
+			header.append('\t').append(name);
+		}
+		header.append("\tprofit\tmaxDrawdown\trecovery\tclosed\topen");
+		out.println(header);
+
+		int n = 0;
+		for (Result result : results) {
+			StringBuilder line = new StringBuilder().append(++n);
+			for (Object value : result.params.values()) {
+				line.append('\t').append(value);
+			}
+			if(result.error != null) {
+				line.append("\terror: ").append(result.error);
+			} else {
+				ReplayReport r = result.report;
+				line.append('\t').append(String.format("%.2f", r.getProfit()))
+						.append('\t').append(String.format("%.2f", r.getMaxDrawdown()))
+						.append('\t').append(String.format("%.2f", result.score(Rank.RECOVERY)))
+						.append('\t').append(r.getClosedOrders())
+						.append('\t').append(r.getOpenOrders());
+			}
+			out.println(line);
+		}
+		out.flush();
+	}
+
+	private Field field(String name) {
+		Field field = fields.get(name);
+		if(field == null) {
+			throw new IllegalArgumentException("no @Configurable field '" + name + "' in " + strategyClass.getName() + ", available: " + fields.keySet());
+		}
+		return field;
+	}
+
+	/**
+	 * 按字段类型解析字符串: 数值, boolean, 枚举, 或类型中同名的常量(如Period.FIVE_MINS)
+	 */
+	private static Object parse(Class<?> type, String s) {
+		s = s.trim();
+		if(type == String.class) return s;
+		if(type == int.class || type == Integer.class) return new BigDecimal(s).intValueExact();
+		if(type == long.class || type == Long.class) return new BigDecimal(s).longValueExact();
+		if(type == double.class || type == Double.class) return Double.parseDouble(s);
+		if(type == float.class || type == Float.class) return Float.parseFloat(s);
+		if(type == boolean.class || type == Boolean.class) return Boolean.parseBoolean(s);
+		if(type.isEnum()) {
+			for (Object constant : type.getEnumConstants()) {
+				if(((Enum<?>) constant).name().equalsIgnoreCase(s)) return constant;
+			}
+		}
+		for (Field field : type.getFields()) {
+			if(Modifier.isStatic(field.getModifiers()) && field.getType() == type && field.getName().equalsIgnoreCase(s)) {
+				try {
+					return field.get(null);
+				} catch (IllegalAccessException e) {
+					break;
+				}
+			}
+		}
+		throw new IllegalArgumentException("cannot convert '" + s + "' to " + type.getSimpleName());
+	}
+
+	private static Object convert(Class<?> type, Object value) {
+		if(value instanceof Number) {
+			Number n = (Number) value;
+			if(type == int.class || type == Integer.class) return n.intValue();
+			if(type == long.class || type == Long.class) return n.longValue();
+			if(type == double.class || type == Double.class) return n.doubleValue();
+			if(type == float.class || type == Float.class) return n.floatValue();
+		}
+		return value;
+	}
+
+	private static final PrintStream NULL_OUT = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+
+	/**
+	 * 一个参数组合的回放结果
+	 */
+	public static class Result {
+
+		private final Map<String, Object> params;
+		private ReplayReport report;
+		private Exception error;
+
+		private Result(Map<String, Object> params) {
+			this.params = params;
+		}
+
+		public Map<String, Object> getParams() {
+			return Collections.unmodifiableMap(params);
+		}
+
+		/**
+		 * @return 回放结果, 创建策略实例出错时为null
+		 */
+		public ReplayReport getReport() {
+			return report;
+		}
+
+		/**
+		 * @return 策略或回放抛出的异常
+		 */
+		public Exception getError() {
+			return error;
+		}
+
+		double score(Rank rank) {
+			switch (rank) {
+			case RECOVERY:
+				return report.getMaxDrawdown() == 0 ? report.getProfit() : report.getProfit() / report.getMaxDrawdown();
+			default:
+				return report.getProfit();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 4) {
+			System.err.println("usage: ParameterSweep <strategy class> <instrument> <ticks file|tick csv> <field=values>... [-random n] [-threads n] [-out file]");
+			System.exit(1);
+		}
+		Class<? extends IStrategy> strategyClass = Class.forName(args[0]).asSubclass(IStrategy.class);
+		Instrument instrument = Instrument.fromString(args[1]);
+
+		TickStore store = args[2].endsWith(".ticks") ? new TickStore(new File(args[2])) : null;
+		TickFeed feed = store != null ? store.feed() : new CsvTickFeed(new File(args[2]));
+		try {
+			ParameterSweep sweep = new ParameterSweep(strategyClass, instrument, feed);
+			PrintStream out = System.out;
+			for (int i = 3; i < args.length; i++) {
+				String arg = args[i];
+				if("-random".equals(arg)) {
+					sweep.random(Integer.parseInt(args[++i]), System.nanoTime());
+				} else if("-threads".equals(arg)) {
+					sweep.threads(Integer.parseInt(args[++i]));
+				} else if("-out".equals(arg)) {
+					out = new PrintStream(new FileOutputStream(args[++i]), true, "UTF-8");
+				} else {
+					int eq = arg.indexOf('=');
+					if(eq < 0) {
+						throw new IllegalArgumentException("invalid argument: " + arg);
+					}
+					sweep.values(arg.substring(0, eq), arg.substring(eq + 1));
+				}
+			}
+
+			long begin = System.currentTimeMillis();
+			List<Result> results = sweep.run();
+			sweep.print(results, out);
+			System.err.println(results.size() + " runs in " + (System.currentTimeMillis() - begin) + " ms");
+			if(out != System.out) {
+				out.close();
+			}
+		} finally {
+			feed.close();
+			if(store != null) {
+				store.close();
+			}
+		}
+	}
+}
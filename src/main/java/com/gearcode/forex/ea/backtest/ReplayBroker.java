@@ -0,0 +1,510 @@
+package com.gearcode.forex.ea.backtest;
+
+import com.dukascopy.api.IAccount;
+import com.dukascopy.api.ICurrency;
+import com.dukascopy.api.IEngine;
+import com.dukascopy.api.IEngine.OrderCommand;
+import com.dukascopy.api.IMessage;
+import com.dukascopy.api.IMessage.Reason;
+import com.dukascopy.api.IOrder;
+import com.dukascopy.api.IOrder.State;
+import com.dukascopy.api.Instrument;
+import com.dukascopy.api.JFException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 回放中的成交模拟(IEngine和IAccount替身)
+ *
+ * 市价单按当前tick成交(买单ask, 卖单bid), 不计滑点和手续费;
+ * 挂单、止损、止盈在之后的tick上按价格触发并以当时的报价成交.
+ * 订单消息放入队列, 由TickReplay在策略回调返回后依次交给onMessage, 与平台的线程模型一致
+ *
+ * @author liteng
+ *
+ */
+class ReplayBroker {
+
+	private final Instrument instrument;
+	private final ICurrency accountCurrency;
+	private final double leverage;
+
+	private double ask;
+	private double bid;
+	private long time;
+	private boolean priced;
+
+	// 未平仓/未撤销的订单(按提交顺序), 已结束的订单在tick处理后移除
+	private final List<ReplayOrder> active = new ArrayList<ReplayOrder>();
+	private final Map<String, ReplayOrder> byLabel = new HashMap<String, ReplayOrder>();
+	private final Map<String, ReplayOrder> byId = new HashMap<String, ReplayOrder>();
+	private long nextId = 1;
+
+	private final ArrayDeque<IMessage> messages = new ArrayDeque<IMessage>();
+
+	private double balance;
+	private int closedCount;
+
+	private final EngineStub engineStub = new EngineStub();
+	private final AccountStub accountStub = new AccountStub();
+
+	ReplayBroker(Instrument instrument, double balance, ICurrency accountCurrency, double leverage) {
+		this.instrument = instrument;
+		this.balance = balance;
+		this.accountCurrency = accountCurrency;
+		this.leverage = leverage;
+	}
+
+	IEngine engine() {
+		return engineStub.proxy();
+	}
+
+	IAccount account() {
+		return accountStub.proxy();
+	}
+
+	double getAsk() {
+		return ask;
+	}
+
+	double getBid() {
+		return bid;
+	}
+
+	double getBalance() {
+		return balance;
+	}
+
+	int getClosedCount() {
+		return closedCount;
+	}
+
+	/**
+	 * @return 未平仓/未撤销的订单数
+	 */
+	int getOpenCount() {
+		int count = 0;
+		for (int i = 0; i < active.size(); i++) {
+			if(active.get(i).isActive()) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * 账户净值(余额 + 浮动盈亏)
+	 * @return
+	 */
+	double getEquity() {
+		double floating = 0;
+		for (int i = 0; i < active.size(); i++) {
+			floating += active.get(i).floating(ask, bid);
+		}
+		return balance + toAccountCurrency(floating);
+	}
+
+	/**
+	 * 下一条待发送的订单消息
+	 * @return 没有时返回null
+	 */
+	IMessage pollMessage() {
+		return messages.poll();
+	}
+
+	/**
+	 * 新tick: 触发挂单、止损、止盈
+	 * @param time
+	 * @param ask
+	 * @param bid
+	 */
+	void onTick(long time, double ask, double bid) {
+		this.time = time;
+		this.ask = ask;
+		this.bid = bid;
+		this.priced = true;
+
+		int size = active.size();
+		for (int i = 0; i < size; i++) {
+			ReplayOrder order = active.get(i);
+			if(order.state == State.OPENED) {
+				if(triggered(order)) {
+					fill(order);
+				}
+			} else if(order.state == State.FILLED) {
+				double price = order.isLong() ? bid : ask;
+				if(order.stopLossPrice > 0 && (order.isLong() ? price <= order.stopLossPrice : price >= order.stopLossPrice)) {
+					closeFilled(order, order.amount, Reason.ORDER_CLOSED_BY_SL);
+				} else if(order.takeProfitPrice > 0 && (order.isLong() ? price >= order.takeProfitPrice : price <= order.takeProfitPrice)) {
+					closeFilled(order, order.amount, Reason.ORDER_CLOSED_BY_TP);
+				}
+			}
+		}
+		compact();
+	}
+
+	private boolean triggered(ReplayOrder order) {
+		double price = order.openPrice;
+		switch (order.command) {
+		case BUYSTOP: return ask >= price;
+		case BUYSTOP_BYBID: return bid >= price;
+		case SELLSTOP: return bid <= price;
+		case SELLSTOP_BYASK: return ask <= price;
+		case BUYLIMIT: return ask <= price;
+		case BUYLIMIT_BYBID: return bid <= price;
+		case SELLLIMIT: return bid >= price;
+		case SELLLIMIT_BYASK: return ask >= price;
+		default: return false;
+		}
+	}
+
+	// 移除已结束的订单
+	private void compact() {
+		int j = 0;
+		for (int i = 0; i < active.size(); i++) {
+			ReplayOrder order = active.get(i);
+			if(order.isActive()) {
+				active.set(j++, order);
+			} else {
+				byLabel.remove(order.label);
+			}
+		}
+		for (int i = active.size() - 1; i >= j; i--) {
+			active.remove(i);
+		}
+	}
+
+	private ReplayOrder submit(Object[] args) throws JFException {
+		// (label, instrument, command, amount[, price[, slippage[, stopLoss, takeProfit[, goodTillTime[, comment]]]]])
+		String label = (String) args[0];
+		Instrument instrument = (Instrument) args[1];
+		OrderCommand command = (OrderCommand) args[2];
+		double amount = (Double) args[3];
+		double price = args.length > 4 ? (Double) args[4] : 0;
+		double stopLoss = args.length > 7 ? (Double) args[6] : 0;
+		double takeProfit = args.length > 7 ? (Double) args[7] : 0;
+		String comment = args.length > 9 ? (String) args[9] : null;
+
+		if(!this.instrument.equals(instrument)) {
+			throw new JFException("instrument not replayed: " + instrument);
+		}
+		if(!priced) {
+			throw new JFException("no tick yet for " + instrument);
+		}
+		if(label == null || isActiveLabel(label)) {
+			throw new JFException("label not unique: " + label);
+		}
+		if(!(amount > 0)) {
+			throw new JFException("invalid amount: " + amount);
+		}
+		if(command == OrderCommand.PLACE_BID || command == OrderCommand.PLACE_OFFER) {
+			throw new JFException("order command not supported in replay: " + command);
+		}
+		if(command.isConditional() && !(price > 0)) {
+			throw new JFException("price required for " + command);
+		}
+
+		ReplayOrder order = new ReplayOrder(this, String.valueOf(nextId++), label, instrument, command,
+				amount, price, stopLoss, takeProfit, time, comment);
+		active.add(order);
+		byLabel.put(label, order);
+		byId.put(order.id, order);
+
+		order.state = State.OPENED;
+		message(IMessage.Type.ORDER_SUBMIT_OK, order, null);
+		if(!command.isConditional()) {
+			fill(order);
+		}
+		return order;
+	}
+
+	private void fill(ReplayOrder order) {
+		order.openPrice = order.isLong() ? ask : bid;
+		order.fillTime = time;
+		order.state = State.FILLED;
+		message(IMessage.Type.ORDER_FILL_OK, order, Reason.ORDER_FULLY_FILLED);
+	}
+
+	/**
+	 * 平仓(持仓单)或撤单(挂单)
+	 * @param order
+	 * @param amount 平仓手数, 0为全部
+	 * @throws JFException
+	 */
+	void close(ReplayOrder order, double amount) throws JFException {
+		if(order.state == State.FILLED) {
+			closeFilled(order, amount > 0 && amount < order.amount ? amount : order.amount, null);
+		} else if(order.state == State.OPENED || order.state == State.CREATED) {
+			order.state = State.CANCELED;
+			order.closeTime = time;
+			message(IMessage.Type.ORDER_CLOSE_OK, order, null);
+		} else {
+			throw new JFException("order " + order.label + " is " + order.state);
+		}
+	}
+
+	private void closeFilled(ReplayOrder order, double amount, Reason reason) {
+		double price = order.isLong() ? bid : ask;
+		double profit = (order.isLong() ? 1 : -1) * (price - order.openPrice) * amount * ReplayOrder.LOT;
+		order.realized += profit;
+		balance += toAccountCurrency(profit);
+		order.closePrice = price;
+
+		if(amount < order.amount) {
+			order.amount -= amount;
+		} else {
+			order.state = State.CLOSED;
+			order.closeTime = time;
+			closedCount++;
+		}
+		message(IMessage.Type.ORDER_CLOSE_OK, order, reason);
+	}
+
+	/**
+	 * 修改止损/止盈
+	 */
+	void modify(ReplayOrder order, double stopLoss, double takeProfit) throws JFException {
+		if(!order.isActive()) {
+			throw new JFException("order " + order.label + " is " + order.state);
+		}
+		order.stopLossPrice = stopLoss;
+		order.takeProfitPrice = takeProfit;
+		message(IMessage.Type.ORDER_CHANGED_OK, order, null);
+	}
+
+	/**
+	 * 合并持仓单: 净头寸为0时全部平仓, 否则以 Σ(±手数×开仓价)/净手数 为开仓价生成新订单,
+	 * 合并前后在任意价格下的盈亏相同
+	 */
+	private ReplayOrder merge(String label, Collection<IOrder> orders) throws JFException {
+		if(orders.size() < 2) {
+			throw new JFException("at least two orders required to merge");
+		}
+		List<ReplayOrder> sources = new ArrayList<ReplayOrder>(orders.size());
+		double net = 0, weighted = 0;
+		for (IOrder o : orders) {
+			ReplayOrder order = find(o);
+			if(order == null || order.state != State.FILLED) {
+				throw new JFException("order cannot be merged: " + o);
+			}
+			double signed = (order.isLong() ? 1 : -1) * order.amount;
+			net += signed;
+			weighted += signed * order.openPrice;
+			sources.add(order);
+		}
+		if(label == null || isActiveLabel(label)) {
+			throw new JFException("label not unique: " + label);
+		}
+
+		// 手数按 1/1000000 取整, 避免浮点误差产生极小的净头寸
+		net = Math.round(net * ReplayOrder.LOT) / ReplayOrder.LOT;
+		for (ReplayOrder order : sources) {
+			order.state = State.CLOSED;
+			order.closeTime = time;
+			closedCount++;
+			message(IMessage.Type.ORDER_CLOSE_OK, order, Reason.ORDER_CLOSED_BY_MERGE);
+		}
+
+		ReplayOrder merged = new ReplayOrder(this, String.valueOf(nextId++), label, instrument,
+				net >= 0 ? OrderCommand.BUY : OrderCommand.SELL, Math.abs(net), 0, 0, 0, time, null);
+		byId.put(merged.id, merged);
+		merged.fillTime = time;
+		if(net == 0) {
+			// 完全对冲: 实现全部盈亏
+			double profit = -weighted * ReplayOrder.LOT;
+			merged.realized = profit;
+			balance += toAccountCurrency(profit);
+			merged.state = State.CLOSED;
+			merged.closeTime = time;
+		} else {
+			merged.openPrice = weighted / net;
+			merged.state = State.FILLED;
+			active.add(merged);
+			byLabel.put(label, merged);
+		}
+		message(IMessage.Type.ORDERS_MERGE_OK, merged, null);
+		compact();
+		return merged;
+	}
+
+	private boolean isActiveLabel(String label) {
+		ReplayOrder order = byLabel.get(label);
+		return order != null && order.isActive();
+	}
+
+	private ReplayOrder find(IOrder order) {
+		return order == null ? null : byId.get(order.getId());
+	}
+
+	private void message(IMessage.Type type, ReplayOrder order, Reason reason) {
+		IMessage message = new MessageStub(type, order.<IOrder>proxy(), time,
+				reason == null ? Collections.<Reason>emptySet() : EnumSet.of(reason)).proxy();
+		order.lastMessage = message;
+		messages.add(message);
+	}
+
+	/**
+	 * 报价货币金额换算为账户货币
+	 * 账户货币为基础货币时按当前价格换算, 其他情况按报价货币计
+	 * @param quote
+	 * @return
+	 */
+	double toAccountCurrency(double quote) {
+		if(accountCurrency != null && accountCurrency.equals(instrument.getPrimaryJFCurrency())) {
+			return quote / bid;
+		}
+		return quote;
+	}
+
+	double toUsd(double quote) {
+		ICurrency primary = instrument.getPrimaryJFCurrency();
+		if(primary != null && "USD".equals(primary.getCurrencyCode())) {
+			return quote / bid;
+		}
+		return quote;
+	}
+
+	private List<IOrder> orders() {
+		List<IOrder> result = new ArrayList<IOrder>(active.size());
+		for (ReplayOrder order : active) {
+			if(order.isActive()) {
+				result.add(order.<IOrder>proxy());
+			}
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Collection<IOrder> orderArgs(Object arg) {
+		return arg instanceof IOrder[] ? Arrays.asList((IOrder[]) arg) : (Collection<IOrder>) arg;
+	}
+
+	/**
+	 * IEngine替身
+	 */
+	private class EngineStub extends StubHandler {
+
+		EngineStub() {
+			super(IEngine.class);
+		}
+
+		@Override
+		protected Object handle(String method, Object[] args) throws JFException {
+			switch (method) {
+			case "submitOrder":
+				return submit(args).proxy();
+			case "getOrders":
+				if(args.length == 1 && !instrument.equals(args[0])) {
+					return new ArrayList<IOrder>();
+				}
+				return orders();
+			case "getOrder": {
+				ReplayOrder order = byLabel.get((String) args[0]);
+				return order == null || !order.isActive() ? null : order.proxy();
+			}
+			case "getOrderById": {
+				ReplayOrder order = byId.get((String) args[0]);
+				return order == null || !order.isActive() ? null : order.proxy();
+			}
+			case "mergeOrders":
+				return merge((String) args[0], orderArgs(args[1])).proxy();
+			case "closeOrders":
+				for (IOrder order : orderArgs(args[0])) {
+					order.close();
+				}
+				return null;
+			case "getType":
+				return IEngine.Type.TEST;
+			case "getAccount":
+				return "replay";
+			default:
+				return UNSUPPORTED;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "ReplayEngine[" + instrument + "]";
+		}
+	}
+
+	/**
+	 * IAccount替身
+	 */
+	private class AccountStub extends StubHandler {
+
+		AccountStub() {
+			super(IAccount.class);
+		}
+
+		@Override
+		protected Object handle(String method, Object[] args) {
+			switch (method) {
+			case "getAccountCurrency": return accountCurrency;
+			case "getBalance": return balance;
+			case "getEquity":
+			case "getBaseEquity": return getEquity();
+			case "getLeverage": return leverage;
+			case "getUsedMargin": {
+				double units = 0;
+				for (ReplayOrder order : active) {
+					if(order.state == State.FILLED) {
+						units += order.amount * ReplayOrder.LOT;
+					}
+				}
+				// 保证金按基础货币计, 换算为报价货币后再换算为账户货币
+				return toAccountCurrency(units * bid) / leverage;
+			}
+			case "getAccountId": return "replay";
+			default: return UNSUPPORTED;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "ReplayAccount[" + balance + "]";
+		}
+	}
+
+	/**
+	 * 订单消息替身
+	 */
+	static class MessageStub extends StubHandler {
+		private final IMessage.Type type;
+		private final IOrder order;
+		private final long time;
+		private final Set<Reason> reasons;
+
+		MessageStub(IMessage.Type type, IOrder order, long time, Set<Reason> reasons) {
+			super(IMessage.class);
+			this.type = type;
+			this.order = order;
+			this.time = time;
+			this.reasons = reasons;
+		}
+
+		@Override
+		protected Object handle(String method, Object[] args) {
+			switch (method) {
+			case "getType": return type;
+			case "getOrder": return order;
+			case "getCreationTime": return time;
+			case "getContent": return type + " " + order.getLabel();
+			case "getReasons": return reasons;
+			default: return UNSUPPORTED;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Message[" + type + ", " + order + "]";
+		}
+	}
+}
@@ -0,0 +1,439 @@
+package com.gearcode.forex.ea.backtest;
+
+import com.dukascopy.api.IBar;
+import com.dukascopy.api.IHistory;
+import com.dukascopy.api.IIndicators;
+import com.dukascopy.api.IIndicators.AppliedPrice;
+import com.dukascopy.api.ITick;
+import com.dukascopy.api.Instrument;
+import com.dukascopy.api.JFException;
+import com.dukascopy.api.OfferSide;
+import com.dukascopy.api.Period;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 回放中的历史数据和指标
+ *
+ * 由回放的tick生成各周期的BID/ASK K线(没有tick的时段补平K线, 周末除外)并保存最近的tick,
+ * 以此实现IHistory和IIndicators中策略用到的方法; 回放开始之前的历史数据不存在
+ *
+ * @author liteng
+ *
+ */
+class ReplayHistory {
+
+	/**
+	 * K线完成回调
+	 */
+	interface BarListener {
+		void onBar(Period period, IBar askBar, IBar bidBar);
+	}
+
+	// EMA从 timePeriod * EMA_LOOKBACK 根K线之前开始计算
+	private static final int EMA_LOOKBACK = 10;
+
+	private final Instrument instrument;
+
+	// 周期 -> [BID, ASK]
+	private final Map<Period, BarSeries[]> bars = new LinkedHashMap<Period, BarSeries[]>();
+	private final Period[] periods;
+	private final BarSeries[][] series;
+
+	// 最近的tick
+	private final long[] tickTimes;
+	private final double[] tickAsks;
+	private final double[] tickBids;
+	private final double[] tickAskVolumes;
+	private final double[] tickBidVolumes;
+	private int tickNext;
+	private int tickCount;
+
+	private ITick lastTick;
+	private long time;
+
+	private final HistoryStub historyStub = new HistoryStub();
+	private final IndicatorsStub indicatorsStub = new IndicatorsStub();
+
+	ReplayHistory(Instrument instrument, List<Period> periods, int barCapacity, int tickCapacity) {
+		this.instrument = instrument;
+		for (Period period : periods) {
+			if(period.getInterval() > 0) {
+				bars.put(period, new BarSeries[] { new BarSeries(barCapacity), new BarSeries(barCapacity) });
+			}
+		}
+		this.periods = bars.keySet().toArray(new Period[bars.size()]);
+		this.series = bars.values().toArray(new BarSeries[bars.size()][]);
+
+		tickTimes = new long[tickCapacity];
+		tickAsks = new double[tickCapacity];
+		tickBids = new double[tickCapacity];
+		tickAskVolumes = new double[tickCapacity];
+		tickBidVolumes = new double[tickCapacity];
+	}
+
+	/**
+	 * 加入一个tick: 先完成已结束的K线并回调listener, 再更新未完成K线
+	 * @param time
+	 * @param ask
+	 * @param bid
+	 * @param askVolume
+	 * @param bidVolume
+	 * @param listener 可以为null
+	 */
+	void onTick(long time, double ask, double bid, double askVolume, double bidVolume, BarListener listener) {
+		this.time = time;
+		for (int i = 0; i < periods.length; i++) {
+			long interval = periods[i].getInterval();
+			long start = time - time % interval;
+			BarSeries bidBars = series[i][0], askBars = series[i][1];
+
+			if(bidBars.isForming() && start > bidBars.getFormingTime()) {
+				long formingTime = bidBars.getFormingTime();
+				bidBars.complete();
+				askBars.complete();
+				fire(listener, periods[i], bidBars, askBars);
+
+				// 没有tick的时段补平K线
+				for (long t = formingTime + interval; t < start; t += interval) {
+					if(isWeekend(t)) continue;
+					double b = bidBars.close(bidBars.size() - 1), a = askBars.close(askBars.size() - 1);
+					bidBars.append(t, b, b, b, b, 0);
+					askBars.append(t, a, a, a, a, 0);
+					fire(listener, periods[i], bidBars, askBars);
+				}
+			}
+
+			if(!bidBars.isForming()) {
+				bidBars.start(start, bid, bidVolume);
+				askBars.start(start, ask, askVolume);
+			} else {
+				bidBars.update(bid, bidVolume);
+				askBars.update(ask, askVolume);
+			}
+		}
+
+		tickTimes[tickNext] = time;
+		tickAsks[tickNext] = ask;
+		tickBids[tickNext] = bid;
+		tickAskVolumes[tickNext] = askVolume;
+		tickBidVolumes[tickNext] = bidVolume;
+		if(++tickNext == tickTimes.length) tickNext = 0;
+		if(tickCount < tickTimes.length) tickCount++;
+
+		lastTick = new TickStub(time, ask, bid, askVolume, bidVolume).proxy();
+	}
+
+	private static void fire(BarListener listener, Period period, BarSeries bidBars, BarSeries askBars) {
+		if(listener != null) {
+			listener.onBar(period, askBars.bar(askBars.size() - 1), bidBars.bar(bidBars.size() - 1));
+		}
+	}
+
+	/**
+	 * 周五21:00(GMT)至周日22:00(GMT)之间, 不生成平K线
+	 * @param time
+	 * @return
+	 */
+	static boolean isWeekend(long time) {
+		long days = Math.floorDiv(time, 86400000L);
+		// 1970-01-01为周四, 0为周日
+		int day = (int) ((days + 4) % 7);
+		int hour = (int) (Math.floorMod(time, 86400000L) / 3600000L);
+		return day == 6 || (day == 5 && hour >= 21) || (day == 0 && hour < 22);
+	}
+
+	ITick getLastTick() {
+		return lastTick;
+	}
+
+	long getTime() {
+		return time;
+	}
+
+	IHistory history() {
+		return historyStub.proxy();
+	}
+
+	IIndicators indicators() {
+		return indicatorsStub.proxy();
+	}
+
+	private BarSeries series(Instrument instrument, Period period, OfferSide side) throws JFException {
+		if(!this.instrument.equals(instrument)) {
+			throw new JFException("instrument not replayed: " + instrument);
+		}
+		BarSeries[] pair = bars.get(period);
+		if(pair == null) {
+			throw new JFException("period not replayed: " + period);
+		}
+		return side == OfferSide.ASK ? pair[1] : pair[0];
+	}
+
+	private int tickSlot(int index) {
+		int i = tickNext - tickCount + index;
+		return i < 0 ? i + tickTimes.length : i;
+	}
+
+	private ITick tick(int index) {
+		int i = tickSlot(index);
+		return new TickStub(tickTimes[i], tickAsks[i], tickBids[i], tickAskVolumes[i], tickBidVolumes[i]).proxy();
+	}
+
+	/**
+	 * 指标计算用的序列(已完成K线 + 未完成K线, 或最近的tick)
+	 */
+	private abstract static class Values {
+		abstract int count();
+		abstract double value(int index);
+		abstract long time(int index);
+	}
+
+	private Values values(Instrument instrument, Period period, final OfferSide side, AppliedPrice applied) throws JFException {
+		if(period.getInterval() == 0) {
+			if(!this.instrument.equals(instrument)) {
+				throw new JFException("instrument not replayed: " + instrument);
+			}
+			return new Values() {
+				int count() { return tickCount; }
+				double value(int index) { return side == OfferSide.ASK ? tickAsks[tickSlot(index)] : tickBids[tickSlot(index)]; }
+				long time(int index) { return tickTimes[tickSlot(index)]; }
+			};
+		}
+
+		final BarSeries s = series(instrument, period, side);
+		final BarSeries.PriceType price = priceType(applied);
+		return new Values() {
+			int count() { return s.size() + (s.isForming() ? 1 : 0); }
+			double value(int index) { return index < s.size() ? s.price(index, price) : s.formingPrice(price); }
+			long time(int index) { return index < s.size() ? s.time(index) : s.getFormingTime(); }
+		};
+	}
+
+	private static BarSeries.PriceType priceType(AppliedPrice applied) throws JFException {
+		switch (applied) {
+		case OPEN: return BarSeries.PriceType.OPEN;
+		case HIGH: return BarSeries.PriceType.HIGH;
+		case LOW: return BarSeries.PriceType.LOW;
+		case CLOSE: return BarSeries.PriceType.CLOSE;
+		case MEDIAN_PRICE: return BarSeries.PriceType.MEDIAN;
+		case TYPICAL_PRICE: return BarSeries.PriceType.TYPICAL;
+		case WEIGHTED_CLOSE: return BarSeries.PriceType.WEIGHTED;
+		default: throw new JFException("applied price not supported in replay: " + applied);
+		}
+	}
+
+	private static double sma(Values v, int end, int n) {
+		if(end - n + 1 < 0 || end >= v.count()) {
+			return Double.NaN;
+		}
+		double sum = 0;
+		for (int i = end - n + 1; i <= end; i++) {
+			sum += v.value(i);
+		}
+		return sum / n;
+	}
+
+	private static double ema(Values v, int end, int n) {
+		int start = Math.max(0, end - n * EMA_LOOKBACK + 1);
+		if(end - start + 1 < n || end >= v.count()) {
+			return Double.NaN;
+		}
+		double k = 2.0 / (n + 1);
+		double ema = 0;
+		for (int i = start; i < start + n; i++) {
+			ema += v.value(i);
+		}
+		ema /= n;
+		for (int i = start + n; i <= end; i++) {
+			ema += k * (v.value(i) - ema);
+		}
+		return ema;
+	}
+
+	private static double[] range(Values v, boolean ema, int n, long from, long to) {
+		List<Double> result = new ArrayList<Double>();
+		for (int i = 0; i < v.count(); i++) {
+			long t = v.time(i);
+			if(t >= from && t <= to) {
+				result.add(ema ? ema(v, i, n) : sma(v, i, n));
+			}
+		}
+		double[] array = new double[result.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = result.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * IHistory替身
+	 */
+	private class HistoryStub extends StubHandler {
+
+		HistoryStub() {
+			super(IHistory.class);
+		}
+
+		@Override
+		protected Object handle(String method, Object[] args) throws JFException {
+			switch (method) {
+			case "getLastTick":
+				return instrument.equals(args[0]) ? lastTick : null;
+			case "getTimeOfLastTick":
+				return time;
+			case "getTick": {
+				int index = tickCount - 1 - (Integer) args[1];
+				return index < 0 ? null : tick(index);
+			}
+			case "getTicks": {
+				long from = (Long) args[1], to = (Long) args[2];
+				List<ITick> result = new ArrayList<ITick>();
+				for (int i = 0; i < tickCount; i++) {
+					long t = tickTimes[tickSlot(i)];
+					if(t >= from && t <= to) {
+						result.add(tick(i));
+					}
+				}
+				return result;
+			}
+			case "getBar": {
+				BarSeries s = series((Instrument) args[0], (Period) args[1], (OfferSide) args[2]);
+				int shift = (Integer) args[3];
+				if(shift == 0) {
+					return s.isForming() ? s.formingBar() : null;
+				}
+				int index = s.size() - shift;
+				return index < 0 ? null : s.bar(index);
+			}
+			case "getBars":
+				if(args.length == 7) {
+					// (instrument, period, side, filter, before, time, after)
+					BarSeries s = series((Instrument) args[0], (Period) args[1], (OfferSide) args[2]);
+					int before = (Integer) args[4], after = (Integer) args[6];
+					int at = s.indexAtOrBefore((Long) args[5]);
+					List<IBar> result = new ArrayList<IBar>();
+					for (int i = Math.max(0, at - before + 1); i <= at; i++) {
+						result.add(s.bar(i));
+					}
+					for (int i = at + 1; i <= at + after && i < s.size(); i++) {
+						result.add(s.bar(i));
+					}
+					return result;
+				}
+				if(args.length == 5) {
+					// (instrument, period, side, from, to)
+					BarSeries s = series((Instrument) args[0], (Period) args[1], (OfferSide) args[2]);
+					long from = (Long) args[3], to = (Long) args[4];
+					List<IBar> result = new ArrayList<IBar>();
+					for (int i = s.indexAtOrBefore(from - 1) + 1; i < s.size() && s.time(i) <= to; i++) {
+						result.add(s.bar(i));
+					}
+					return result;
+				}
+				return UNSUPPORTED;
+			case "getStartTimeOfCurrentBar":
+				return barStart((Period) args[1], time);
+			case "getBarStart":
+				return barStart((Period) args[0], (Long) args[1]);
+			case "getPreviousBarStart":
+				return barStart((Period) args[0], (Long) args[1]) - ((Period) args[0]).getInterval();
+			case "getNextBarStart":
+				return barStart((Period) args[0], (Long) args[1]) + ((Period) args[0]).getInterval();
+			default:
+				return UNSUPPORTED;
+			}
+		}
+
+		private long barStart(Period period, long time) {
+			long interval = period.getInterval();
+			return interval == 0 ? time : time - time % interval;
+		}
+
+		@Override
+		public String toString() {
+			return "ReplayHistory[" + instrument + "]";
+		}
+	}
+
+	/**
+	 * IIndicators替身, 只支持SMA/EMA
+	 */
+	private class IndicatorsStub extends StubHandler {
+
+		IndicatorsStub() {
+			super(IIndicators.class);
+		}
+
+		@Override
+		protected Object handle(String method, Object[] args) throws JFException {
+			boolean ema = "ema".equals(method);
+			if(ema || "sma".equals(method)) {
+				// (instrument, period, side, appliedPrice, timePeriod, ...)
+				Values v = values((Instrument) args[0], (Period) args[1], (OfferSide) args[2], (AppliedPrice) args[3]);
+				int n = (Integer) args[4];
+				if(args.length == 6) {
+					int end = v.count() - 1 - (Integer) args[5];
+					return ema ? ema(v, end, n) : sma(v, end, n);
+				}
+				if(args.length == 8) {
+					// (..., filter, from, to)
+					return range(v, ema, n, (Long) args[6], (Long) args[7]);
+				}
+				return UNSUPPORTED;
+			}
+			if("getIndicator".equals(method)) {
+				return null;
+			}
+			return UNSUPPORTED;
+		}
+
+		@Override
+		public String toString() {
+			return "ReplayIndicators[" + instrument + "]";
+		}
+	}
+
+	/**
+	 * tick替身
+	 */
+	static class TickStub extends StubHandler {
+		private final long time;
+		private final double ask, bid, askVolume, bidVolume;
+
+		TickStub(long time, double ask, double bid, double askVolume, double bidVolume) {
+			super(ITick.class);
+			this.time = time;
+			this.ask = ask;
+			this.bid = bid;
+			this.askVolume = askVolume;
+			this.bidVolume = bidVolume;
+		}
+
+		@Override
+		protected Object handle(String method, Object[] args) {
+			switch (method) {
+			case "getTime": return time;
+			case "getAsk": return ask;
+			case "getBid": return bid;
+			case "getAskVolume":
+			case "getTotalAskVolume": return askVolume;
+			case "getBidVolume":
+			case "getTotalBidVolume": return bidVolume;
+			case "getAsks": return new double[] { ask };
+			case "getBids": return new double[] { bid };
+			case "getAskVolumes": return new double[] { askVolume };
+			case "getBidVolumes": return new double[] { bidVolume };
+			default: return UNSUPPORTED;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Tick[" + time + ", ask=" + ask + ", bid=" + bid + "]";
+		}
+	}
+}
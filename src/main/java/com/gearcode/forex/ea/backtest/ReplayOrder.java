@@ -0,0 +1,171 @@
+package com.gearcode.forex.ea.backtest;
+
+import com.dukascopy.api.IEngine.OrderCommand;
+import com.dukascopy.api.IMessage;
+import com.dukascopy.api.IOrder;
+import com.dukascopy.api.IOrder.State;
+import com.dukascopy.api.Instrument;
+import com.dukascopy.api.JFException;
+
+/**
+ * 回放中的订单(IOrder替身)
+ *
+ * 状态由ReplayBroker在提交、tick触发、平仓和合并时修改;
+ * 所有变化都是同步完成的, waitForUpdate()直接返回最近的消息
+ *
+ * @author liteng
+ *
+ */
+class ReplayOrder extends StubHandler {
+
+	// 1手 = 1000000单位
+	static final double LOT = 1000000.0;
+
+	private final ReplayBroker broker;
+
+	final String label;
+	final String id;
+	final Instrument instrument;
+	final OrderCommand command;
+	final double requestedAmount;
+	final long creationTime;
+	final String comment;
+
+	double amount;
+	double openPrice;
+	double closePrice;
+	double stopLossPrice;
+	double takeProfitPrice;
+	State state = State.CREATED;
+	long fillTime;
+	long closeTime;
+
+	// 已实现盈亏(报价货币)
+	double realized;
+
+	IMessage lastMessage;
+
+	ReplayOrder(ReplayBroker broker, String id, String label, Instrument instrument, OrderCommand command,
+			double amount, double price, double stopLossPrice, double takeProfitPrice, long creationTime, String comment) {
+		super(IOrder.class);
+		this.broker = broker;
+		this.id = id;
+		this.label = label;
+		this.instrument = instrument;
+		this.command = command;
+		this.requestedAmount = amount;
+		this.amount = amount;
+		this.openPrice = price;
+		this.stopLossPrice = stopLossPrice;
+		this.takeProfitPrice = takeProfitPrice;
+		this.creationTime = creationTime;
+		this.comment = comment;
+	}
+
+	boolean isLong() {
+		return command.isLong();
+	}
+
+	boolean isActive() {
+		return state == State.CREATED || state == State.OPENED || state == State.FILLED;
+	}
+
+	/**
+	 * 按平仓方价格计算的浮动盈亏(报价货币)
+	 * @param ask
+	 * @param bid
+	 * @return
+	 */
+	double floating(double ask, double bid) {
+		if(state != State.FILLED) {
+			return 0;
+		}
+		double price = isLong() ? bid : ask;
+		return (isLong() ? 1 : -1) * (price - openPrice) * amount * LOT;
+	}
+
+	/**
+	 * 盈亏(报价货币): 已平仓为已实现盈亏, 持仓中为浮动盈亏
+	 * @return
+	 */
+	double profitLoss() {
+		return state == State.FILLED ? floating(broker.getAsk(), broker.getBid()) : realized;
+	}
+
+	private double profitLossInPips() {
+		double price;
+		if(state == State.FILLED) {
+			price = isLong() ? broker.getBid() : broker.getAsk();
+		} else if(state == State.CLOSED && closePrice > 0) {
+			price = closePrice;
+		} else {
+			return 0;
+		}
+		return (isLong() ? 1 : -1) * (price - openPrice) / instrument.getPipValue();
+	}
+
+	private IMessage waitForUpdate(State[] states) {
+		if(states == null || states.length == 0) {
+			return lastMessage;
+		}
+		for (State s : states) {
+			if(s == state) {
+				return lastMessage;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	protected Object handle(String method, Object[] args) throws JFException {
+		switch (method) {
+		case "getLabel": return label;
+		case "getId": return id;
+		case "getInstrument": return instrument;
+		case "getOrderCommand": return command;
+		case "isLong": return isLong();
+		case "getAmount": return amount;
+		case "getRequestedAmount":
+		case "getOriginalAmount": return requestedAmount;
+		case "getOpenPrice": return openPrice;
+		case "getClosePrice": return closePrice;
+		case "getState": return state;
+		case "getCreationTime": return creationTime;
+		case "getFillTime": return fillTime;
+		case "getCloseTime": return closeTime;
+		case "getStopLossPrice": return stopLossPrice;
+		case "getTakeProfitPrice": return takeProfitPrice;
+		case "getComment": return comment;
+		case "getCommission":
+		case "getCommissionInUSD": return 0.0;
+		case "getProfitLossInPips": return profitLossInPips();
+		case "getProfitLossInAccountCurrency": return broker.toAccountCurrency(profitLoss());
+		case "getProfitLossInUSD": return broker.toUsd(profitLoss());
+		case "close":
+			broker.close(this, args.length == 0 ? 0 : (Double) args[0]);
+			return null;
+		case "setStopLossPrice":
+			broker.modify(this, (Double) args[0], takeProfitPrice);
+			return null;
+		case "setTakeProfitPrice":
+			broker.modify(this, stopLossPrice, (Double) args[0]);
+			return null;
+		case "waitForUpdate":
+			// (timeout) / (timeout, states...) / (states...) / (timeout, unit)
+			if(args.length == 2 && args[1] instanceof State[]) {
+				return waitForUpdate((State[]) args[1]);
+			}
+			if(args.length == 1 && args[0] instanceof State[]) {
+				return waitForUpdate((State[]) args[0]);
+			}
+			return lastMessage;
+		default:
+			return UNSUPPORTED;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "[" + label + "]-" + state + " @ " + openPrice + " " + command + " " + amount;
+	}
+}
@@ -0,0 +1,137 @@
+package com.gearcode.forex.ea.backtest;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * 回放结果
+ *
+ * @author liteng
+ *
+ */
+public class ReplayReport {
+
+	long ticks;
+	long warmUpTicks;
+	long firstTime;
+	long lastTime;
+	long elapsedNanos;
+	double initialBalance;
+	double balance;
+	double equity;
+	double maxEquity;
+	double maxDrawdown;
+	int closedOrders;
+	int openOrders;
+	boolean stopped;
+	Exception error;
+	File filesDir;
+
+	ReplayReport() {
+	}
+
+	/**
+	 * @return 交给策略的tick数(不含预热)
+	 */
+	public long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * @return 只用于生成历史数据的预热tick数
+	 */
+	public long getWarmUpTicks() {
+		return warmUpTicks;
+	}
+
+	public long getFirstTime() {
+		return firstTime;
+	}
+
+	public long getLastTime() {
+		return lastTime;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return 每秒回放的tick数(含预热)
+	 */
+	public double getTicksPerSecond() {
+		return elapsedNanos == 0 ? 0 : (ticks + warmUpTicks) * 1e9 / elapsedNanos;
+	}
+
+	public double getInitialBalance() {
+		return initialBalance;
+	}
+
+	public double getBalance() {
+		return balance;
+	}
+
+	/**
+	 * @return 回放结束时的净值(含未平仓订单的浮动盈亏)
+	 */
+	public double getEquity() {
+		return equity;
+	}
+
+	public double getProfit() {
+		return equity - initialBalance;
+	}
+
+	/**
+	 * @return 净值从最高点的最大回撤(账户货币, 按tick计算)
+	 */
+	public double getMaxDrawdown() {
+		return maxDrawdown;
+	}
+
+	public int getClosedOrders() {
+		return closedOrders;
+	}
+
+	public int getOpenOrders() {
+		return openOrders;
+	}
+
+	/**
+	 * @return 策略调用了context.stop()
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * @return 策略的文件目录(快照/交易日志等), 策略未调用getFilesDir()时为null
+	 */
+	public File getFilesDir() {
+		return filesDir;
+	}
+
+	/**
+	 * @return 多路回放中策略回调抛出的异常(该实例已中止), 没有时为null
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		df.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return "==== replay ====\n"
+				+ "period: " + df.format(new Date(firstTime)) + " ~ " + df.format(new Date(lastTime)) + " GMT" + (stopped ? " (stopped by strategy)" : "") + "\n"
+				+ "ticks: " + ticks + " (+" + warmUpTicks + " warm-up), " + String.format("%.0f", getTicksPerSecond()) + " ticks/s\n"
+				+ "balance: " + String.format("%.2f", initialBalance) + " -> " + String.format("%.2f", balance)
+				+ ", equity: " + String.format("%.2f", equity) + ", profit: " + String.format("%.2f", getProfit()) + "\n"
+				+ "max drawdown: " + String.format("%.2f", maxDrawdown) + "\n"
+				+ "orders closed: " + closedOrders + ", open: " + openOrders
+				+ (filesDir != null ? "\nfiles: " + filesDir : "")
+				+ (error != null ? "\nerror: " + error : "");
+	}
+}
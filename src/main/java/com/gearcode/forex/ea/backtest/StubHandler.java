@@ -0,0 +1,95 @@
+package com.gearcode.forex.ea.backtest;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 平台接口的本地替身
+ *
+ * JForex接口方法很多且随版本变化, 回放只用到其中一部分,
+ * 因此用动态代理按方法名分派: 子类在handle()中实现用到的方法,
+ * 其余方法抛出UnsupportedOperationException, 便于发现策略用到了未模拟的接口.
+ * equals/hashCode按对象身份, 可以作为HashMap的key(如OrderRegistry中的IOrder)
+ *
+ * @author liteng
+ *
+ */
+abstract class StubHandler implements InvocationHandler {
+
+	/**
+	 * handle()返回此值表示方法未模拟
+	 */
+	protected static final Object UNSUPPORTED = new Object();
+
+	private static final Object[] NO_ARGS = new Object[0];
+
+	// 代理类构造方法缓存, 避免每个tick/K线重复查找代理类
+	// 多路回放时各线程同时创建替身, 读取不加锁
+	private static final ConcurrentMap<Class<?>, Constructor<?>> constructors = new ConcurrentHashMap<Class<?>, Constructor<?>>();
+
+	private final Class<?> type;
+	private Object proxy;
+
+	protected StubHandler(Class<?> type) {
+		this.type = type;
+	}
+
+	/**
+	 * 对应的代理对象(首次调用时创建)
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T proxy() {
+		if(proxy == null) {
+			proxy = newProxy(type, this);
+		}
+		return (T) proxy;
+	}
+
+	@SuppressWarnings("deprecation")
+	private static Object newProxy(Class<?> type, InvocationHandler handler) {
+		try {
+			Constructor<?> constructor = constructors.get(type);
+			if(constructor == null) {
+				constructor = Proxy.getProxyClass(type.getClassLoader(), type).getConstructor(InvocationHandler.class);
+				constructors.putIfAbsent(type, constructor);
+			}
+			return constructor.newInstance(handler);
+		} catch (Exception e) {
+			throw new IllegalStateException("cannot create stub for " + type.getName(), e);
+		}
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if(method.getDeclaringClass() == Object.class) {
+			if("equals".equals(name)) {
+				return proxy == args[0];
+			}
+			if("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			}
+			return toString();
+		}
+
+		Object result = handle(name, args == null ? NO_ARGS : args);
+		if(result == UNSUPPORTED) {
+			throw new UnsupportedOperationException(type.getSimpleName() + "." + name + " is not simulated in replay");
+		}
+		return result;
+	}
+
+	/**
+	 * 按方法名实现接口方法
+	 * @param method 方法名
+	 * @param args 参数(无参数时为空数组)
+	 * @return 返回值(基本类型需装箱), 未模拟时返回UNSUPPORTED
+	 * @throws Throwable
+	 */
+	protected abstract Object handle(String method, Object[] args) throws Throwable;
+}
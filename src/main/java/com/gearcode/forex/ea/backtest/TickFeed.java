@@ -0,0 +1,35 @@
+package com.gearcode.forex.ea.backtest;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * 按时间顺序读取的tick数据源
+ *
+ * 游标式读取: next()移动到下一个tick后通过getter读取当前值, 每个tick不创建对象
+ *
+ * @author liteng
+ *
+ */
+public interface TickFeed extends Closeable {
+
+	/**
+	 * 移动到下一个tick
+	 * @return 没有更多tick时返回false
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException;
+
+	/**
+	 * @return 当前tick时间(毫秒, GMT)
+	 */
+	public long getTime();
+
+	public double getAsk();
+
+	public double getBid();
+
+	public double getAskVolume();
+
+	public double getBidVolume();
+}
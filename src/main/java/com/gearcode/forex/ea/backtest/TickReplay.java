@@ -0,0 +1,679 @@
+package com.gearcode.forex.ea.backtest;
+
+import com.dukascopy.api.IBar;
+import com.dukascopy.api.IChart;
+import com.dukascopy.api.IConsole;
+import com.dukascopy.api.IContext;
+import com.dukascopy.api.ICurrency;
+import com.dukascopy.api.IMessage;
+import com.dukascopy.api.IStrategy;
+import com.dukascopy.api.Instrument;
+import com.dukascopy.api.JFException;
+import com.dukascopy.api.Period;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 离线tick回放
+ *
+ * 从TickFeed按顺序读取tick, 不连接平台直接驱动IStrategy:
+ * 每个tick先生成K线并回调onBar, 再触发挂单/止损/止盈, 最后回调onTick,
+ * 每次回调返回后把产生的订单消息依次交给onMessage.
+ * IContext/IEngine/IOrder/IHistory/IIndicators/IConsole/IAccount均为本地替身,
+ * 策略用到未模拟的方法时抛出UnsupportedOperationException; IChart为什么都不做的替身.
+ *
+ * 多路回放(run(List, int)): tick只读取一次, 分发给多个策略实例, 每个实例有独立的账户;
+ * 实例分配到多个线程, 同一线程中的实例共用一份K线/历史数据.
+ * 读取线程按批次(TICK_BATCH个tick)双缓冲预读, 各线程处理完一批后在栅栏处交换
+ *
+ * 用法: TickReplay &lt;策略类名&gt; &lt;货币对&gt; &lt;tick csv文件...|二进制tick文件(.ticks)&gt;
+ *
+ * @author liteng
+ *
+ */
+public class TickReplay {
+
+	// 多路回放每批读取的tick数
+	private static final int TICK_BATCH = 4096;
+
+	private final Instrument instrument;
+	private final TickFeed feed;
+
+	private double balance = 10000;
+	private ICurrency accountCurrency;
+	private double leverage = 100;
+	private List<Period> periods = new ArrayList<Period>(Arrays.asList(Period.TEN_SECS, Period.ONE_MIN, Period.FIVE_MINS,
+			Period.FIFTEEN_MINS, Period.THIRTY_MINS, Period.ONE_HOUR, Period.FOUR_HOURS, Period.DAILY));
+	private int barCapacity = 20000;
+	private int tickCapacity = 10000;
+	private long warmUp = 0;
+	private PrintStream out = System.out;
+	private File filesDir;
+
+	/**
+	 * @param instrument 回放的货币对
+	 * @param feed 该货币对的tick
+	 */
+	public TickReplay(Instrument instrument, TickFeed feed) {
+		this.instrument = instrument;
+		this.feed = feed;
+		this.accountCurrency = instrument.getSecondaryJFCurrency();
+	}
+
+	/**
+	 * 初始余额(账户货币), 默认10000
+	 * @param balance
+	 * @return
+	 */
+	public TickReplay balance(double balance) {
+		this.balance = balance;
+		return this;
+	}
+
+	/**
+	 * 账户货币, 默认为货币对的报价货币
+	 * @param accountCurrency
+	 * @return
+	 */
+	public TickReplay accountCurrency(ICurrency accountCurrency) {
+		this.accountCurrency = accountCurrency;
+		return this;
+	}
+
+	public TickReplay leverage(double leverage) {
+		this.leverage = leverage;
+		return this;
+	}
+
+	/**
+	 * 生成K线的周期(onBar和历史K线), 默认10秒至日线
+	 * @param periods
+	 * @return
+	 */
+	public TickReplay periods(Period... periods) {
+		this.periods = new ArrayList<Period>(Arrays.asList(periods));
+		return this;
+	}
+
+	/**
+	 * 每个周期保存的K线数, 默认20000
+	 * @param barCapacity
+	 * @return
+	 */
+	public TickReplay barCapacity(int barCapacity) {
+		this.barCapacity = barCapacity;
+		return this;
+	}
+
+	/**
+	 * 保存的tick数(TICK周期指标和getTick), 默认10000
+	 * @param tickCapacity
+	 * @return
+	 */
+	public TickReplay tickCapacity(int tickCapacity) {
+		this.tickCapacity = tickCapacity;
+		return this;
+	}
+
+	/**
+	 * 预热时长: 开头这段时间的tick只用于生成历史K线, 之后才启动策略
+	 * @param millis
+	 * @return
+	 */
+	public TickReplay warmUp(long millis) {
+		this.warmUp = millis;
+		return this;
+	}
+
+	/**
+	 * 策略IConsole的输出, 默认System.out
+	 * @param out
+	 * @return
+	 */
+	public TickReplay console(PrintStream out) {
+		this.out = out;
+		return this;
+	}
+
+	/**
+	 * 策略的文件目录(IContext.getFilesDir()), 多路回放时每个实例使用其中按序号命名的子目录;
+	 * 未设置时每个实例使用新建的临时目录, 快照/交易日志等文件不会与实盘或其他回放共用
+	 * @param dir
+	 * @return
+	 */
+	public TickReplay filesDir(File dir) {
+		this.filesDir = dir;
+		return this;
+	}
+
+	/**
+	 * 回放全部tick(或直到策略调用context.stop()), 结束时回调onStop
+	 * @param strategy
+	 * @return
+	 * @throws JFException 策略回调抛出的异常, 回放中止
+	 * @throws IOException 读取tick出错
+	 */
+	public ReplayReport run(IStrategy strategy) throws JFException, IOException {
+		Lane lane = new Lane();
+		Session session = lane.add(strategy, -1);
+
+		long begin = System.nanoTime();
+		try {
+			while (lane.active > 0 && feed.next()) {
+				lane.onTick(feed.getTime(), feed.getAsk(), feed.getBid(), feed.getAskVolume(), feed.getBidVolume());
+			}
+		} finally {
+			feed.close();
+		}
+		lane.finish(System.nanoTime() - begin);
+
+		Exception error = session.report.error;
+		if(error instanceof JFException) {
+			throw (JFException) error;
+		}
+		if(error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		}
+		return session.report;
+	}
+
+	/**
+	 * 多路回放: 每个tick只读取一次, 交给所有策略实例
+	 *
+	 * 每个实例有独立的账户和IContext, 实例之间互不影响;
+	 * 某个实例的回调抛出异常时只中止该实例(见ReplayReport.getError()), 不回调它的onStop
+	 * @param strategies 策略实例(不能重复)
+	 * @param threads 处理策略回调的线程数
+	 * @return 与strategies顺序对应的结果
+	 * @throws IOException 读取tick出错
+	 * @throws InterruptedException
+	 */
+	public List<ReplayReport> run(List<? extends IStrategy> strategies, int threads) throws IOException, InterruptedException {
+		int n = Math.max(1, Math.min(threads, strategies.size()));
+		Lane[] lanes = new Lane[n];
+		for (int i = 0; i < n; i++) {
+			lanes[i] = new Lane();
+		}
+		List<Session> sessions = new ArrayList<Session>(strategies.size());
+		for (int i = 0; i < strategies.size(); i++) {
+			sessions.add(lanes[i % n].add(strategies.get(i), i));
+		}
+
+		long begin = System.nanoTime();
+		try {
+			if(n == 1) {
+				while (lanes[0].active > 0 && feed.next()) {
+					lanes[0].onTick(feed.getTime(), feed.getAsk(), feed.getBid(), feed.getAskVolume(), feed.getBidVolume());
+				}
+			} else {
+				fanOut(lanes);
+			}
+		} finally {
+			feed.close();
+		}
+		long elapsed = System.nanoTime() - begin;
+
+		for (Lane lane : lanes) {
+			lane.finish(elapsed);
+		}
+		List<ReplayReport> reports = new ArrayList<ReplayReport>(sessions.size());
+		for (Session session : sessions) {
+			reports.add(session.report);
+		}
+		return reports;
+	}
+
+	/**
+	 * 当前线程读取tick, 每个Lane一个线程处理
+	 *
+	 * 两个批次交替使用: 各线程处理第k批时当前线程读取第k+1批, 全部到达栅栏后交换;
+	 * 交换到空批次(tick读完、所有实例都已停止或有线程出错)时各线程退出
+	 */
+	private void fanOut(Lane[] lanes) throws IOException, InterruptedException {
+		final TickBatch[] batches = { new TickBatch(), new TickBatch() };
+		final CyclicBarrier barrier = new CyclicBarrier(lanes.length + 1);
+		final AtomicInteger active = new AtomicInteger();
+		final Throwable[] failure = new Throwable[1];
+		for (Lane lane : lanes) {
+			active.addAndGet(lane.active);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(lanes.length);
+		try {
+			for (final Lane lane : lanes) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							for (int k = 0;; k++) {
+								barrier.await();
+								TickBatch batch = batches[k & 1];
+								if(batch.size == 0) {
+									return;
+								}
+								if(lane.active == 0) {
+									continue;
+								}
+								int before = lane.active;
+								try {
+									batch.replay(lane);
+								} catch (Throwable e) {
+									// 回放本身的错误(策略异常已在Session中处理): 停止该线程的实例, 结束回放
+									synchronized (failure) {
+										failure[0] = e;
+									}
+									lane.active = 0;
+								}
+								active.addAndGet(lane.active - before);
+							}
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} catch (BrokenBarrierException e) {
+							// 读取线程出错
+						}
+					}
+				});
+			}
+
+			IOException error = null;
+			try {
+				batches[0].fill(feed);
+			} catch (IOException e) {
+				error = e;
+				batches[0].size = 0;
+			}
+			for (int k = 0;; k++) {
+				try {
+					barrier.await();
+				} catch (BrokenBarrierException e) {
+					throw new IllegalStateException(e);
+				}
+				if(batches[k & 1].size == 0) {
+					break;
+				}
+				// 其他线程处理第k批时读取第k+1批, 上一批之后已全部停止或出错时不再读取
+				TickBatch next = batches[(k + 1) & 1];
+				boolean failed;
+				synchronized (failure) {
+					failed = failure[0] != null;
+				}
+				next.size = 0;
+				if(error == null && active.get() > 0 && !failed) {
+					try {
+						next.fill(feed);
+					} catch (IOException e) {
+						// 交换到空批次让各线程退出, 之后再抛出
+						error = e;
+						next.size = 0;
+					}
+				}
+			}
+			if(error != null) {
+				throw error;
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+
+		if(failure[0] != null) {
+			throw new IllegalStateException("replay failed", failure[0]);
+		}
+	}
+
+	/**
+	 * 一批tick
+	 */
+	private static class TickBatch {
+		final long[] times = new long[TICK_BATCH];
+		final double[] asks = new double[TICK_BATCH];
+		final double[] bids = new double[TICK_BATCH];
+		final double[] askVolumes = new double[TICK_BATCH];
+		final double[] bidVolumes = new double[TICK_BATCH];
+		int size;
+
+		void fill(TickFeed feed) throws IOException {
+			size = 0;
+			while (size < TICK_BATCH && feed.next()) {
+				times[size] = feed.getTime();
+				asks[size] = feed.getAsk();
+				bids[size] = feed.getBid();
+				askVolumes[size] = feed.getAskVolume();
+				bidVolumes[size] = feed.getBidVolume();
+				size++;
+			}
+		}
+
+		void replay(Lane lane) {
+			for (int i = 0; i < size && lane.active > 0; i++) {
+				lane.onTick(times[i], asks[i], bids[i], askVolumes[i], bidVolumes[i]);
+			}
+		}
+	}
+
+	/**
+	 * 在同一个线程中回放的一组策略实例, 共用一份K线/历史数据
+	 */
+	private class Lane {
+
+		private final ReplayHistory history = new ReplayHistory(instrument, periods, barCapacity, tickCapacity);
+		private final List<Session> sessions = new ArrayList<Session>();
+
+		// 未停止且未出错的实例数
+		private int active;
+		private boolean started;
+		private long firstTime = -1;
+		private long lastTime;
+		private long warmUpTicks;
+
+		private final ReplayHistory.BarListener barListener = new ReplayHistory.BarListener() {
+			@Override
+			public void onBar(Period period, IBar askBar, IBar bidBar) {
+				for (int i = 0; i < sessions.size(); i++) {
+					sessions.get(i).onBar(period, askBar, bidBar);
+				}
+			}
+		};
+
+		Session add(IStrategy strategy, int index) {
+			Session session = new Session(this, strategy, index);
+			sessions.add(session);
+			active++;
+			return session;
+		}
+
+		void onTick(long time, double ask, double bid, double askVolume, double bidVolume) {
+			if(firstTime < 0) {
+				firstTime = time;
+			}
+			lastTime = time;
+
+			if(!started && time < firstTime + warmUp) {
+				history.onTick(time, ask, bid, askVolume, bidVolume, null);
+				warmUpTicks++;
+				return;
+			}
+
+			history.onTick(time, ask, bid, askVolume, bidVolume, started ? barListener : null);
+			started = true;
+			for (int i = 0; i < sessions.size(); i++) {
+				sessions.get(i).onTick(time, ask, bid);
+			}
+		}
+
+		/**
+		 * 回调onStop并填写结果
+		 * @param elapsedNanos 回放用时
+		 */
+		void finish(long elapsedNanos) {
+			for (Session session : sessions) {
+				session.finish(elapsedNanos);
+			}
+		}
+	}
+
+	/**
+	 * 一个策略实例及其账户
+	 */
+	private class Session {
+
+		private final Lane lane;
+		private final IStrategy strategy;
+		// 多路回放中的序号, 单独回放时为-1
+		private final int index;
+		private final ReplayBroker broker;
+		private final IContext context;
+		private final ConsoleStub console = new ConsoleStub();
+		private final ReplayReport report = new ReplayReport();
+
+		private boolean started;
+		private boolean stopped;
+		private File filesDir;
+
+		Session(Lane lane, IStrategy strategy, int index) {
+			this.lane = lane;
+			this.strategy = strategy;
+			this.index = index;
+			this.broker = new ReplayBroker(instrument, balance, accountCurrency, leverage);
+			this.context = new ContextStub(this).proxy();
+			report.initialBalance = balance;
+			report.maxEquity = balance;
+		}
+
+		private boolean isActive() {
+			return !stopped && report.error == null;
+		}
+
+		void onBar(Period period, IBar askBar, IBar bidBar) {
+			if(!started || !isActive()) return;
+			try {
+				strategy.onBar(instrument, period, askBar, bidBar);
+				deliver();
+			} catch (Exception e) {
+				fail(e);
+			}
+		}
+
+		void onTick(long time, double ask, double bid) {
+			if(!isActive()) return;
+			try {
+				broker.onTick(time, ask, bid);
+				if(!started) {
+					started = true;
+					strategy.onStart(context);
+				}
+				deliver();
+				if(stopped) return;
+
+				strategy.onTick(instrument, lane.history.getLastTick());
+				deliver();
+				report.ticks++;
+			} catch (Exception e) {
+				fail(e);
+				return;
+			}
+
+			double equity = broker.getEquity();
+			if(equity > report.maxEquity) {
+				report.maxEquity = equity;
+			} else if(report.maxEquity - equity > report.maxDrawdown) {
+				report.maxDrawdown = report.maxEquity - equity;
+			}
+		}
+
+		/**
+		 * 把队列中的订单消息交给策略(onMessage中产生的新消息也在这里发送)
+		 * @throws JFException
+		 */
+		private void deliver() throws JFException {
+			IMessage message;
+			while ((message = broker.pollMessage()) != null) {
+				strategy.onMessage(message);
+			}
+		}
+
+		/**
+		 * 该实例的文件目录, 第一次取得时创建
+		 * @return
+		 * @throws IOException
+		 */
+		File filesDir() throws IOException {
+			if(filesDir == null) {
+				File dir;
+				if(TickReplay.this.filesDir == null) {
+					dir = Files.createTempDirectory("replay_").toFile();
+				} else {
+					dir = index < 0 ? TickReplay.this.filesDir : new File(TickReplay.this.filesDir, String.valueOf(index));
+					if(!dir.isDirectory() && !dir.mkdirs()) {
+						throw new IOException("cannot create directory: " + dir);
+					}
+				}
+				filesDir = dir;
+				report.filesDir = dir;
+			}
+			return filesDir;
+		}
+
+		/**
+		 * 策略回调抛出异常, 该实例中止
+		 */
+		private void fail(Exception e) {
+			if(isActive()) {
+				lane.active--;
+			}
+			report.error = e;
+		}
+
+		/**
+		 * context.stop(): 当前回调返回后不再回调该实例
+		 */
+		void stop() {
+			if(isActive()) {
+				lane.active--;
+			}
+			stopped = true;
+		}
+
+		void finish(long elapsedNanos) {
+			if(started && report.error == null) {
+				try {
+					strategy.onStop();
+				} catch (Exception e) {
+					report.error = e;
+				}
+			}
+			report.firstTime = lane.firstTime;
+			report.lastTime = lane.lastTime;
+			report.warmUpTicks = lane.warmUpTicks;
+			report.elapsedNanos = elapsedNanos;
+			report.balance = broker.getBalance();
+			report.equity = broker.getEquity();
+			report.closedOrders = broker.getClosedCount();
+			report.openOrders = broker.getOpenCount();
+			report.stopped = stopped;
+		}
+	}
+
+	/**
+	 * IContext替身
+	 */
+	private class ContextStub extends StubHandler {
+
+		private final Session session;
+
+		// 画线等操作在回放中忽略
+		private final IChart chart = NoOpStub.of(IChart.class);
+
+		ContextStub(Session session) {
+			super(IContext.class);
+			this.session = session;
+		}
+
+		@Override
+		protected Object handle(String method, Object[] args) throws Exception {
+			switch (method) {
+			case "getEngine": return session.broker.engine();
+			case "getHistory": return session.lane.history.history();
+			case "getIndicators": return session.lane.history.indicators();
+			case "getAccount": return session.broker.account();
+			case "getConsole": return session.console.proxy();
+			case "getChart": return chart;
+			case "getDataService":
+			case "getUserInterface":
+			case "getUtils": return null;
+			case "getSubscribedInstruments": return new HashSet<Instrument>(Collections.singleton(instrument));
+			case "setSubscribedInstruments": return null;
+			case "getFilesDir": return session.filesDir();
+			case "getTime": return session.lane.history.getTime();
+			case "stop":
+				session.stop();
+				return null;
+			case "isStopped": return session.stopped;
+			case "executeTask": {
+				// 回放是单线程的, 任务直接在当前线程执行
+				FutureTask<Object> task = new FutureTask<Object>(castCallable(args[0]));
+				task.run();
+				return task;
+			}
+			default: return UNSUPPORTED;
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private Callable<Object> castCallable(Object callable) {
+			return (Callable<Object>) callable;
+		}
+
+		@Override
+		public String toString() {
+			return "ReplayContext[" + instrument + "]";
+		}
+	}
+
+	/**
+	 * IConsole替身
+	 */
+	private class ConsoleStub extends StubHandler {
+
+		ConsoleStub() {
+			super(IConsole.class);
+		}
+
+		@Override
+		protected Object handle(String method, Object[] args) {
+			if(method.startsWith("get") && args.length == 0) {
+				// getOut/getErr/getWarn/getInfo/getNotif
+				return out;
+			}
+			return UNSUPPORTED;
+		}
+
+		@Override
+		public String toString() {
+			return "ReplayConsole";
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3) {
+			System.err.println("usage: TickReplay <strategy class> <instrument> <tick csv...|tick store.ticks>");
+			System.exit(1);
+		}
+		IStrategy strategy = (IStrategy) Class.forName(args[0]).newInstance();
+		Instrument instrument = Instrument.fromString(args[1]);
+
+		if(args.length == 3 && args[2].endsWith(".ticks")) {
+			TickStore store = new TickStore(new File(args[2]));
+			try {
+				System.out.println(new TickReplay(instrument, store.feed()).run(strategy));
+			} finally {
+				store.close();
+			}
+			return;
+		}
+
+		List<File> files = new ArrayList<File>();
+		for (int i = 2; i < args.length; i++) {
+			files.add(new File(args[i]));
+		}
+
+		ReplayReport report = new TickReplay(instrument, new CsvTickFeed(files)).run(strategy);
+		System.out.println(report);
+	}
+}
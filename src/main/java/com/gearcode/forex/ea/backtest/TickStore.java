@@ -0,0 +1,294 @@
+package com.gearcode.forex.ea.backtest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 内存映射的二进制tick文件(由TickStoreWriter生成)
+ *
+ * 文件格式(小端):
+ * <pre>
+ * 文件头 64字节: int magic, int version, long tick数, int 天数, int 记录长度, long 索引位置, 其余保留
+ * tick记录 32字节: long 时间(毫秒, GMT), double bid, double ask, float askVolume, float bidVolume
+ * 按天索引 每天24字节: long 当天0点(GMT), long 第一个tick序号, long tick数
+ * </pre>
+ * 读取时按1GB分段映射整个文件, 游标直接从映射区读取(不解析、不复制), 数据由系统页缓存提供;
+ * 一年的EURUSD tick(约3000~5000万个)在1~2GB左右.
+ * 映射区在close后由GC回收
+ *
+ * @author liteng
+ *
+ */
+public class TickStore implements Closeable {
+
+	static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+	static final int MAGIC = 0x4B434954; // "TICK"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 64;
+	static final int RECORD_SIZE = 32;
+	static final int INDEX_ENTRY_SIZE = 24;
+
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+
+	// 每段2^25个tick(1GB), 单个MappedByteBuffer不能超过2GB
+	private static final int SEGMENT_SHIFT = 25;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final long count;
+	private final ByteBuffer[] segments;
+
+	private final long[] dayStarts;
+	private final long[] dayFirsts;
+	private final long[] dayCounts;
+
+	public TickStore(File file) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+			while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+			}
+			header.flip();
+			if(header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+				throw new IOException("not a tick store: " + file);
+			}
+			int version = header.getInt();
+			if(version != VERSION) {
+				throw new IOException("unsupported tick store version " + version + ": " + file);
+			}
+			count = header.getLong();
+			int days = header.getInt();
+			int recordSize = header.getInt();
+			long indexOffset = header.getLong();
+			if(recordSize != RECORD_SIZE || indexOffset != HEADER_SIZE + count * RECORD_SIZE
+					|| channel.size() < indexOffset + (long) days * INDEX_ENTRY_SIZE) {
+				throw new IOException("corrupted tick store: " + file);
+			}
+
+			int n = (int) ((count + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+			segments = new ByteBuffer[n];
+			for (int i = 0; i < n; i++) {
+				long first = (long) i << SEGMENT_SHIFT;
+				long size = Math.min(count - first, 1L << SEGMENT_SHIFT) * RECORD_SIZE;
+				MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * RECORD_SIZE, size);
+				segments[i] = segment.order(ORDER);
+			}
+
+			MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, (long) days * INDEX_ENTRY_SIZE);
+			index.order(ORDER);
+			dayStarts = new long[days];
+			dayFirsts = new long[days];
+			dayCounts = new long[days];
+			for (int i = 0; i < days; i++) {
+				dayStarts[i] = index.getLong();
+				dayFirsts[i] = index.getLong();
+				dayCounts[i] = index.getLong();
+			}
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	static long dayStart(long time) {
+		return Math.floorDiv(time, DAY) * DAY;
+	}
+
+	/**
+	 * @return tick总数
+	 */
+	public long size() {
+		return count;
+	}
+
+	/**
+	 * @return 有tick的天数
+	 */
+	public int getDays() {
+		return dayStarts.length;
+	}
+
+	/**
+	 * @param day 第几天(0 ~ getDays()-1)
+	 * @return 当天0点(GMT)
+	 */
+	public long getDayStart(int day) {
+		return dayStarts[day];
+	}
+
+	/**
+	 * @param day
+	 * @return 当天的tick数
+	 */
+	public long getDayTicks(int day) {
+		return dayCounts[day];
+	}
+
+	public long getFirstTime() {
+		return count == 0 ? -1 : time(0);
+	}
+
+	public long getLastTime() {
+		return count == 0 ? -1 : time(count - 1);
+	}
+
+	/**
+	 * @param index tick序号
+	 * @return 该tick的时间
+	 */
+	public long time(long index) {
+		return segments[(int) (index >>> SEGMENT_SHIFT)].getLong((int) (index & SEGMENT_MASK) * RECORD_SIZE);
+	}
+
+	/**
+	 * 先按天索引定位到当天, 再在当天内二分查找
+	 * @param time
+	 * @return 第一个时间不早于time的tick序号, 都早于time时返回size()
+	 */
+	public long indexOf(long time) {
+		long start = dayStart(time);
+		int lo = 0, hi = dayStarts.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(dayStarts[mid] < start) lo = mid + 1; else hi = mid;
+		}
+		if(lo == dayStarts.length) {
+			return count;
+		}
+		if(dayStarts[lo] > start) {
+			// 当天没有tick, 从下一个有tick的天开始
+			return dayFirsts[lo];
+		}
+
+		long from = dayFirsts[lo], to = from + dayCounts[lo];
+		while (from < to) {
+			long mid = (from + to) >>> 1;
+			if(time(mid) < time) from = mid + 1; else to = mid;
+		}
+		return from;
+	}
+
+	/**
+	 * @return 从头到尾读取所有tick的游标
+	 */
+	public Cursor feed() {
+		return new Cursor(0, count);
+	}
+
+	/**
+	 * 读取时间段[from, to)内的tick, 用于只回放或预热某一段
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public Cursor feed(long from, long to) {
+		long first = indexOf(from);
+		return new Cursor(first, Math.max(first, indexOf(to)));
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	@Override
+	public String toString() {
+		return "TickStore[" + file + ", " + count + " ticks, " + dayStarts.length + " days]";
+	}
+
+	/**
+	 * 直接读取映射区的游标, 同一个TickStore可以同时打开多个
+	 */
+	public class Cursor implements TickFeed {
+
+		private final long end;
+		private long next;
+
+		private ByteBuffer segment;
+		private int offset;
+
+		private Cursor(long first, long end) {
+			this.end = end;
+			seek(first);
+		}
+
+		/**
+		 * 移动到第index个tick之前, 下次next()读取该tick
+		 * @param index
+		 */
+		public void seek(long index) {
+			next = Math.max(0, Math.min(index, end));
+			segment = null;
+		}
+
+		/**
+		 * 移动到第一个时间不早于time的tick之前
+		 * @param time
+		 */
+		public void seekTime(long time) {
+			seek(indexOf(time));
+		}
+
+		/**
+		 * @return 剩余的tick数
+		 */
+		public long remaining() {
+			return end - next;
+		}
+
+		@Override
+		public boolean next() {
+			if(next >= end) {
+				return false;
+			}
+			if(segment == null || (next & SEGMENT_MASK) == 0) {
+				segment = segments[(int) (next >>> SEGMENT_SHIFT)];
+				offset = (int) (next & SEGMENT_MASK) * RECORD_SIZE;
+			} else {
+				offset += RECORD_SIZE;
+			}
+			next++;
+			return true;
+		}
+
+		@Override
+		public long getTime() {
+			return segment.getLong(offset);
+		}
+
+		@Override
+		public double getAsk() {
+			return segment.getDouble(offset + 16);
+		}
+
+		@Override
+		public double getBid() {
+			return segment.getDouble(offset + 8);
+		}
+
+		@Override
+		public double getAskVolume() {
+			return segment.getFloat(offset + 24);
+		}
+
+		@Override
+		public double getBidVolume() {
+			return segment.getFloat(offset + 28);
+		}
+
+		@Override
+		public void close() {
+			next = end;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.gearcode.forex.ea.backtest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 写入二进制tick文件(格式见TickStore)
+ *
+ * tick按时间顺序追加, close()时写入按天索引并回填文件头; 未close的文件不能读取.
+ *
+ * 用法(CSV转换): TickStoreWriter &lt;输出文件&gt; &lt;tick csv文件...&gt;
+ *
+ * @author liteng
+ *
+ */
+public class TickStoreWriter implements Closeable {
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(TickStore.RECORD_SIZE * 32768).order(TickStore.ORDER);
+
+	private long count = 0;
+	private long lastTime = Long.MIN_VALUE;
+
+	// 每天: [当天0点, 第一个tick序号, tick数]
+	private final List<long[]> days = new ArrayList<long[]>();
+	private long[] day;
+
+	private boolean closed;
+
+	public TickStoreWriter(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+		this.channel = this.file.getChannel();
+		channel.position(TickStore.HEADER_SIZE);
+	}
+
+	/**
+	 * 追加一个tick, 时间不能早于上一个tick
+	 * @param time 毫秒, GMT
+	 * @param ask
+	 * @param bid
+	 * @param askVolume
+	 * @param bidVolume
+	 * @throws IOException
+	 */
+	public void append(long time, double ask, double bid, double askVolume, double bidVolume) throws IOException {
+		if(time < lastTime) {
+			throw new IOException("tick out of order: " + time + " < " + lastTime);
+		}
+		lastTime = time;
+
+		long dayStart = TickStore.dayStart(time);
+		if(day == null || day[0] != dayStart) {
+			day = new long[] { dayStart, count, 0 };
+			days.add(day);
+		}
+		day[2]++;
+
+		if(buffer.remaining() < TickStore.RECORD_SIZE) {
+			flush();
+		}
+		buffer.putLong(time);
+		buffer.putDouble(bid);
+		buffer.putDouble(ask);
+		buffer.putFloat((float) askVolume);
+		buffer.putFloat((float) bidVolume);
+		count++;
+	}
+
+	/**
+	 * 追加数据源中剩余的所有tick
+	 * @param feed
+	 * @return 追加的tick数
+	 * @throws IOException
+	 */
+	public long appendAll(TickFeed feed) throws IOException {
+		long n = 0;
+		while (feed.next()) {
+			append(feed.getTime(), feed.getAsk(), feed.getBid(), feed.getAskVolume(), feed.getBidVolume());
+			n++;
+		}
+		return n;
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	public long size() {
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		closed = true;
+		try {
+			flush();
+
+			// 按天索引
+			long indexOffset = channel.position();
+			ByteBuffer index = ByteBuffer.allocate(days.size() * TickStore.INDEX_ENTRY_SIZE).order(TickStore.ORDER);
+			for (long[] d : days) {
+				index.putLong(d[0]).putLong(d[1]).putLong(d[2]);
+			}
+			index.flip();
+			while (index.hasRemaining()) {
+				channel.write(index);
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(TickStore.HEADER_SIZE).order(TickStore.ORDER);
+			header.putInt(TickStore.MAGIC);
+			header.putInt(TickStore.VERSION);
+			header.putLong(count);
+			header.putInt(days.size());
+			header.putInt(TickStore.RECORD_SIZE);
+			header.putLong(indexOffset);
+			header.position(0);
+			channel.write(header, 0);
+			channel.force(true);
+		} finally {
+			file.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 2) {
+			System.err.println("usage: TickStoreWriter <output file> <tick csv...>");
+			System.exit(1);
+		}
+		List<File> files = new ArrayList<File>();
+		for (int i = 1; i < args.length; i++) {
+			files.add(new File(args[i]));
+		}
+
+		long begin = System.currentTimeMillis();
+		TickStoreWriter writer = new TickStoreWriter(new File(args[0]));
+		CsvTickFeed feed = new CsvTickFeed(files);
+		try {
+			writer.appendAll(feed);
+		} finally {
+			feed.close();
+			writer.close();
+		}
+		System.out.println("written " + writer.size() + " ticks, " + writer.days.size() + " days in "
+				+ (System.currentTimeMillis() - begin) + " ms");
+	}
+}
@@ -0,0 +1,97 @@
+package com.gearcode.forex.ea.grid;
+
+import com.dukascopy.api.IOrder;
+import com.dukascopy.api.IOrder.State;
+import com.dukascopy.api.JFException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量平仓
+ *
+ * 先对所有订单发出平仓(挂单为撤单)请求, 再在同一个超时时间内等待确认,
+ * 总耗时不再随订单数线性增长; 每个订单单独返回结果
+ *
+ * @author liteng
+ *
+ */
+public class CloseBatch {
+
+	private CloseBatch() {
+	}
+
+	/**
+	 * 平仓所有订单
+	 * @param orders
+	 * @param timeout 整批订单的等待时间(毫秒)
+	 * @return 按orders顺序排列的结果
+	 */
+	public static List<Outcome> closeAll(List<IOrder> orders, long timeout) {
+		List<Outcome> outcomes = new ArrayList<Outcome>(orders.size());
+		for (IOrder order : orders) {
+			Outcome outcome = new Outcome(order);
+			try {
+				order.close();
+			} catch (JFException e) {
+				outcome.error = e;
+			}
+			outcomes.add(outcome);
+		}
+
+		long deadline = System.currentTimeMillis() + timeout;
+		for (Outcome outcome : outcomes) {
+			if(outcome.error == null && !isClosed(outcome.order)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining > 0) {
+					try {
+						awaitClosed(outcome.order, remaining);
+					} catch (JFException e) {
+						outcome.error = e;
+					}
+				}
+			}
+			outcome.closed = isClosed(outcome.order);
+		}
+		return outcomes;
+	}
+
+	private static boolean isClosed(IOrder order) {
+		return order.getState() == State.CLOSED || order.getState() == State.CANCELED;
+	}
+
+	private static void awaitClosed(IOrder order, long timeout) throws JFException {
+		order.waitForUpdate(timeout, State.CLOSED, State.CANCELED);
+	}
+
+	/**
+	 * 单个订单的平仓结果
+	 */
+	public static class Outcome {
+		private final IOrder order;
+		private boolean closed;
+		private JFException error;
+
+		Outcome(IOrder order) {
+			this.order = order;
+		}
+
+		public IOrder getOrder() {
+			return order;
+		}
+
+		/**
+		 * @return 订单已平仓或已撤单
+		 */
+		public boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * @return 平仓请求或等待时抛出的异常
+		 */
+		public JFException getError() {
+			return error;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package com.gearcode.forex.ea.grid;
+
+import com.dukascopy.api.IOrder;
+import com.dukascopy.api.drawings.IChartObjectFactory;
+import com.dukascopy.api.drawings.IHorizontalLineChartObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 格子
+ *
+ * offset > 0 时价格区间为[start, end), offset < 0 时为(end, start],
+ * 边界以pipettes保存
+ *
+ * @author liteng
+ *
+ */
+public class Grid {
+
+	private GridSystem gridSystem;
+
+	private List<IOrder> orders = new ArrayList<IOrder>();
+	private List<IOrder> ordersView = Collections.unmodifiableList(orders);
+
+	// 各类型订单数(按OrderType.ordinal())
+	private int[] orderCounts = new int[OrderType.values().length];
+
+	// 已提交未成交的订单(OrderPipeline的句柄)
+	private List<OrderHandle> pending = new ArrayList<OrderHandle>();
+	private List<OrderHandle> pendingView = Collections.unmodifiableList(pending);
+	private int[] pendingCounts = new int[OrderType.values().length];
+
+	// -3, -2, -1, 1, 2, 3 ...
+	private int offset;
+
+	// contain (pipettes)
+	private long start;
+
+	// not contain (pipettes)
+	private long end;
+
+	public Grid(GridSystem gridSystem, int offset) {
+
+		this.gridSystem = gridSystem;
+		this.offset = offset;
+
+		long gap = gridSystem.getGapPipettes();
+		long origin = gridSystem.getStartPipettes();
+
+		this.end = origin + offset * gap;
+		this.start = this.end + (offset > 0 ? -gap : gap);
+
+		if(gridSystem.getChart() != null) {
+			IChartObjectFactory cof = gridSystem.getChart().getChartObjectFactory();
+			IHorizontalLineChartObject line = cof.createHorizontalLine(Math.random() + "", this.getStart());
+			gridSystem.getChart().add(line);
+		}
+	}
+
+	public GridSystem getGridSystem() {
+		return gridSystem;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public double getStart() {
+		return gridSystem.getPipettes().toPrice(start);
+	}
+
+	public double getEnd() {
+		return gridSystem.getPipettes().toPrice(end);
+	}
+
+	public long getStartPipettes() {
+		return start;
+	}
+
+	public long getEndPipettes() {
+		return end;
+	}
+
+	/**
+	 * 比较格子起始价格与指定价格(按pipette精确比较)
+	 * @param price
+	 * @return 格子起始价格 大于:1 / 等于:0 / 小于:-1
+	 */
+	public int compareStart(double price) {
+		return Long.compare(start, gridSystem.getPipettes().toPipettes(price));
+	}
+
+	/**
+	 * 格子中的订单(只读), 增删请使用addOrder/removeOrder
+	 * @return
+	 */
+	public List<IOrder> getOrders() {
+		return ordersView;
+	}
+
+	/**
+	 * 添加订单, 同时在GridSystem中登记订单类型
+	 * @param order
+	 * @param type
+	 * @throws IllegalStateException 订单已在格子中(同一订单被放入两次)
+	 */
+	public void addOrder(IOrder order, OrderType type) {
+		OrderRegistry.Entry<OrderType> old = gridSystem.getRegistry().get(order);
+		if(old != null) {
+			throw new IllegalStateException("order already placed: " + order.getLabel() + " in grid " + old.getOffset() + " as " + old.getType()
+					+ ", adding to grid " + offset + " as " + type);
+		}
+		orders.add(order);
+		orderCounts[type.ordinal()]++;
+		gridSystem.getRegistry().register(order, type, offset);
+	}
+
+	/**
+	 * 移除订单并注销登记
+	 * @param order
+	 * @return
+	 */
+	public boolean removeOrder(IOrder order) {
+		if(!orders.remove(order)) {
+			return false;
+		}
+		OrderRegistry.Entry<OrderType> entry = gridSystem.getRegistry().unregister(order);
+		if(entry != null) {
+			orderCounts[entry.getType().ordinal()]--;
+		}
+		return true;
+	}
+
+	/**
+	 * 格子中是否有此订单
+	 * @param order
+	 * @return
+	 */
+	public boolean contains(IOrder order) {
+		OrderRegistry.Entry<OrderType> entry = gridSystem.getRegistry().get(order);
+		return entry != null && entry.getOffset() == offset;
+	}
+
+	/**
+	 * 格子中指定类型订单数
+	 * @param type
+	 * @return
+	 */
+	public int countOrders(OrderType type) {
+		return orderCounts[type.ordinal()];
+	}
+
+	/**
+	 * 格子中已提交未成交的指定类型订单数
+	 * @param type
+	 * @return
+	 */
+	public int countPending(OrderType type) {
+		return pendingCounts[type.ordinal()];
+	}
+
+	/**
+	 * 格子中已提交未成交的订单(只读)
+	 * @return
+	 */
+	public List<OrderHandle> getPending() {
+		return pendingView;
+	}
+
+	/**
+	 * 格子中已提交未成交的指定类型订单手数
+	 * @param type
+	 * @return
+	 */
+	public double getPendingLots(OrderType type) {
+		double lots = 0;
+		for (OrderHandle handle : pending) {
+			if(handle.getType() == type) {
+				lots += handle.getAmount();
+			}
+		}
+		return lots;
+	}
+
+	void addPending(OrderHandle handle) {
+		pending.add(handle);
+		pendingCounts[handle.getType().ordinal()]++;
+		gridSystem.addPending(handle);
+	}
+
+	void removePending(OrderHandle handle) {
+		if(pending.remove(handle)) {
+			pendingCounts[handle.getType().ordinal()]--;
+			gridSystem.removePending(handle);
+		}
+	}
+
+	/**
+	 * 格子中是否存在指定类型订单(包括已提交未成交的订单, 避免重复下单)
+	 * @param type
+	 * @return
+	 */
+	public boolean existOrder(OrderType type) {
+		return orderCounts[type.ordinal()] > 0 || pendingCounts[type.ordinal()] > 0;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(o instanceof Grid) {
+			return this.offset == ((Grid) o).offset;
+		}
+		return super.equals(o);
+	}
+
+	@Override
+	public int hashCode() {
+		return offset;
+	}
+
+	@Override
+	public String toString() {
+		return this.getOffset() + " [" + this.gridSystem.getDf().format(this.getStart()) + ", " + this.gridSystem.getDf().format(this.getEnd()) + ")";
+	}
+}
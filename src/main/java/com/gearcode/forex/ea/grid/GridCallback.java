@@ -0,0 +1,17 @@
+package com.gearcode.forex.ea.grid;
+
+/**
+ * 格子变化事件
+ *
+ * @author liteng
+ *
+ */
+public interface GridCallback {
+
+	/**
+	 * @param leave 离开的格子, 首个格子时为null
+	 * @param enter 进入的格子
+	 * @param price 当前价格
+	 */
+	public void onGridChange(Grid leave, Grid enter, double price);
+}
@@ -0,0 +1,22 @@
+package com.gearcode.forex.ea.grid;
+
+import java.util.List;
+
+/**
+ * 格子跨越事件(批量)
+ *
+ * 价格在一个tick内跳过多个格子时, 经过的每个格子按顺序一次性回调,
+ * 策略可以对每个格子执行开单逻辑并将产生的订单合并为一批提交
+ *
+ * @author liteng
+ *
+ */
+public interface GridCrossingCallback<G> {
+
+	/**
+	 * @param leave 离开的格子
+	 * @param crossed 依次经过的格子(不含leave, 最后一个为当前格子)
+	 * @param price 当前价格
+	 */
+	public void onGridsCrossed(G leave, List<G> crossed, double price);
+}
@@ -0,0 +1,81 @@
+package com.gearcode.forex.ea.grid;
+
+import java.math.BigDecimal;
+
+/**
+ * 格子索引计算(价格 -> offset)
+ *
+ * 结果与 new BigDecimal(d).setScale(pointScale, ROUND_HALF_UP).intValue() 相同,
+ * 但只使用基本类型运算, tick线程上不产生对象
+ *
+ * @author liteng
+ *
+ */
+public class GridIndex {
+
+	/*
+	 *  double乘法与BigDecimal精确值的误差远小于此值,
+	 *  仅在小数部分非常接近0.5时才可能舍入方向不同
+	 */
+	private static final double TIE_EPSILON = 1e-6;
+
+	private final double startPrice;
+	private final double pointGap;
+	private final int pointScale;
+
+	// 10^pointScale
+	private final long scaleFactor;
+
+	public GridIndex(double startPrice, double pointGap, int pointScale) {
+		this.startPrice = startPrice;
+		this.pointGap = pointGap;
+		this.pointScale = pointScale;
+
+		long factor = 1;
+		for(int i = 0; i < pointScale; i++) {
+			factor *= 10;
+		}
+		this.scaleFactor = factor;
+	}
+
+	/**
+	 * 计算价格所在格子的offset
+	 *
+	 * 当前价格大于初始价格时, 格子的价格区间为[small, large)
+	 * 当前价格小于初始价格时, 格子的价格区间为[large, small)
+	 * 当前价格等于初始价格时, 默认为+1格子
+	 *
+	 * @param price
+	 * @return
+	 */
+	public int offset(double price) {
+		int front = price >= startPrice ? 1 : -1;
+		double d = (price - startPrice) / pointGap + front;
+
+		// 按pointScale位小数四舍五入(ROUND_HALF_UP, 远离0), 再截断取整
+		double q = Math.abs(d) * scaleFactor;
+		double floor = Math.floor(q);
+		double frac = q - floor;
+
+		// 临界值交给BigDecimal, 保证与原结果完全一致
+		if(Math.abs(frac - 0.5) < TIE_EPSILON) {
+			return new BigDecimal(d).setScale(pointScale, BigDecimal.ROUND_HALF_UP).intValue();
+		}
+
+		long rounded = (long) floor + (frac > 0.5 ? 1 : 0);
+		int offset = (int) (rounded / scaleFactor);
+		return d < 0 ? -offset : offset;
+	}
+
+	public double getStartPrice() {
+		return startPrice;
+	}
+
+	public double getPointGap() {
+		return pointGap;
+	}
+
+	public int getPointScale() {
+		return pointScale;
+	}
+}
@@ -0,0 +1,83 @@
+package com.gearcode.forex.ea.grid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 格子存储(按offset直接寻址)
+ *
+ * offset > 0 存放于above[offset - 1], offset < 0 存放于under[-offset - 1],
+ * 查找为O(1); 只保存实际访问过的格子, 跳空时中间的格子不会被创建
+ *
+ * @author liteng
+ *
+ */
+public class GridStore<G> {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private Object[] above = new Object[INITIAL_CAPACITY];
+	private Object[] under = new Object[INITIAL_CAPACITY];
+
+	// 已创建的格子(按创建顺序)
+	private final List<G> grids = new ArrayList<G>();
+	private final List<G> gridsView = Collections.unmodifiableList(grids);
+
+	/**
+	 * 获取格子, 未创建时返回null
+	 * @param offset
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public G get(int offset) {
+		if(offset > 0) {
+			return offset <= above.length ? (G) above[offset - 1] : null;
+		} else if(offset < 0) {
+			return -offset <= under.length ? (G) under[-offset - 1] : null;
+		}
+		return null;
+	}
+
+	/**
+	 * 保存格子(每个offset只能保存一次)
+	 * @param offset
+	 * @param grid
+	 */
+	public void put(int offset, G grid) {
+		if(offset == 0) {
+			throw new IllegalArgumentException("offset must not be 0");
+		}
+		if(get(offset) != null) {
+			throw new IllegalStateException("grid already exists: " + offset);
+		}
+		if(offset > 0) {
+			above = ensureCapacity(above, offset);
+			above[offset - 1] = grid;
+		} else {
+			under = ensureCapacity(under, -offset);
+			under[-offset - 1] = grid;
+		}
+		grids.add(grid);
+	}
+
+	/**
+	 * 所有已创建的格子(只读)
+	 * @return
+	 */
+	public List<G> getGrids() {
+		return gridsView;
+	}
+
+	public int size() {
+		return grids.size();
+	}
+
+	private static Object[] ensureCapacity(Object[] array, int size) {
+		if(size <= array.length) {
+			return array;
+		}
+		return Arrays.copyOf(array, Math.max(size, array.length * 2));
+	}
+}
@@ -0,0 +1,448 @@
+package com.gearcode.forex.ea.grid;
+
+import com.dukascopy.api.IChart;
+import com.dukascopy.api.IConsole;
+import com.dukascopy.api.IOrder;
+import com.dukascopy.api.IOrder.State;
+import com.dukascopy.api.JFException;
+import com.gearcode.forex.ea.log.AsyncLog;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 网格系统
+ *
+ * 以初始价格为原点、固定间隔划分格子, 每个tick调用offer(price),
+ * 价格进入新格子时回调GridCallback(跨越模式下回调GridCrossingCallback).
+ * 格子边界以pipette表示, 间隔必须是pipette(pointScale位小数)的整数倍
+ *
+ * @author liteng
+ *
+ */
+public class GridSystem {
+
+	public static final int ORDER_TIMEOUT = 2000;
+
+	// 间隔换算为pipette后与整数的允许误差(double乘法误差)
+	private static final double GAP_EPSILON = 1e-6;
+
+	private String name;
+
+	private IChart chart;
+
+	private int pointScale;
+	private DecimalFormat df = new DecimalFormat("#");
+
+	private double pointgap;
+	private double startPrice;
+	private GridIndex gridIndex;
+	private Pipettes pipettes;
+	private long startPipettes;
+	private long gapPipettes;
+
+	// 已访问的格子, 按offset直接寻址
+	private GridStore<Grid> grids = new GridStore<Grid>();
+
+	// 订单登记表
+	private OrderRegistry<OrderType> registry;
+
+	private Grid lastGrid;
+
+	// 已提交未成交的订单数及手数(1/1000000手), 按OrderType.ordinal()
+	private int[] pendingCounts = new int[OrderType.values().length];
+	private long[] pendingLotUnits = new long[OrderType.values().length];
+
+	private Integer highest = null;
+	private Integer lowest  = null;
+
+	private GridCallback gridCallback;
+
+	// 跨越模式, 设置后跳空经过的格子一次性回调
+	private GridCrossingCallback<Grid> crossingCallback;
+
+	private IConsole console;
+	// 设置后平仓日志写入AsyncLog, 否则直接输出到console
+	private AsyncLog log;
+
+	public GridSystem(String name, double startPrice, double pointGap, int pointScale) {
+		this(name, startPrice, pointGap, pointScale, null);
+	}
+
+	/**
+	 * @param name
+	 * @param startPrice 原点价格
+	 * @param pointGap 格子间隔, 必须是pipette的整数倍
+	 * @param pointScale 价格精度
+	 * @param chart 不为null时在图表上画出格子
+	 * @throws IllegalArgumentException 间隔不是pipette的正整数倍
+	 */
+	public GridSystem(String name, double startPrice, double pointGap, int pointScale, IChart chart) {
+		this.name = name;
+		this.chart = chart;
+		this.pointgap = pointGap;
+		this.startPrice = startPrice;
+		this.pointScale = pointScale;
+		this.gridIndex = new GridIndex(startPrice, pointGap, pointScale);
+		this.pipettes = new Pipettes(pointScale);
+		this.startPipettes = pipettes.toPipettes(startPrice);
+		this.gapPipettes = pipettes.toPipettes(pointGap);
+		// 不是整数倍时GridIndex按原间隔计算的格子与按pipette计算的边界不一致
+		if(gapPipettes <= 0 || Math.abs(pointGap / pipettes.toPrice(1) - gapPipettes) > GAP_EPSILON) {
+			throw new IllegalArgumentException("gap must be a positive whole number of pipettes: " + pointGap + " (scale " + pointScale + ")");
+		}
+		this.registry = new OrderRegistry<OrderType>(OrderType.class, pipettes);
+
+		if(pointScale > 0) {
+			StringBuilder sb = new StringBuilder("#.");
+			for(int i=0;i<pointScale;i++) {
+				sb.append('0');
+			}
+			this.df = new DecimalFormat(sb.toString());
+		}
+	}
+
+	public Grid offer(double price) {
+		Grid grid = getGridByPrice(price);
+
+		// grid change
+		if(lastGrid == null || !lastGrid.equals(grid)) {
+			if(crossingCallback != null && lastGrid != null) {
+				crossingCallback.onGridsCrossed(lastGrid, getCrossedGrids(lastGrid.getOffset(), grid.getOffset()), price);
+			} else if(gridCallback != null) {
+				gridCallback.onGridChange(lastGrid, grid, price);
+			}
+		}
+
+		// highest & lowest
+		if(highest == null || highest < grid.getOffset()) {
+			highest = grid.getOffset();
+		}
+		if(lowest == null || lowest > grid.getOffset()) {
+			lowest = grid.getOffset();
+		}
+
+		lastGrid = grid;
+		return grid;
+	}
+
+	private int countOffset(double price) {
+		/*
+		 *  当前价格大于初始价格时, 格子的价格区间为[small, large)
+		 *  当前价格小于初始价格时, 格子的价格区间为[large, small)
+		 *  当前价格等于初始价格时, 默认为+1格子
+		 */
+		return gridIndex.offset(price);
+	}
+
+	public Grid getGridByOffset(int offset) {
+		if(offset == 0) {
+			return null;
+		}
+
+		// 只创建当前格子, 跳空经过的格子不创建
+		Grid grid = grids.get(offset);
+		if(grid == null) {
+			grid = new Grid(this, offset);
+			grids.put(offset, grid);
+		}
+		return grid;
+	}
+
+	public Grid getGridByPrice(double price) {
+		return getGridByOffset(countOffset(price));
+	}
+
+	/**
+	 * 从from(不含)到to(含)依次经过的格子, 跳过offset 0
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public List<Grid> getCrossedGrids(int from, int to) {
+		int step = from < to ? 1 : -1;
+		List<Grid> result = new ArrayList<Grid>(Math.abs(to - from));
+		for(int offset = from + step; ; offset += step) {
+			if(offset == 0) continue;
+			result.add(getGridByOffset(offset));
+			if(offset == to) break;
+		}
+		return result;
+	}
+
+	/**
+	 * Get all grids (read only)
+	 * @return
+	 */
+	public List<Grid> getAllGrids() {
+		return grids.getGrids();
+	}
+
+	/**
+	 * Get all orders
+	 * @return
+	 */
+	public List<IOrder> getAllOrders() {
+		List<IOrder> result = new ArrayList<IOrder>(registry.size());
+		for (Grid grid : grids.getGrids()) {
+			result.addAll(grid.getOrders());
+		}
+		return result;
+	}
+
+	/**
+	 * 订单所在格子
+	 * @param order
+	 * @return 订单不属于此网格系统时返回null
+	 */
+	public Grid getGridOf(IOrder order) {
+		OrderRegistry.Entry<OrderType> entry = registry.get(order);
+		return entry == null ? null : grids.get(entry.getOffset());
+	}
+
+	/**
+	 * 判断是否为指定类型订单(按下单时登记的类型)
+	 * @param order
+	 * @param type
+	 * @return
+	 */
+	public boolean isOrder(IOrder order, OrderType type) {
+		return registry.isOrder(order, type);
+	}
+
+	/**
+	 * 获取最大or最小价格的订单
+	 * @param type
+	 * @param max true:最大 / false:最小
+	 * @return
+	 */
+	public IOrder getOrder(OrderType type, boolean max) {
+		return registry.getExtremeOrder(type, max);
+	}
+
+	/**
+	 * 指定类型的所有订单(只读)
+	 * @param type
+	 * @return
+	 */
+	public List<IOrder> getOrders(OrderType type) {
+		return registry.getOrders(type);
+	}
+
+	/**
+	 * 指定类型订单总手数
+	 * @param type
+	 * @return
+	 */
+	public double getLots(OrderType type) {
+		return registry.getLots(type);
+	}
+
+	/**
+	 * 已提交未成交的指定类型订单数
+	 * @param type
+	 * @return
+	 */
+	public int countPending(OrderType type) {
+		return pendingCounts[type.ordinal()];
+	}
+
+	/**
+	 * 已提交未成交的指定类型订单手数(按请求手数)
+	 * @param type
+	 * @return
+	 */
+	public double getPendingLots(OrderType type) {
+		return pendingLotUnits[type.ordinal()] / 1000000.0;
+	}
+
+	void addPending(OrderHandle handle) {
+		pendingCounts[handle.getType().ordinal()]++;
+		pendingLotUnits[handle.getType().ordinal()] += OrderRegistry.toLotUnits(handle.getAmount());
+	}
+
+	void removePending(OrderHandle handle) {
+		pendingCounts[handle.getType().ordinal()]--;
+		pendingLotUnits[handle.getType().ordinal()] -= OrderRegistry.toLotUnits(handle.getAmount());
+	}
+
+	/**
+	 * 从格子中移除订单(不平仓)
+	 * @param orders
+	 */
+	public void removeOrder(List<IOrder> orders) {
+		for (IOrder order : orders) {
+			removeOrder(order);
+		}
+	}
+
+	/**
+	 * 从格子中移除订单(不平仓)
+	 * @param order
+	 */
+	public void removeOrder(IOrder order) {
+		Grid grid = getGridOf(order);
+		if(grid != null) {
+			grid.removeOrder(order);
+		}
+	}
+
+	/**
+	 * 批量平仓并从格子中移除, 所有订单同时发出平仓请求并共用一个超时时间
+	 * @param orders
+	 * @return 每个订单的平仓结果
+	 */
+	public List<CloseBatch.Outcome> closeAndRemoveOrder(List<IOrder> orders) {
+		List<IOrder> owned = new ArrayList<IOrder>(orders.size());
+		for (IOrder order : orders) {
+			if(registry.get(order) != null) {
+				owned.add(order);
+			}
+		}
+		List<CloseBatch.Outcome> outcomes = CloseBatch.closeAll(owned, ORDER_TIMEOUT);
+		for (CloseBatch.Outcome outcome : outcomes) {
+			IOrder order = outcome.getOrder();
+			// 与单个平仓相同: 请求成功即移除, 超时未确认的订单在结果中isClosed()为false
+			if(outcome.getError() == null) {
+				log("[Order][Close] " + order.getLabel() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
+				removeOrder(order);
+			} else {
+				log("[ERROR] close order error: " + outcome.getError().getLocalizedMessage());
+			}
+		}
+		return outcomes;
+	}
+
+	public void closeAndRemoveOrder(IOrder order) {
+		Grid grid = getGridOf(order);
+		if(grid != null) {
+			closeOrder(grid, order);
+		}
+	}
+
+	/**
+	 * 平仓并从格子中移除
+	 * @param grid
+	 * @param order
+	 */
+	public void closeOrder(Grid grid, IOrder order) {
+		try {
+			order.close();
+			order.waitForUpdate(ORDER_TIMEOUT, State.CLOSED);
+			log("[Order][Close] " + order.getLabel() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
+			grid.removeOrder(order);
+		} catch (JFException e) {
+			log("[ERROR] close order error: " + e.getLocalizedMessage());
+		}
+	}
+
+	private void log(String str) {
+		if(log != null) {
+			log.log(str);
+		} else if(console != null) {
+			console.getOut().println(str);
+		}
+	}
+
+	public IChart getChart() {
+		return chart;
+	}
+
+	public DecimalFormat getDf() {
+		return df;
+	}
+
+	public void setGridCallback(GridCallback gridCallback) {
+		this.gridCallback = gridCallback;
+	}
+
+	/**
+	 * 开启跨越模式: 格子变化时回调crossingCallback(首个格子仍回调gridCallback)
+	 * @param crossingCallback
+	 */
+	public void setCrossingCallback(GridCrossingCallback<Grid> crossingCallback) {
+		this.crossingCallback = crossingCallback;
+	}
+
+	public double getGap() {
+		return pointgap;
+	}
+
+	public double getStartPrice() {
+		return startPrice;
+	}
+
+	public int getPointScale() {
+		return pointScale;
+	}
+
+	public Pipettes getPipettes() {
+		return pipettes;
+	}
+
+	public OrderRegistry<OrderType> getRegistry() {
+		return registry;
+	}
+
+	public long getStartPipettes() {
+		return startPipettes;
+	}
+
+	public long getGapPipettes() {
+		return gapPipettes;
+	}
+
+	/**
+	 * 最近一次offer所在的格子, 未offer时为null
+	 * @return
+	 */
+	public Grid getLastGrid() {
+		return lastGrid;
+	}
+
+	/**
+	 * 从快照恢复所在格子及到达过的最高/最低格子(不回调), 之后的offer与重启前一样判断格子变化
+	 * @param lastOffset 0表示未offer
+	 * @param highest
+	 * @param lowest
+	 */
+	public void resume(int lastOffset, Integer highest, Integer lowest) {
+		this.lastGrid = getGridByOffset(lastOffset);
+		this.highest = highest;
+		this.lowest = lowest;
+	}
+
+	/**
+	 * 到达过的最高格子offset, 未offer时为null
+	 * @return
+	 */
+	public Integer getHighest() {
+		return highest;
+	}
+
+	/**
+	 * 到达过的最低格子offset, 未offer时为null
+	 * @return
+	 */
+	public Integer getLowest() {
+		return lowest;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setConsole(IConsole console) {
+		this.console = console;
+	}
+
+	/**
+	 * 平仓日志写入策略的AsyncLog(不在tick线程上输出)
+	 * @param log
+	 */
+	public void setLog(AsyncLog log) {
+		this.log = log;
+	}
+
+}
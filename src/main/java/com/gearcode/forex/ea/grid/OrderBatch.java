@@ -0,0 +1,218 @@
+package com.gearcode.forex.ea.grid;
+
+import com.dukascopy.api.IEngine;
+import com.dukascopy.api.IEngine.OrderCommand;
+import com.dukascopy.api.IOrder;
+import com.dukascopy.api.IOrder.State;
+import com.dukascopy.api.Instrument;
+import com.dukascopy.api.JFException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 批量下单
+ *
+ * 先依次提交所有订单, 再在同一个超时时间内等待确认(市价单FILLED, 挂单OPENED),
+ * 避免每个订单提交后各自阻塞等待; 可限制同时未确认的订单数
+ *
+ * @author liteng
+ *
+ */
+public class OrderBatch<A> {
+
+	private final IEngine engine;
+	private final long timeout;
+
+	private final List<Request<A>> requests = new ArrayList<Request<A>>();
+
+	// 同时未确认的订单数上限, 0为不限制
+	private int maxInFlight = 0;
+
+	/**
+	 * @param engine
+	 * @param timeout 整批订单的等待时间(毫秒)
+	 */
+	public OrderBatch(IEngine engine, long timeout) {
+		this.engine = engine;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * 添加订单
+	 * @param attachment 附加信息, 提交后可通过Request.getAttachment()取回(如所属格子)
+	 * @param label
+	 * @param instrument
+	 * @param command
+	 * @param amount
+	 * @return
+	 */
+	public Request<A> add(A attachment, String label, Instrument instrument, OrderCommand command, double amount) {
+		return add(attachment, label, instrument, command, amount, 0, -1);
+	}
+
+	/**
+	 * 添加挂单
+	 * @param attachment
+	 * @param label
+	 * @param instrument
+	 * @param command
+	 * @param amount
+	 * @param price 挂单价格, 0为市价
+	 * @param slippage 滑点, 小于0时使用平台默认值
+	 * @return
+	 */
+	public Request<A> add(A attachment, String label, Instrument instrument, OrderCommand command, double amount,
+			double price, double slippage) {
+		Request<A> request = new Request<A>(attachment, label, instrument, command, amount, price, slippage);
+		requests.add(request);
+		return request;
+	}
+
+	/**
+	 * 限制同时未确认的订单数, 达到上限时先等待最早提交的订单确认
+	 * @param maxInFlight 0为不限制
+	 * @return
+	 */
+	public OrderBatch<A> setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+
+	public boolean isEmpty() {
+		return requests.isEmpty();
+	}
+
+	public int size() {
+		return requests.size();
+	}
+
+	/**
+	 * 提交所有订单并等待确认, 单个订单失败不影响其他订单
+	 * @return 按添加顺序排列的订单请求, 失败的请求getError()不为null
+	 */
+	public List<Request<A>> submit() {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		// 下一个等待确认的请求
+		int acked = 0;
+		for (int i = 0; i < requests.size(); i++) {
+			while(maxInFlight > 0 && i - acked >= maxInFlight) {
+				await(requests.get(acked++), deadline);
+			}
+			Request<A> request = requests.get(i);
+			try {
+				request.order = submit(request);
+			} catch (JFException e) {
+				request.error = e;
+			}
+		}
+		while(acked < requests.size()) {
+			await(requests.get(acked++), deadline);
+		}
+		return Collections.unmodifiableList(requests);
+	}
+
+	private IOrder submit(Request<A> request) throws JFException {
+		if(request.price == 0) {
+			return engine.submitOrder(request.label, request.instrument, request.command, request.amount);
+		}
+		if(request.slippage < 0) {
+			return engine.submitOrder(request.label, request.instrument, request.command, request.amount, request.price);
+		}
+		return engine.submitOrder(request.label, request.instrument, request.command, request.amount, request.price, request.slippage);
+	}
+
+	private void await(Request<A> request, long deadline) {
+		if(request.order == null || request.isAcknowledged()) return;
+		long remaining = deadline - System.currentTimeMillis();
+		if(remaining <= 0) return;
+		try {
+			if(isMarket(request.command)) {
+				awaitState(request.order, remaining, State.FILLED);
+			} else {
+				awaitState(request.order, remaining, State.OPENED, State.FILLED);
+			}
+		} catch (JFException e) {
+			request.error = e;
+		}
+	}
+
+	private static boolean isMarket(OrderCommand command) {
+		return command.equals(OrderCommand.BUY) || command.equals(OrderCommand.SELL);
+	}
+
+	private static void awaitState(IOrder order, long timeout, State... states) throws JFException {
+		order.waitForUpdate(timeout, states);
+	}
+
+	/**
+	 * 订单请求
+	 */
+	public static class Request<A> {
+		private final A attachment;
+		private final String label;
+		private final Instrument instrument;
+		private final OrderCommand command;
+		private final double amount;
+		private final double price;
+		private final double slippage;
+
+		private IOrder order;
+		private JFException error;
+
+		Request(A attachment, String label, Instrument instrument, OrderCommand command, double amount,
+				double price, double slippage) {
+			this.attachment = attachment;
+			this.label = label;
+			this.instrument = instrument;
+			this.command = command;
+			this.amount = amount;
+			this.price = price;
+			this.slippage = slippage;
+		}
+
+		public A getAttachment() {
+			return attachment;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public OrderCommand getCommand() {
+			return command;
+		}
+
+		public double getAmount() {
+			return amount;
+		}
+
+		/**
+		 * @return 提交失败时为null
+		 */
+		public IOrder getOrder() {
+			return order;
+		}
+
+		public JFException getError() {
+			return error;
+		}
+
+		public double getPrice() {
+			return price;
+		}
+
+		/**
+		 * @return 市价单已成交 / 挂单已生效(或已成交)
+		 */
+		public boolean isAcknowledged() {
+			if(order == null) {
+				return false;
+			}
+			State state = order.getState();
+			return state == State.FILLED || (!isMarket(command) && state == State.OPENED);
+		}
+	}
+}
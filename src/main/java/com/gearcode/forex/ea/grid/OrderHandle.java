@@ -0,0 +1,188 @@
+package com.gearcode.forex.ea.grid;
+
+import com.dukascopy.api.IEngine.OrderCommand;
+import com.dukascopy.api.IMessage;
+import com.dukascopy.api.IOrder;
+import com.dukascopy.api.JFException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 异步订单操作(开仓/平仓)的完成句柄
+ *
+ * 由OrderPipeline创建, 在onMessage收到成交/平仓/拒绝消息时完成;
+ * 完成后依次回调已注册的Listener, 完成后注册的Listener立即回调
+ *
+ * @author liteng
+ *
+ */
+public class OrderHandle {
+
+	public enum Action {
+		SUBMIT, CLOSE
+	}
+
+	public enum Status {
+		PENDING, DONE, FAILED
+	}
+
+	public interface Listener {
+		public void onComplete(OrderHandle handle);
+	}
+
+	private final Action action;
+	private final String label;
+	private final OrderCommand command;
+	private final Grid grid;
+	private final OrderType type;
+	// 开仓请求的手数, 平仓时为订单手数
+	private final double amount;
+	private final long createTime = System.currentTimeMillis();
+	// 创建、请求返回(submitOrder/close)、完成时的System.nanoTime()
+	private final long createNanos = System.nanoTime();
+	private long requestNanos;
+	private long completeNanos;
+
+	private IOrder order;
+	private Status status = Status.PENDING;
+	private IMessage message;
+	private JFException error;
+
+	private List<Listener> listeners;
+
+	OrderHandle(Action action, String label, OrderCommand command, Grid grid, OrderType type, double amount) {
+		this.action = action;
+		this.label = label;
+		this.command = command;
+		this.grid = grid;
+		this.type = type;
+		this.amount = amount;
+	}
+
+	/**
+	 * 注册完成回调
+	 * @param listener
+	 * @return
+	 */
+	public OrderHandle whenDone(Listener listener) {
+		if(status != Status.PENDING) {
+			listener.onComplete(this);
+			return this;
+		}
+		if(listeners == null) {
+			listeners = new ArrayList<Listener>(1);
+		}
+		listeners.add(listener);
+		return this;
+	}
+
+	void complete(Status status, IMessage message, JFException error) {
+		if(this.status != Status.PENDING) return;
+		this.completeNanos = System.nanoTime();
+		if(requestNanos == 0) {
+			requestNanos = completeNanos;
+		}
+		this.status = status;
+		this.message = message;
+		this.error = error;
+		if(listeners != null) {
+			for (Listener listener : listeners) {
+				listener.onComplete(this);
+			}
+			listeners = null;
+		}
+	}
+
+	void setOrder(IOrder order) {
+		this.order = order;
+	}
+
+	void requestReturned() {
+		this.requestNanos = System.nanoTime();
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * @return 平仓时为null
+	 */
+	public OrderCommand getCommand() {
+		return command;
+	}
+
+	/**
+	 * @return 不属于网格的订单为null
+	 */
+	public Grid getGrid() {
+		return grid;
+	}
+
+	public OrderType getType() {
+		return type;
+	}
+
+	/**
+	 * @return 开仓请求的手数(成交前即可取得), 平仓时为订单手数
+	 */
+	public double getAmount() {
+		return amount;
+	}
+
+	/**
+	 * @return 提交失败时为null
+	 */
+	public IOrder getOrder() {
+		return order;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public boolean isDone() {
+		return status != Status.PENDING;
+	}
+
+	public boolean isSuccess() {
+		return status == Status.DONE;
+	}
+
+	/**
+	 * @return 完成时收到的消息, 提交异常或按状态同步完成时为null
+	 */
+	public IMessage getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return 提交/平仓请求本身抛出的异常
+	 */
+	public JFException getError() {
+		return error;
+	}
+
+	long getCreateTime() {
+		return createTime;
+	}
+
+	/**
+	 * @return 请求耗时: 从创建到engine.submitOrder/order.close返回(纳秒)
+	 */
+	public long getRequestNanos() {
+		return requestNanos - createNanos;
+	}
+
+	/**
+	 * @return 确认耗时: 从创建到收到成交/平仓/拒绝(纳秒), 未完成时为0
+	 */
+	public long getLatencyNanos() {
+		return completeNanos == 0 ? 0 : completeNanos - createNanos;
+	}
+}
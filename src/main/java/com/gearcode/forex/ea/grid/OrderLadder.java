@@ -0,0 +1,256 @@
+package com.gearcode.forex.ea.grid;
+
+import com.dukascopy.api.IEngine;
+import com.dukascopy.api.IEngine.OrderCommand;
+import com.dukascopy.api.IOrder;
+import com.dukascopy.api.IOrder.State;
+import com.dukascopy.api.Instrument;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 挂单阶梯
+ *
+ * 以基准价格按固定间隔生成BUYSTOP/SELLSTOP挂单, 通过OrderBatch一次提交,
+ * 所有挂单共用一个超时时间等待生效, 而不是逐个提交逐个等待.
+ *
+ * recenter()按新的基准价格增量调整已有阶梯: 只撤销窗口外或不在档位上的挂单,
+ * 只补交缺少的档位, 仍在新档位上的挂单保持不动
+ *
+ * @author liteng
+ *
+ */
+public class OrderLadder {
+
+	/**
+	 * 挂单label生成
+	 */
+	public interface LabelFactory {
+		/**
+		 * @param command BUYSTOP / SELLSTOP
+		 * @param level 档位(从1开始)
+		 * @return
+		 */
+		public String label(OrderCommand command, int level);
+	}
+
+	private final IEngine engine;
+	private final Instrument instrument;
+	private final double amount;
+	private final double gap;
+	private final LabelFactory labelFactory;
+	private final Pipettes pipettes;
+
+	private double slippage = -1;
+	private int maxInFlight = 0;
+
+	private int levels;
+	private double buyBase;
+	private double sellBase;
+	private boolean buy;
+	private boolean sell;
+
+	/**
+	 * @param engine
+	 * @param instrument
+	 * @param amount 每档手数
+	 * @param gap 档位间隔(价格)
+	 * @param labelFactory
+	 */
+	public OrderLadder(IEngine engine, Instrument instrument, double amount, double gap, LabelFactory labelFactory) {
+		this.engine = engine;
+		this.instrument = instrument;
+		this.amount = amount;
+		this.gap = gap;
+		this.labelFactory = labelFactory;
+		this.pipettes = Pipettes.of(instrument);
+	}
+
+	/**
+	 * 将价格对齐到以anchor为原点、间隔为gap的档位上(取最近的档位)
+	 * 新基准价格对齐到旧阶梯后, 重新居中时旧挂单才能与新档位重合
+	 * @param anchor 原阶梯的基准价格
+	 * @param price
+	 * @return
+	 */
+	public double align(double anchor, double price) {
+		long gapPipettes = pipettes.toPipettes(gap);
+		long steps = Math.round((double) pipettes.delta(anchor, price) / gapPipettes);
+		return pipettes.toPrice(pipettes.toPipettes(anchor) + steps * gapPipettes);
+	}
+
+	/**
+	 * BUYSTOP: 第level档价格为 base + level * gap
+	 * @param base
+	 * @param levels
+	 * @return
+	 */
+	public OrderLadder buyStops(double base, int levels) {
+		this.buy = true;
+		this.buyBase = base;
+		this.levels = Math.max(this.levels, levels);
+		return this;
+	}
+
+	/**
+	 * SELLSTOP: 第level档价格为 base - level * gap
+	 * @param base
+	 * @param levels
+	 * @return
+	 */
+	public OrderLadder sellStops(double base, int levels) {
+		this.sell = true;
+		this.sellBase = base;
+		this.levels = Math.max(this.levels, levels);
+		return this;
+	}
+
+	public OrderLadder slippage(double slippage) {
+		this.slippage = slippage;
+		return this;
+	}
+
+	/**
+	 * 同时未确认的挂单数上限, 0为不限制
+	 * @param maxInFlight
+	 * @return
+	 */
+	public OrderLadder maxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+
+	/**
+	 * 按档位由近到远、每档先BUYSTOP后SELLSTOP提交整个阶梯并等待生效
+	 * @param timeout 整个阶梯的等待时间(毫秒)
+	 * @return 每个挂单的结果, 附加信息为档位
+	 */
+	public List<OrderBatch.Request<Integer>> submit(long timeout) {
+		OrderBatch<Integer> batch = new OrderBatch<Integer>(engine, timeout).setMaxInFlight(maxInFlight);
+		for (int level = 1; level <= levels; level++) {
+			if(buy) {
+				add(batch, OrderCommand.BUYSTOP, level);
+			}
+			if(sell) {
+				add(batch, OrderCommand.SELLSTOP, level);
+			}
+		}
+		return batch.submit();
+	}
+
+	/**
+	 * 按当前设置的基准价格和档位数增量调整已有阶梯:
+	 * 与新档位重合的挂单保留, 其余挂单撤销, 缺少的档位补交.
+	 * 只处理本货币对未成交的BUYSTOP/SELLSTOP, 已成交订单由调用方处理
+	 * @param orders 当前订单
+	 * @param timeout 撤单和补单共用的等待时间(毫秒)
+	 * @return
+	 */
+	public Recentering recenter(Collection<IOrder> orders, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		boolean[] buyTaken = new boolean[levels + 1];
+		boolean[] sellTaken = new boolean[levels + 1];
+
+		List<IOrder> kept = new ArrayList<IOrder>();
+		List<IOrder> stale = new ArrayList<IOrder>();
+		for (IOrder order : orders) {
+			if(!order.getInstrument().equals(instrument)) continue;
+			State state = order.getState();
+			if(state != State.CREATED && state != State.OPENED) continue;
+
+			OrderCommand command = order.getOrderCommand();
+			int level;
+			boolean[] taken;
+			if(command == OrderCommand.BUYSTOP) {
+				level = buy ? levelOf(buyBase, order.getOpenPrice(), 1) : 0;
+				taken = buyTaken;
+			} else if(command == OrderCommand.SELLSTOP) {
+				level = sell ? levelOf(sellBase, order.getOpenPrice(), -1) : 0;
+				taken = sellTaken;
+			} else {
+				continue;
+			}
+
+			// 同一档位有多个挂单时只保留第一个
+			if(level > 0 && !taken[level]) {
+				taken[level] = true;
+				kept.add(order);
+			} else {
+				stale.add(order);
+			}
+		}
+
+		List<CloseBatch.Outcome> canceled = CloseBatch.closeAll(stale, timeout);
+
+		OrderBatch<Integer> batch = new OrderBatch<Integer>(engine, Math.max(0, deadline - System.currentTimeMillis()))
+				.setMaxInFlight(maxInFlight);
+		for (int level = 1; level <= levels; level++) {
+			if(buy && !buyTaken[level]) {
+				add(batch, OrderCommand.BUYSTOP, level);
+			}
+			if(sell && !sellTaken[level]) {
+				add(batch, OrderCommand.SELLSTOP, level);
+			}
+		}
+		return new Recentering(kept, canceled, batch.submit());
+	}
+
+	/**
+	 * 挂单价格所在档位
+	 * @param base
+	 * @param price
+	 * @param direction 1: 基准价格之上 / -1: 基准价格之下
+	 * @return 不在[1, levels]档位上时返回0
+	 */
+	private int levelOf(double base, double price, int direction) {
+		long gapPipettes = pipettes.toPipettes(gap);
+		long delta = direction * pipettes.delta(base, price);
+		if(delta <= 0 || delta % gapPipettes != 0 || delta / gapPipettes > levels) {
+			return 0;
+		}
+		return (int) (delta / gapPipettes);
+	}
+
+	private void add(OrderBatch<Integer> batch, OrderCommand command, int level) {
+		double price = command == OrderCommand.BUYSTOP ? buyBase + level * gap : sellBase - level * gap;
+		batch.add(level, labelFactory.label(command, level), instrument, command, amount, price, slippage);
+	}
+
+	/**
+	 * 重新居中的结果
+	 */
+	public static class Recentering {
+		private final List<IOrder> kept;
+		private final List<CloseBatch.Outcome> canceled;
+		private final List<OrderBatch.Request<Integer>> submitted;
+
+		Recentering(List<IOrder> kept, List<CloseBatch.Outcome> canceled, List<OrderBatch.Request<Integer>> submitted) {
+			this.kept = kept;
+			this.canceled = canceled;
+			this.submitted = submitted;
+		}
+
+		/**
+		 * @return 仍在新档位上而保留的挂单
+		 */
+		public List<IOrder> getKept() {
+			return kept;
+		}
+
+		/**
+		 * @return 撤销的挂单及结果
+		 */
+		public List<CloseBatch.Outcome> getCanceled() {
+			return canceled;
+		}
+
+		/**
+		 * @return 补交的挂单及结果, 附加信息为档位
+		 */
+		public List<OrderBatch.Request<Integer>> getSubmitted() {
+			return submitted;
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package com.gearcode.forex.ea.grid;
+
+import com.dukascopy.api.IEngine;
+import com.dukascopy.api.IEngine.OrderCommand;
+import com.dukascopy.api.IMessage;
+import com.dukascopy.api.IOrder;
+import com.dukascopy.api.IOrder.State;
+import com.dukascopy.api.Instrument;
+import com.dukascopy.api.JFException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 异步订单通道
+ *
+ * 开仓/平仓只发出请求并返回OrderHandle, 不在tick线程上waitForUpdate;
+ * 成交、平仓、拒绝消息由策略的onMessage转交给onMessage(IMessage)处理.
+ *
+ * 网格订单在成交前作为格子的pending句柄(Grid.existOrder为true, 避免重复下单,
+ * 手数计入GridSystem.getPendingLots), 成交后才加入格子并登记; 平仓确认后才从格子移除.
+ * JForex在同一线程回调onTick/onMessage, 因此不需要同步
+ *
+ * @author liteng
+ *
+ */
+public class OrderPipeline {
+
+	private final IEngine engine;
+
+	// 等待成交/平仓确认的请求
+	private final Map<IOrder, OrderHandle> submits = new HashMap<IOrder, OrderHandle>();
+	private final Map<IOrder, OrderHandle> closes = new HashMap<IOrder, OrderHandle>();
+
+	public OrderPipeline(IEngine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * 提交不属于网格的订单
+	 * @param label
+	 * @param instrument
+	 * @param command
+	 * @param amount
+	 * @return
+	 */
+	public OrderHandle submit(String label, Instrument instrument, OrderCommand command, double amount) {
+		return submit(null, null, label, instrument, command, amount);
+	}
+
+	/**
+	 * 提交网格订单, 成交后加入grid
+	 * @param grid
+	 * @param type
+	 * @param label
+	 * @param instrument
+	 * @param command
+	 * @param amount
+	 * @return
+	 */
+	public OrderHandle submit(Grid grid, OrderType type, String label, Instrument instrument, OrderCommand command, double amount) {
+		OrderHandle handle = new OrderHandle(OrderHandle.Action.SUBMIT, label, command, grid, type, amount);
+		if(grid != null) {
+			grid.addPending(handle);
+		}
+		try {
+			IOrder order = engine.submitOrder(label, instrument, command, amount);
+			handle.requestReturned();
+			handle.setOrder(order);
+			submits.put(order, handle);
+		} catch (JFException e) {
+			finishSubmit(handle, OrderHandle.Status.FAILED, null, e);
+		}
+		return handle;
+	}
+
+	/**
+	 * 平仓不属于网格的订单
+	 * @param order
+	 * @return
+	 */
+	public OrderHandle close(IOrder order) {
+		return close((Grid) null, order);
+	}
+
+	/**
+	 * 平仓网格订单, 确认后从所在格子移除
+	 * @param gridSystem
+	 * @param order
+	 * @return
+	 */
+	public OrderHandle close(GridSystem gridSystem, IOrder order) {
+		return close(gridSystem.getGridOf(order), order);
+	}
+
+	/**
+	 * 平仓, 确认后从grid移除; 同一订单平仓未确认时返回同一个句柄
+	 * @param grid
+	 * @param order
+	 * @return
+	 */
+	public OrderHandle close(Grid grid, IOrder order) {
+		OrderHandle handle = closes.get(order);
+		if(handle != null) {
+			return handle;
+		}
+		OrderType type = grid == null ? null : grid.getGridSystem().getRegistry().typeOf(order);
+		handle = new OrderHandle(OrderHandle.Action.CLOSE, order.getLabel(), null, grid, type, order.getAmount());
+		handle.setOrder(order);
+		closes.put(order, handle);
+		try {
+			order.close();
+			handle.requestReturned();
+		} catch (JFException e) {
+			finishClose(handle, OrderHandle.Status.FAILED, null, e);
+		}
+		return handle;
+	}
+
+	/**
+	 * 处理订单消息, 由策略的onMessage调用
+	 * @param message
+	 * @return 消息属于本通道的请求时返回true
+	 */
+	public boolean onMessage(IMessage message) {
+		IOrder order = message.getOrder();
+		if(order == null) {
+			return false;
+		}
+
+		OrderHandle handle = submits.get(order);
+		if(handle != null) {
+			switch (message.getType()) {
+			case ORDER_SUBMIT_OK:
+				if(!isMarket(handle.getCommand())) {
+					finishSubmit(handle, OrderHandle.Status.DONE, message, null);
+				}
+				break;
+			case ORDER_FILL_OK:
+				if(order.getState() == State.FILLED) {
+					finishSubmit(handle, OrderHandle.Status.DONE, message, null);
+				}
+				break;
+			case ORDER_SUBMIT_REJECTED:
+			case ORDER_FILL_REJECTED:
+				finishSubmit(handle, OrderHandle.Status.FAILED, message, null);
+				break;
+			default:
+				break;
+			}
+			return true;
+		}
+
+		handle = closes.get(order);
+		if(handle != null) {
+			switch (message.getType()) {
+			case ORDER_CLOSE_OK:
+				if(order.getState() == State.CLOSED || order.getState() == State.CANCELED) {
+					finishClose(handle, OrderHandle.Status.DONE, message, null);
+				}
+				break;
+			case ORDER_CLOSE_REJECTED:
+				finishClose(handle, OrderHandle.Status.FAILED, message, null);
+				break;
+			default:
+				break;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 按订单当前状态完成超过timeout仍未确认的请求(消息丢失时兜底), 可在onTick中调用
+	 * @param timeout 毫秒
+	 */
+	public void expire(long timeout) {
+		if(submits.isEmpty() && closes.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		// 先找出要完成的请求(完成时会修改map, 回调中也可能完成其他请求), 通常没有
+		List<OrderHandle> done = null;
+		List<OrderHandle> failed = null;
+		for (OrderHandle handle : submits.values()) {
+			if(now - handle.getCreateTime() < timeout) continue;
+			State state = handle.getOrder().getState();
+			if(state == State.FILLED || (state == State.OPENED && !isMarket(handle.getCommand()))) {
+				done = add(done, handle);
+			} else if(state == State.CANCELED || state == State.CLOSED) {
+				failed = add(failed, handle);
+			}
+		}
+		List<OrderHandle> closed = null;
+		for (OrderHandle handle : closes.values()) {
+			if(now - handle.getCreateTime() < timeout) continue;
+			State state = handle.getOrder().getState();
+			if(state == State.CLOSED || state == State.CANCELED) {
+				closed = add(closed, handle);
+			}
+		}
+
+		if(done != null) {
+			for (OrderHandle handle : done) {
+				if(submits.get(handle.getOrder()) != handle) continue;
+				finishSubmit(handle, OrderHandle.Status.DONE, null, null);
+			}
+		}
+		if(failed != null) {
+			for (OrderHandle handle : failed) {
+				if(submits.get(handle.getOrder()) != handle) continue;
+				finishSubmit(handle, OrderHandle.Status.FAILED, null, null);
+			}
+		}
+		if(closed != null) {
+			for (OrderHandle handle : closed) {
+				if(closes.get(handle.getOrder()) != handle) continue;
+				finishClose(handle, OrderHandle.Status.DONE, null, null);
+			}
+		}
+	}
+
+	private static List<OrderHandle> add(List<OrderHandle> list, OrderHandle handle) {
+		if(list == null) {
+			list = new ArrayList<OrderHandle>(2);
+		}
+		list.add(handle);
+		return list;
+	}
+
+	private void finishSubmit(OrderHandle handle, OrderHandle.Status status, IMessage message, JFException error) {
+		IOrder order = handle.getOrder();
+		if(order != null) {
+			submits.remove(order);
+		}
+		Grid grid = handle.getGrid();
+		if(grid != null) {
+			grid.removePending(handle);
+			if(status == OrderHandle.Status.DONE) {
+				grid.addOrder(order, handle.getType());
+			}
+		}
+		handle.complete(status, message, error);
+	}
+
+	private void finishClose(OrderHandle handle, OrderHandle.Status status, IMessage message, JFException error) {
+		IOrder order = handle.getOrder();
+		closes.remove(order);
+		Grid grid = handle.getGrid();
+		if(grid != null && status == OrderHandle.Status.DONE) {
+			grid.removeOrder(order);
+		}
+		handle.complete(status, message, error);
+	}
+
+	/**
+	 * 等待确认的请求数
+	 * @return
+	 */
+	public int pendingCount() {
+		return submits.size() + closes.size();
+	}
+
+	/**
+	 * 订单是否正在开仓(已提交未确认), 确认后由通道加入格子
+	 * @param order
+	 * @return
+	 */
+	public boolean isSubmitting(IOrder order) {
+		return submits.containsKey(order);
+	}
+
+	/**
+	 * 订单是否正在平仓(已请求未确认)
+	 * @param order
+	 * @return
+	 */
+	public boolean isClosing(IOrder order) {
+		return closes.containsKey(order);
+	}
+
+	private static boolean isMarket(OrderCommand command) {
+		return command.equals(OrderCommand.BUY) || command.equals(OrderCommand.SELL);
+	}
+}
@@ -0,0 +1,340 @@
+package com.gearcode.forex.ea.grid;
+
+import com.dukascopy.api.IEngine.OrderCommand;
+import com.dukascopy.api.IOrder;
+import com.dukascopy.api.IOrder.State;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 订单对账: 按标签把当前有效订单放回网格
+ *
+ * 网格订单的标签为 前缀_BUY|SELL_Normal|Martin_格子[_后缀], 格子为负数时写作n3;
+ * 其他订单(如对冲单)为 前缀_BUY|SELL_名称_..., 不放入格子, 由策略按名称处理.
+ *
+ * 启动或重连后用IEngine.getOrders(instrument)一次查询的结果调用reconcile():
+ * 已在格子中的订单不变, 未登记的成交订单按标签放入route()指定的网格系统的格子,
+ * 格子中已经不是成交状态的订单(断线期间被平仓/止损)从格子移除.
+ * 设置了pipeline()时, 开仓请求尚未确认的订单不处理, 由OrderPipeline确认后放入
+ *
+ * @author liteng
+ *
+ */
+public class OrderReconciler {
+
+	private final String prefix;
+
+	// [BUY, SELL][OrderType]
+	private final GridSystem[][] routes = new GridSystem[2][OrderType.values().length];
+
+	private OrderPipeline pipeline;
+
+	/**
+	 * @param prefix 标签前缀, 如"SuperIvan_Order", 其他前缀的订单不处理
+	 */
+	public OrderReconciler(String prefix) {
+		this.prefix = prefix;
+	}
+
+	/**
+	 * 指定方向和类型的订单放入gridSystem
+	 * @param command
+	 * @param type
+	 * @param gridSystem
+	 * @return
+	 */
+	public OrderReconciler route(OrderCommand command, OrderType type, GridSystem gridSystem) {
+		routes[side(command)][type.ordinal()] = gridSystem;
+		return this;
+	}
+
+	/**
+	 * 指定方向的所有类型订单放入gridSystem
+	 * @param command
+	 * @param gridSystem
+	 * @return
+	 */
+	public OrderReconciler route(OrderCommand command, GridSystem gridSystem) {
+		for (OrderType type : OrderType.values()) {
+			route(command, type, gridSystem);
+		}
+		return this;
+	}
+
+	/**
+	 * 跳过在pipeline中开仓未确认的订单(查询订单前后刚成交的订单不会被放入两次)
+	 * @param pipeline
+	 * @return
+	 */
+	public OrderReconciler pipeline(OrderPipeline pipeline) {
+		this.pipeline = pipeline;
+		return this;
+	}
+
+	/**
+	 * 对账(一次遍历)
+	 * @param orders 当前有效订单, 通常为IEngine.getOrders(instrument)
+	 * @return
+	 */
+	public Result reconcile(List<IOrder> orders) {
+		Result result = new Result();
+		Map<IOrder, Boolean> live = new IdentityHashMap<IOrder, Boolean>();
+
+		// 按成交时间放回, 与实时下单时的登记顺序一致
+		List<IOrder> filled = new ArrayList<IOrder>(orders.size());
+		for (IOrder order : orders) {
+			if(order.getState() == State.FILLED && (pipeline == null || !pipeline.isSubmitting(order))) {
+				filled.add(order);
+			}
+		}
+		Collections.sort(filled, new Comparator<IOrder>() {
+			@Override
+			public int compare(IOrder a, IOrder b) {
+				return Long.compare(a.getFillTime(), b.getFillTime());
+			}
+		});
+
+		for (IOrder order : filled) {
+			Label label = parse(prefix, order.getLabel());
+			if(label == null) {
+				continue;
+			}
+			if(label.getType() == null) {
+				result.others.add(order);
+				continue;
+			}
+			GridSystem gridSystem = routes[side(label.getCommand())][label.getType().ordinal()];
+			if(gridSystem == null || label.getOffset() == 0 || order.getOrderCommand() != label.getCommand()) {
+				result.unknown.add(order);
+				continue;
+			}
+			live.put(order, Boolean.TRUE);
+			if(gridSystem.getRegistry().get(order) == null) {
+				gridSystem.getGridByOffset(label.getOffset()).addOrder(order, label.getType());
+				result.added.add(order);
+			}
+		}
+
+		// 格子中已不存在的订单
+		for (GridSystem gridSystem : gridSystems()) {
+			for (IOrder order : gridSystem.getAllOrders()) {
+				if(!live.containsKey(order) && order.getState() != State.FILLED) {
+					gridSystem.removeOrder(order);
+					result.removed.add(order);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 按订单推算网格原点价格(没有网格系统时, 用于重建与订单标签一致的网格)
+	 *
+	 * 订单开仓价落在标签格子的价格区间内, 由此得到每个订单的原点取值区间;
+	 * 取被最多订单区间覆盖的一段的中点(有滑点的订单与其他订单不重叠, 不影响结果)
+	 *
+	 * @param orders 当前有效订单
+	 * @param command 订单方向
+	 * @param type 订单类型, null为所有类型
+	 * @param gap 格子间隔(价格)
+	 * @param pointScale 价格精度
+	 * @return 没有符合的订单时返回NaN
+	 */
+	public double inferStartPrice(List<IOrder> orders, OrderCommand command, OrderType type, double gap, int pointScale) {
+		// 区间端点: [价格, +1]为区间开始, [价格, -1]为区间结束
+		List<double[]> points = new ArrayList<double[]>();
+		for (IOrder order : orders) {
+			Label label = order.getState() == State.FILLED ? parse(prefix, order.getLabel()) : null;
+			if(label == null || label.getType() == null || label.getOffset() == 0
+					|| label.getCommand() != command || (type != null && label.getType() != type)) {
+				continue;
+			}
+			// offset > 0: 开仓价在[原点 + (offset-1)*gap, 原点 + offset*gap)
+			// offset < 0: 开仓价在(原点 + offset*gap, 原点 + (offset+1)*gap]
+			int offset = label.getOffset();
+			double price = order.getOpenPrice();
+			double from = offset > 0 ? price - offset * gap : price - (offset + 1) * gap;
+			points.add(new double[] {from, 1});
+			points.add(new double[] {from + gap, -1});
+		}
+		if(points.isEmpty()) {
+			return Double.NaN;
+		}
+		Collections.sort(points, new Comparator<double[]>() {
+			@Override
+			public int compare(double[] a, double[] b) {
+				int c = Double.compare(a[0], b[0]);
+				// 同一价格先结束再开始
+				return c != 0 ? c : Double.compare(a[1], b[1]);
+			}
+		});
+
+		int count = 0, best = 0;
+		double low = Double.NaN, high = Double.NaN;
+		for (int i = 0; i < points.size() - 1; i++) {
+			count += (int) points.get(i)[1];
+			double from = points.get(i)[0], to = points.get(i + 1)[0];
+			if(from == to) continue;
+			if(count > best) {
+				best = count;
+				low = from;
+				high = to;
+			} else if(count == best && from == high) {
+				// 相邻的同样覆盖数的段合并
+				high = to;
+			}
+		}
+		return new BigDecimal((low + high) / 2).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue();
+	}
+
+	private List<GridSystem> gridSystems() {
+		List<GridSystem> result = new ArrayList<GridSystem>();
+		for (GridSystem[] bySide : routes) {
+			for (GridSystem gridSystem : bySide) {
+				if(gridSystem != null && !result.contains(gridSystem)) {
+					result.add(gridSystem);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static int side(OrderCommand command) {
+		return command == OrderCommand.BUY ? 0 : 1;
+	}
+
+	/**
+	 * 解析订单标签
+	 * @param prefix
+	 * @param label
+	 * @return 前缀不符或格式不对时返回null
+	 */
+	public static Label parse(String prefix, String label) {
+		if(label == null || !label.startsWith(prefix + "_")) {
+			return null;
+		}
+		String[] parts = label.substring(prefix.length() + 1).split("_");
+		if(parts.length < 2) {
+			return null;
+		}
+		OrderCommand command;
+		if("BUY".equals(parts[0])) {
+			command = OrderCommand.BUY;
+		} else if("SELL".equals(parts[0])) {
+			command = OrderCommand.SELL;
+		} else {
+			return null;
+		}
+
+		OrderType type = null;
+		for (OrderType t : OrderType.values()) {
+			if(t.name().equals(parts[1])) {
+				type = t;
+			}
+		}
+		if(type == null) {
+			return new Label(command, null, parts[1], 0);
+		}
+
+		if(parts.length < 3) {
+			return null;
+		}
+		try {
+			int offset = parts[2].startsWith("n") ? -Integer.parseInt(parts[2].substring(1)) : Integer.parseInt(parts[2]);
+			return new Label(command, type, parts[1], offset);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 解析后的标签
+	 */
+	public static class Label {
+		private final OrderCommand command;
+		private final OrderType type;
+		private final String name;
+		private final int offset;
+
+		Label(OrderCommand command, OrderType type, String name, int offset) {
+			this.command = command;
+			this.type = type;
+			this.name = name;
+			this.offset = offset;
+		}
+
+		public OrderCommand getCommand() {
+			return command;
+		}
+
+		/**
+		 * @return 非网格订单为null
+		 */
+		public OrderType getType() {
+			return type;
+		}
+
+		/**
+		 * @return 类型名称, 如"Normal", "Hedge"
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return 格子offset, 非网格订单为0
+		 */
+		public int getOffset() {
+			return offset;
+		}
+	}
+
+	/**
+	 * 对账结果
+	 */
+	public static class Result {
+		private final List<IOrder> added = new ArrayList<IOrder>();
+		private final List<IOrder> removed = new ArrayList<IOrder>();
+		private final List<IOrder> others = new ArrayList<IOrder>();
+		private final List<IOrder> unknown = new ArrayList<IOrder>();
+
+		/**
+		 * @return 新放入格子的订单
+		 */
+		public List<IOrder> getAdded() {
+			return added;
+		}
+
+		/**
+		 * @return 已不是成交状态、从格子移除的订单
+		 */
+		public List<IOrder> getRemoved() {
+			return removed;
+		}
+
+		/**
+		 * @return 前缀相同的非网格订单(如对冲单)
+		 */
+		public List<IOrder> getOthers() {
+			return others;
+		}
+
+		/**
+		 * @return 前缀相同但无法放入格子的订单(没有对应的网格系统或标签与方向不符)
+		 */
+		public List<IOrder> getUnknown() {
+			return unknown;
+		}
+
+		@Override
+		public String toString() {
+			return "added: " + added.size() + ", removed: " + removed.size() + ", others: " + others.size() + ", unknown: " + unknown.size();
+		}
+	}
+}
@@ -0,0 +1,402 @@
+package com.gearcode.forex.ea.grid;
+
+import com.dukascopy.api.IOrder;
+import com.dukascopy.api.IOrder.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * 订单登记表
+ *
+ * 下单时登记订单的类型、所在格子offset及方向, 之后按类型查询订单、
+ * 判断订单类型、统计手数均不再需要遍历格子或解析label
+ *
+ * 各类型开仓价最高/最低的订单随登记/注销增量维护, 查询为O(1),
+ * 注销当前最高/最低订单时从有序集合中重新取得, 为O(log n)
+ *
+ * 同时按类型累计多/空头寸数量及开仓价加权和(定点), 当前浮动盈亏
+ * 由最新报价一次乘加得出, 不必逐个订单调用getProfitLossInAccountCurrency()
+ *
+ * 未成交就登记的订单(如不等待成交的市价单, 开仓价为0)按登记时的开仓价排序、不计入盈亏,
+ * 查询开仓价/盈亏前检查这些订单, 成交后按实际开仓价重新排序并计入盈亏
+ *
+ * @author liteng
+ *
+ */
+public class OrderRegistry<T extends Enum<T>> {
+
+	// 手数以 1/1000000 手(即1单位基础货币)为单位累计, 避免反复加减产生浮点误差
+	private static final double LOT_UNITS = 1000000.0;
+
+	private final Pipettes pipettes;
+
+	private final Map<IOrder, Entry<T>> entries = new HashMap<IOrder, Entry<T>>();
+
+	private final List<List<IOrder>> ordersByType;
+	private final List<List<IOrder>> ordersByTypeView;
+	private final long[] lotUnitsByType;
+
+	// 多/空头寸数量, 以及 数量*开仓价(pipettes) 之和
+	private final long[] longUnitsByType;
+	private final long[] longWeightedByType;
+	private final long[] shortUnitsByType;
+	private final long[] shortWeightedByType;
+
+	// 按开仓价排序, 价格相同时按登记顺序
+	private final List<TreeSet<Entry<T>>> sortedByType;
+	private final Object[] maxByType;
+	private final Object[] minByType;
+
+	// 登记时尚未成交的订单
+	private final List<Entry<T>> unfilled = new ArrayList<Entry<T>>();
+
+	// 登记序号
+	private long sequence;
+
+	/**
+	 * @param typeClass 订单类型
+	 * @param pipettes 开仓价的定点精度
+	 */
+	public OrderRegistry(Class<T> typeClass, Pipettes pipettes) {
+		this.pipettes = pipettes;
+		int size = typeClass.getEnumConstants().length;
+		this.ordersByType = new ArrayList<List<IOrder>>(size);
+		this.ordersByTypeView = new ArrayList<List<IOrder>>(size);
+		for(int i = 0; i < size; i++) {
+			List<IOrder> orders = new ArrayList<IOrder>();
+			ordersByType.add(orders);
+			ordersByTypeView.add(Collections.unmodifiableList(orders));
+		}
+		this.lotUnitsByType = new long[size];
+		this.longUnitsByType = new long[size];
+		this.longWeightedByType = new long[size];
+		this.shortUnitsByType = new long[size];
+		this.shortWeightedByType = new long[size];
+		this.sortedByType = new ArrayList<TreeSet<Entry<T>>>(size);
+		for(int i = 0; i < size; i++) {
+			sortedByType.add(new TreeSet<Entry<T>>(new PriceComparator<T>()));
+		}
+		this.maxByType = new Object[size];
+		this.minByType = new Object[size];
+	}
+
+	/**
+	 * 登记订单
+	 * @param order
+	 * @param type
+	 * @param offset 所在格子
+	 * @return
+	 */
+	public Entry<T> register(IOrder order, T type, int offset) {
+		boolean filled = order.getState() == State.FILLED;
+		Entry<T> entry = new Entry<T>(order, type, offset, order.isLong(), toLotUnits(order.getAmount()),
+				order.getOpenPrice(), pipettes.toPipettes(order.getOpenPrice()), sequence++);
+		Entry<T> old = entries.put(order, entry);
+		if(old != null) {
+			remove(old);
+		}
+		int i = type.ordinal();
+		ordersByType.get(i).add(order);
+		lotUnitsByType[i] += entry.lotUnits;
+		if(filled) {
+			addWeighted(entry);
+		} else {
+			unfilled.add(entry);
+		}
+		sortedByType.get(i).add(entry);
+
+		// 价格相同时保留先登记的订单
+		Entry<T> max = entry(maxByType[i]);
+		if(max == null || max.openPrice < entry.openPrice) {
+			maxByType[i] = entry;
+		}
+		Entry<T> min = entry(minByType[i]);
+		if(min == null || min.openPrice > entry.openPrice) {
+			minByType[i] = entry;
+		}
+		return entry;
+	}
+
+	/**
+	 * 登记时未成交的订单成交后, 按实际开仓价重新排序并计入盈亏(查询时自动调用)
+	 */
+	public void refresh() {
+		for (int k = unfilled.size() - 1; k >= 0; k--) {
+			Entry<T> entry = unfilled.get(k);
+			State state = entry.order.getState();
+			if(state == State.FILLED) {
+				unfilled.remove(k);
+				int i = entry.type.ordinal();
+				TreeSet<Entry<T>> sorted = sortedByType.get(i);
+				sorted.remove(entry);
+				entry.openPrice = entry.order.getOpenPrice();
+				entry.openPipettes = pipettes.toPipettes(entry.openPrice);
+				sorted.add(entry);
+				addWeighted(entry);
+				resetExtremes(i);
+			} else if(state == State.CANCELED || state == State.CLOSED) {
+				unfilled.remove(k);
+			}
+		}
+	}
+
+	private void addWeighted(Entry<T> entry) {
+		int i = entry.type.ordinal();
+		entry.weighted = true;
+		if(entry.isLong) {
+			longUnitsByType[i] += entry.lotUnits;
+			longWeightedByType[i] += entry.lotUnits * entry.openPipettes;
+		} else {
+			shortUnitsByType[i] += entry.lotUnits;
+			shortWeightedByType[i] += entry.lotUnits * entry.openPipettes;
+		}
+	}
+
+	/**
+	 * 注销订单
+	 * @param order
+	 * @return 订单未登记时返回null
+	 */
+	public Entry<T> unregister(IOrder order) {
+		Entry<T> entry = entries.remove(order);
+		if(entry != null) {
+			remove(entry);
+		}
+		return entry;
+	}
+
+	private void remove(Entry<T> entry) {
+		int i = entry.type.ordinal();
+		ordersByType.get(i).remove(entry.order);
+		lotUnitsByType[i] -= entry.lotUnits;
+		if(!entry.weighted) {
+			unfilled.remove(entry);
+		} else if(entry.isLong) {
+			longUnitsByType[i] -= entry.lotUnits;
+			longWeightedByType[i] -= entry.lotUnits * entry.openPipettes;
+		} else {
+			shortUnitsByType[i] -= entry.lotUnits;
+			shortWeightedByType[i] -= entry.lotUnits * entry.openPipettes;
+		}
+
+		sortedByType.get(i).remove(entry);
+		if(maxByType[i] == entry || minByType[i] == entry) {
+			resetExtremes(i);
+		}
+	}
+
+	private void resetExtremes(int i) {
+		TreeSet<Entry<T>> sorted = sortedByType.get(i);
+		if(sorted.isEmpty()) {
+			maxByType[i] = null;
+			minByType[i] = null;
+			return;
+		}
+		// 最高价中最先登记的订单
+		Entry<T> last = sorted.last();
+		maxByType[i] = sorted.ceiling(new Entry<T>(null, null, 0, false, 0, last.openPrice, 0, -1));
+		minByType[i] = sorted.first();
+	}
+
+	@SuppressWarnings("unchecked")
+	private Entry<T> entry(Object o) {
+		return (Entry<T>) o;
+	}
+
+	public Entry<T> get(IOrder order) {
+		return entries.get(order);
+	}
+
+	/**
+	 * 获取订单类型
+	 * @param order
+	 * @return 订单未登记时返回null
+	 */
+	public T typeOf(IOrder order) {
+		Entry<T> entry = entries.get(order);
+		return entry == null ? null : entry.type;
+	}
+
+	/**
+	 * 判断是否为指定类型订单
+	 * @param order
+	 * @param type
+	 * @return
+	 */
+	public boolean isOrder(IOrder order, T type) {
+		return typeOf(order) == type;
+	}
+
+	/**
+	 * 指定类型的所有订单(只读, 按登记顺序)
+	 * @param type
+	 * @return
+	 */
+	public List<IOrder> getOrders(T type) {
+		return ordersByTypeView.get(type.ordinal());
+	}
+
+	/**
+	 * 指定类型订单数
+	 * @param type
+	 * @return
+	 */
+	public int count(T type) {
+		return ordersByType.get(type.ordinal()).size();
+	}
+
+	/**
+	 * 指定类型订单总手数
+	 * @param type
+	 * @return
+	 */
+	public double getLots(T type) {
+		return lotUnitsByType[type.ordinal()] / LOT_UNITS;
+	}
+
+	/**
+	 * 所有订单总手数
+	 * @return
+	 */
+	public double getLots() {
+		long units = 0;
+		for(long u : lotUnitsByType) {
+			units += u;
+		}
+		return units / LOT_UNITS;
+	}
+
+	/**
+	 * 指定类型订单的浮动盈亏(报价货币), 多单按bid平仓, 空单按ask平仓
+	 * @param type
+	 * @param bid
+	 * @param ask
+	 * @return
+	 */
+	public double getProfit(T type, double bid, double ask) {
+		refresh();
+		return pipettes.toPrice(profitPipettes(type.ordinal(), pipettes.toPipettes(bid), pipettes.toPipettes(ask)));
+	}
+
+	/**
+	 * 所有订单的浮动盈亏(报价货币), 多单按bid平仓, 空单按ask平仓
+	 * @param bid
+	 * @param ask
+	 * @return
+	 */
+	public double getProfit(double bid, double ask) {
+		refresh();
+		long b = pipettes.toPipettes(bid), a = pipettes.toPipettes(ask);
+		long sum = 0;
+		for(int i = 0; i < lotUnitsByType.length; i++) {
+			sum += profitPipettes(i, b, a);
+		}
+		return pipettes.toPrice(sum);
+	}
+
+	// 盈亏 = 多头数量*bid - sum(数量*开仓价) + sum(数量*开仓价) - 空头数量*ask
+	private long profitPipettes(int i, long bid, long ask) {
+		return longUnitsByType[i] * bid - longWeightedByType[i]
+				+ shortWeightedByType[i] - shortUnitsByType[i] * ask;
+	}
+
+	/**
+	 * 指定类型中开仓价最高(max=true)或最低的订单,
+	 * 价格相同时返回先登记的订单
+	 * @param type
+	 * @param max
+	 * @return 无此类型订单时返回null
+	 */
+	public IOrder getExtremeOrder(T type, boolean max) {
+		refresh();
+		Entry<T> entry = entry(max ? maxByType[type.ordinal()] : minByType[type.ordinal()]);
+		return entry == null ? null : entry.order;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	static long toLotUnits(double lots) {
+		return Math.round(lots * LOT_UNITS);
+	}
+
+	/**
+	 * 登记信息
+	 */
+	public static class Entry<T> {
+		private final IOrder order;
+		private final T type;
+		private final int offset;
+		private final boolean isLong;
+		private final long lotUnits;
+		private final long sequence;
+		// 登记时的开仓价, 未成交的订单成交后由refresh()更新
+		private double openPrice;
+		private long openPipettes;
+		// 是否已计入盈亏
+		private boolean weighted;
+
+		Entry(IOrder order, T type, int offset, boolean isLong, long lotUnits, double openPrice, long openPipettes,
+				long sequence) {
+			this.order = order;
+			this.type = type;
+			this.offset = offset;
+			this.isLong = isLong;
+			this.lotUnits = lotUnits;
+			this.openPrice = openPrice;
+			this.openPipettes = openPipettes;
+			this.sequence = sequence;
+		}
+
+		public IOrder getOrder() {
+			return order;
+		}
+
+		public T getType() {
+			return type;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		public boolean isLong() {
+			return isLong;
+		}
+
+		public double getLots() {
+			return lotUnits / LOT_UNITS;
+		}
+
+		/**
+		 * 开仓价, 登记时未成交的订单在refresh()之前为登记时的值(市价单为0)
+		 * @return
+		 */
+		public double getOpenPrice() {
+			return openPrice;
+		}
+
+		/**
+		 * 登记序号(登记的先后顺序)
+		 * @return
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+	}
+
+	private static class PriceComparator<T> implements Comparator<Entry<T>> {
+		@Override
+		public int compare(Entry<T> a, Entry<T> b) {
+			int c = Double.compare(a.openPrice, b.openPrice);
+			return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package com.gearcode.forex.ea.grid;
+
+import com.dukascopy.api.IMessage;
+import com.dukascopy.api.IOrder;
+import com.dukascopy.api.IOrder.State;
+import com.dukascopy.api.Instrument;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 本地订单状态缓存
+ *
+ * 启动时用engine.getOrders()载入一次, 之后由onMessage中的订单消息
+ * (ORDER_SUBMIT_OK, ORDER_FILL_OK, ORDER_CLOSE_OK ...)按订单当前状态增量维护,
+ * 按label/货币对查询订单、成交单数、挂单数及净头寸均为O(1),
+ * tick中不再需要调用engine.getOrders()复制整个订单列表
+ *
+ * @author liteng
+ *
+ */
+public class OrderStateCache {
+
+	// 手数以 1/1000000 手为单位累计
+	private static final double LOT_UNITS = 1000000.0;
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final Map<Instrument, Book> books = new HashMap<Instrument, Book>();
+
+	/**
+	 * 载入当前订单(通常为onStart中engine.getOrders()的结果)
+	 * @param orders
+	 */
+	public void load(List<IOrder> orders) {
+		for (IOrder order : orders) {
+			update(order);
+		}
+	}
+
+	/**
+	 * 处理订单消息, 由策略的onMessage调用
+	 * @param message
+	 */
+	public void onMessage(IMessage message) {
+		IOrder order = message.getOrder();
+		if(order != null) {
+			update(order);
+		}
+	}
+
+	/**
+	 * 按订单当前状态更新缓存; 提交订单后立即调用可避免确认消息到达前重复下单
+	 * @param order
+	 */
+	public void update(IOrder order) {
+		String label = order.getLabel();
+		Entry old = entries.get(label);
+		if(old != null) {
+			old.book.uncount(old);
+		}
+
+		State state = order.getState();
+		if(state == State.CLOSED || state == State.CANCELED) {
+			if(old != null) {
+				old.book.orders.remove(label);
+				entries.remove(label);
+			}
+			return;
+		}
+
+		Book book = book(order.getInstrument());
+		Entry entry = new Entry(order, book, state == State.FILLED,
+				(order.isLong() ? 1 : -1) * Math.round(order.getAmount() * LOT_UNITS));
+		entries.put(label, entry);
+		book.orders.put(label, order);
+		book.count(entry);
+	}
+
+	private Book book(Instrument instrument) {
+		Book book = books.get(instrument);
+		if(book == null) {
+			book = new Book();
+			books.put(instrument, book);
+		}
+		return book;
+	}
+
+	/**
+	 * @param label
+	 * @return 未平仓/未撤销的订单, 不存在时返回null
+	 */
+	public IOrder getOrder(String label) {
+		Entry entry = entries.get(label);
+		return entry == null ? null : entry.order;
+	}
+
+	/**
+	 * 货币对的所有未平仓/未撤销订单(只读, 按首次出现顺序)
+	 * @param instrument
+	 * @return
+	 */
+	public Collection<IOrder> getOrders(Instrument instrument) {
+		Book book = books.get(instrument);
+		return book == null ? Collections.<IOrder>emptyList() : book.ordersView;
+	}
+
+	/**
+	 * 货币对的订单数(成交单 + 挂单)
+	 * @param instrument
+	 * @return
+	 */
+	public int count(Instrument instrument) {
+		Book book = books.get(instrument);
+		return book == null ? 0 : book.orders.size();
+	}
+
+	/**
+	 * 货币对的已成交订单数
+	 * @param instrument
+	 * @return
+	 */
+	public int getFilledCount(Instrument instrument) {
+		Book book = books.get(instrument);
+		return book == null ? 0 : book.filled;
+	}
+
+	/**
+	 * 货币对的未成交订单数(已提交/挂单)
+	 * @param instrument
+	 * @return
+	 */
+	public int getPendingCount(Instrument instrument) {
+		Book book = books.get(instrument);
+		return book == null ? 0 : book.orders.size() - book.filled;
+	}
+
+	/**
+	 * 货币对的净头寸(手), 多为正, 空为负, 只计算已成交订单
+	 * @param instrument
+	 * @return
+	 */
+	public double getNetExposure(Instrument instrument) {
+		Book book = books.get(instrument);
+		return book == null ? 0 : book.netUnits / LOT_UNITS;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * 单个货币对的订单
+	 */
+	private static class Book {
+		private final Map<String, IOrder> orders = new LinkedHashMap<String, IOrder>();
+		private final Collection<IOrder> ordersView = Collections.unmodifiableCollection(orders.values());
+		private int filled;
+		private long netUnits;
+
+		void count(Entry entry) {
+			if(entry.filled) {
+				filled++;
+				netUnits += entry.signedUnits;
+			}
+		}
+
+		void uncount(Entry entry) {
+			if(entry.filled) {
+				filled--;
+				netUnits -= entry.signedUnits;
+			}
+		}
+	}
+
+	private static class Entry {
+		private final IOrder order;
+		private final Book book;
+		private final boolean filled;
+		private final long signedUnits;
+
+		Entry(IOrder order, Book book, boolean filled, long signedUnits) {
+			this.order = order;
+			this.book = book;
+			this.filled = filled;
+			this.signedUnits = signedUnits;
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package com.gearcode.forex.ea.grid;
+
+/**
+ * 网格订单类型
+ *
+ * @author liteng
+ *
+ */
+public enum OrderType {
+	// 趋势单
+	Normal,
+	// 马丁单
+	Martin
+}
@@ -0,0 +1,66 @@
+package com.gearcode.forex.ea.grid;
+
+import com.dukascopy.api.Instrument;
+
+/**
+ * 定点价格(以pipette为单位的long)
+ *
+ * 1 pipette = 0.1 pip, 精度为 Instrument.getPipScale() + 1 位小数,
+ * 格子边界、订单开仓价及价差均以long表示, 比较结果精确且无需装箱和BigDecimal舍入
+ *
+ * @author liteng
+ *
+ */
+public class Pipettes {
+
+	private final int scale;
+
+	// 10^scale
+	private final double factor;
+
+	public Pipettes(int scale) {
+		this.scale = scale;
+
+		double f = 1;
+		for(int i = 0; i < scale; i++) {
+			f *= 10;
+		}
+		this.factor = f;
+	}
+
+	public static Pipettes of(Instrument instrument) {
+		return new Pipettes(instrument.getPipScale() + 1);
+	}
+
+	/**
+	 * 价格 -> pipettes (四舍五入)
+	 * @param price
+	 * @return
+	 */
+	public long toPipettes(double price) {
+		return Math.round(price * factor);
+	}
+
+	/**
+	 * pipettes -> 价格
+	 * @param pipettes
+	 * @return
+	 */
+	public double toPrice(long pipettes) {
+		return pipettes / factor;
+	}
+
+	/**
+	 * 价差(to - from), 单位pipette
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public long delta(double from, double to) {
+		return toPipettes(to) - toPipettes(from);
+	}
+
+	public int getScale() {
+		return scale;
+	}
+}
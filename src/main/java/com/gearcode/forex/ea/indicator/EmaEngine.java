@@ -0,0 +1,186 @@
+package com.gearcode.forex.ea.indicator;
+
+import com.dukascopy.api.Filter;
+import com.dukascopy.api.IBar;
+import com.dukascopy.api.IHistory;
+import com.dukascopy.api.IIndicators.AppliedPrice;
+import com.dukascopy.api.ITick;
+import com.dukascopy.api.Instrument;
+import com.dukascopy.api.JFException;
+import com.dukascopy.api.OfferSide;
+import com.dukascopy.api.Period;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * 按货币对和周期维护的流式EMA(BID)
+ *
+ * register()时用历史K线初始化一次, 之后onBar()加入已完成K线, onTick()更新未完成K线的最高/最低/最新价,
+ * ema()读取当前值为O(1)且不分配对象, 代替每个tick调用indicators.ema().
+ * 支持AppliedPrice.CLOSE和AppliedPrice.MEDIAN_PRICE
+ *
+ * @author liteng
+ *
+ */
+public class EmaEngine {
+
+	// 初始化时取 period * SEED_FACTOR 根历史K线, 使EMA初始值的影响衰减到可以忽略
+	private static final int SEED_FACTOR = 10;
+
+	private final IHistory history;
+
+	private final Map<Instrument, Map<Period, Series>> series = new HashMap<Instrument, Map<Period, Series>>();
+
+	// 按货币对遍历的序列(onTick)
+	private final Map<Instrument, List<Series>> byInstrument = new HashMap<Instrument, List<Series>>();
+
+	private final Calendar gmt = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+
+	public EmaEngine(IHistory history) {
+		this.history = history;
+	}
+
+	/**
+	 * 登记并用历史K线初始化; 已登记时直接返回
+	 * @param instrument
+	 * @param period
+	 * @param appliedPrice CLOSE / MEDIAN_PRICE
+	 * @param timePeriod EMA周期长度
+	 * @return
+	 * @throws JFException
+	 */
+	public StreamingEma register(Instrument instrument, Period period, AppliedPrice appliedPrice, int timePeriod) throws JFException {
+		Series s = find(instrument, period);
+		if(s != null) {
+			return s.ema;
+		}
+		if(appliedPrice != AppliedPrice.CLOSE && appliedPrice != AppliedPrice.MEDIAN_PRICE) {
+			throw new IllegalArgumentException("unsupported applied price: " + appliedPrice);
+		}
+
+		s = new Series(appliedPrice, new StreamingEma(timePeriod));
+		IBar lastBar = history.getBar(instrument, period, OfferSide.BID, 1);
+		if(lastBar != null) {
+			for (IBar bar : history.getBars(instrument, period, OfferSide.BID, Filter.WEEKENDS, timePeriod * SEED_FACTOR, lastBar.getTime(), 0)) {
+				s.commit(bar);
+			}
+		}
+
+		Map<Period, Series> periods = series.get(instrument);
+		if(periods == null) {
+			periods = new HashMap<Period, Series>();
+			series.put(instrument, periods);
+		}
+		periods.put(period, s);
+
+		List<Series> list = byInstrument.get(instrument);
+		if(list == null) {
+			list = new ArrayList<Series>();
+			byInstrument.put(instrument, list);
+		}
+		list.add(s);
+		return s.ema;
+	}
+
+	/**
+	 * 由策略的onTick调用
+	 * @param instrument
+	 * @param tick
+	 */
+	public void onTick(Instrument instrument, ITick tick) {
+		List<Series> list = byInstrument.get(instrument);
+		if(list == null) return;
+		for (int i = 0; i < list.size(); i++) {
+			list.get(i).tick(tick.getBid());
+		}
+	}
+
+	/**
+	 * 由策略的onBar调用
+	 * @param instrument
+	 * @param period
+	 * @param bidBar
+	 */
+	public void onBar(Instrument instrument, Period period, IBar bidBar) {
+		Series s = find(instrument, period);
+		// 与历史数据的Filter.WEEKENDS一致, 跳过周末的空K线
+		if(s != null && !(bidBar.getVolume() == 0 && isWeekend(bidBar.getTime()))) {
+			s.commit(bidBar);
+		}
+	}
+
+	/**
+	 * @param instrument
+	 * @param period
+	 * @param shift 0: 含未完成K线 / 1: 最近一根已完成K线
+	 * @return 未登记或未就绪时返回NaN
+	 */
+	public double ema(Instrument instrument, Period period, int shift) {
+		Series s = find(instrument, period);
+		if(s == null) {
+			return Double.NaN;
+		}
+		if(shift == 0) {
+			return s.ema.getValue();
+		}
+		if(shift == 1) {
+			return s.ema.getCommittedValue();
+		}
+		throw new IllegalArgumentException("unsupported shift: " + shift);
+	}
+
+	private Series find(Instrument instrument, Period period) {
+		Map<Period, Series> periods = series.get(instrument);
+		return periods == null ? null : periods.get(period);
+	}
+
+	/**
+	 * 周五21:00(GMT)至周日22:00(GMT)之间
+	 * @param time
+	 * @return
+	 */
+	private boolean isWeekend(long time) {
+		gmt.setTimeInMillis(time);
+		int day = gmt.get(Calendar.DAY_OF_WEEK);
+		int hour = gmt.get(Calendar.HOUR_OF_DAY);
+		return day == Calendar.SATURDAY
+				|| (day == Calendar.FRIDAY && hour >= 21)
+				|| (day == Calendar.SUNDAY && hour < 22);
+	}
+
+	/**
+	 * 单个货币对/周期的EMA及未完成K线
+	 */
+	private static class Series {
+		private final AppliedPrice appliedPrice;
+		private final StreamingEma ema;
+
+		// 未完成K线的最高/最低价, 本K线还没有tick时为NaN
+		private double high = Double.NaN;
+		private double low = Double.NaN;
+
+		Series(AppliedPrice appliedPrice, StreamingEma ema) {
+			this.appliedPrice = appliedPrice;
+			this.ema = ema;
+		}
+
+		void commit(IBar bar) {
+			ema.commit(appliedPrice == AppliedPrice.CLOSE ? bar.getClose() : (bar.getHigh() + bar.getLow()) / 2);
+			high = Double.NaN;
+			low = Double.NaN;
+			// 新K线在第一个tick之前按上一根收盘价的平K线计算
+			ema.setForming(bar.getClose());
+		}
+
+		void tick(double bid) {
+			if(Double.isNaN(high) || bid > high) high = bid;
+			if(Double.isNaN(low) || bid < low) low = bid;
+			ema.setForming(appliedPrice == AppliedPrice.CLOSE ? bid : (high + low) / 2);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.gearcode.forex.ea.indicator;
+
+/**
+ * 流式指数移动平均(EMA)
+ *
+ * 与平台EMA相同: 前period个值的SMA作为初始值, 之后 ema = ema + k * (price - ema), k = 2 / (period + 1).
+ * commit()加入已完成K线的价格; 未完成K线的价格由setForming()设置,
+ * getValue()在已完成K线的EMA上再推进一步得到当前值, 不修改状态、不分配对象
+ *
+ * @author liteng
+ *
+ */
+public class StreamingEma {
+
+	private final int period;
+	private final double k;
+
+	private int count;
+	private double sum;
+
+	// 已完成K线的EMA (shift 1)
+	private double value = Double.NaN;
+
+	// 未完成K线的价格, 没有时为NaN
+	private double forming = Double.NaN;
+
+	/**
+	 * @param period 周期长度
+	 */
+	public StreamingEma(int period) {
+		if(period <= 0) {
+			throw new IllegalArgumentException("period must be positive: " + period);
+		}
+		this.period = period;
+		this.k = 2.0 / (period + 1);
+	}
+
+	/**
+	 * 加入一根已完成K线的价格, 同时清除未完成K线的价格
+	 * @param price
+	 */
+	public void commit(double price) {
+		if(count < period) {
+			sum += price;
+			if(++count == period) {
+				value = sum / period;
+			}
+		} else {
+			value += k * (price - value);
+		}
+		forming = Double.NaN;
+	}
+
+	/**
+	 * 设置未完成K线的价格
+	 * @param price
+	 */
+	public void setForming(double price) {
+		this.forming = price;
+	}
+
+	/**
+	 * @return 已加入的K线数达到周期长度
+	 */
+	public boolean isReady() {
+		return count >= period;
+	}
+
+	/**
+	 * 当前EMA(shift 0, 含未完成K线), 未就绪时返回NaN
+	 * @return
+	 */
+	public double getValue() {
+		if(Double.isNaN(forming)) {
+			return value;
+		}
+		return value + k * (forming - value);
+	}
+
+	/**
+	 * 已完成K线的EMA(shift 1), 未就绪时返回NaN
+	 * @return
+	 */
+	public double getCommittedValue() {
+		return value;
+	}
+
+	public int getPeriod() {
+		return period;
+	}
+}
@@ -0,0 +1,83 @@
+package com.gearcode.forex.ea.indicator;
+
+/**
+ * 流式简单移动平均(SMA)
+ *
+ * 最近period个值保存在环形数组中, 每次add()只减去被挤出的值、加上新值, O(1)更新;
+ * 每填满一圈按数组重新求和一次(均摊O(1)), 避免长时间运行时累加误差漂移
+ *
+ * @author liteng
+ *
+ */
+public class StreamingSma {
+
+	private final double[] values;
+	private int next;
+	private int count;
+	private double sum;
+
+	/**
+	 * @param period 周期长度
+	 */
+	public StreamingSma(int period) {
+		if(period <= 0) {
+			throw new IllegalArgumentException("period must be positive: " + period);
+		}
+		this.values = new double[period];
+	}
+
+	/**
+	 * 加入一个新值, 周期已满时挤出最旧的值
+	 * @param value
+	 */
+	public void add(double value) {
+		if(count == values.length) {
+			sum -= values[next];
+		} else {
+			count++;
+		}
+		values[next] = value;
+		sum += value;
+
+		if(++next == values.length) {
+			next = 0;
+			resum();
+		}
+	}
+
+	private void resum() {
+		double s = 0;
+		for (int i = 0; i < count; i++) {
+			s += values[i];
+		}
+		sum = s;
+	}
+
+	/**
+	 * @return 已加入的值数量达到周期长度
+	 */
+	public boolean isReady() {
+		return count == values.length;
+	}
+
+	/**
+	 * @return 当前窗口内的平均值, 没有值时返回NaN
+	 */
+	public double getValue() {
+		return count == 0 ? Double.NaN : sum / count;
+	}
+
+	public int getPeriod() {
+		return values.length;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public void clear() {
+		next = 0;
+		count = 0;
+		sum = 0;
+	}
+}
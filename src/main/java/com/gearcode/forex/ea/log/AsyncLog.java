@@ -0,0 +1,266 @@
+package com.gearcode.forex.ea.log;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步日志
+ *
+ * 日志行写入预先分配的环形缓冲(每格一个StringBuilder, 重复使用), 由后台线程输出到PrintStream;
+ * 策略线程只复制字符, 不加锁、不等待IO、不创建对象(数值用append(long)/append(double)直接写入).
+ * 缓冲满时丢弃新的日志行并计数, 后台线程在下一行之前输出丢弃的行数.
+ *
+ * 用法:
+ * <pre>
+ * log.log("[Order][Open] ", label);
+ * log.line().append("price: ").append(price).append(", lots: ").append(lots).commit();
+ * </pre>
+ * line()之后应当commit(); 占用后超过1秒仍未提交的行(如拼接参数时抛出异常)被跳过,
+ * 后台线程输出一行提示后继续输出之后的日志
+ *
+ * @author liteng
+ *
+ */
+public class AsyncLog implements Closeable {
+
+	// 每行预分配的字符数, 更长的行第一次写入时扩容
+	private static final int LINE_CAPACITY = 256;
+	// 缓冲为空时后台线程的等待时间
+	private static final long IDLE_NANOS = 1000000L;
+	// 已占用未提交的行超过此时间后跳过
+	private static final long STALL_NANOS = 1000000000L;
+	// close()等待后台线程输出剩余日志的最长时间
+	private static final long CLOSE_MILLIS = 5000L;
+
+	private final PrintStream[] outs;
+	private final Line[] lines;
+	private final int mask;
+
+	// 下一个可写入的序号(写入方)和下一个要输出的序号(后台线程)
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	// 缓冲满时返回, 写入的内容直接丢弃
+	private final Line discard = new Line(this, -1);
+
+	private final Thread writer;
+	private volatile boolean closed;
+
+	/**
+	 * 缓冲4096行
+	 * @param outs
+	 */
+	public AsyncLog(PrintStream... outs) {
+		this(4096, outs);
+	}
+
+	/**
+	 * @param capacity 缓冲的行数, 取整为2的幂
+	 * @param outs 输出(每行依次写入所有输出)
+	 */
+	public AsyncLog(int capacity, PrintStream... outs) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.outs = outs.clone();
+		this.lines = new Line[size];
+		this.mask = size - 1;
+		for (int i = 0; i < size; i++) {
+			lines[i] = new Line(this, i - size);
+		}
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "AsyncLog");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * 写入一行(各部分依次拼接)
+	 * @param parts
+	 */
+	public void log(String... parts) {
+		Line line = line();
+		for (String part : parts) {
+			line.append(part);
+		}
+		line.commit();
+	}
+
+	/**
+	 * 写入一行
+	 * @param text
+	 */
+	public void log(CharSequence text) {
+		line().append(text).commit();
+	}
+
+	/**
+	 * 开始一行, 写完后调用Line.commit(); 缓冲已满(或已关闭)时返回的行会被丢弃
+	 * @return
+	 */
+	public Line line() {
+		while (true) {
+			long seq = head.get();
+			if(closed || seq - tail.get() >= lines.length) {
+				dropped.incrementAndGet();
+				return discard;
+			}
+			if(head.compareAndSet(seq, seq + 1)) {
+				Line line = lines[(int) (seq & mask)];
+				line.text.setLength(0);
+				line.claimed = seq;
+				return line;
+			}
+		}
+	}
+
+	/**
+	 * @return 因缓冲已满丢弃的行数
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * 后台线程: 按序号输出已提交的行, 每批输出后flush
+	 */
+	private void drain() {
+		StringBuilder batch = new StringBuilder(LINE_CAPACITY * 16);
+		long reported = 0;
+		long stalledSince = 0;
+		while (true) {
+			long seq = tail.get();
+			int n = 0;
+			while (n < lines.length) {
+				Line line = lines[(int) ((seq + n) & mask)];
+				if(line.published != seq + n) {
+					break;
+				}
+				batch.append(line.text).append('\n');
+				n++;
+			}
+
+			if(n > 0 || head.get() == seq) {
+				stalledSince = 0;
+			} else if(stalledSince == 0) {
+				stalledSince = System.nanoTime();
+			} else if(System.nanoTime() - stalledSince > STALL_NANOS) {
+				// 下一行被占用后一直未提交, 跳过该行
+				batch.append("[AsyncLog] 1 line not committed, skipped\n");
+				n = 1;
+				stalledSince = 0;
+			}
+
+			long lost = dropped.get();
+			if(lost != reported) {
+				batch.append("[AsyncLog] ").append(lost - reported).append(" lines dropped\n");
+				reported = lost;
+			}
+
+			if(batch.length() > 0) {
+				// 先释放已复制的格子, 再做IO
+				tail.lazySet(seq + n);
+				String text = batch.toString();
+				batch.setLength(0);
+				for (PrintStream out : outs) {
+					out.print(text);
+					out.flush();
+				}
+				continue;
+			}
+
+			if(closed && head.get() == seq) {
+				return;
+			}
+			LockSupport.parkNanos(this, IDLE_NANOS);
+		}
+	}
+
+	/**
+	 * 输出缓冲中剩余的日志后结束后台线程(最多等待5秒), 之后写入的日志被丢弃
+	 */
+	@Override
+	public void close() {
+		if(closed) return;
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(CLOSE_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * 缓冲中的一行, 在commit()之前可以多次append
+	 */
+	public static class Line {
+
+		private final AsyncLog log;
+		private final StringBuilder text;
+
+		// 写入方占用时的序号, 提交后对后台线程可见的序号
+		private long claimed;
+		private volatile long published;
+
+		private Line(AsyncLog log, long published) {
+			this.log = log;
+			this.text = new StringBuilder(LINE_CAPACITY);
+			this.published = published;
+		}
+
+		private boolean isDiscard() {
+			return this == log.discard;
+		}
+
+		public Line append(CharSequence s) {
+			if(!isDiscard()) text.append(s);
+			return this;
+		}
+
+		public Line append(char c) {
+			if(!isDiscard()) text.append(c);
+			return this;
+		}
+
+		public Line append(int i) {
+			if(!isDiscard()) text.append(i);
+			return this;
+		}
+
+		public Line append(long l) {
+			if(!isDiscard()) text.append(l);
+			return this;
+		}
+
+		public Line append(double d) {
+			if(!isDiscard()) text.append(d);
+			return this;
+		}
+
+		public Line append(boolean b) {
+			if(!isDiscard()) text.append(b);
+			return this;
+		}
+
+		public Line append(Object o) {
+			if(!isDiscard()) text.append(o);
+			return this;
+		}
+
+		/**
+		 * 提交该行, 之后不能再写入
+		 */
+		public void commit() {
+			if(!isDiscard()) {
+				published = claimed;
+			}
+		}
+	}
+}
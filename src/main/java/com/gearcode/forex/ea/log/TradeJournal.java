@@ -0,0 +1,389 @@
+package com.gearcode.forex.ea.log;
+
+import com.dukascopy.api.IEngine.OrderCommand;
+import com.dukascopy.api.OfferSide;
+import com.gearcode.forex.ea.grid.OrderType;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 二进制交易事件日志(只追加, 内存映射)
+ *
+ * 每个事件一条64字节的定长记录, 字段都是基本类型, 直接写入映射区(几十纳秒, 不创建对象);
+ * 订单标签第一次出现时写一条LABEL记录并分配编号, 之后的记录只写编号.
+ * 记录的类型字节最后写入, 进程崩溃时最多丢失正在写的一条; 再次打开同一文件时接着追加.
+ * 用TradeJournalReader离线读取, 重建时间线和盈亏
+ *
+ * 文件格式(小端):
+ * <pre>
+ * 文件头 64字节: int magic, int version, int 记录长度, int 映射段长度, 其余保留
+ * 记录 64字节:
+ *   0 long 写入时间(纳秒, UTC)   8 long 行情时间(毫秒, setTime设置)
+ *  16 byte 类型  17 byte 报价方(0 ASK, 1 BID, -1 无)  18 byte 方向(1 BUY, -1 SELL, 0 无)
+ *  19 byte 订单类型(1 Normal, 2 Martin, 0 无)  20 int 标签编号
+ *  24 int i1  28 int i2  32 double d1  40 double d2  48 double d3  56 long 记录序号
+ * LABEL记录: 24 int 标签字节数, 28起为UTF-8标签, 超出部分写入紧接着的64字节块
+ * </pre>
+ * 文件按映射段(默认4MB)增长, 段末尾放不下的标签记录之前用PADDING记录补齐
+ *
+ * @author liteng
+ *
+ */
+public class TradeJournal implements Closeable {
+
+	/**
+	 * 事件类型, 各字段含义见各类型说明
+	 */
+	public enum Type {
+		/** 段末尾的空记录 */
+		PADDING(1),
+		/** 标签编号定义: 标签编号, 标签 */
+		LABEL(2),
+		/** 格子变化: 报价方, i1 离开的格子, i2 进入的格子, d1 价格 */
+		GRID_CHANGE(3),
+		/** 提交订单: 标签, 方向, 订单类型, i1 格子, d1 手数 */
+		ORDER_SUBMIT(4),
+		/** 成交: 标签, 方向, d1 手数, d2 开仓价 */
+		ORDER_FILL(5),
+		/** 平仓: 标签, d1 手数, d2 平仓价, d3 盈亏(账户货币) */
+		ORDER_CLOSE(6),
+		/** 开仓或平仓失败: 标签, i1 0开仓 1平仓 */
+		ORDER_ERROR(7),
+		/** 对冲锁定利润: 报价方, 方向, d1 对冲手数, d2 累计锁定利润, d3 当前利润 */
+		HEDGE_LOCK(8),
+		/** 一轮结束(价格回到均线另一侧): 报价方, i1 对冲单数, d1 锁定利润, d2 最大净利润 */
+		ROUND_RESET(9);
+
+		final byte code;
+
+		Type(int code) {
+			this.code = (byte) code;
+		}
+
+		static Type of(byte code) {
+			for (Type type : values()) {
+				if(type.code == code) return type;
+			}
+			return null;
+		}
+	}
+
+	static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+	static final int MAGIC = 0x4C4E4A54; // "TJNL"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 64;
+	static final int RECORD_SIZE = 64;
+	static final int LABEL_OFFSET = 28;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int DEFAULT_CHUNK = 4 << 20;
+	// 标签最多保存的字节数
+	private static final int MAX_LABEL = 256;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int chunkSize;
+
+	private ByteBuffer chunk;
+	private int chunkIndex;
+	private int position;
+	private long sequence;
+
+	private final Map<String, Integer> labels = new HashMap<String, Integer>();
+
+	// 纳秒时间: 打开时的系统时间 + nanoTime的增量
+	private final long baseNanos;
+	private final long baseNanoTime;
+	private long time;
+
+	private boolean closed;
+
+	private TradeJournal() {
+		file = null;
+		channel = null;
+		chunkSize = 0;
+		baseNanos = baseNanoTime = 0;
+		closed = true;
+	}
+
+	/**
+	 * 打开日志文件, 已存在时在末尾追加
+	 * @param file
+	 * @throws IOException
+	 */
+	public TradeJournal(File file) throws IOException {
+		this(file, DEFAULT_CHUNK);
+	}
+
+	/**
+	 * @param file
+	 * @param chunkSize 映射段长度(字节), 新文件有效, 取整为记录长度的倍数
+	 * @throws IOException
+	 */
+	public TradeJournal(File file, int chunkSize) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+			if(channel.size() >= HEADER_SIZE) {
+				channel.read(header, 0);
+				header.flip();
+				if(header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != RECORD_SIZE) {
+					throw new IOException("not a trade journal: " + file);
+				}
+				this.chunkSize = header.getInt();
+			} else {
+				this.chunkSize = Math.max(RECORD_SIZE * 16, chunkSize / RECORD_SIZE * RECORD_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(this.chunkSize);
+				header.position(0);
+				channel.write(header, 0);
+			}
+			seekEnd();
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+		baseNanos = System.currentTimeMillis() * 1000000L;
+		baseNanoTime = System.nanoTime();
+	}
+
+	/**
+	 * @return 不记录任何事件的日志(未启用时使用, 调用方不需要判断)
+	 */
+	public static TradeJournal disabled() {
+		return new TradeJournal();
+	}
+
+	/**
+	 * 跳过已有的记录(同时恢复标签编号), 定位到第一个空记录
+	 */
+	private void seekEnd() throws IOException {
+		map(0);
+		while (true) {
+			if(position == chunkSize) {
+				map(chunkIndex + 1);
+			}
+			byte code = chunk.get(position + 16);
+			if(code == 0) {
+				break;
+			}
+			if(code == Type.PADDING.code) {
+				position = chunkSize;
+				continue;
+			}
+			sequence = chunk.getLong(position + 56) + 1;
+			if(code == Type.LABEL.code) {
+				int length = chunk.getInt(position + 24);
+				byte[] bytes = new byte[length];
+				for (int i = 0; i < length; i++) {
+					bytes[i] = chunk.get(position + LABEL_OFFSET + i);
+				}
+				labels.put(new String(bytes, UTF8), chunk.getInt(position + 20));
+				position += labelBlocks(length) * RECORD_SIZE;
+			} else {
+				position += RECORD_SIZE;
+			}
+		}
+	}
+
+	static int labelBlocks(int length) {
+		return (LABEL_OFFSET + length + RECORD_SIZE - 1) / RECORD_SIZE;
+	}
+
+	private void map(int index) throws IOException {
+		chunk = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long) index * chunkSize, chunkSize);
+		chunk.order(ORDER);
+		chunkIndex = index;
+		position = 0;
+	}
+
+	/**
+	 * 设置之后事件的行情时间(通常在onTick开头用tick时间调用)
+	 * @param time 毫秒
+	 */
+	public void setTime(long time) {
+		this.time = time;
+	}
+
+	public void gridChange(OfferSide side, int leave, int enter, double price) {
+		if(closed) return;
+		int p = begin(1);
+		chunk.put(p + 17, side(side));
+		chunk.putInt(p + 24, leave);
+		chunk.putInt(p + 28, enter);
+		chunk.putDouble(p + 32, price);
+		commit(p, Type.GRID_CHANGE);
+	}
+
+	/**
+	 * @param label
+	 * @param command
+	 * @param type 不是网格订单时为null
+	 * @param grid 格子offset, 不是网格订单时为0
+	 * @param amount 手数
+	 */
+	public void orderSubmit(String label, OrderCommand command, OrderType type, int grid, double amount) {
+		if(closed) return;
+		int key = key(label);
+		int p = begin(1);
+		chunk.put(p + 18, command(command));
+		chunk.put(p + 19, type == null ? 0 : (byte) (type.ordinal() + 1));
+		chunk.putInt(p + 20, key);
+		chunk.putInt(p + 24, grid);
+		chunk.putDouble(p + 32, amount);
+		commit(p, Type.ORDER_SUBMIT);
+	}
+
+	public void orderFill(String label, OrderCommand command, double amount, double openPrice) {
+		if(closed) return;
+		int key = key(label);
+		int p = begin(1);
+		chunk.put(p + 18, command(command));
+		chunk.putInt(p + 20, key);
+		chunk.putDouble(p + 32, amount);
+		chunk.putDouble(p + 40, openPrice);
+		commit(p, Type.ORDER_FILL);
+	}
+
+	public void orderClose(String label, double amount, double closePrice, double profit) {
+		if(closed) return;
+		int key = key(label);
+		int p = begin(1);
+		chunk.putInt(p + 20, key);
+		chunk.putDouble(p + 32, amount);
+		chunk.putDouble(p + 40, closePrice);
+		chunk.putDouble(p + 48, profit);
+		commit(p, Type.ORDER_CLOSE);
+	}
+
+	/**
+	 * @param label
+	 * @param closing true为平仓失败, false为开仓失败
+	 */
+	public void orderError(String label, boolean closing) {
+		if(closed) return;
+		int key = key(label);
+		int p = begin(1);
+		chunk.putInt(p + 20, key);
+		chunk.putInt(p + 24, closing ? 1 : 0);
+		commit(p, Type.ORDER_ERROR);
+	}
+
+	public void hedgeLock(OfferSide side, OrderCommand command, double hedgeLots, double lockedProfit, double currentProfit) {
+		if(closed) return;
+		int p = begin(1);
+		chunk.put(p + 17, side(side));
+		chunk.put(p + 18, command(command));
+		chunk.putDouble(p + 32, hedgeLots);
+		chunk.putDouble(p + 40, lockedProfit);
+		chunk.putDouble(p + 48, currentProfit);
+		commit(p, Type.HEDGE_LOCK);
+	}
+
+	public void roundReset(OfferSide side, int hedgeOrders, double lockedProfit, double highestNetProfit) {
+		if(closed) return;
+		int p = begin(1);
+		chunk.put(p + 17, side(side));
+		chunk.putInt(p + 24, hedgeOrders);
+		chunk.putDouble(p + 32, lockedProfit);
+		chunk.putDouble(p + 40, highestNetProfit);
+		commit(p, Type.ROUND_RESET);
+	}
+
+	/**
+	 * 标签编号, 第一次出现时写LABEL记录
+	 */
+	private int key(String label) {
+		Integer key = labels.get(label);
+		if(key != null) {
+			return key;
+		}
+		key = labels.size() + 1;
+		labels.put(label, key);
+
+		byte[] bytes = label.getBytes(UTF8);
+		if(bytes.length > MAX_LABEL) {
+			bytes = Arrays.copyOf(bytes, MAX_LABEL);
+		}
+		int p = begin(labelBlocks(bytes.length));
+		chunk.putInt(p + 20, key);
+		chunk.putInt(p + 24, bytes.length);
+		for (int i = 0; i < bytes.length; i++) {
+			chunk.put(p + LABEL_OFFSET + i, bytes[i]);
+		}
+		commit(p, Type.LABEL);
+		// 后续块
+		position = p + labelBlocks(bytes.length) * RECORD_SIZE;
+		return key;
+	}
+
+	/**
+	 * 占用blocks个记录, 写入公共字段, 返回记录位置(类型字节由commit写入)
+	 */
+	private int begin(int blocks) {
+		if(chunkSize - position < blocks * RECORD_SIZE) {
+			while (position < chunkSize) {
+				chunk.putLong(position + 56, sequence++);
+				chunk.put(position + 16, Type.PADDING.code);
+				position += RECORD_SIZE;
+			}
+			try {
+				map(chunkIndex + 1);
+			} catch (IOException e) {
+				// 无法扩展文件(磁盘已满等)时停止记录, 本条写入临时缓冲丢弃, 不影响策略
+				closed = true;
+				chunk = ByteBuffer.allocate(labelBlocks(MAX_LABEL) * RECORD_SIZE).order(ORDER);
+				position = 0;
+			}
+		}
+		int p = position;
+		chunk.putLong(p, baseNanos + (System.nanoTime() - baseNanoTime));
+		chunk.putLong(p + 8, time);
+		chunk.putLong(p + 56, sequence++);
+		return p;
+	}
+
+	private void commit(int p, Type type) {
+		chunk.put(p + 16, type.code);
+		if(position == p) {
+			position += RECORD_SIZE;
+		}
+	}
+
+	private static byte side(OfferSide side) {
+		return side == null ? -1 : side == OfferSide.ASK ? (byte) 0 : (byte) 1;
+	}
+
+	private static byte command(OrderCommand command) {
+		return command == null ? 0 : command.isLong() ? (byte) 1 : (byte) -1;
+	}
+
+	/**
+	 * 把映射区写回磁盘(操作系统崩溃时才需要, 进程崩溃时页缓存中的数据不会丢失)
+	 */
+	public void flush() {
+		if(!closed) {
+			((MappedByteBuffer) chunk).force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(file == null || !channel.isOpen()) return;
+		flush();
+		closed = true;
+		chunk = null;
+		file.close();
+	}
+}
@@ -0,0 +1,247 @@
+package com.gearcode.forex.ea.log;
+
+import com.gearcode.forex.ea.log.TradeJournal.Type;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * 读取TradeJournal写入的交易事件
+ *
+ * 游标式读取: next()移动到下一个事件(LABEL/PADDING记录在内部处理, 不返回), 通过getter读取字段;
+ * 可以读取正在被策略写入的文件(只读到已提交的记录)
+ *
+ * 用法: TradeJournalReader &lt;日志文件&gt; [-summary]  输出时间线(或只输出汇总)
+ *
+ * @author liteng
+ *
+ */
+public class TradeJournalReader implements Closeable {
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int chunkSize;
+
+	private MappedByteBuffer chunk;
+	private int chunkIndex = -1;
+	private int next;
+	private int current;
+
+	private final Map<Integer, String> labels = new HashMap<Integer, String>();
+
+	public TradeJournalReader(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(TradeJournal.HEADER_SIZE).order(TradeJournal.ORDER);
+		channel.read(header, 0);
+		header.flip();
+		if(header.remaining() < TradeJournal.HEADER_SIZE || header.getInt() != TradeJournal.MAGIC
+				|| header.getInt() != TradeJournal.VERSION || header.getInt() != TradeJournal.RECORD_SIZE) {
+			this.file.close();
+			throw new IOException("not a trade journal: " + file);
+		}
+		chunkSize = header.getInt();
+	}
+
+	/**
+	 * 移动到下一个事件
+	 * @return 没有更多已提交的事件时返回false
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			if(chunk == null || next == chunkSize) {
+				long offset = TradeJournal.HEADER_SIZE + (long) (chunkIndex + 1) * chunkSize;
+				if(channel.size() < offset + chunkSize) {
+					return false;
+				}
+				chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset, chunkSize);
+				chunk.order(TradeJournal.ORDER);
+				chunkIndex++;
+				next = 0;
+			}
+
+			byte code = chunk.get(next + 16);
+			if(code == 0) {
+				return false;
+			}
+			if(code == Type.PADDING.code) {
+				next = chunkSize;
+				continue;
+			}
+			if(code == Type.LABEL.code) {
+				int length = chunk.getInt(next + 24);
+				byte[] bytes = new byte[length];
+				for (int i = 0; i < length; i++) {
+					bytes[i] = chunk.get(next + TradeJournal.LABEL_OFFSET + i);
+				}
+				labels.put(chunk.getInt(next + 20), new String(bytes, TradeJournal.UTF8));
+				next += TradeJournal.labelBlocks(length) * TradeJournal.RECORD_SIZE;
+				continue;
+			}
+
+			current = next;
+			next += TradeJournal.RECORD_SIZE;
+			return true;
+		}
+	}
+
+	public Type getType() {
+		return Type.of(chunk.get(current + 16));
+	}
+
+	/**
+	 * @return 写入时间(纳秒, UTC)
+	 */
+	public long getNanos() {
+		return chunk.getLong(current);
+	}
+
+	/**
+	 * @return 行情时间(毫秒)
+	 */
+	public long getTime() {
+		return chunk.getLong(current + 8);
+	}
+
+	public long getSequence() {
+		return chunk.getLong(current + 56);
+	}
+
+	/**
+	 * @return "ASK", "BID"或null
+	 */
+	public String getSide() {
+		byte side = chunk.get(current + 17);
+		return side < 0 ? null : side == 0 ? "ASK" : "BID";
+	}
+
+	/**
+	 * @return 1 BUY, -1 SELL, 0 无
+	 */
+	public int getCommand() {
+		return chunk.get(current + 18);
+	}
+
+	/**
+	 * @return "Normal", "Martin"或null
+	 */
+	public String getOrderType() {
+		byte type = chunk.get(current + 19);
+		return type == 1 ? "Normal" : type == 2 ? "Martin" : null;
+	}
+
+	public String getLabel() {
+		return labels.get(chunk.getInt(current + 20));
+	}
+
+	public int getI1() {
+		return chunk.getInt(current + 24);
+	}
+
+	public int getI2() {
+		return chunk.getInt(current + 28);
+	}
+
+	public double getD1() {
+		return chunk.getDouble(current + 32);
+	}
+
+	public double getD2() {
+		return chunk.getDouble(current + 40);
+	}
+
+	public double getD3() {
+		return chunk.getDouble(current + 48);
+	}
+
+	@Override
+	public void close() throws IOException {
+		chunk = null;
+		file.close();
+	}
+
+	/**
+	 * 当前事件的文字描述
+	 */
+	private String describe() {
+		String command = getCommand() > 0 ? "BUY" : getCommand() < 0 ? "SELL" : "";
+		switch (getType()) {
+		case GRID_CHANGE: return getSide() + " " + getI1() + " -> " + getI2() + " @ " + getD1();
+		case ORDER_SUBMIT: return getLabel() + " " + command + " " + (getOrderType() == null ? "" : getOrderType() + " grid " + getI1() + " ") + "lots " + getD1();
+		case ORDER_FILL: return getLabel() + " " + command + " lots " + getD1() + " @ " + getD2();
+		case ORDER_CLOSE: return getLabel() + " lots " + getD1() + " @ " + getD2() + " profit " + getD3();
+		case ORDER_ERROR: return getLabel() + (getI1() == 1 ? " close failed" : " open failed");
+		case HEDGE_LOCK: return getSide() + " " + command + " lots " + getD1() + " locked " + getD2() + " current " + getD3();
+		case ROUND_RESET: return getSide() + " hedges " + getI1() + " locked " + getD1() + " highest " + getD2();
+		default: return "";
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1) {
+			System.err.println("usage: TradeJournalReader <journal file> [-summary]");
+			System.exit(1);
+		}
+		boolean summaryOnly = args.length > 1 && "-summary".equals(args[1]);
+
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		df.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+		Map<Type, Integer> counts = new LinkedHashMap<Type, Integer>();
+		Map<String, double[]> byType = new LinkedHashMap<String, double[]>();
+		Map<String, String> orderTypes = new HashMap<String, String>();
+		double profit = 0;
+		int errors = 0;
+
+		TradeJournalReader reader = new TradeJournalReader(new File(args[0]));
+		try {
+			while (reader.next()) {
+				Type type = reader.getType();
+				Integer n = counts.get(type);
+				counts.put(type, n == null ? 1 : n + 1);
+
+				if(type == Type.ORDER_SUBMIT) {
+					orderTypes.put(reader.getLabel(), reader.getOrderType() == null ? "Other" : reader.getOrderType());
+				} else if(type == Type.ORDER_CLOSE) {
+					// 按订单类型汇总: [平仓数, 盈亏]
+					String orderType = orderTypes.get(reader.getLabel());
+					orderType = orderType == null ? "Other" : orderType;
+					double[] sum = byType.get(orderType);
+					if(sum == null) {
+						byType.put(orderType, sum = new double[2]);
+					}
+					sum[0]++;
+					sum[1] += reader.getD3();
+					profit += reader.getD3();
+				} else if(type == Type.ORDER_ERROR) {
+					errors++;
+				}
+
+				if(!summaryOnly) {
+					System.out.println(df.format(new Date(reader.getTime())) + "  " + String.format("%-12s", type) + " " + reader.describe());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		System.out.println("==== summary ====");
+		System.out.println("events: " + counts);
+		for (Map.Entry<String, double[]> entry : byType.entrySet()) {
+			System.out.println(entry.getKey() + ": closed " + (int) entry.getValue()[0] + ", profit " + String.format("%.2f", entry.getValue()[1]));
+		}
+		System.out.println("realized profit: " + String.format("%.2f", profit) + ", order errors: " + errors);
+	}
+}
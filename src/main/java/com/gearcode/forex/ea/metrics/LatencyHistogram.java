@@ -0,0 +1,175 @@
+package com.gearcode.forex.ea.metrics;
+
+import java.util.Arrays;
+
+/**
+ * 延迟直方图(HdrHistogram式的对数-线性分桶)
+ *
+ * 128以下每个值一个桶, 之后每个2的幂区间分为64个桶, 相对误差不超过1/64(约1.6%);
+ * 记录只是一次数组加一, 不创建对象. 纳秒值最大记录到约73分钟, 更大的值计入最后一个桶.
+ * 非线程安全, 在策略线程记录, 其他线程读取请使用copy()得到的副本
+ *
+ * @author liteng
+ *
+ */
+public class LatencyHistogram {
+
+	// 每个2的幂区间的桶数 = 2^SUB_BITS
+	private static final int SUB_BITS = 6;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	// 最大可区分的值: 2^42纳秒(约73分钟)
+	private static final int MAX_BITS = 42;
+	private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+
+	private final String name;
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long total;
+	private long min = Long.MAX_VALUE;
+	private long max;
+
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * 记录一个值(纳秒), 负数按0记录
+	 * @param value
+	 */
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		counts[index(value)]++;
+		count++;
+		total += value;
+		if(value < min) min = value;
+		if(value > max) max = value;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return 没有记录时为0
+	 */
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count == 0 ? 0 : (double) total / count;
+	}
+
+	/**
+	 * 百分位值(所在桶的上界, 与HdrHistogram相同偏大取值; 不超过最大值)
+	 * @param percentile 0~100
+	 * @return 没有记录时为0
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if(count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if(seen >= target) {
+				// 最后一个桶含超出范围的值, 取实际最大值
+				return i == BUCKETS - 1 ? max : Math.min(highestEquivalent(i), max);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * 加入另一个直方图的记录
+	 * @param other
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		if(other.count > 0) {
+			count += other.count;
+			total += other.total;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+		}
+	}
+
+	/**
+	 * @return 当前记录的副本
+	 */
+	public LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram(name);
+		copy.add(this);
+		return copy;
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		total = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	/**
+	 * 值所在的桶: 2*SUB_COUNT以下直接对应, 之后按最高位右移, 保留SUB_BITS+1位
+	 */
+	static int index(long value) {
+		if(value < 2 * SUB_COUNT) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		if(shift > MAX_BITS - SUB_BITS - 1) {
+			return BUCKETS - 1;
+		}
+		return shift * SUB_COUNT + (int) (value >>> shift);
+	}
+
+	/**
+	 * 桶内的最大值
+	 */
+	static long highestEquivalent(int index) {
+		if(index < 2 * SUB_COUNT) {
+			return index;
+		}
+		int shift = index / SUB_COUNT - 1;
+		long sub = index % SUB_COUNT + SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * 百分位汇总(微秒)
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(name).append(" count=").append(count);
+		if(count > 0) {
+			sb.append(" min=").append(micros(getMin()))
+				.append(" p50=").append(micros(getValueAtPercentile(50)))
+				.append(" p90=").append(micros(getValueAtPercentile(90)))
+				.append(" p99=").append(micros(getValueAtPercentile(99)))
+				.append(" p99.9=").append(micros(getValueAtPercentile(99.9)))
+				.append(" max=").append(micros(max))
+				.append(" mean=").append(micros((long) getMean()))
+				.append(" (us)");
+		}
+		return sb.toString();
+	}
+
+	private static String micros(long nanos) {
+		return String.format("%.1f", nanos / 1000.0);
+	}
+}
@@ -0,0 +1,297 @@
+package com.gearcode.forex.ea.metrics;
+
+import com.gearcode.forex.ea.grid.OrderType;
+import com.gearcode.forex.ea.log.AsyncLog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * 策略延迟统计
+ *
+ * 按名称(及订单类型)登记LatencyHistogram, 在策略线程记录:
+ * <pre>
+ * long start = metrics.now();
+ * ...
+ * metrics.record(tickHistogram, start);
+ * </pre>
+ * 未启用(disabled())时now()返回0、record()不做任何事, 不调用System.nanoTime().
+ *
+ * snapshot()在策略线程复制所有直方图, 其他线程通过getLastSnapshot()读取;
+ * 设置了输出文件时, 每隔interval由dumpIfDue()生成快照并交给后台线程追加到文件(累计值)
+ *
+ * @author liteng
+ *
+ */
+public class LatencyMetrics implements Closeable {
+
+	private static final LatencyMetrics DISABLED = new LatencyMetrics(null, false);
+	// 未启用时所有名称返回同一个(不会被记录的)直方图
+	private static final LatencyHistogram NONE = new LatencyHistogram("none");
+
+	private final String strategy;
+	private final boolean enabled;
+	private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+
+	private volatile Snapshot lastSnapshot;
+
+	// 定时输出
+	private PrintStream file;
+	private AsyncLog out;
+	private long interval;
+	private long lastDump;
+	private long lastTime;
+
+	/**
+	 * @param strategy 策略名称, 输出时作为前缀
+	 */
+	public LatencyMetrics(String strategy) {
+		this(strategy, true);
+	}
+
+	private LatencyMetrics(String strategy, boolean enabled) {
+		this.strategy = strategy;
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return 不记录的实例
+	 */
+	public static LatencyMetrics disabled() {
+		return DISABLED;
+	}
+
+	/**
+	 * 定时把快照追加到文件
+	 * @param file
+	 * @param intervalMillis 输出间隔(与dumpIfDue的时间同一单位)
+	 * @return
+	 * @throws IOException
+	 */
+	public LatencyMetrics dumpTo(File file, long intervalMillis) throws IOException {
+		if(!enabled) {
+			return this;
+		}
+		this.file = new PrintStream(new FileOutputStream(file, true), false, "UTF-8");
+		this.out = new AsyncLog(256, this.file);
+		this.interval = intervalMillis;
+		return this;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * 登记(或取得已登记的)直方图
+	 * @param name
+	 * @return
+	 */
+	public LatencyHistogram histogram(String name) {
+		if(!enabled) {
+			return NONE;
+		}
+		LatencyHistogram histogram = histograms.get(name);
+		if(histogram == null) {
+			histogram = new LatencyHistogram(name);
+			histograms.put(name, histogram);
+		}
+		return histogram;
+	}
+
+	/**
+	 * 按订单类型登记的直方图, 名称为 name.类型, 不属于网格的订单(type为null)为 name.Other
+	 * @param name
+	 * @param type
+	 * @return
+	 */
+	public LatencyHistogram histogram(String name, OrderType type) {
+		if(!enabled) {
+			return NONE;
+		}
+		return histogram(name + "." + (type == null ? "Other" : type.name()));
+	}
+
+	/**
+	 * 一次登记所有订单类型的直方图(在onStart中调用), 记录时用byType()取得, 不再拼接名称和查表
+	 * @param name
+	 * @return 下标为OrderType.ordinal(), 最后一个为不属于网格的订单
+	 */
+	public LatencyHistogram[] histograms(String name) {
+		OrderType[] types = OrderType.values();
+		LatencyHistogram[] result = new LatencyHistogram[types.length + 1];
+		for (OrderType type : types) {
+			result[type.ordinal()] = histogram(name, type);
+		}
+		result[types.length] = histogram(name, null);
+		return result;
+	}
+
+	/**
+	 * @param histograms histograms(name)的返回值
+	 * @param type 不属于网格的订单为null
+	 * @return
+	 */
+	public static LatencyHistogram byType(LatencyHistogram[] histograms, OrderType type) {
+		return histograms[type == null ? histograms.length - 1 : type.ordinal()];
+	}
+
+	/**
+	 * @return 计时起点(System.nanoTime()), 未启用时为0
+	 */
+	public long now() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * 记录从start(now()的返回值)到现在的耗时
+	 * @param histogram
+	 * @param start
+	 */
+	public void record(LatencyHistogram histogram, long start) {
+		if(enabled) {
+			histogram.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * 记录一个已算好的耗时(纳秒)
+	 * @param histogram
+	 * @param nanos
+	 */
+	public void recordValue(LatencyHistogram histogram, long nanos) {
+		if(enabled) {
+			histogram.record(nanos);
+		}
+	}
+
+	/**
+	 * 复制当前所有直方图(在策略线程调用), 同时作为getLastSnapshot()的结果
+	 * @param time 快照时间(毫秒)
+	 * @return
+	 */
+	public Snapshot snapshot(long time) {
+		List<LatencyHistogram> copies = new ArrayList<LatencyHistogram>(histograms.size());
+		for (LatencyHistogram histogram : histograms.values()) {
+			copies.add(histogram.copy());
+		}
+		Snapshot snapshot = new Snapshot(strategy, time, copies);
+		lastSnapshot = snapshot;
+		return snapshot;
+	}
+
+	/**
+	 * @return 最近一次快照(可在任意线程读取), 没有快照时为null
+	 */
+	public Snapshot getLastSnapshot() {
+		return lastSnapshot;
+	}
+
+	/**
+	 * 距上次输出超过间隔时生成快照并输出到文件(由后台线程写入)
+	 * @param time 当前时间(毫秒), 可以是行情时间
+	 */
+	public void dumpIfDue(long time) {
+		lastTime = time;
+		if(out == null || time - lastDump < interval) {
+			return;
+		}
+		lastDump = time;
+		dump(snapshot(time));
+	}
+
+	private void dump(Snapshot snapshot) {
+		for (String line : snapshot.lines()) {
+			out.log(line);
+		}
+	}
+
+	/**
+	 * 输出最后一次快照并关闭文件
+	 */
+	@Override
+	public void close() {
+		if(out == null) {
+			return;
+		}
+		dump(snapshot(lastTime));
+		out.close();
+		file.close();
+		out = null;
+	}
+
+	/**
+	 * 某一时刻所有直方图的副本
+	 */
+	public static class Snapshot {
+		private final String strategy;
+		private final long time;
+		private final List<LatencyHistogram> histograms;
+
+		Snapshot(String strategy, long time, List<LatencyHistogram> histograms) {
+			this.strategy = strategy;
+			this.time = time;
+			this.histograms = Collections.unmodifiableList(histograms);
+		}
+
+		public String getStrategy() {
+			return strategy;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public List<LatencyHistogram> getHistograms() {
+			return histograms;
+		}
+
+		/**
+		 * @param name
+		 * @return 没有该名称时返回null
+		 */
+		public LatencyHistogram get(String name) {
+			for (LatencyHistogram histogram : histograms) {
+				if(histogram.getName().equals(name)) {
+					return histogram;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * 每个直方图一行: 时间 策略 名称 count=.. min=.. p50=.. ...
+		 * @return
+		 */
+		public List<String> lines() {
+			SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+			df.setTimeZone(TimeZone.getTimeZone("GMT"));
+			String prefix = df.format(new Date(time)) + " " + strategy + " ";
+			List<String> lines = new ArrayList<String>(histograms.size());
+			for (LatencyHistogram histogram : histograms) {
+				lines.add(prefix + histogram);
+			}
+			return lines;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (String line : lines()) {
+				sb.append(line).append('\n');
+			}
+			return sb.toString();
+		}
+	}
+}
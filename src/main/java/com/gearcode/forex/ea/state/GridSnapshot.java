@@ -0,0 +1,152 @@
+package com.gearcode.forex.ea.state;
+
+import com.dukascopy.api.IOrder;
+import com.gearcode.forex.ea.grid.Grid;
+import com.gearcode.forex.ea.grid.GridSystem;
+import com.gearcode.forex.ea.grid.OrderRegistry;
+import com.gearcode.forex.ea.grid.OrderType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 网格系统及订单列表的快照读写
+ *
+ * 网格系统保存原点价格、间隔、所在格子、已创建的格子和各订单的标签/类型/格子;
+ * 恢复时按标签在当前有效订单中找回订单并重新放入格子(开仓价等取自订单本身)
+ *
+ * @author liteng
+ *
+ */
+public class GridSnapshot {
+
+	/**
+	 * 写入网格系统(可以为null)
+	 * @param out
+	 * @param gridSystem
+	 */
+	public static void write(StateSnapshot.Writer out, GridSystem gridSystem) {
+		out.putBoolean(gridSystem != null);
+		if(gridSystem == null) {
+			return;
+		}
+		Grid last = gridSystem.getLastGrid();
+		out.putString(gridSystem.getName())
+			.putDouble(gridSystem.getStartPrice())
+			.putDouble(gridSystem.getGap())
+			.putInt(gridSystem.getPointScale())
+			.putInt(last == null ? 0 : last.getOffset())
+			.putInt(gridSystem.getHighest() == null ? 0 : gridSystem.getHighest())
+			.putInt(gridSystem.getLowest() == null ? 0 : gridSystem.getLowest());
+
+		// 格子按创建顺序、订单按登记顺序保存, 恢复后遍历顺序(价格相同时的取舍)与重启前一致
+		List<Grid> grids = gridSystem.getAllGrids();
+		out.putInt(grids.size());
+		for (Grid grid : grids) {
+			out.putInt(grid.getOffset());
+		}
+
+		List<OrderRegistry.Entry<OrderType>> entries = new ArrayList<OrderRegistry.Entry<OrderType>>();
+		for (IOrder order : gridSystem.getAllOrders()) {
+			entries.add(gridSystem.getRegistry().get(order));
+		}
+		Collections.sort(entries, new Comparator<OrderRegistry.Entry<OrderType>>() {
+			@Override
+			public int compare(OrderRegistry.Entry<OrderType> a, OrderRegistry.Entry<OrderType> b) {
+				return Long.compare(a.getSequence(), b.getSequence());
+			}
+		});
+		out.putInt(entries.size());
+		for (OrderRegistry.Entry<OrderType> entry : entries) {
+			out.putString(entry.getOrder().getLabel())
+				.putInt(entry.getType().ordinal())
+				.putInt(entry.getOffset());
+		}
+	}
+
+	/**
+	 * 读取网格系统并放回订单, 未设置回调和console
+	 * @param in
+	 * @param liveOrders 当前有效订单(按标签)
+	 * @param missing 快照中有、当前已不存在的订单标签
+	 * @return 快照中为null时返回null
+	 */
+	public static GridSystem read(StateSnapshot.Reader in, Map<String, IOrder> liveOrders, List<String> missing) {
+		if(!in.getBoolean()) {
+			return null;
+		}
+		GridSystem gridSystem = new GridSystem(in.getString(), in.getDouble(), in.getDouble(), in.getInt());
+		int last = in.getInt(), highest = in.getInt(), lowest = in.getInt();
+		for (int i = in.getInt(); i > 0; i--) {
+			gridSystem.getGridByOffset(in.getInt());
+		}
+		gridSystem.resume(last, last == 0 ? null : highest, last == 0 ? null : lowest);
+
+		OrderType[] types = OrderType.values();
+		for (int i = in.getInt(); i > 0; i--) {
+			String label = in.getString();
+			OrderType type = types[in.getInt()];
+			int offset = in.getInt();
+			IOrder order = liveOrders.remove(label);
+			if(order == null) {
+				missing.add(label);
+				continue;
+			}
+			gridSystem.getGridByOffset(offset).addOrder(order, type);
+		}
+		return gridSystem;
+	}
+
+	/**
+	 * 写入订单列表(只保存标签)
+	 * @param out
+	 * @param orders
+	 */
+	public static void writeOrders(StateSnapshot.Writer out, List<IOrder> orders) {
+		out.putInt(orders.size());
+		for (IOrder order : orders) {
+			out.putString(order.getLabel());
+		}
+	}
+
+	/**
+	 * 读取订单列表, 按标签找回订单
+	 * @param in
+	 * @param liveOrders 当前有效订单(按标签)
+	 * @param missing 快照中有、当前已不存在的订单标签
+	 * @return
+	 */
+	public static List<IOrder> readOrders(StateSnapshot.Reader in, Map<String, IOrder> liveOrders, List<String> missing) {
+		int size = in.getInt();
+		List<IOrder> result = new ArrayList<IOrder>(size);
+		for (int i = 0; i < size; i++) {
+			String label = in.getString();
+			IOrder order = liveOrders.remove(label);
+			if(order == null) {
+				missing.add(label);
+			} else {
+				result.add(order);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 当前有效订单按标签索引
+	 * @param orders IEngine.getOrders(instrument)
+	 * @return
+	 */
+	public static Map<String, IOrder> byLabel(List<IOrder> orders) {
+		Map<String, IOrder> result = new HashMap<String, IOrder>();
+		for (IOrder order : orders) {
+			if(order.getState() == IOrder.State.FILLED) {
+				result.put(order.getLabel(), order);
+			}
+		}
+		return result;
+	}
+}
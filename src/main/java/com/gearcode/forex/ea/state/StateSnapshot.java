@@ -0,0 +1,342 @@
+package com.gearcode.forex.ea.state;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * 策略状态快照(内存映射文件, 两个槽位交替写入)
+ *
+ * 策略把需要跨重启保留的状态按固定顺序写入Writer, commit()时复制到较旧的槽位,
+ * 最后写入序号; 读取时取序号最大且校验和正确的槽位. 进程在写入过程中崩溃时,
+ * 正在写的槽位校验失败, 仍然读到上一次完整的快照.
+ * 写入只是内存复制(由操作系统回写), force()才等待写入磁盘.
+ *
+ * 文件格式(小端):
+ * <pre>
+ * 文件头 64字节: int magic, int version, int 槽位容量, 其余保留
+ * 两个槽位, 每个: long 序号, int 长度, int CRC32, long 写入时间(毫秒), 8字节保留, 数据
+ * </pre>
+ *
+ * 用法:
+ * <pre>
+ * StateSnapshot.Writer out = snapshot.begin();
+ * out.putInt(offset).putDouble(profit).putString(label);
+ * out.commit();
+ *
+ * StateSnapshot.Reader in = snapshot.read();   // 没有完整快照时为null
+ * int offset = in.getInt(); ...
+ * </pre>
+ *
+ * @author liteng
+ *
+ */
+public class StateSnapshot implements Closeable {
+
+	static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+	static final int MAGIC = 0x50414E53; // "SNAP"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 64;
+	static final int SLOT_HEADER_SIZE = 32;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// 每个槽位默认1MB(文件是稀疏的, 只占用实际写入的页)
+	public static final int DEFAULT_CAPACITY = 1 << 20;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer map;
+	private final int capacity;
+
+	private final Writer writer = new Writer();
+	private final CRC32 crc = new CRC32();
+
+	private long sequence;
+	private int latest = -1;
+
+	public StateSnapshot(File file) throws IOException {
+		this(file, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * 打开(或创建)快照文件, 已存在的文件沿用其槽位容量
+	 * @param file
+	 * @param capacity 每个槽位可保存的字节数
+	 * @throws IOException
+	 */
+	public StateSnapshot(File file, int capacity) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = this.file.getChannel();
+			if(channel.size() >= HEADER_SIZE) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+				channel.read(header, 0);
+				header.flip();
+				if(header.getInt() != MAGIC || header.getInt() != VERSION) {
+					throw new IOException("not a state snapshot: " + file);
+				}
+				capacity = header.getInt();
+			}
+			this.capacity = capacity;
+			this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2L * slotSize());
+			this.map.order(ORDER);
+			this.map.putInt(0, MAGIC);
+			this.map.putInt(4, VERSION);
+			this.map.putInt(8, capacity);
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+
+		latest = latestSlot();
+		if(latest >= 0) {
+			sequence = map.getLong(slotOffset(latest));
+		}
+	}
+
+	/**
+	 * 开始写入新快照(Writer重复使用, 之前未提交的内容被丢弃)
+	 * @return
+	 */
+	public Writer begin() {
+		writer.buffer.clear();
+		writer.overflow = false;
+		return writer;
+	}
+
+	/**
+	 * 最近一次完整的快照
+	 * @return 没有快照(或两个槽位都已损坏)时返回null
+	 */
+	public Reader read() {
+		if(latest < 0) {
+			return null;
+		}
+		int offset = slotOffset(latest);
+		ByteBuffer data = slice(offset + SLOT_HEADER_SIZE, map.getInt(offset + 8));
+		return new Reader(data.order(ORDER), map.getLong(offset), map.getLong(offset + 16));
+	}
+
+	/**
+	 * @return 最近一次快照的序号, 没有快照时为0
+	 */
+	public long getSequence() {
+		return latest < 0 ? 0 : sequence;
+	}
+
+	/**
+	 * 等待映射区写入磁盘(进程崩溃不需要, 防止操作系统崩溃或断电)
+	 */
+	public void force() {
+		map.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		map.force();
+		file.close();
+	}
+
+	/**
+	 * 把writer中的数据写入较旧的槽位
+	 */
+	private boolean commit(Writer writer) {
+		ByteBuffer data = writer.buffer;
+		if(writer.overflow || data.position() > capacity) {
+			return false;
+		}
+		int slot = latest == 0 ? 1 : 0;
+		int offset = slotOffset(slot);
+		int length = data.position();
+
+		crc.reset();
+		crc.update(data.array(), 0, length);
+
+		// 先写数据和校验和, 最后写序号
+		ByteBuffer target = slice(offset + SLOT_HEADER_SIZE, length);
+		data.flip();
+		target.put(data);
+		data.clear();
+		map.putInt(offset + 8, length);
+		map.putInt(offset + 12, (int) crc.getValue());
+		map.putLong(offset + 16, System.currentTimeMillis());
+		map.putLong(offset, ++sequence);
+		latest = slot;
+		return true;
+	}
+
+	/**
+	 * 序号最大且校验和正确的槽位
+	 */
+	private int latestSlot() {
+		int result = -1;
+		long best = 0;
+		for (int slot = 0; slot < 2; slot++) {
+			int offset = slotOffset(slot);
+			long seq = map.getLong(offset);
+			int length = map.getInt(offset + 8);
+			if(seq <= best || length < 0 || length > capacity) {
+				continue;
+			}
+			byte[] bytes = new byte[length];
+			slice(offset + SLOT_HEADER_SIZE, length).get(bytes);
+			crc.reset();
+			crc.update(bytes, 0, length);
+			if((int) crc.getValue() == map.getInt(offset + 12)) {
+				result = slot;
+				best = seq;
+			}
+		}
+		return result;
+	}
+
+	private ByteBuffer slice(int offset, int length) {
+		ByteBuffer buffer = map.duplicate();
+		buffer.limit(offset + length).position(offset);
+		return buffer.slice();
+	}
+
+	private int slotSize() {
+		return SLOT_HEADER_SIZE + capacity;
+	}
+
+	private int slotOffset(int slot) {
+		return HEADER_SIZE + slot * slotSize();
+	}
+
+	/**
+	 * 快照写入, 按读取时的顺序写入各字段
+	 */
+	public class Writer {
+
+		private ByteBuffer buffer = ByteBuffer.allocate(4096).order(ORDER);
+		private boolean overflow;
+
+		private Writer() {
+		}
+
+		public Writer putInt(int i) {
+			ensure(4).putInt(i);
+			return this;
+		}
+
+		public Writer putLong(long l) {
+			ensure(8).putLong(l);
+			return this;
+		}
+
+		public Writer putDouble(double d) {
+			ensure(8).putDouble(d);
+			return this;
+		}
+
+		public Writer putBoolean(boolean b) {
+			ensure(1).put((byte) (b ? 1 : 0));
+			return this;
+		}
+
+		/**
+		 * @param s 可以为null
+		 * @return
+		 */
+		public Writer putString(String s) {
+			if(s == null) {
+				return putInt(-1);
+			}
+			byte[] bytes = s.getBytes(UTF8);
+			putInt(bytes.length);
+			ensure(bytes.length).put(bytes);
+			return this;
+		}
+
+		/**
+		 * 写入快照文件
+		 * @return 超过槽位容量时不写入, 返回false
+		 */
+		public boolean commit() {
+			return StateSnapshot.this.commit(this);
+		}
+
+		private ByteBuffer ensure(int size) {
+			if(buffer.remaining() < size) {
+				if(overflow || buffer.position() + size > capacity) {
+					// 超出容量, 之后的内容写入临时缓冲丢弃, commit时返回false
+					overflow = true;
+					return ByteBuffer.allocate(size).order(ORDER);
+				} else {
+					ByteBuffer larger = ByteBuffer.allocate(Math.min(capacity, Math.max(buffer.capacity() * 2, buffer.position() + size))).order(ORDER);
+					buffer.flip();
+					larger.put(buffer);
+					buffer = larger;
+				}
+			}
+			return buffer;
+		}
+	}
+
+	/**
+	 * 快照读取, 按写入的顺序读取各字段
+	 */
+	public static class Reader {
+
+		private final ByteBuffer data;
+		private final long sequence;
+		private final long time;
+
+		Reader(ByteBuffer data, long sequence, long time) {
+			this.data = data;
+			this.sequence = sequence;
+			this.time = time;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return 快照写入时间(毫秒)
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return 是否还有未读取的数据
+		 */
+		public boolean hasRemaining() {
+			return data.hasRemaining();
+		}
+
+		public int getInt() {
+			return data.getInt();
+		}
+
+		public long getLong() {
+			return data.getLong();
+		}
+
+		public double getDouble() {
+			return data.getDouble();
+		}
+
+		public boolean getBoolean() {
+			return data.get() != 0;
+		}
+
+		public String getString() {
+			int length = data.getInt();
+			if(length < 0) {
+				return null;
+			}
+			byte[] bytes = new byte[length];
+			data.get(bytes);
+			return new String(bytes, UTF8);
+		}
+	}
+}
@@ -3,11 +3,12 @@ package old_strategy;
 import com.dukascopy.api.*;
 import com.dukascopy.api.IEngine.OrderCommand;
 import com.dukascopy.api.IOrder.State;
-import com.dukascopy.api.drawings.IChartObjectFactory;
-import com.dukascopy.api.drawings.IHorizontalLineChartObject;
+import com.gearcode.forex.ea.grid.Grid;
+import com.gearcode.forex.ea.grid.GridCallback;
+import com.gearcode.forex.ea.grid.GridSystem;
+import com.gearcode.forex.ea.grid.OrderType;
+import com.gearcode.forex.ea.log.AsyncLog;
 
-import java.math.BigDecimal;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
@@ -31,6 +32,8 @@ public class A04 implements IStrategy {
 	IEngine engine = null;
 	IHistory history = null;
 	IConsole console = null;
+	// 日志由后台线程输出, 不阻塞tick线程
+	AsyncLog logger = null;
 	IIndicators indicators = null;
 	IChart chart = null;
 
@@ -44,6 +47,7 @@ public class A04 implements IStrategy {
 		engine = context.getEngine();
 		history = context.getHistory();
 		console = context.getConsole();
+		logger = new AsyncLog(console.getOut());
 		indicators = context.getIndicators();
 		chart = context.getChart(instrument);
 		
@@ -66,6 +70,7 @@ public class A04 implements IStrategy {
 		 */
 		askGrids = new GridSystem("ask_gridsystem", lastTick.getAsk(), gap * instrument.getPipValue() * 0.1, instrument.getPipScale() + 1);
 		askGrids.setConsole(console);
+		askGrids.setLog(logger);
 		askGrids.setGridCallback(new GridCallback() {
 			@Override
 			public void onGridChange(Grid leave, Grid enter, double price) {
@@ -94,6 +99,7 @@ public class A04 implements IStrategy {
 
 		bidGrids = new GridSystem("bid_gridsystem", lastTick.getBid(), gap * instrument.getPipValue() * 0.1, instrument.getPipScale() + 1);
 		bidGrids.setConsole(console);
+		bidGrids.setLog(logger);
 		bidGrids.setGridCallback(new GridCallback() {
 			@Override
 			public void onGridChange(Grid leave, Grid enter, double price) {
@@ -151,6 +157,7 @@ public class A04 implements IStrategy {
 
 	@Override
 	public void onStop() throws JFException {
+		logger.close();
 	}
 	
 	public boolean isTradingTime(long time) {
@@ -178,11 +185,7 @@ public class A04 implements IStrategy {
 	}
 	
 	public void log(String... str) {
-		StringBuilder sb = new StringBuilder();
-		for (String s : str) {
-			sb.append(s);
-		}
-		console.getOut().println(sb.toString());
+		logger.log(str);
 	}
 	
 	public void submitOrder(Grid grid, OrderType type, OrderCommand command, double lots) {
@@ -196,8 +199,8 @@ public class A04 implements IStrategy {
 			if(command.equals(OrderCommand.BUY)) {
 				order.waitForUpdate(ORDER_TIMEOUT, State.FILLED);
 			}
-			console.getOut().println("[Order][Open] " + orderLabel + ", price: " + order.getOpenPrice() + ", lots: " + lots);
-			grid.getOrders().add(order);
+			log("[Order][Open] " + orderLabel + ", price: " + order.getOpenPrice() + ", lots: " + lots);
+			grid.addOrder(order, type);
 		} catch (JFException e) {
 			e.printStackTrace();
 			log("[ERROR] submit order error: " + e.getLocalizedMessage());
@@ -208,8 +211,8 @@ public class A04 implements IStrategy {
 		try {
 			order.close();
 			order.waitForUpdate(ORDER_TIMEOUT, State.CLOSED);
-			console.getOut().println("[Order][Close] " + order.getLabel() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
-			grid.getOrders().remove(order);
+			log("[Order][Close] " + order.getLabel() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
+			grid.removeOrder(order);
 		} catch (JFException e) {
 			e.printStackTrace();
 			log("[ERROR] close order error: " + e.getLocalizedMessage());
@@ -221,13 +224,8 @@ public class A04 implements IStrategy {
 	 * @param gridSystem
 	 */
 	private void closeAllOrder(GridSystem gridSystem, OrderType type) {
-		List<Grid> gridsAbove = gridSystem.getGridsAbove();
-		for (Grid grid : gridsAbove) {
-			closeAllOrder(grid, type);
-		}
-
-		List<Grid> gridsUnder = gridSystem.getGridsUnder();
-		for (Grid grid : gridsUnder) {
+		List<Grid> grids = gridSystem.getAllGrids();
+		for (Grid grid : grids) {
 			closeAllOrder(grid, type);
 		}
 		
@@ -242,14 +240,14 @@ public class A04 implements IStrategy {
 		List<IOrder> orders = grid.getOrders();
 		for(int i = orders.size() - 1; i >= 0; i--) {
 			IOrder order = orders.get(i);
-			if(isOrder(order, type)) {
+			if(isOrder(grid.getGridSystem(), order, type)) {
 				try {
 					order.close();
 					order.waitForUpdate(ORDER_TIMEOUT, State.CLOSED);
-					console.getOut().println("[Order][Close] " + order.getLabel() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
-					orders.remove(order);
+					log("[Order][Close] " + order.getLabel() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
+					grid.removeOrder(order);
 				} catch (JFException e) {
-					console.getOut().println("[ERROR] close martin order error: " + e.getLocalizedMessage());
+					log("[ERROR] close martin order error: " + e.getLocalizedMessage());
 					e.printStackTrace();
 				}
 			}
@@ -257,19 +255,13 @@ public class A04 implements IStrategy {
 	}
 	
 	/**
-	 * 判断是否为指定类型订单
+	 * 判断是否为指定类型订单(按下单时登记的类型)
+	 * @param gridSystem
 	 * @param order
 	 * @return
 	 */
-	private boolean isOrder(IOrder order, OrderType type) {
-		switch (type) {
-		case Normal:
-			return order.getLabel().contains("Normal");
-		case Martin:
-			return order.getLabel().contains("Martin"); 
-		default:
-			return false;
-		}
+	private boolean isOrder(GridSystem gridSystem, IOrder order, OrderType type) {
+		return gridSystem.isOrder(order, type);
 	}
 	
 	/**
@@ -278,13 +270,7 @@ public class A04 implements IStrategy {
 	 * @return
 	 */
 	private boolean existOrder(Grid grid, OrderType type) {
-		List<IOrder> orders = grid.getOrders();
-		for (IOrder order : orders) {
-			if(isOrder(order, type)) {
-				return true;
-			}
-		}
-		return false;
+		return grid.existOrder(type);
 	}
 
 	/**
@@ -295,33 +281,7 @@ public class A04 implements IStrategy {
 	 * @return
 	 */
 	private IOrder getOrder(GridSystem gridSystem, OrderType type, boolean max) {
-		IOrder result = null;
-		
-		List<Grid> grids = new ArrayList<Grid>(gridSystem.getGridsAbove());
-		grids.addAll(gridSystem.getGridsUnder());
-		
-		// foreach all grids
-		for (Grid grid : grids) {
-			
-			//foreach all order of this grid
-			List<IOrder> orders = grid.getOrders();
-			for (IOrder order : orders) {
-				if(!isOrder(order, type)) continue;
-				if(result == null) {
-					result = order;
-				} else {
-					// 比较大小
-					if(max) {
-						if(result.getOpenPrice() < order.getOpenPrice()) result = order;
-					} else {
-						if(result.getOpenPrice() > order.getOpenPrice()) result = order;
-					}
-				}
-			}
-			
-		}
-		
-		return result;
+		return gridSystem.getOrder(type, max);
 	}
 
 	/**
@@ -337,7 +297,7 @@ public class A04 implements IStrategy {
 		//foreach all order of this grid
 		List<IOrder> orders = grid.getOrders();
 		for (IOrder order : orders) {
-			if(!isOrder(order, type)) continue;
+			if(!isOrder(grid.getGridSystem(), order, type)) continue;
 			if(result == null) {
 				result = order;
 			} else {
@@ -359,305 +319,10 @@ public class A04 implements IStrategy {
 	 * @return
 	 */
 	private List<IOrder> getOrders(GridSystem gridSystem, OrderType type) {
-		List<IOrder> result = new ArrayList<IOrder>();
-		
-		List<Grid> grids = gridSystem.getAllGrids();
-		for (Grid grid : grids) {
-			List<IOrder> orders = grid.getOrders();
-			for (IOrder order : orders) {
-				if(isOrder(order, type)) {
-					result.add(order);
-				}
-			}
-		}
-		
-		return result;
+		return new ArrayList<IOrder>(gridSystem.getOrders(type));
 	}
 	
 	public double countOrdersLots(GridSystem gridSystem, OrderType type) {
-		double count = 0;
-		List<IOrder> orders = getOrders(gridSystem, type);
-		for (IOrder order : orders) {
-			count += order.getAmount();
-		}
-		return count;
-	}
-	
-	enum OrderType {
-		Normal, Martin
-	}
-
-	/************************************
-	 * 
-	 * 基础类开始
-	 * @author liteng
-	 *
-	 ************************************/
-	class GridSystem {
-		
-		private String name;
-		
-		private IChart chart;
-		
-		private int pointScale;
-		private DecimalFormat df = new DecimalFormat("#");
-		
-		private double pointgap;
-		private double startPrice;
-	
-		private List<Grid> gridsAbove = new ArrayList<Grid>();
-		private List<Grid> gridsUnder = new ArrayList<Grid>();
-		
-		private Grid lastGrid;
-		
-		GridCallback gridCallback;
-		
-		private IConsole console;
-		
-		public GridSystem(String name, double startPrice, double pointGap, int pointScale) {
-			this(name, startPrice, pointGap, pointScale, null);
-		}
-		
-		public GridSystem(String name, double startPrice, double pointGap, int pointScale, IChart chart) {
-			this.name = name;
-			this.chart = chart;
-			this.pointgap = pointGap;
-			this.startPrice = startPrice;
-			this.pointScale = pointScale;
-			
-			if(pointScale > 0) {
-				StringBuilder sb = new StringBuilder("#.");
-				for(int i=0;i<pointScale;i++) {
-					sb.append('0');
-				}
-				this.df = new DecimalFormat(sb.toString());
-			}
-		}
-		
-		public Grid offer(double price) {
-			Grid grid = getGridByPrice(price);
-			
-			// grid change
-			if(lastGrid == null || !lastGrid.equals(grid)) {
-				if(gridCallback != null) {
-					gridCallback.onGridChange(lastGrid, grid, price);
-				}
-			}
-			
-			lastGrid = grid;
-			return grid;
-		}
-		
-		private int countOffset(double price) {
-			int front = 0;
-			if(price >= startPrice) {
-				front = 1;
-			} else {
-				front = -1;
-			}
-			double d = (price - startPrice) / pointgap + front;
-			
-			/*
-			 *  当前价格大于初始价格时, 格子的价格区间为[small, large)
-			 *  当前价格小于初始价格时, 格子的价格区间为[large, small)
-			 *  当前价格等于初始价格时, 默认为+1格子
-			 */
-			return new BigDecimal(d).setScale(pointScale, BigDecimal.ROUND_HALF_UP).intValue();
-		}
-		
-		public Grid getGridByOffset(int offset) {
-			if(offset > 0) {
-				while(gridsAbove.size() < offset) {
-					Grid grid = new Grid(this, gridsAbove.size() + 1);
-					gridsAbove.add(grid);
-				}
-				return gridsAbove.get(offset - 1);
-			} else if (offset < 0) {
-				while(gridsUnder.size() < -offset) {
-					Grid grid = new Grid(this, -gridsUnder.size() - 1);
-					gridsUnder.add(grid);
-				}
-				return gridsUnder.get(-offset - 1);
-			} else {
-				return null;
-			}
-		}
-		
-		public List<Grid> getAllGrids() {
-			List<Grid> grids = new ArrayList<Grid>(gridsAbove);
-			grids.addAll(gridsUnder);
-			return grids;
-		}
-		
-	
-		public void closeAndRemoveOrder(List<IOrder> orders) {
-			for (IOrder order : orders) {
-				closeAndRemoveOrder(order);
-			}
-		}
-		
-		public void closeAndRemoveOrder(IOrder order) {
-			for (Grid grid : gridsAbove) {
-				List<IOrder> orders = grid.getOrders();
-				for (int i = orders.size() - 1; i >= 0; i--) {
-					IOrder o = orders.get(i);
-					if(o.equals(order)) {
-						closeOrder(grid, order);
-					}
-				}
-			}
-	
-			for (Grid grid : gridsUnder) {
-				List<IOrder> orders = grid.getOrders();
-				for (int i = orders.size() - 1; i >= 0; i--) {
-					IOrder o = orders.get(i);
-					if(o.equals(order)) {
-						closeOrder(grid, order);
-					}
-				}
-			}
-		}
-		
-		/**
-		 * Get all orders
-		 * @return
-		 */
-		public List<IOrder> getAllOrders() {
-			List<IOrder> result = new ArrayList<IOrder>();
-			List<Grid> grids = getAllGrids();
-			for (Grid grid : grids) {
-				result.addAll(grid.getOrders());
-			}
-			return result;
-		}
-		
-		public IChart getChart() {
-			return chart;
-		}
-	
-		public Grid getGridByPrice(double price) {
-			return getGridByOffset(countOffset(price));
-		}
-	
-		public DecimalFormat getDf() {
-			return df;
-		}
-	
-		public void setGridCallback(GridCallback gridCallback) {
-			this.gridCallback = gridCallback;
-		}
-	
-		public double getGap() {
-			return pointgap;
-		}
-	
-		public double getStartPrice() {
-			return startPrice;
-		}
-	
-		public int getPointScale() {
-			return pointScale;
-		}
-	
-		public List<Grid> getGridsAbove() {
-			return gridsAbove;
-		}
-	
-		public List<Grid> getGridsUnder() {
-			return gridsUnder;
-		}
-	
-		public String getName() {
-			return name;
-		}
-	
-		public void setConsole(IConsole console) {
-			this.console = console;
-		}
-	
-	}
-	
-	class Grid {
-	
-		private GridSystem gridSystem;
-		
-		private List<IOrder> orders = new ArrayList<IOrder>();
-		
-		// -3, -2, -1, 1, 2, 3 ...
-		private Integer offset;
-		
-		// contain
-		private Double start;
-		
-		// not contain
-		private Double end;
-		
-		public Grid(GridSystem gridSystem, int offset) {
-			
-			this.gridSystem = gridSystem;
-			this.offset = offset;
-			
-			double gap = gridSystem.getGap();
-			double origin = gridSystem.getStartPrice();
-			int pointScale = gridSystem.getPointScale();
-			
-			this.setEnd(new BigDecimal(origin + offset * gap).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue());
-			this.setStart(new BigDecimal(this.getEnd() + (offset > 0 ? -gap : gap)).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue());
-			
-			if(gridSystem.getChart() != null) {
-				IChartObjectFactory cof = gridSystem.getChart().getChartObjectFactory();
-				IHorizontalLineChartObject line = cof.createHorizontalLine(Math.random() + "", this.getStart());
-				gridSystem.getChart().add(line);
-			}
-		}
-	
-		public GridSystem getGridSystem() {
-			return gridSystem;
-		}
-	
-		public Integer getOffset() {
-			return offset;
-		}
-	
-		public void setOffset(Integer offset) {
-			this.offset = offset;
-		}
-	
-		public Double getStart() {
-			return start;
-		}
-	
-		public void setStart(Double start) {
-			this.start = start;
-		}
-	
-		public Double getEnd() {
-			return end;
-		}
-	
-		public void setEnd(Double end) {
-			this.end = end;
-		}
-	
-		public List<IOrder> getOrders() {
-			return orders;
-		}
-		
-		@Override
-		public boolean equals(Object o) {
-			if(o instanceof Grid) {
-				return this.getOffset().equals(((Grid) o).getOffset()); 
-			}
-			return super.equals(o);
-		}
-		
-		@Override
-		public String toString() {
-			return this.getOffset() + " [" + this.gridSystem.getDf().format(this.getStart()) + ", " + this.gridSystem.getDf().format(this.getEnd()) + ")";
-		}
-	}
-	
-	interface GridCallback {
-		public void onGridChange(Grid leave, Grid enter, double price);
+		return gridSystem.getLots(type);
 	}
-}
\ No newline at end of file
+}
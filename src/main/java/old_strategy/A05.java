@@ -3,11 +3,14 @@ package old_strategy;
 import com.dukascopy.api.*;
 import com.dukascopy.api.IEngine.OrderCommand;
 import com.dukascopy.api.IOrder.State;
-import com.dukascopy.api.drawings.IChartObjectFactory;
-import com.dukascopy.api.drawings.IHorizontalLineChartObject;
+import com.gearcode.forex.ea.grid.Grid;
+import com.gearcode.forex.ea.grid.GridCallback;
+import com.gearcode.forex.ea.grid.GridCrossingCallback;
+import com.gearcode.forex.ea.grid.GridSystem;
+import com.gearcode.forex.ea.grid.OrderBatch;
+import com.gearcode.forex.ea.grid.OrderType;
+import com.gearcode.forex.ea.log.AsyncLog;
 
-import java.math.BigDecimal;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -40,12 +43,20 @@ public class A05 implements IStrategy {
 	@Configurable("止损")
 	public double stopLoss = -50.00;
 	
+	@Configurable("跳空时补齐经过的格子")
+	public boolean crossingMode = false;
+	
 	IEngine engine = null;
 	IHistory history = null;
 	IConsole console = null;
+	// 日志由后台线程输出, 不阻塞tick线程
+	AsyncLog logger = null;
 	IIndicators indicators = null;
 	IChart chart = null;
 
+	// 报价货币即账户货币时, 盈亏直接由格子系统的累计头寸计算
+	private boolean quoteIsAccountCurrency = false;
+
 	GridSystem askGrids = null;
 	GridSystem bidGrids = null;
 
@@ -58,8 +69,11 @@ public class A05 implements IStrategy {
 		engine = context.getEngine();
 		history = context.getHistory();
 		console = context.getConsole();
+		logger = new AsyncLog(console.getOut());
 		indicators = context.getIndicators();
 		chart = context.getChart(instrument);
+		quoteIsAccountCurrency = instrument.getSecondaryJFCurrency().getCurrencyCode()
+				.equals(context.getAccount().getAccountCurrency().getCurrencyCode());
 	}
 
 	@Override
@@ -76,11 +90,19 @@ public class A05 implements IStrategy {
 				 */
 				askGrids = new GridSystem("ask_grids", ask, gap * realPipValue, instrument.getPipScale() + 1);
 				askGrids.setGridCallback(askGridsCallback);
+				if(crossingMode) {
+					askGrids.setCrossingCallback(askGridsCrossingCallback);
+				}
 				askGrids.setConsole(console);
+				askGrids.setLog(logger);
 				log("AskGrid create: " + "ask_grids, " + ask + ", " + gap + ", " + (instrument.getPipScale() + 1));
 				bidGrids = new GridSystem("bid_grids", bid, gap * realPipValue, instrument.getPipScale() + 1);
 				bidGrids.setGridCallback(bidGridsCallback);
+				if(crossingMode) {
+					bidGrids.setCrossingCallback(bidGridsCrossingCallback);
+				}
 				bidGrids.setConsole(console);
+				bidGrids.setLog(logger);
 				log("BidGrid create: " + "bid_grids, " + bid + ", " + gap + ", " + (instrument.getPipScale() + 1));
 			}
 			
@@ -90,8 +112,8 @@ public class A05 implements IStrategy {
 			if(askGrids != null && bidGrids != null) {
 				
 				// 当前总利润
-				double profit_ask = countProfit(askGrids.getAllOrders());
-				double profit_bid = countProfit(bidGrids.getAllOrders());
+				double profit_ask = countProfit(askGrids, tick);
+				double profit_bid = countProfit(bidGrids, tick);
 				
 				/*
 				 * 记录最大利润
@@ -113,7 +135,7 @@ public class A05 implements IStrategy {
 					 */
 					if(profit_ask * 100.00 / profit_max_ask < backProfitPercent) {
 						//平仓
-						int size = askGrids.getAllOrders().size();
+						int size = askGrids.getRegistry().size();
 						askGrids.closeAndRemoveOrder(askGrids.getAllOrders());
 						profit_max_ask = 0.0;
 						log("Take profit(ask), profit: " + profit_ask + ", order count: " + size);
@@ -124,7 +146,7 @@ public class A05 implements IStrategy {
 					 */
 					if(profit_ask < stopLoss) {
 						//平仓
-						int size = askGrids.getAllOrders().size();
+						int size = askGrids.getRegistry().size();
 						askGrids.closeAndRemoveOrder(askGrids.getAllOrders());
 						profit_max_ask = 0.0;
 						log("Stop loss(ask), loss: " + profit_ask + ", order count: " + size);
@@ -138,7 +160,7 @@ public class A05 implements IStrategy {
 					 */
 					if(profit_bid * 100.00 / profit_max_bid < backProfitPercent) {
 						//平仓
-						int size = bidGrids.getAllOrders().size();
+						int size = bidGrids.getRegistry().size();
 						bidGrids.closeAndRemoveOrder(bidGrids.getAllOrders());
 						profit_max_bid = 0.0;
 						log("Take profit(bid), profit: " + profit_bid + ", order count: " + size);
@@ -149,7 +171,7 @@ public class A05 implements IStrategy {
 					 */
 					if(profit_bid < stopLoss) {
 						//平仓
-						int size = bidGrids.getAllOrders().size();
+						int size = bidGrids.getRegistry().size();
 						bidGrids.closeAndRemoveOrder(bidGrids.getAllOrders());
 						profit_max_bid = 0.0;
 						log("Stop loss(bid), loss: " + profit_bid + ", order count: " + size);
@@ -180,7 +202,7 @@ public class A05 implements IStrategy {
 				 * 条件: 当前格子没有趋势单 && (最大趋势单为null || 当前价格大于最大趋势单价格)
 				 */
 				IOrder maxNormalOrder = getOrder(askGrids, OrderType.Normal, true);
-				if(!existOrder(enter, OrderType.Normal) && (maxNormalOrder == null || enter.getStart() > maxNormalOrder.getOpenPrice())) {
+				if(!existOrder(enter, OrderType.Normal) && (maxNormalOrder == null || enter.compareStart(maxNormalOrder.getOpenPrice()) > 0)) {
 					// normal order
 					submitOrder(enter, OrderType.Normal, IEngine.OrderCommand.BUY, lots);
 				}
@@ -210,7 +232,7 @@ public class A05 implements IStrategy {
 				 * 条件: 当前格子没有趋势单 && (最小趋势单为null || 当前价格小于最小趋势单价格)
 				 */
 				IOrder minNormalOrder = getOrder(bidGrids, OrderType.Normal, false);
-				if(!existOrder(enter, OrderType.Normal) && (minNormalOrder == null || enter.getStart() < minNormalOrder.getOpenPrice())) {
+				if(!existOrder(enter, OrderType.Normal) && (minNormalOrder == null || enter.compareStart(minNormalOrder.getOpenPrice()) < 0)) {
 					// normal order
 					submitOrder(enter, OrderType.Normal, IEngine.OrderCommand.SELL, lots);
 				}
@@ -222,6 +244,50 @@ public class A05 implements IStrategy {
 		}
 	};
 
+	/**
+	 * 卖价格子跨越事件(跨越模式), 经过的每个格子执行趋势单逻辑, 订单批量提交
+	 */
+	GridCrossingCallback<Grid> askGridsCrossingCallback = new GridCrossingCallback<Grid>() {
+		@Override
+		public void onGridsCrossed(Grid leave, List<Grid> crossed, double price) {
+			Grid enter = crossed.get(crossed.size() - 1);
+
+			// up
+			if(leave.getOffset() < enter.getOffset()) {
+				OrderBatch<Grid> batch = new OrderBatch<Grid>(engine, ORDER_TIMEOUT);
+				IOrder maxNormalOrder = getOrder(askGrids, OrderType.Normal, true);
+				for (Grid grid : crossed) {
+					if(!existOrder(grid, OrderType.Normal) && (maxNormalOrder == null || grid.compareStart(maxNormalOrder.getOpenPrice()) > 0)) {
+						batch.add(grid, orderLabel(grid, OrderType.Normal, IEngine.OrderCommand.BUY), instrument, IEngine.OrderCommand.BUY, lots);
+					}
+				}
+				submitOrders(batch, OrderType.Normal);
+			}
+		}
+	};
+
+	/**
+	 * 买价格子跨越事件(跨越模式), 经过的每个格子执行趋势单逻辑, 订单批量提交
+	 */
+	GridCrossingCallback<Grid> bidGridsCrossingCallback = new GridCrossingCallback<Grid>() {
+		@Override
+		public void onGridsCrossed(Grid leave, List<Grid> crossed, double price) {
+			Grid enter = crossed.get(crossed.size() - 1);
+
+			// down
+			if(leave.getOffset() > enter.getOffset()) {
+				OrderBatch<Grid> batch = new OrderBatch<Grid>(engine, ORDER_TIMEOUT);
+				IOrder minNormalOrder = getOrder(bidGrids, OrderType.Normal, false);
+				for (Grid grid : crossed) {
+					if(!existOrder(grid, OrderType.Normal) && (minNormalOrder == null || grid.compareStart(minNormalOrder.getOpenPrice()) < 0)) {
+						batch.add(grid, orderLabel(grid, OrderType.Normal, IEngine.OrderCommand.SELL), instrument, IEngine.OrderCommand.SELL, lots);
+					}
+				}
+				submitOrders(batch, OrderType.Normal);
+			}
+		}
+	};
+
 	@Override
 	public void onBar(Instrument instrument, Period period, IBar askBar, IBar bidBar) throws JFException {
 	}
@@ -236,6 +302,7 @@ public class A05 implements IStrategy {
 
 	@Override
 	public void onStop() throws JFException {
+		logger.close();
 	}
 	
 	/**
@@ -243,11 +310,7 @@ public class A05 implements IStrategy {
 	 * @param str
 	 */
 	public void log(String... str) {
-		StringBuilder sb = new StringBuilder();
-		for (String s : str) {
-			sb.append(s);
-		}
-		console.getOut().println(sb.toString());
+		logger.log(str);
 	}
 	
 	/**
@@ -258,7 +321,7 @@ public class A05 implements IStrategy {
 	 * @param lots
 	 */
 	public void submitOrder(Grid grid, OrderType type, OrderCommand command, double lots) {
-		String orderLabel = "SuperIvan_Order_" + command + "_" + type + "_" + (grid.getOffset() < 0 ? "n" + (-grid.getOffset()) : grid.getOffset());
+		String orderLabel = orderLabel(grid, type, command);
 		try {
 			IOrder order = engine.submitOrder(
 					orderLabel,
@@ -269,13 +332,35 @@ public class A05 implements IStrategy {
 				order.waitForUpdate(ORDER_TIMEOUT, State.FILLED);
 			}
 			log("[Order][Open] " + orderLabel + ", price: " + order.getOpenPrice() + ", lots: " + lots);
-			grid.getOrders().add(order);
+			grid.addOrder(order, type);
 		} catch (JFException e) {
 			e.printStackTrace();
 			log("[ERROR] submit order error: " + e.getLocalizedMessage());
 		}
 	}
 	
+	/**
+	 * 批量提交订单(附加信息为订单所属格子)
+	 * @param batch
+	 * @param type
+	 */
+	public void submitOrders(OrderBatch<Grid> batch, OrderType type) {
+		if(batch.isEmpty()) return;
+		for (OrderBatch.Request<Grid> request : batch.submit()) {
+			IOrder order = request.getOrder();
+			if(order == null) {
+				log("[ERROR] submit order error: " + request.getError().getLocalizedMessage());
+				continue;
+			}
+			log("[Order][Open] " + request.getLabel() + ", price: " + order.getOpenPrice() + ", lots: " + request.getAmount());
+			request.getAttachment().addOrder(order, type);
+		}
+	}
+	
+	private String orderLabel(Grid grid, OrderType type, OrderCommand command) {
+		return "SuperIvan_Order_" + command + "_" + type + "_" + (grid.getOffset() < 0 ? "n" + (-grid.getOffset()) : grid.getOffset());
+	}
+	
 	/**
 	 * 平仓
 	 * @param grid
@@ -286,7 +371,7 @@ public class A05 implements IStrategy {
 			order.close();
 			order.waitForUpdate(ORDER_TIMEOUT, State.CLOSED);
 			log("[Order][Close] " + order.getLabel() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
-			grid.getOrders().remove(order);
+			grid.removeOrder(order);
 		} catch (JFException e) {
 			e.printStackTrace();
 			log("[ERROR] close order error: " + e.getLocalizedMessage());
@@ -315,19 +400,13 @@ public class A05 implements IStrategy {
 	 *
 	 ************************************/
 	/**
-	 * 判断是否为指定类型订单
+	 * 判断是否为指定类型订单(按下单时登记的类型)
+	 * @param gridSystem
 	 * @param order
 	 * @return
 	 */
-	private boolean isOrder(IOrder order, OrderType type) {
-		switch (type) {
-		case Normal:
-			return order.getLabel().contains("Normal");
-		case Martin:
-			return order.getLabel().contains("Martin"); 
-		default:
-			return false;
-		}
+	private boolean isOrder(GridSystem gridSystem, IOrder order, OrderType type) {
+		return gridSystem.isOrder(order, type);
 	}
 	
 	/**
@@ -336,13 +415,7 @@ public class A05 implements IStrategy {
 	 * @return
 	 */
 	private boolean existOrder(Grid grid, OrderType type) {
-		List<IOrder> orders = grid.getOrders();
-		for (IOrder order : orders) {
-			if(isOrder(order, type)) {
-				return true;
-			}
-		}
-		return false;
+		return grid.existOrder(type);
 	}
 	
 	/**
@@ -353,33 +426,7 @@ public class A05 implements IStrategy {
 	 * @return
 	 */
 	private IOrder getOrder(GridSystem gridSystem, OrderType type, boolean max) {
-		IOrder result = null;
-		
-		List<Grid> grids = new ArrayList<Grid>(gridSystem.getGridsAbove());
-		grids.addAll(gridSystem.getGridsUnder());
-		
-		// foreach all grids
-		for (Grid grid : grids) {
-			
-			//foreach all order of this grid
-			List<IOrder> orders = grid.getOrders();
-			for (IOrder order : orders) {
-				if(!isOrder(order, type)) continue;
-				if(result == null) {
-					result = order;
-				} else {
-					// 比较大小
-					if(max) {
-						if(result.getOpenPrice() < order.getOpenPrice()) result = order;
-					} else {
-						if(result.getOpenPrice() > order.getOpenPrice()) result = order;
-					}
-				}
-			}
-			
-		}
-		
-		return result;
+		return gridSystem.getOrder(type, max);
 	}
 
 	/**
@@ -395,7 +442,7 @@ public class A05 implements IStrategy {
 		//foreach all order of this grid
 		List<IOrder> orders = grid.getOrders();
 		for (IOrder order : orders) {
-			if(!isOrder(order, type)) continue;
+			if(!isOrder(grid.getGridSystem(), order, type)) continue;
 			if(result == null) {
 				result = order;
 			} else {
@@ -417,19 +464,7 @@ public class A05 implements IStrategy {
 	 * @return
 	 */
 	private List<IOrder> getOrders(GridSystem gridSystem, OrderType type) {
-		List<IOrder> result = new ArrayList<IOrder>();
-		
-		List<Grid> grids = gridSystem.getAllGrids();
-		for (Grid grid : grids) {
-			List<IOrder> orders = grid.getOrders();
-			for (IOrder order : orders) {
-				if(isOrder(order, type)) {
-					result.add(order);
-				}
-			}
-		}
-		
-		return result;
+		return new ArrayList<IOrder>(gridSystem.getOrders(type));
 	}
 	
 	/**
@@ -456,8 +491,21 @@ public class A05 implements IStrategy {
 	 * @return
 	 */
 	public double countOrdersLots(GridSystem gridSystem, OrderType type) {
-		List<IOrder> orders = getOrders(gridSystem, type);
-		return countLots(orders);
+		return gridSystem.getLots(type);
+	}
+	
+	/**
+	 * 格子系统当前浮动盈亏(账户货币)
+	 * 报价货币即账户货币时由累计头寸一次乘加得出, 否则逐单累加
+	 * @param gridSystem
+	 * @param tick
+	 * @return
+	 */
+	public double countProfit(GridSystem gridSystem, ITick tick) {
+		if(quoteIsAccountCurrency) {
+			return gridSystem.getRegistry().getProfit(tick.getBid(), tick.getAsk());
+		}
+		return countProfit(gridSystem.getAllOrders());
 	}
 	
 	/**
@@ -485,294 +533,4 @@ public class A05 implements IStrategy {
 		}
 		return count;
 	}
-	
-	enum OrderType {
-		Normal, Martin
-	}
-	
-	/************************************
-	 * 
-	 * 基础类开始
-	 * @author liteng
-	 *
-	 ************************************/
-	class GridSystem {
-		
-		private String name;
-		
-		private IChart chart;
-		
-		private int pointScale;
-		private DecimalFormat df = new DecimalFormat("#");
-		
-		private double pointgap;
-		private double startPrice;
-	
-		private List<Grid> gridsAbove = new ArrayList<Grid>();
-		private List<Grid> gridsUnder = new ArrayList<Grid>();
-		
-		private Grid lastGrid;
-		
-		private Integer highest = null;
-		private Integer lowest  = null;
-		
-		GridCallback gridCallback;
-		
-		private IConsole console;
-		
-		public GridSystem(String name, double startPrice, double pointGap, int pointScale) {
-			this(name, startPrice, pointGap, pointScale, null);
-		}
-		
-		public GridSystem(String name, double startPrice, double pointGap, int pointScale, IChart chart) {
-			this.name = name;
-			this.chart = chart;
-			this.pointgap = pointGap;
-			this.startPrice = startPrice;
-			this.pointScale = pointScale;
-			
-			if(pointScale > 0) {
-				StringBuilder sb = new StringBuilder("#.");
-				for(int i=0;i<pointScale;i++) {
-					sb.append('0');
-				}
-				this.df = new DecimalFormat(sb.toString());
-			}
-		}
-		
-		public Grid offer(double price) {
-			Grid grid = getGridByPrice(price);
-			
-			// grid change
-			if(lastGrid == null || !lastGrid.equals(grid)) {
-				if(gridCallback != null) {
-					gridCallback.onGridChange(lastGrid, grid, price);
-				}
-			}
-			
-			// highest & lowest
-			if(highest == null || highest < grid.getOffset()) {
-				highest = grid.getOffset();
-			}
-			if(lowest == null || lowest > grid.getOffset()) {
-				lowest = grid.getOffset();
-			}
-			
-			lastGrid = grid;
-			return grid;
-		}
-		
-		private int countOffset(double price) {
-			int front = 0;
-			if(price >= startPrice) {
-				front = 1;
-			} else {
-				front = -1;
-			}
-			double d = (price - startPrice) / pointgap + front;
-			
-			/*
-			 *  当前价格大于初始价格时, 格子的价格区间为[small, large)
-			 *  当前价格小于初始价格时, 格子的价格区间为[large, small)
-			 *  当前价格等于初始价格时, 默认为+1格子
-			 */
-			return new BigDecimal(d).setScale(pointScale, BigDecimal.ROUND_HALF_UP).intValue();
-		}
-		
-		public Grid getGridByOffset(int offset) {
-			if(offset > 0) {
-				while(gridsAbove.size() < offset) {
-					Grid grid = new Grid(this, gridsAbove.size() + 1);
-					gridsAbove.add(grid);
-				}
-				return gridsAbove.get(offset - 1);
-			} else if (offset < 0) {
-				while(gridsUnder.size() < -offset) {
-					Grid grid = new Grid(this, -gridsUnder.size() - 1);
-					gridsUnder.add(grid);
-				}
-				return gridsUnder.get(-offset - 1);
-			} else {
-				return null;
-			}
-		}
-		
-		public List<Grid> getAllGrids() {
-			List<Grid> grids = new ArrayList<Grid>(gridsAbove);
-			grids.addAll(gridsUnder);
-			return grids;
-		}
-		
-	
-		public void closeAndRemoveOrder(List<IOrder> orders) {
-			for (IOrder order : orders) {
-				closeAndRemoveOrder(order);
-			}
-		}
-		
-		public void closeAndRemoveOrder(IOrder order) {
-			for (Grid grid : gridsAbove) {
-				List<IOrder> orders = grid.getOrders();
-				for (int i = orders.size() - 1; i >= 0; i--) {
-					IOrder o = orders.get(i);
-					if(o.equals(order)) {
-						closeOrder(grid, order);
-					}
-				}
-			}
-	
-			for (Grid grid : gridsUnder) {
-				List<IOrder> orders = grid.getOrders();
-				for (int i = orders.size() - 1; i >= 0; i--) {
-					IOrder o = orders.get(i);
-					if(o.equals(order)) {
-						closeOrder(grid, order);
-					}
-				}
-			}
-		}
-		
-		/**
-		 * Get all orders
-		 * @return
-		 */
-		public List<IOrder> getAllOrders() {
-			List<IOrder> result = new ArrayList<IOrder>();
-			List<Grid> grids = getAllGrids();
-			for (Grid grid : grids) {
-				result.addAll(grid.getOrders());
-			}
-			return result;
-		}
-		
-		public IChart getChart() {
-			return chart;
-		}
-	
-		public Grid getGridByPrice(double price) {
-			return getGridByOffset(countOffset(price));
-		}
-	
-		public DecimalFormat getDf() {
-			return df;
-		}
-	
-		public void setGridCallback(GridCallback gridCallback) {
-			this.gridCallback = gridCallback;
-		}
-	
-		public double getGap() {
-			return pointgap;
-		}
-	
-		public double getStartPrice() {
-			return startPrice;
-		}
-	
-		public int getPointScale() {
-			return pointScale;
-		}
-	
-		public List<Grid> getGridsAbove() {
-			return gridsAbove;
-		}
-	
-		public List<Grid> getGridsUnder() {
-			return gridsUnder;
-		}
-	
-		public String getName() {
-			return name;
-		}
-	
-		public void setConsole(IConsole console) {
-			this.console = console;
-		}
-	
-	}
-	
-	class Grid {
-	
-		private GridSystem gridSystem;
-		
-		private List<IOrder> orders = new ArrayList<IOrder>();
-		
-		// -3, -2, -1, 1, 2, 3 ...
-		private Integer offset;
-		
-		// contain
-		private Double start;
-		
-		// not contain
-		private Double end;
-		
-		public Grid(GridSystem gridSystem, int offset) {
-			
-			this.gridSystem = gridSystem;
-			this.offset = offset;
-			
-			double gap = gridSystem.getGap();
-			double origin = gridSystem.getStartPrice();
-			int pointScale = gridSystem.getPointScale();
-			
-			this.setEnd(new BigDecimal(origin + offset * gap).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue());
-			this.setStart(new BigDecimal(this.getEnd() + (offset > 0 ? -gap : gap)).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue());
-			
-			if(gridSystem.getChart() != null) {
-				IChartObjectFactory cof = gridSystem.getChart().getChartObjectFactory();
-				IHorizontalLineChartObject line = cof.createHorizontalLine(Math.random() + "", this.getStart());
-				gridSystem.getChart().add(line);
-			}
-		}
-	
-		public GridSystem getGridSystem() {
-			return gridSystem;
-		}
-	
-		public Integer getOffset() {
-			return offset;
-		}
-	
-		public void setOffset(Integer offset) {
-			this.offset = offset;
-		}
-	
-		public Double getStart() {
-			return start;
-		}
-	
-		public void setStart(Double start) {
-			this.start = start;
-		}
-	
-		public Double getEnd() {
-			return end;
-		}
-	
-		public void setEnd(Double end) {
-			this.end = end;
-		}
-	
-		public List<IOrder> getOrders() {
-			return orders;
-		}
-		
-		@Override
-		public boolean equals(Object o) {
-			if(o instanceof Grid) {
-				return this.getOffset().equals(((Grid) o).getOffset()); 
-			}
-			return super.equals(o);
-		}
-		
-		@Override
-		public String toString() {
-			return this.getOffset() + " [" + this.gridSystem.getDf().format(this.getStart()) + ", " + this.gridSystem.getDf().format(this.getEnd()) + ")";
-		}
-	}
-	
-	interface GridCallback {
-		public void onGridChange(Grid leave, Grid enter, double price);
-	}
-
 }
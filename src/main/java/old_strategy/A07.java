@@ -4,15 +4,26 @@ import com.dukascopy.api.*;
 import com.dukascopy.api.IEngine.OrderCommand;
 import com.dukascopy.api.IOrder.State;
 import com.dukascopy.api.drawings.IChartObjectFactory;
-import com.dukascopy.api.drawings.IHorizontalLineChartObject;
 import com.dukascopy.api.drawings.IVerticalLineChartObject;
-
-import java.math.BigDecimal;
-import java.text.DecimalFormat;
+import com.gearcode.forex.ea.grid.CloseBatch;
+import com.gearcode.forex.ea.grid.Grid;
+import com.gearcode.forex.ea.grid.GridCallback;
+import com.gearcode.forex.ea.grid.GridSystem;
+import com.gearcode.forex.ea.grid.OrderType;
+import com.gearcode.forex.ea.log.AsyncLog;
+import com.gearcode.forex.ea.metrics.LatencyHistogram;
+import com.gearcode.forex.ea.metrics.LatencyMetrics;
+import com.gearcode.forex.ea.state.GridSnapshot;
+import com.gearcode.forex.ea.state.StateSnapshot;
+
+import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -29,7 +40,7 @@ import java.util.concurrent.TimeUnit;
 public class A07 implements IStrategy {
 
 	public static final int ORDER_TIMEOUT = 2000;
-	public static final SimpleDateFormat dateFormart = new SimpleDateFormat("yyyyMMdd_HHmmss");
+	private final SimpleDateFormat dateFormart = new SimpleDateFormat("yyyyMMdd_HHmmss");
 
 	@Configurable("货币对")
 	public Instrument instrument = Instrument.EURUSD;
@@ -67,9 +78,20 @@ public class A07 implements IStrategy {
 	@Configurable("周五交易结束时间(小时)")
 	public Integer trading_friday_end = 18;
 	
+	@Configurable("状态快照(重启后恢复网格和订单)")
+	public boolean snapshotEnabled = false;
+	
+	@Configurable("快照间隔(秒)")
+	public int snapshotSeconds = 10;
+	
+	@Configurable("延迟统计输出间隔(秒), 0为不统计")
+	public int metricsSeconds = 0;
+	
 	IEngine engine = null;
 	IHistory history = null;
 	IConsole console = null;
+	// 日志由后台线程输出, 不阻塞tick线程
+	AsyncLog logger = null;
 	IIndicators indicators = null;
 	IChart chart = null;
 
@@ -85,12 +107,30 @@ public class A07 implements IStrategy {
 	// trading time
 	boolean isTradingTime = false;
 	
+	// 状态快照, 未启用时为null; 状态变化后在本次tick结束时保存, 另外每snapshotSeconds秒保存一次
+	static final int SNAPSHOT_VERSION = 1;
+	StateSnapshot snapshot = null;
+	boolean stateChanged = false;
+	long lastSnapshotTime = 0;
+	
+	// 延迟统计(纳秒), 未启用时不计时; 下单和成交等待按OrderType分别统计
+	LatencyMetrics metrics = LatencyMetrics.disabled();
+	LatencyHistogram tickLatency = null;
+	LatencyHistogram gridChangeLatency = null;
+	LatencyHistogram closeAllLatency = null;
+	LatencyHistogram[] submitLatency = null;
+	LatencyHistogram[] tickToSubmitLatency = null;
+	LatencyHistogram[] fillLatency = null;
+	long tickStart = 0;
+	
 	GridCallback gridsNormalCallbackAsk = new GridCallback() {
 		@Override
 		public void onGridChange(Grid leave, Grid enter, double price) {
 			
 			// first grid
 			if(leave == null) return;
+			stateChanged = true;
+			long start = metrics.now();
 		
 			// up
 			if(leave.getOffset() < enter.getOffset()) {
@@ -100,7 +140,7 @@ public class A07 implements IStrategy {
 				 * 条件: 当前格子没有趋势单 && (最大趋势单为null || 当前价格大于最大趋势单价格)
 				 */
 				IOrder maxNormalOrder = getOrder(gridsNormalAsk, OrderType.Normal, true);
-				if(!existOrder(enter, OrderType.Normal) && (maxNormalOrder == null || enter.getStart() > maxNormalOrder.getOpenPrice())) {
+				if(!existOrder(enter, OrderType.Normal) && (maxNormalOrder == null || enter.compareStart(maxNormalOrder.getOpenPrice()) > 0)) {
 					// normal order
 					submitOrder(enter, OrderType.Normal, IEngine.OrderCommand.BUY, lots_normal);
 				}
@@ -109,6 +149,7 @@ public class A07 implements IStrategy {
 			// down
 			else {}
 
+			metrics.record(gridChangeLatency, start);
 		}
 	};
 
@@ -118,6 +159,8 @@ public class A07 implements IStrategy {
 
 			// first grid
 			if(leave == null) return;
+			stateChanged = true;
+			long start = metrics.now();
 
 			// down
 			if(leave.getOffset() > enter.getOffset()) {
@@ -127,7 +170,7 @@ public class A07 implements IStrategy {
 				 * 条件: 当前格子没有趋势单 && (最小趋势单为null || 当前价格小于最小趋势单价格)
 				 */
 				IOrder minNormalOrder = getOrder(gridsNormalBid, OrderType.Normal, false);
-				if(!existOrder(enter, OrderType.Normal) && (minNormalOrder == null || enter.getStart() < minNormalOrder.getOpenPrice())) {
+				if(!existOrder(enter, OrderType.Normal) && (minNormalOrder == null || enter.compareStart(minNormalOrder.getOpenPrice()) < 0)) {
 					// normal order
 					submitOrder(enter, OrderType.Normal, IEngine.OrderCommand.SELL, lots_normal);
 				}
@@ -136,6 +179,7 @@ public class A07 implements IStrategy {
 			// up
 			else {}
 
+			metrics.record(gridChangeLatency, start);
 		}
 	};
 
@@ -145,6 +189,8 @@ public class A07 implements IStrategy {
 
 			// first grid
 			if(leave == null) return;
+			stateChanged = true;
+			long start = metrics.now();
 
 			// up
 			if(leave.getOffset() < enter.getOffset()) {
@@ -154,7 +200,7 @@ public class A07 implements IStrategy {
 				List<IOrder> martinOrders = getOrders(gridsMartinAsk, OrderType.Martin);
 				if(martinOrders.size() > 0) {
 					IOrder maxMartinOrder = getOrder(gridsMartinAsk, OrderType.Martin, true);
-					if(leave.getStart() > maxMartinOrder.getOpenPrice()) {
+					if(leave.compareStart(maxMartinOrder.getOpenPrice()) > 0) {
 						// 平马丁
 						if(martin_close_enable) {
 							gridsMartinAsk.closeAndRemoveOrder(martinOrders);
@@ -175,7 +221,7 @@ public class A07 implements IStrategy {
 				// 总单数限制
 				if(martinOrderCount < martin_times) {
 					// 判断是否下马丁单
-					if(!existOrder(enter, OrderType.Martin) && (minMartinOrder == null || enter.getStart() < minMartinOrder.getOpenPrice())) {
+					if(!existOrder(enter, OrderType.Martin) && (minMartinOrder == null || enter.compareStart(minMartinOrder.getOpenPrice()) < 0)) {
 						// 马丁单手数
 						double lots = lots_martin;
 						if(minMartinOrder != null) {
@@ -186,6 +232,7 @@ public class A07 implements IStrategy {
 				}
 			}
 
+			metrics.record(gridChangeLatency, start);
 		}
 	};
 
@@ -195,6 +242,8 @@ public class A07 implements IStrategy {
 
 			// first grid
 			if(leave == null) return;
+			stateChanged = true;
+			long start = metrics.now();
 
 			// up
 			if(leave.getOffset() < enter.getOffset()) {
@@ -206,7 +255,7 @@ public class A07 implements IStrategy {
 				// 总单数限制
 				if(martinOrderCount < martin_times) {
 					// 判断是否下马丁单
-					if(!existOrder(enter, OrderType.Martin) && (maxMartinOrder == null || enter.getStart() > maxMartinOrder.getOpenPrice())) {
+					if(!existOrder(enter, OrderType.Martin) && (maxMartinOrder == null || enter.compareStart(maxMartinOrder.getOpenPrice()) > 0)) {
 						// 马丁单手数
 						double lots = lots_martin;
 						if(maxMartinOrder != null) {
@@ -224,7 +273,7 @@ public class A07 implements IStrategy {
 				List<IOrder> martinOrders = getOrders(gridsMartinBid, OrderType.Martin);
 				if(martinOrders.size() > 0) {
 					IOrder minMartinOrder = getOrder(gridsMartinBid, OrderType.Martin, false);
-					if(leave.getStart() < minMartinOrder.getOpenPrice()) {
+					if(leave.compareStart(minMartinOrder.getOpenPrice()) < 0) {
 						// 平马丁
 						if(martin_close_enable) {
 							gridsMartinBid.closeAndRemoveOrder(martinOrders);
@@ -236,6 +285,7 @@ public class A07 implements IStrategy {
 				}
 			}
 			
+			metrics.record(gridChangeLatency, start);
 		}
 	};
 	
@@ -245,113 +295,165 @@ public class A07 implements IStrategy {
 		engine = context.getEngine();
 		history = context.getHistory();
 		console = context.getConsole();
+		logger = new AsyncLog(console.getOut());
 		indicators = context.getIndicators();
 		chart = context.getChart(instrument);
+		
+		if(metricsSeconds > 0) {
+			metrics = new LatencyMetrics("A07");
+			File file = new File(context.getFilesDir(), "A07_" + instrument.name() + "_" + dateFormart.format(new Date()) + ".latency");
+			try {
+				metrics.dumpTo(file, metricsSeconds * 1000L);
+			} catch (IOException e) {
+				log("[ERROR] open latency file error: " + e.getLocalizedMessage());
+			}
+		}
+		tickLatency = metrics.histogram("tick");
+		gridChangeLatency = metrics.histogram("grid_change");
+		closeAllLatency = metrics.histogram("close_all");
+		submitLatency = metrics.histograms("submit");
+		tickToSubmitLatency = metrics.histograms("tick_to_submit");
+		fillLatency = metrics.histograms("fill");
+		
+		if(snapshotEnabled) {
+			File file = new File(context.getFilesDir(), "A07_" + instrument.name() + ".snapshot");
+			try {
+				snapshot = new StateSnapshot(file);
+				restoreState();
+			} catch (IOException e) {
+				log("[ERROR] open state snapshot error: " + e.getLocalizedMessage());
+			}
+		}
 	}
 
 	@Override
 	public void onTick(Instrument instrument, ITick tick) throws JFException {
-
 		if(instrument.equals(this.instrument)) {
+			tickStart = metrics.now();
+			handleTick(tick);
+			metrics.record(tickLatency, tickStart);
+			metrics.dumpIfDue(tick.getTime());
+		}
+	}
+	
+	/**
+	 * 处理本货币对的tick
+	 * @param tick
+	 * @throws JFException
+	 */
+	private void handleTick(ITick tick) throws JFException {
+		/*
+		 * 交易时间进入非交易时间, 订单全平
+		 */
+		if(isTradingTime && !isTradingTime(tick.getTime())) {
+			//订单全平
+			closeAllOrders();
+			log("==== close all / non-trading time");
+			stateChanged = true;
+		}
+		
+		isTradingTime = isTradingTime(tick.getTime());
+		if(!isTradingTime) {
+			snapshotIfNeeded(tick.getTime());
+			return;
+		}
+		
+		// init trading_period_time_start
+		if(trading_period_time_start == 0) {
+			trading_period_time_start = tick.getTime();
+			stateChanged = true;
+		}
+		
+		// 周期开始时间 > 周期间隔 则开始交易
+		if(tick.getTime() - trading_period_time_start < TimeUnit.MINUTES.toMillis(trading_period_gap)) {
+			snapshotIfNeeded(tick.getTime());
+			return;
+		}
 
+		/*
+		 * timing / N minutes
+		 */
+		if((tick.getTime() - trading_period_time_start) >= TimeUnit.MINUTES.toMillis(trading_period)) {
+			trading_period_time_start = tick.getTime();
+			// close all
+			closeAllOrders();
+			stateChanged = true;
+			// draw line
+			String timeStr = dateFormart.format(tick.getTime());
+		    IChartObjectFactory factory = chart.getChartObjectFactory();
+			String lineText = timeStr + " close all";
+			IVerticalLineChartObject line = factory.createVerticalLine(lineText, tick.getTime());
+			line.setLocked(true);
+			line.setTooltip(lineText);
+			line.setText(lineText);
+			chart.add(line);
+			// log
+			log("==== close all / " + trading_period + " minutes / " + timeStr + " ====");
+		}
+		
+		/*
+		 * 每周开始结束判断
+		 * 判断时间是否在非交易时间
+		 */
+		
+		double ask = tick.getAsk(), bid = tick.getBid();
+		
+		// init grid system
+		double realPipValue = instrument.getPipValue() * 0.1;
+		
+		// 初始化趋势单格子
+		if(gridsNormalAsk == null && gridsNormalBid == null) {
 			/*
-			 * 交易时间进入非交易时间, 订单全平
-			 */
-			if(isTradingTime && !isTradingTime(tick.getTime())) {
-				//订单全平
-				closeAllOrders();
-				log("==== close all / non-trading time");
-			}
-			
-			isTradingTime = isTradingTime(tick.getTime());
-			if(!isTradingTime) return;
-			
-			// init trading_period_time_start
-			if(trading_period_time_start == 0) {
-				trading_period_time_start = tick.getTime();
-			}
-			
-			// 周期开始时间 > 周期间隔 则开始交易
-			if(tick.getTime() - trading_period_time_start < TimeUnit.MINUTES.toMillis(trading_period_gap)) {
-				return;
-			}
-
-			/*
-			 * timing / N minutes
-			 */
-			if((tick.getTime() - trading_period_time_start) >= TimeUnit.MINUTES.toMillis(trading_period)) {
-				trading_period_time_start = tick.getTime();
-				// close all
-				closeAllOrders();
-				// draw line
-				String timeStr = dateFormart.format(tick.getTime());
-			    IChartObjectFactory factory = chart.getChartObjectFactory();
-				String lineText = timeStr + " close all";
-				IVerticalLineChartObject line = factory.createVerticalLine(lineText, tick.getTime());
-				line.setLocked(true);
-				line.setTooltip(lineText);
-				line.setText(lineText);
-				chart.add(line);
-				// log
-				log("==== close all / " + trading_period + " minutes / " + timeStr + " ====");
-			}
-			
-			/*
-			 * 每周开始结束判断
-			 * 判断时间是否在非交易时间
-			 */
-			
-			double ask = tick.getAsk(), bid = tick.getBid();
-			
-			// init grid system
-			double realPipValue = instrument.getPipValue() * 0.1;
-			
-			// 初始化趋势单格子
-			if(gridsNormalAsk == null && gridsNormalBid == null) {
-				/*
-				 *  init grid system
-				 */
-				gridsNormalAsk = new GridSystem("ask_normal_grids", ask, gap_normal * realPipValue, instrument.getPipScale() + 1);
-				gridsNormalAsk.setGridCallback(gridsNormalCallbackAsk);
-				gridsNormalAsk.setConsole(console);
-				log("AskNormalGrid create: " + "ask_normal_grids, " + ask + ", " + gap_normal + ", " + (instrument.getPipScale() + 1));
-				gridsNormalBid = new GridSystem("bid_normal_grids", bid, gap_normal * realPipValue, instrument.getPipScale() + 1);
-				gridsNormalBid.setGridCallback(gridsNormalCallbackBid);
-				gridsNormalBid.setConsole(console);
-				log("BidNormalGrid create: " + "bid_normal_grids, " + bid + ", " + gap_normal + ", " + (instrument.getPipScale() + 1));
-			}
-			
-			// 初始化马丁单格子
-			if(gridsMartinAsk == null && gridsMartinBid == null) {
-				/*
-				 *  init grid system
-				 */
-				gridsMartinAsk = new GridSystem("ask_martin_grids", ask, gap_martin * realPipValue, instrument.getPipScale() + 1);
-				gridsMartinAsk.setGridCallback(gridsMartinCallbackAsk);
-				gridsMartinAsk.setConsole(console);
-				log("AskMartinGrid create: " + "ask_martin_grids, " + ask + ", " + gap_martin + ", " + (instrument.getPipScale() + 1));
-				gridsMartinBid = new GridSystem("bid_martin_grids", bid, gap_martin * realPipValue, instrument.getPipScale() + 1);
-				gridsMartinBid.setGridCallback(gridsMartinCallbackBid);
-				gridsMartinBid.setConsole(console);
-				log("BidMartinGrid create: " + "bid_martin_grids, " + bid + ", " + gap_martin + ", " + (instrument.getPipScale() + 1));
-			}
-			
-			/*
-			 * offer tick
+			 *  init grid system
 			 */
-			if(gridsNormalAsk != null && gridsNormalBid != null) {
-				gridsNormalAsk.offer(ask);
-				gridsNormalBid.offer(bid);
-			}
-			
+			gridsNormalAsk = new GridSystem("ask_normal_grids", ask, gap_normal * realPipValue, instrument.getPipScale() + 1);
+			gridsNormalAsk.setGridCallback(gridsNormalCallbackAsk);
+			gridsNormalAsk.setConsole(console);
+			gridsNormalAsk.setLog(logger);
+			log("AskNormalGrid create: " + "ask_normal_grids, " + ask + ", " + gap_normal + ", " + (instrument.getPipScale() + 1));
+			gridsNormalBid = new GridSystem("bid_normal_grids", bid, gap_normal * realPipValue, instrument.getPipScale() + 1);
+			gridsNormalBid.setGridCallback(gridsNormalCallbackBid);
+			gridsNormalBid.setConsole(console);
+			gridsNormalBid.setLog(logger);
+			log("BidNormalGrid create: " + "bid_normal_grids, " + bid + ", " + gap_normal + ", " + (instrument.getPipScale() + 1));
+			stateChanged = true;
+		}
+		
+		// 初始化马丁单格子
+		if(gridsMartinAsk == null && gridsMartinBid == null) {
 			/*
-			 * offer tick
+			 *  init grid system
 			 */
-			if(gridsMartinAsk != null && gridsMartinBid != null) {
-				gridsMartinAsk.offer(ask);
-				gridsMartinBid.offer(bid);
-			}
+			gridsMartinAsk = new GridSystem("ask_martin_grids", ask, gap_martin * realPipValue, instrument.getPipScale() + 1);
+			gridsMartinAsk.setGridCallback(gridsMartinCallbackAsk);
+			gridsMartinAsk.setConsole(console);
+			gridsMartinAsk.setLog(logger);
+			log("AskMartinGrid create: " + "ask_martin_grids, " + ask + ", " + gap_martin + ", " + (instrument.getPipScale() + 1));
+			gridsMartinBid = new GridSystem("bid_martin_grids", bid, gap_martin * realPipValue, instrument.getPipScale() + 1);
+			gridsMartinBid.setGridCallback(gridsMartinCallbackBid);
+			gridsMartinBid.setConsole(console);
+			gridsMartinBid.setLog(logger);
+			log("BidMartinGrid create: " + "bid_martin_grids, " + bid + ", " + gap_martin + ", " + (instrument.getPipScale() + 1));
+			stateChanged = true;
+		}
+		
+		/*
+		 * offer tick
+		 */
+		if(gridsNormalAsk != null && gridsNormalBid != null) {
+			gridsNormalAsk.offer(ask);
+			gridsNormalBid.offer(bid);
+		}
+		
+		/*
+		 * offer tick
+		 */
+		if(gridsMartinAsk != null && gridsMartinBid != null) {
+			gridsMartinAsk.offer(ask);
+			gridsMartinBid.offer(bid);
 		}
+		
+		snapshotIfNeeded(tick.getTime());
 	}
 
 	@Override
@@ -369,14 +471,136 @@ public class A07 implements IStrategy {
 
 	@Override
 	public void onStop() throws JFException {
+		metrics.close();
+		if(snapshot != null) {
+			saveState();
+			try {
+				snapshot.close();
+			} catch (IOException e) {
+				log("[ERROR] close state snapshot error: " + e.getLocalizedMessage());
+			}
+		}
+		logger.close();
 	}
 	
+	/**
+	 * 状态有变化或距上次快照超过snapshotSeconds秒时保存快照
+	 * @param time
+	 */
+	private void snapshotIfNeeded(long time) {
+		if(snapshot != null && (stateChanged || time - lastSnapshotTime >= snapshotSeconds * 1000L)) {
+			saveState();
+			lastSnapshotTime = time;
+		}
+	}
+	
+	/**
+	 * 保存网格、订单及交易周期状态
+	 */
+	private void saveState() {
+		stateChanged = false;
+		StateSnapshot.Writer out = snapshot.begin();
+		out.putInt(SNAPSHOT_VERSION).putString(instrument.name())
+			.putLong(trading_period_time_start)
+			.putBoolean(isTradingTime);
+		GridSnapshot.write(out, gridsNormalAsk);
+		GridSnapshot.write(out, gridsNormalBid);
+		GridSnapshot.write(out, gridsMartinAsk);
+		GridSnapshot.write(out, gridsMartinBid);
+		GridSnapshot.writeOrders(out, waitingMartinOrders);
+		if(!out.commit()) {
+			log("[ERROR] state snapshot too large");
+		}
+	}
+	
+	/**
+	 * 从快照恢复状态, 按标签重新绑定当前的订单; 没有快照或快照不匹配时从头开始
+	 * @throws JFException
+	 */
+	private void restoreState() throws JFException {
+		StateSnapshot.Reader in = snapshot.read();
+		if(in == null) {
+			return;
+		}
+		Map<String, IOrder> liveOrders = GridSnapshot.byLabel(engine.getOrders(instrument));
+		List<String> missing = new ArrayList<String>();
+		try {
+			if(in.getInt() != SNAPSHOT_VERSION || !instrument.name().equals(in.getString())) {
+				log("[Snapshot] version or instrument mismatch, ignored");
+				return;
+			}
+			long periodStart = in.getLong();
+			boolean tradingTime = in.getBoolean();
+			GridSystem normalAsk = GridSnapshot.read(in, liveOrders, missing);
+			GridSystem normalBid = GridSnapshot.read(in, liveOrders, missing);
+			GridSystem martinAsk = GridSnapshot.read(in, liveOrders, missing);
+			GridSystem martinBid = GridSnapshot.read(in, liveOrders, missing);
+			List<IOrder> waiting = GridSnapshot.readOrders(in, liveOrders, missing);
+			
+			// 全部读取成功后再替换当前状态
+			trading_period_time_start = periodStart;
+			isTradingTime = tradingTime;
+			if(normalAsk != null && normalBid != null) {
+				gridsNormalAsk = normalAsk;
+				gridsNormalAsk.setGridCallback(gridsNormalCallbackAsk);
+				gridsNormalAsk.setConsole(console);
+				gridsNormalAsk.setLog(logger);
+				gridsNormalBid = normalBid;
+				gridsNormalBid.setGridCallback(gridsNormalCallbackBid);
+				gridsNormalBid.setConsole(console);
+				gridsNormalBid.setLog(logger);
+			}
+			if(martinAsk != null && martinBid != null) {
+				gridsMartinAsk = martinAsk;
+				gridsMartinAsk.setGridCallback(gridsMartinCallbackAsk);
+				gridsMartinAsk.setConsole(console);
+				gridsMartinAsk.setLog(logger);
+				gridsMartinBid = martinBid;
+				gridsMartinBid.setGridCallback(gridsMartinCallbackBid);
+				gridsMartinBid.setConsole(console);
+				gridsMartinBid.setLog(logger);
+			}
+			waitingMartinOrders.addAll(waiting);
+		} catch (RuntimeException e) {
+			log("[ERROR] read state snapshot error: " + e);
+			return;
+		}
+		
+		log("[Snapshot] restored #" + in.getSequence() + " saved at " + dateFormart.format(new Date(in.getTime())) + ", missing orders: " + missing.size() + ", untracked orders: " + liveOrders.size());
+		for (String label : missing) {
+			log("[Snapshot] order not found: " + label);
+		}
+		for (String label : liveOrders.keySet()) {
+			log("[Snapshot] order not in snapshot: " + label);
+		}
+	}
+	
+	/**
+	 * 平掉所有网格订单及等待中的马丁单, 所有订单一起发出平仓请求并共用一个超时时间
+	 */
 	private void closeAllOrders() {
-		gridsNormalAsk.closeAndRemoveOrder(gridsNormalAsk.getAllOrders());
-		gridsNormalBid.closeAndRemoveOrder(gridsNormalBid.getAllOrders());
-		gridsMartinAsk.closeAndRemoveOrder(gridsMartinAsk.getAllOrders());
-		gridsMartinBid.closeAndRemoveOrder(gridsMartinBid.getAllOrders());
-		closeOrder(waitingMartinOrders);
+		long start = metrics.now();
+		List<IOrder> orders = new ArrayList<IOrder>();
+		orders.addAll(gridsNormalAsk.getAllOrders());
+		orders.addAll(gridsNormalBid.getAllOrders());
+		orders.addAll(gridsMartinAsk.getAllOrders());
+		orders.addAll(gridsMartinBid.getAllOrders());
+		orders.addAll(waitingMartinOrders);
+		
+		for (CloseBatch.Outcome outcome : CloseBatch.closeAll(orders, ORDER_TIMEOUT)) {
+			IOrder order = outcome.getOrder();
+			if(outcome.getError() != null) {
+				log("[ERROR] close order error: " + outcome.getError().getLocalizedMessage());
+				continue;
+			}
+			log("[Order][Close] " + order.getLabel() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
+			gridsNormalAsk.removeOrder(order);
+			gridsNormalBid.removeOrder(order);
+			gridsMartinAsk.removeOrder(order);
+			gridsMartinBid.removeOrder(order);
+			waitingMartinOrders.remove(order);
+		}
+		metrics.record(closeAllLatency, start);
 	}
 	
 	/**
@@ -384,11 +608,7 @@ public class A07 implements IStrategy {
 	 * @param str
 	 */
 	public void log(String... str) {
-		StringBuilder sb = new StringBuilder();
-		for (String s : str) {
-			sb.append(s);
-		}
-		console.getOut().println(sb.toString());
+		logger.log(str);
 	}
 
 	/**
@@ -430,16 +650,20 @@ public class A07 implements IStrategy {
 	public void submitOrder(Grid grid, OrderType type, OrderCommand command, double lots) {
 		String orderLabel = "SuperIvan_Order_" + command + "_" + type + "_" + (grid.getOffset() < 0 ? "n" + (-grid.getOffset()) : grid.getOffset()) + "_" + System.currentTimeMillis();
 		try {
+			long start = metrics.now();
 			IOrder order = engine.submitOrder(
 					orderLabel,
 					instrument,
 					command,
 					lots);
+			metrics.record(LatencyMetrics.byType(submitLatency, type), start);
+			metrics.record(LatencyMetrics.byType(tickToSubmitLatency, type), tickStart);
 			if(command.equals(OrderCommand.BUY) || command.equals(OrderCommand.SELL)) {
 				order.waitForUpdate(ORDER_TIMEOUT, State.FILLED);
+				metrics.record(LatencyMetrics.byType(fillLatency, type), start);
 			}
 			log("[Order][Open] " + orderLabel + ", price: " + order.getOpenPrice() + ", lots: " + lots);
-			grid.getOrders().add(order);
+			grid.addOrder(order, type);
 		} catch (JFException e) {
 			e.printStackTrace();
 			log("[ERROR] submit order error: " + e.getLocalizedMessage());
@@ -456,7 +680,7 @@ public class A07 implements IStrategy {
 			order.close();
 			order.waitForUpdate(ORDER_TIMEOUT, State.CLOSED);
 			log("[Order][Close] " + order.getLabel() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
-			grid.getOrders().remove(order);
+			grid.removeOrder(order);
 		} catch (JFException e) {
 			e.printStackTrace();
 			log("[ERROR] close order error: " + e.getLocalizedMessage());
@@ -485,19 +709,13 @@ public class A07 implements IStrategy {
 	 *
 	 ************************************/
 	/**
-	 * 判断是否为指定类型订单
+	 * 判断是否为指定类型订单(按下单时登记的类型)
+	 * @param gridSystem
 	 * @param order
 	 * @return
 	 */
-	private boolean isOrder(IOrder order, OrderType type) {
-		switch (type) {
-		case Normal:
-			return order.getLabel().contains("Normal");
-		case Martin:
-			return order.getLabel().contains("Martin"); 
-		default:
-			return false;
-		}
+	private boolean isOrder(GridSystem gridSystem, IOrder order, OrderType type) {
+		return gridSystem.isOrder(order, type);
 	}
 	
 	/**
@@ -506,13 +724,7 @@ public class A07 implements IStrategy {
 	 * @return
 	 */
 	private boolean existOrder(Grid grid, OrderType type) {
-		List<IOrder> orders = grid.getOrders();
-		for (IOrder order : orders) {
-			if(isOrder(order, type)) {
-				return true;
-			}
-		}
-		return false;
+		return grid.existOrder(type);
 	}
 	
 	/**
@@ -523,33 +735,7 @@ public class A07 implements IStrategy {
 	 * @return
 	 */
 	private IOrder getOrder(GridSystem gridSystem, OrderType type, boolean max) {
-		IOrder result = null;
-		
-		List<Grid> grids = new ArrayList<Grid>(gridSystem.getGridsAbove());
-		grids.addAll(gridSystem.getGridsUnder());
-		
-		// foreach all grids
-		for (Grid grid : grids) {
-			
-			//foreach all order of this grid
-			List<IOrder> orders = grid.getOrders();
-			for (IOrder order : orders) {
-				if(!isOrder(order, type)) continue;
-				if(result == null) {
-					result = order;
-				} else {
-					// 比较大小
-					if(max) {
-						if(result.getOpenPrice() < order.getOpenPrice()) result = order;
-					} else {
-						if(result.getOpenPrice() > order.getOpenPrice()) result = order;
-					}
-				}
-			}
-			
-		}
-		
-		return result;
+		return gridSystem.getOrder(type, max);
 	}
 
 	/**
@@ -565,7 +751,7 @@ public class A07 implements IStrategy {
 		//foreach all order of this grid
 		List<IOrder> orders = grid.getOrders();
 		for (IOrder order : orders) {
-			if(!isOrder(order, type)) continue;
+			if(!isOrder(grid.getGridSystem(), order, type)) continue;
 			if(result == null) {
 				result = order;
 			} else {
@@ -587,19 +773,7 @@ public class A07 implements IStrategy {
 	 * @return
 	 */
 	private List<IOrder> getOrders(GridSystem gridSystem, OrderType type) {
-		List<IOrder> result = new ArrayList<IOrder>();
-		
-		List<Grid> grids = gridSystem.getAllGrids();
-		for (Grid grid : grids) {
-			List<IOrder> orders = grid.getOrders();
-			for (IOrder order : orders) {
-				if(isOrder(order, type)) {
-					result.add(order);
-				}
-			}
-		}
-		
-		return result;
+		return new ArrayList<IOrder>(gridSystem.getOrders(type));
 	}
 	
 	/**
@@ -626,8 +800,7 @@ public class A07 implements IStrategy {
 	 * @return
 	 */
 	public double countOrdersLots(GridSystem gridSystem, OrderType type) {
-		List<IOrder> orders = getOrders(gridSystem, type);
-		return countLots(orders);
+		return gridSystem.getLots(type);
 	}
 	
 	/**
@@ -655,305 +828,4 @@ public class A07 implements IStrategy {
 		}
 		return count;
 	}
-	
-	enum OrderType {
-		Normal, Martin
-	}
-	
-	/************************************
-	 * 
-	 * 基础类开始
-	 * @author liteng
-	 *
-	 ************************************/
-	class GridSystem {
-		
-		private String name;
-		
-		private IChart chart;
-		
-		private int pointScale;
-		private DecimalFormat df = new DecimalFormat("#");
-		
-		private double pointgap;
-		private double startPrice;
-	
-		private List<Grid> gridsAbove = new ArrayList<Grid>();
-		private List<Grid> gridsUnder = new ArrayList<Grid>();
-		
-		private Grid lastGrid;
-		
-		private Integer highest = null;
-		private Integer lowest  = null;
-		
-		GridCallback gridCallback;
-		
-		private IConsole console;
-		
-		public GridSystem(String name, double startPrice, double pointGap, int pointScale) {
-			this(name, startPrice, pointGap, pointScale, null);
-		}
-		
-		public GridSystem(String name, double startPrice, double pointGap, int pointScale, IChart chart) {
-			this.name = name;
-			this.chart = chart;
-			this.pointgap = pointGap;
-			this.startPrice = startPrice;
-			this.pointScale = pointScale;
-			
-			if(pointScale > 0) {
-				StringBuilder sb = new StringBuilder("#.");
-				for(int i=0;i<pointScale;i++) {
-					sb.append('0');
-				}
-				this.df = new DecimalFormat(sb.toString());
-			}
-		}
-		
-		public Grid offer(double price) {
-			Grid grid = getGridByPrice(price);
-			
-			// grid change
-			if(lastGrid == null || !lastGrid.equals(grid)) {
-				if(gridCallback != null) {
-					gridCallback.onGridChange(lastGrid, grid, price);
-				}
-			}
-			
-			// highest & lowest
-			if(highest == null || highest < grid.getOffset()) {
-				highest = grid.getOffset();
-			}
-			if(lowest == null || lowest > grid.getOffset()) {
-				lowest = grid.getOffset();
-			}
-			
-			lastGrid = grid;
-			return grid;
-		}
-		
-		private int countOffset(double price) {
-			int front = 0;
-			if(price >= startPrice) {
-				front = 1;
-			} else {
-				front = -1;
-			}
-			double d = (price - startPrice) / pointgap + front;
-			
-			/*
-			 *  当前价格大于初始价格时, 格子的价格区间为[small, large)
-			 *  当前价格小于初始价格时, 格子的价格区间为[large, small)
-			 *  当前价格等于初始价格时, 默认为+1格子
-			 */
-			return new BigDecimal(d).setScale(pointScale, BigDecimal.ROUND_HALF_UP).intValue();
-		}
-		
-		public Grid getGridByOffset(int offset) {
-			if(offset > 0) {
-				while(gridsAbove.size() < offset) {
-					Grid grid = new Grid(this, gridsAbove.size() + 1);
-					gridsAbove.add(grid);
-				}
-				return gridsAbove.get(offset - 1);
-			} else if (offset < 0) {
-				while(gridsUnder.size() < -offset) {
-					Grid grid = new Grid(this, -gridsUnder.size() - 1);
-					gridsUnder.add(grid);
-				}
-				return gridsUnder.get(-offset - 1);
-			} else {
-				return null;
-			}
-		}
-		
-		public List<Grid> getAllGrids() {
-			List<Grid> grids = new ArrayList<Grid>(gridsAbove);
-			grids.addAll(gridsUnder);
-			return grids;
-		}
-	
-		public void removeOrder(List<IOrder> orders) {
-			for (IOrder order : orders) {
-				removeOrder(order);
-			}
-		}
-		
-		public void removeOrder(IOrder order) {
-			List<Grid> grids = this.getAllGrids();
-			for (Grid grid : grids) {
-				grid.getOrders().remove(order);
-			}
-		}
-	
-		public void closeAndRemoveOrder(List<IOrder> orders) {
-			for (IOrder order : orders) {
-				closeAndRemoveOrder(order);
-			}
-		}
-		
-		public void closeAndRemoveOrder(IOrder order) {
-			for (Grid grid : gridsAbove) {
-				List<IOrder> orders = grid.getOrders();
-				for (int i = orders.size() - 1; i >= 0; i--) {
-					IOrder o = orders.get(i);
-					if(o.equals(order)) {
-						closeOrder(grid, order);
-					}
-				}
-			}
-	
-			for (Grid grid : gridsUnder) {
-				List<IOrder> orders = grid.getOrders();
-				for (int i = orders.size() - 1; i >= 0; i--) {
-					IOrder o = orders.get(i);
-					if(o.equals(order)) {
-						closeOrder(grid, order);
-					}
-				}
-			}
-		}
-		
-		/**
-		 * Get all orders
-		 * @return
-		 */
-		public List<IOrder> getAllOrders() {
-			List<IOrder> result = new ArrayList<IOrder>();
-			List<Grid> grids = getAllGrids();
-			for (Grid grid : grids) {
-				result.addAll(grid.getOrders());
-			}
-			return result;
-		}
-		
-		public IChart getChart() {
-			return chart;
-		}
-	
-		public Grid getGridByPrice(double price) {
-			return getGridByOffset(countOffset(price));
-		}
-	
-		public DecimalFormat getDf() {
-			return df;
-		}
-	
-		public void setGridCallback(GridCallback gridCallback) {
-			this.gridCallback = gridCallback;
-		}
-	
-		public double getGap() {
-			return pointgap;
-		}
-	
-		public double getStartPrice() {
-			return startPrice;
-		}
-	
-		public int getPointScale() {
-			return pointScale;
-		}
-	
-		public List<Grid> getGridsAbove() {
-			return gridsAbove;
-		}
-	
-		public List<Grid> getGridsUnder() {
-			return gridsUnder;
-		}
-	
-		public String getName() {
-			return name;
-		}
-	
-		public void setConsole(IConsole console) {
-			this.console = console;
-		}
-	
-	}
-	
-	class Grid {
-	
-		private GridSystem gridSystem;
-		
-		private List<IOrder> orders = new ArrayList<IOrder>();
-		
-		// -3, -2, -1, 1, 2, 3 ...
-		private Integer offset;
-		
-		// contain
-		private Double start;
-		
-		// not contain
-		private Double end;
-		
-		public Grid(GridSystem gridSystem, int offset) {
-			
-			this.gridSystem = gridSystem;
-			this.offset = offset;
-			
-			double gap = gridSystem.getGap();
-			double origin = gridSystem.getStartPrice();
-			int pointScale = gridSystem.getPointScale();
-			
-			this.setEnd(new BigDecimal(origin + offset * gap).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue());
-			this.setStart(new BigDecimal(this.getEnd() + (offset > 0 ? -gap : gap)).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue());
-			
-			if(gridSystem.getChart() != null) {
-				IChartObjectFactory cof = gridSystem.getChart().getChartObjectFactory();
-				IHorizontalLineChartObject line = cof.createHorizontalLine(Math.random() + "", this.getStart());
-				gridSystem.getChart().add(line);
-			}
-		}
-	
-		public GridSystem getGridSystem() {
-			return gridSystem;
-		}
-	
-		public Integer getOffset() {
-			return offset;
-		}
-	
-		public void setOffset(Integer offset) {
-			this.offset = offset;
-		}
-	
-		public Double getStart() {
-			return start;
-		}
-	
-		public void setStart(Double start) {
-			this.start = start;
-		}
-	
-		public Double getEnd() {
-			return end;
-		}
-	
-		public void setEnd(Double end) {
-			this.end = end;
-		}
-	
-		public List<IOrder> getOrders() {
-			return orders;
-		}
-		
-		@Override
-		public boolean equals(Object o) {
-			if(o instanceof Grid) {
-				return this.getOffset().equals(((Grid) o).getOffset()); 
-			}
-			return super.equals(o);
-		}
-		
-		@Override
-		public String toString() {
-			return this.getOffset() + " [" + this.gridSystem.getDf().format(this.getStart()) + ", " + this.gridSystem.getDf().format(this.getEnd()) + ")";
-		}
-	}
-	
-	interface GridCallback {
-		public void onGridChange(Grid leave, Grid enter, double price);
-	}
 }
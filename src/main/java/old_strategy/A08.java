@@ -3,11 +3,13 @@ package old_strategy;
 import com.dukascopy.api.*;
 import com.dukascopy.api.IEngine.OrderCommand;
 import com.dukascopy.api.IOrder.State;
-import com.dukascopy.api.drawings.IChartObjectFactory;
-import com.dukascopy.api.drawings.IHorizontalLineChartObject;
+import com.gearcode.forex.ea.grid.Grid;
+import com.gearcode.forex.ea.grid.GridCallback;
+import com.gearcode.forex.ea.grid.GridSystem;
+import com.gearcode.forex.ea.grid.OrderType;
+import com.gearcode.forex.ea.log.AsyncLog;
 
 import java.math.BigDecimal;
-import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
@@ -20,7 +22,7 @@ import java.util.List;
 public class A08 implements IStrategy {
 
 	public static final int ORDER_TIMEOUT = 2000;
-	public static final SimpleDateFormat dateFormart = new SimpleDateFormat("yyyyMMdd_HHmmss");
+	private final SimpleDateFormat dateFormart = new SimpleDateFormat("yyyyMMdd_HHmmss");
 
 	@Configurable("货币对")
 	public Instrument instrument = Instrument.EURUSD;
@@ -34,6 +36,8 @@ public class A08 implements IStrategy {
 	IEngine engine = null;
 	IHistory history = null;
 	IConsole console = null;
+	// 日志由后台线程输出, 不阻塞tick线程
+	AsyncLog logger = null;
 	IIndicators indicators = null;
 	IChart chart = null;
 
@@ -54,7 +58,7 @@ public class A08 implements IStrategy {
 				 * 条件: 当前格子没有趋势单 && (最大趋势单为null || 当前价格大于最大趋势单价格)
 				 */
 				IOrder maxNormalOrder = getOrder(gridsNormalAsk, OrderType.Normal, true);
-				if(!existOrder(enter, OrderType.Normal) && (maxNormalOrder == null || enter.getStart() > maxNormalOrder.getOpenPrice())) {
+				if(!existOrder(enter, OrderType.Normal) && (maxNormalOrder == null || enter.compareStart(maxNormalOrder.getOpenPrice()) > 0)) {
 					// normal order
 					submitOrder(enter, OrderType.Normal, IEngine.OrderCommand.BUY, lots_normal);
 				}
@@ -81,7 +85,7 @@ public class A08 implements IStrategy {
 				 * 条件: 当前格子没有趋势单 && (最小趋势单为null || 当前价格小于最小趋势单价格)
 				 */
 				IOrder minNormalOrder = getOrder(gridsNormalBid, OrderType.Normal, false);
-				if(!existOrder(enter, OrderType.Normal) && (minNormalOrder == null || enter.getStart() < minNormalOrder.getOpenPrice())) {
+				if(!existOrder(enter, OrderType.Normal) && (minNormalOrder == null || enter.compareStart(minNormalOrder.getOpenPrice()) < 0)) {
 					// normal order
 					submitOrder(enter, OrderType.Normal, IEngine.OrderCommand.SELL, lots_normal);
 				}
@@ -98,6 +102,7 @@ public class A08 implements IStrategy {
 		engine = context.getEngine();
 		history = context.getHistory();
 		console = context.getConsole();
+		logger = new AsyncLog(console.getOut());
 		indicators = context.getIndicators();
 		chart = context.getChart(instrument);
 	}
@@ -118,10 +123,12 @@ public class A08 implements IStrategy {
 				gridsNormalAsk = new GridSystem("ask_normal_grids", ask, gap_normal * realPipValue, instrument.getPipScale() + 1);
 				gridsNormalAsk.setGridCallback(gridsNormalCallbackAsk);
 				gridsNormalAsk.setConsole(console);
+				gridsNormalAsk.setLog(logger);
 				log("AskNormalGrid create: " + "ask_normal_grids, " + ask + ", " + gap_normal + ", " + (instrument.getPipScale() + 1));
 				gridsNormalBid = new GridSystem("bid_normal_grids", bid, gap_normal * realPipValue, instrument.getPipScale() + 1);
 				gridsNormalBid.setGridCallback(gridsNormalCallbackBid);
 				gridsNormalBid.setConsole(console);
+				gridsNormalBid.setLog(logger);
 				log("BidNormalGrid create: " + "bid_normal_grids, " + bid + ", " + gap_normal + ", " + (instrument.getPipScale() + 1));
 			}
 			
@@ -151,6 +158,7 @@ public class A08 implements IStrategy {
 
 	@Override
 	public void onStop() throws JFException {
+		logger.close();
 	}
 
 	private double sma() {
@@ -170,11 +178,7 @@ public class A08 implements IStrategy {
 	 * @param str
 	 */
 	public void log(String... str) {
-		StringBuilder sb = new StringBuilder();
-		for (String s : str) {
-			sb.append(s);
-		}
-		console.getOut().println(sb.toString());
+		logger.log(str);
 	}
 
 	/**
@@ -196,7 +200,7 @@ public class A08 implements IStrategy {
 				order.waitForUpdate(ORDER_TIMEOUT, State.FILLED);
 			}
 			log("[Order][Open] " + orderLabel + ", price: " + order.getOpenPrice() + ", lots: " + lots);
-			grid.getOrders().add(order);
+			grid.addOrder(order, type);
 		} catch (JFException e) {
 			e.printStackTrace();
 			log("[ERROR] submit order error: " + e.getLocalizedMessage());
@@ -213,7 +217,7 @@ public class A08 implements IStrategy {
 			order.close();
 			order.waitForUpdate(ORDER_TIMEOUT, State.CLOSED);
 			log("[Order][Close] " + order.getLabel() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
-			grid.getOrders().remove(order);
+			grid.removeOrder(order);
 		} catch (JFException e) {
 			e.printStackTrace();
 			log("[ERROR] close order error: " + e.getLocalizedMessage());
@@ -242,19 +246,13 @@ public class A08 implements IStrategy {
 	 *
 	 ************************************/
 	/**
-	 * 判断是否为指定类型订单
+	 * 判断是否为指定类型订单(按下单时登记的类型)
+	 * @param gridSystem
 	 * @param order
 	 * @return
 	 */
-	private boolean isOrder(IOrder order, OrderType type) {
-		switch (type) {
-		case Normal:
-			return order.getLabel().contains("Normal");
-		case Martin:
-			return order.getLabel().contains("Martin"); 
-		default:
-			return false;
-		}
+	private boolean isOrder(GridSystem gridSystem, IOrder order, OrderType type) {
+		return gridSystem.isOrder(order, type);
 	}
 	
 	/**
@@ -263,13 +261,7 @@ public class A08 implements IStrategy {
 	 * @return
 	 */
 	private boolean existOrder(Grid grid, OrderType type) {
-		List<IOrder> orders = grid.getOrders();
-		for (IOrder order : orders) {
-			if(isOrder(order, type)) {
-				return true;
-			}
-		}
-		return false;
+		return grid.existOrder(type);
 	}
 	
 	/**
@@ -280,33 +272,7 @@ public class A08 implements IStrategy {
 	 * @return
 	 */
 	private IOrder getOrder(GridSystem gridSystem, OrderType type, boolean max) {
-		IOrder result = null;
-		
-		List<Grid> grids = new ArrayList<Grid>(gridSystem.getGridsAbove());
-		grids.addAll(gridSystem.getGridsUnder());
-		
-		// foreach all grids
-		for (Grid grid : grids) {
-			
-			//foreach all order of this grid
-			List<IOrder> orders = grid.getOrders();
-			for (IOrder order : orders) {
-				if(!isOrder(order, type)) continue;
-				if(result == null) {
-					result = order;
-				} else {
-					// 比较大小
-					if(max) {
-						if(result.getOpenPrice() < order.getOpenPrice()) result = order;
-					} else {
-						if(result.getOpenPrice() > order.getOpenPrice()) result = order;
-					}
-				}
-			}
-			
-		}
-		
-		return result;
+		return gridSystem.getOrder(type, max);
 	}
 
 	/**
@@ -322,7 +288,7 @@ public class A08 implements IStrategy {
 		//foreach all order of this grid
 		List<IOrder> orders = grid.getOrders();
 		for (IOrder order : orders) {
-			if(!isOrder(order, type)) continue;
+			if(!isOrder(grid.getGridSystem(), order, type)) continue;
 			if(result == null) {
 				result = order;
 			} else {
@@ -344,19 +310,7 @@ public class A08 implements IStrategy {
 	 * @return
 	 */
 	private List<IOrder> getOrders(GridSystem gridSystem, OrderType type) {
-		List<IOrder> result = new ArrayList<IOrder>();
-		
-		List<Grid> grids = gridSystem.getAllGrids();
-		for (Grid grid : grids) {
-			List<IOrder> orders = grid.getOrders();
-			for (IOrder order : orders) {
-				if(isOrder(order, type)) {
-					result.add(order);
-				}
-			}
-		}
-		
-		return result;
+		return new ArrayList<IOrder>(gridSystem.getOrders(type));
 	}
 	
 	/**
@@ -383,8 +337,7 @@ public class A08 implements IStrategy {
 	 * @return
 	 */
 	public double countOrdersLots(GridSystem gridSystem, OrderType type) {
-		List<IOrder> orders = getOrders(gridSystem, type);
-		return countLots(orders);
+		return gridSystem.getLots(type);
 	}
 	
 	/**
@@ -412,305 +365,4 @@ public class A08 implements IStrategy {
 		}
 		return count;
 	}
-	
-	enum OrderType {
-		Normal, Martin
-	}
-	
-	/************************************
-	 * 
-	 * 基础类开始
-	 * @author liteng
-	 *
-	 ************************************/
-	class GridSystem {
-		
-		private String name;
-		
-		private IChart chart;
-		
-		private int pointScale;
-		private DecimalFormat df = new DecimalFormat("#");
-		
-		private double pointgap;
-		private double startPrice;
-	
-		private List<Grid> gridsAbove = new ArrayList<Grid>();
-		private List<Grid> gridsUnder = new ArrayList<Grid>();
-		
-		private Grid lastGrid;
-		
-		private Integer highest = null;
-		private Integer lowest  = null;
-		
-		GridCallback gridCallback;
-		
-		private IConsole console;
-		
-		public GridSystem(String name, double startPrice, double pointGap, int pointScale) {
-			this(name, startPrice, pointGap, pointScale, null);
-		}
-		
-		public GridSystem(String name, double startPrice, double pointGap, int pointScale, IChart chart) {
-			this.name = name;
-			this.chart = chart;
-			this.pointgap = pointGap;
-			this.startPrice = startPrice;
-			this.pointScale = pointScale;
-			
-			if(pointScale > 0) {
-				StringBuilder sb = new StringBuilder("#.");
-				for(int i=0;i<pointScale;i++) {
-					sb.append('0');
-				}
-				this.df = new DecimalFormat(sb.toString());
-			}
-		}
-		
-		public Grid offer(double price) {
-			Grid grid = getGridByPrice(price);
-			
-			// grid change
-			if(lastGrid == null || !lastGrid.equals(grid)) {
-				if(gridCallback != null) {
-					gridCallback.onGridChange(lastGrid, grid, price);
-				}
-			}
-			
-			// highest & lowest
-			if(highest == null || highest < grid.getOffset()) {
-				highest = grid.getOffset();
-			}
-			if(lowest == null || lowest > grid.getOffset()) {
-				lowest = grid.getOffset();
-			}
-			
-			lastGrid = grid;
-			return grid;
-		}
-		
-		private int countOffset(double price) {
-			int front = 0;
-			if(price >= startPrice) {
-				front = 1;
-			} else {
-				front = -1;
-			}
-			double d = (price - startPrice) / pointgap + front;
-			
-			/*
-			 *  当前价格大于初始价格时, 格子的价格区间为[small, large)
-			 *  当前价格小于初始价格时, 格子的价格区间为[large, small)
-			 *  当前价格等于初始价格时, 默认为+1格子
-			 */
-			return new BigDecimal(d).setScale(pointScale, BigDecimal.ROUND_HALF_UP).intValue();
-		}
-		
-		public Grid getGridByOffset(int offset) {
-			if(offset > 0) {
-				while(gridsAbove.size() < offset) {
-					Grid grid = new Grid(this, gridsAbove.size() + 1);
-					gridsAbove.add(grid);
-				}
-				return gridsAbove.get(offset - 1);
-			} else if (offset < 0) {
-				while(gridsUnder.size() < -offset) {
-					Grid grid = new Grid(this, -gridsUnder.size() - 1);
-					gridsUnder.add(grid);
-				}
-				return gridsUnder.get(-offset - 1);
-			} else {
-				return null;
-			}
-		}
-		
-		public List<Grid> getAllGrids() {
-			List<Grid> grids = new ArrayList<Grid>(gridsAbove);
-			grids.addAll(gridsUnder);
-			return grids;
-		}
-	
-		public void removeOrder(List<IOrder> orders) {
-			for (IOrder order : orders) {
-				removeOrder(order);
-			}
-		}
-		
-		public void removeOrder(IOrder order) {
-			List<Grid> grids = this.getAllGrids();
-			for (Grid grid : grids) {
-				grid.getOrders().remove(order);
-			}
-		}
-	
-		public void closeAndRemoveOrder(List<IOrder> orders) {
-			for (IOrder order : orders) {
-				closeAndRemoveOrder(order);
-			}
-		}
-		
-		public void closeAndRemoveOrder(IOrder order) {
-			for (Grid grid : gridsAbove) {
-				List<IOrder> orders = grid.getOrders();
-				for (int i = orders.size() - 1; i >= 0; i--) {
-					IOrder o = orders.get(i);
-					if(o.equals(order)) {
-						closeOrder(grid, order);
-					}
-				}
-			}
-	
-			for (Grid grid : gridsUnder) {
-				List<IOrder> orders = grid.getOrders();
-				for (int i = orders.size() - 1; i >= 0; i--) {
-					IOrder o = orders.get(i);
-					if(o.equals(order)) {
-						closeOrder(grid, order);
-					}
-				}
-			}
-		}
-		
-		/**
-		 * Get all orders
-		 * @return
-		 */
-		public List<IOrder> getAllOrders() {
-			List<IOrder> result = new ArrayList<IOrder>();
-			List<Grid> grids = getAllGrids();
-			for (Grid grid : grids) {
-				result.addAll(grid.getOrders());
-			}
-			return result;
-		}
-		
-		public IChart getChart() {
-			return chart;
-		}
-	
-		public Grid getGridByPrice(double price) {
-			return getGridByOffset(countOffset(price));
-		}
-	
-		public DecimalFormat getDf() {
-			return df;
-		}
-	
-		public void setGridCallback(GridCallback gridCallback) {
-			this.gridCallback = gridCallback;
-		}
-	
-		public double getGap() {
-			return pointgap;
-		}
-	
-		public double getStartPrice() {
-			return startPrice;
-		}
-	
-		public int getPointScale() {
-			return pointScale;
-		}
-	
-		public List<Grid> getGridsAbove() {
-			return gridsAbove;
-		}
-	
-		public List<Grid> getGridsUnder() {
-			return gridsUnder;
-		}
-	
-		public String getName() {
-			return name;
-		}
-	
-		public void setConsole(IConsole console) {
-			this.console = console;
-		}
-	
-	}
-	
-	class Grid {
-	
-		private GridSystem gridSystem;
-		
-		private List<IOrder> orders = new ArrayList<IOrder>();
-		
-		// -3, -2, -1, 1, 2, 3 ...
-		private Integer offset;
-		
-		// contain
-		private Double start;
-		
-		// not contain
-		private Double end;
-		
-		public Grid(GridSystem gridSystem, int offset) {
-			
-			this.gridSystem = gridSystem;
-			this.offset = offset;
-			
-			double gap = gridSystem.getGap();
-			double origin = gridSystem.getStartPrice();
-			int pointScale = gridSystem.getPointScale();
-			
-			this.setEnd(new BigDecimal(origin + offset * gap).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue());
-			this.setStart(new BigDecimal(this.getEnd() + (offset > 0 ? -gap : gap)).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue());
-			
-			if(gridSystem.getChart() != null) {
-				IChartObjectFactory cof = gridSystem.getChart().getChartObjectFactory();
-				IHorizontalLineChartObject line = cof.createHorizontalLine(Math.random() + "", this.getStart());
-				gridSystem.getChart().add(line);
-			}
-		}
-	
-		public GridSystem getGridSystem() {
-			return gridSystem;
-		}
-	
-		public Integer getOffset() {
-			return offset;
-		}
-	
-		public void setOffset(Integer offset) {
-			this.offset = offset;
-		}
-	
-		public Double getStart() {
-			return start;
-		}
-	
-		public void setStart(Double start) {
-			this.start = start;
-		}
-	
-		public Double getEnd() {
-			return end;
-		}
-	
-		public void setEnd(Double end) {
-			this.end = end;
-		}
-	
-		public List<IOrder> getOrders() {
-			return orders;
-		}
-		
-		@Override
-		public boolean equals(Object o) {
-			if(o instanceof Grid) {
-				return this.getOffset().equals(((Grid) o).getOffset()); 
-			}
-			return super.equals(o);
-		}
-		
-		@Override
-		public String toString() {
-			return this.getOffset() + " [" + this.gridSystem.getDf().format(this.getStart()) + ", " + this.gridSystem.getDf().format(this.getEnd()) + ")";
-		}
-	}
-	
-	interface GridCallback {
-		public void onGridChange(Grid leave, Grid enter, double price);
-	}
 }
@@ -1,8 +1,14 @@
 package old_strategy;
 
 import com.dukascopy.api.*;
+import com.gearcode.forex.ea.grid.CloseBatch;
+import com.gearcode.forex.ea.grid.OrderBatch;
+import com.gearcode.forex.ea.grid.OrderLadder;
+import com.gearcode.forex.ea.grid.OrderStateCache;
+import com.gearcode.forex.ea.log.AsyncLog;
 
 import javax.swing.*;
+import java.util.ArrayList;
 import java.util.List;
 
 public class AutoOpenOrders implements IStrategy {
@@ -28,17 +34,32 @@ public class AutoOpenOrders implements IStrategy {
 	@Configurable("价格触碰最后一格时平仓")
 	public boolean closeAllWhenPriceReachLastGrid = true;
 
+	@Configurable("新一轮只调整挂单(不全部撤单重挂)")
+	public boolean recenter = false;
+
 	IEngine engine = null;
 	IHistory history = null;
 	IConsole console = null;
+	AsyncLog logger = null;
 	
 	private ITick startTick = null;
+	
+	// 当前阶梯的基准价格, buystop以ask为基准, sellstop以bid为基准
+	private double askBase;
+	private double bidBase;
+	
+	// 挂单阶梯同时未确认的订单数上限
+	private static final int LADDER_MAX_IN_FLIGHT = 10;
+	
+	// 本地订单状态, 由onMessage维护
+	private OrderStateCache orderCache = new OrderStateCache();
 
 	@Override
 	public void onStart(IContext context) throws JFException {
 		engine = context.getEngine();
 		history = context.getHistory();
 		console = context.getConsole();
+		logger = new AsyncLog(console.getOut());
 		
 		// exists orders of this instrument
 		List<IOrder> orders = engine.getOrders(instrument);
@@ -47,11 +68,12 @@ public class AutoOpenOrders implements IStrategy {
 			context.stop();
 			return;
 		}
+		orderCache.load(orders);
 		
 		// last price
 		ITick lastTick = history.getLastTick(instrument);
 		while(lastTick == null) {
-			console.getOut().println("retrieve lastTick...");
+			log("retrieve lastTick...");
 			try {
 				Thread.sleep(500);
 			} catch (InterruptedException e) {
@@ -82,6 +104,7 @@ public class AutoOpenOrders implements IStrategy {
 
 	@Override
 	public void onMessage(IMessage message) throws JFException {
+		orderCache.onMessage(message);
 	}
 
 	@Override
@@ -90,98 +113,135 @@ public class AutoOpenOrders implements IStrategy {
 
 	@Override
 	public void onStop() throws JFException {
+		logger.close();
+	}
+
+	/**
+	 * 打印日志
+	 * @param str
+	 */
+	public void log(String... str) {
+		logger.log(str);
 	}
 	
 	private void newRound(ITick tick) {
+		boolean incremental = recenter && startTick != null;
 		startTick = tick;
 		
+		final long ts = System.currentTimeMillis();
+		double pip = instrument.getPipValue();
+		OrderLadder ladder = new OrderLadder(engine, instrument, lots, point*pip*0.1, new OrderLadder.LabelFactory() {
+			@Override
+			public String label(IEngine.OrderCommand command, int level) {
+				return (command == IEngine.OrderCommand.BUYSTOP ? "BuyStop_" : "SellStop_") + (level - 1) + "_" + ts;
+			}
+		}).maxInFlight(LADDER_MAX_IN_FLIGHT);
+		
+		// 重新居中时新基准对齐到原阶梯, 使仍在窗口内的挂单与新档位重合
+		askBase = incremental ? ladder.align(askBase, tick.getAsk()) : tick.getAsk();
+		bidBase = incremental ? ladder.align(bidBase, tick.getBid()) : tick.getBid();
+		if(direction.equals(OrderOpenDirection.Both) || direction.equals(OrderOpenDirection.Buy)) {
+			ladder.buyStops(askBase, count);
+		}
+		if(direction.equals(OrderOpenDirection.Both) || direction.equals(OrderOpenDirection.Sell)) {
+			ladder.sellStops(bidBase, count);
+		}
+		
 		/*
 		 *  close all
 		 */
-		console.getOut().println("正在平仓");
-		try {
-			List<IOrder> orders = engine.getOrders(instrument);
+		log("正在平仓");
+		List<IOrder> orders = new ArrayList<IOrder>(orderCache.getOrders(instrument));
+		if(incremental) {
+			// 只平已成交订单, 挂单交给ladder.recenter处理
+			List<IOrder> filled = new ArrayList<IOrder>();
 			for (IOrder o : orders) {
-				o.close();
-				o.waitForUpdate(2000);
+				if(o.getState() == IOrder.State.FILLED) {
+					filled.add(o);
+				}
+			}
+			orders = filled;
+		}
+		for (CloseBatch.Outcome outcome : CloseBatch.closeAll(orders, 2000)) {
+			orderCache.update(outcome.getOrder());
+			if(outcome.getError() != null) {
+				outcome.getError().printStackTrace();
 			}
-		} catch (JFException e) {
-			e.printStackTrace();
 		}
-		console.getOut().println("已全部平仓");
+		log(incremental ? "已平仓全部成交订单" : "已全部平仓");
 		
 		/*
 		 *  submit orders
 		 */
-		console.getOut().println("正在提交挂单请求");
-		long ts = System.currentTimeMillis();
-		double pip = instrument.getPipValue();
+		log("正在提交挂单请求");
 		int buys = 0, sells = 0;
-		for(int i=0;i<count;i++) {
-			double gap_pip = (i+1)*point*pip*0.1;
-
-			try {
-				// Buy stop
-				if(direction.equals(OrderOpenDirection.Both) || direction.equals(OrderOpenDirection.Buy)) {
-					if(engine.submitOrder("BuyStop_" + i + "_" + ts, instrument, IEngine.OrderCommand.BUYSTOP, lots, tick.getAsk() + gap_pip) != null) {
-						buys++;
-					}
-				}
-				
-				// Sell stop
-				if(direction.equals(OrderOpenDirection.Both) || direction.equals(OrderOpenDirection.Sell)) {
-					if(engine.submitOrder("SellStop_" + i + "_" + ts, instrument, IEngine.OrderCommand.SELLSTOP, lots, tick.getBid() - gap_pip) != null) {
-						sells++;
-					}
-				}
-			} catch (JFException e) {
-				e.printStackTrace();
-				UI.Alert("挂单时发生异常！" + e.getLocalizedMessage());
-			}	
+		
+		// 整个阶梯一起提交, 共用一个超时时间等待挂单生效
+		List<OrderBatch.Request<Integer>> requests;
+		if(incremental) {
+			OrderLadder.Recentering result = ladder.recenter(orderCache.getOrders(instrument), 2000);
+			for (CloseBatch.Outcome outcome : result.getCanceled()) {
+				orderCache.update(outcome.getOrder());
+			}
+			log("保留挂单 " + result.getKept().size() + " 单, 撤销 " + result.getCanceled().size() + " 单");
+			requests = result.getSubmitted();
+		} else {
+			requests = ladder.submit(2000);
+		}
+		
+		JFException error = null;
+		for (OrderBatch.Request<Integer> request : requests) {
+			IOrder order = request.getOrder();
+			if(order == null) {
+				request.getError().printStackTrace();
+				error = request.getError();
+				continue;
+			}
+			orderCache.update(order);
+			if(request.getCommand() == IEngine.OrderCommand.BUYSTOP) {
+				buys++;
+			} else {
+				sells++;
+			}
+		}
+		if(error != null) {
+			UI.Alert("挂单时发生异常！" + error.getLocalizedMessage());
 		}
-		console.getOut().println("挂单完成, 共 " + (buys+sells) + " 单, buystop: " + buys + ", sellstop: " + sells);
+		log("挂单完成, 新增 " + (buys+sells) + " 单, buystop: " + buys + ", sellstop: " + sells);
 		
 	}
 	
 	private boolean reachTarget(ITick tick) {
-		try {
-			/*
-			 * take profit ≥ profit ?
-			 */
-			List<IOrder> orders = engine.getOrders(instrument);
-			
-			double amountProfit = 0;
-			for (IOrder order : orders) {
-				amountProfit += order.getProfitLossInAccountCurrency();
-			}
-			
-			if(amountProfit >= profit) {
-				console.getOut().println("止盈条件成立！（" + amountProfit + " ≥ " + profit + "）");
-				return true;
-			}
-			
-			/*
-			 * price reach target gird
-			 */
-			if(closeAllWhenPriceReachLastGrid) {
-				double d = count*point*instrument.getPipValue()*0.1;
-				if(direction.equals(OrderOpenDirection.Both) || direction.equals(OrderOpenDirection.Buy)) {
-					if(tick.getAsk() >= startTick.getAsk() + d) {
-						console.getOut().println("卖价（Ask）触碰最后一格！");
-						return true;
-					}
+		/*
+		 * take profit ≥ profit ?
+		 */
+		double amountProfit = 0;
+		for (IOrder order : orderCache.getOrders(instrument)) {
+			amountProfit += order.getProfitLossInAccountCurrency();
+		}
+		
+		if(amountProfit >= profit) {
+			log("止盈条件成立！（" + amountProfit + " ≥ " + profit + "）");
+			return true;
+		}
+		
+		/*
+		 * price reach target gird
+		 */
+		if(closeAllWhenPriceReachLastGrid) {
+			double d = count*point*instrument.getPipValue()*0.1;
+			if(direction.equals(OrderOpenDirection.Both) || direction.equals(OrderOpenDirection.Buy)) {
+				if(tick.getAsk() >= askBase + d) {
+					log("卖价（Ask）触碰最后一格！");
+					return true;
 				}
-				if(direction.equals(OrderOpenDirection.Both) || direction.equals(OrderOpenDirection.Sell)) {
-					if(tick.getBid() <= startTick.getBid() - d) {
-						console.getOut().println("买价（Bid）触碰最后一格！");
-						return true;
-					}
+			}
+			if(direction.equals(OrderOpenDirection.Both) || direction.equals(OrderOpenDirection.Sell)) {
+				if(tick.getBid() <= bidBase - d) {
+					log("买价（Bid）触碰最后一格！");
+					return true;
 				}
 			}
-			
-		} catch (JFException e) {
-			e.printStackTrace();
-			UI.Alert("获取订单失败！" + e.getLocalizedMessage());
 		}
 		
 		return false;
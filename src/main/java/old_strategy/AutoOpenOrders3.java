@@ -6,11 +6,17 @@ import com.dukascopy.api.IMessage.Type;
 import com.dukascopy.api.IOrder.State;
 import com.dukascopy.api.drawings.IChartObjectFactory;
 import com.dukascopy.api.drawings.IHorizontalLineChartObject;
+import com.gearcode.forex.ea.grid.CloseBatch;
+import com.gearcode.forex.ea.grid.OrderBatch;
+import com.gearcode.forex.ea.grid.OrderLadder;
+import com.gearcode.forex.ea.grid.OrderStateCache;
+import com.gearcode.forex.ea.log.AsyncLog;
 
 import javax.swing.*;
 import java.math.BigDecimal;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Random;
 
@@ -24,7 +30,11 @@ import java.util.Random;
 public class AutoOpenOrders3 implements IStrategy {
 
 	public static final int ORDER_TIMEOUT = 2000;
-	public static final SimpleDateFormat dateFormart = new SimpleDateFormat("yyyyMMdd_HHmmss");
+	
+	// 挂单阶梯同时未确认的订单数上限
+	private static final int LADDER_MAX_IN_FLIGHT = 10;
+
+	private final SimpleDateFormat dateFormart = new SimpleDateFormat("yyyyMMdd_HHmmss");
 
 	@Configurable("货币对")
 	public Instrument instrument = Instrument.EURUSD;
@@ -46,19 +56,30 @@ public class AutoOpenOrders3 implements IStrategy {
 
 	@Configurable("连续执行")
 	public boolean auto = false;
+
+	@Configurable("连续执行时只调整挂单(不全部撤单重挂)")
+	public boolean recenter = false;
 	
 	IContext context = null;
 	IEngine engine = null;
 	IHistory history = null;
 	IConsole console = null;
+	// 日志由后台线程输出, 不阻塞tick线程
+	AsyncLog logger = null;
 	IIndicators indicators = null;
 	IChart chart = null;
 	
 	// 全局开关, 用来保证平仓过程中程序停止开仓
 	private boolean running = true;
 	
+	// 本地订单状态, 由onMessage维护
+	private OrderStateCache orderCache = new OrderStateCache();
+	
 	private double price_max;
 	private double price_min;
+	
+	// 当前阶梯的基准价格
+	private double ladder_base;
 
 	@Override
 	public void onStart(IContext context) throws JFException {
@@ -66,6 +87,7 @@ public class AutoOpenOrders3 implements IStrategy {
 		engine = context.getEngine();
 		history = context.getHistory();
 		console = context.getConsole();
+		logger = new AsyncLog(console.getOut());
 		indicators = context.getIndicators();
 		chart = context.getChart(instrument);
 		
@@ -74,6 +96,7 @@ public class AutoOpenOrders3 implements IStrategy {
 			UI.Alert("该币种已存在订单: " + instrument.name());
 			context.stop();
 		}
+		orderCache.load(orders);
 	}
 
 	@Override
@@ -82,7 +105,7 @@ public class AutoOpenOrders3 implements IStrategy {
 		if(instrument.equals(this.instrument)) {
 			double ask = tick.getAsk(), bid = tick.getBid();
 			
-			List<IOrder> orders = engine.getOrders(this.instrument);
+			Collection<IOrder> orders = orderCache.getOrders(this.instrument);
 			
 			// 判断盈利达到目标
 			if(countProfit(orders) >= stop_profit) {
@@ -92,41 +115,8 @@ public class AutoOpenOrders3 implements IStrategy {
 			
 			// 初始化挂单, 以当前bid价格上下固定间隔挂单
 			if(orders.size() == 0) {
-				// 开挂单
-				for(int i=1; i <= stop_orders; i++) {
-					IOrder orderBuyStop = engine.submitOrder(
-							"Order_BuyStop_" + i + "_" + StratUtils.generateLabel(),
-							instrument,
-							OrderCommand.BUYSTOP,
-							lots_normal,
-							bid + i*gap_normal*instrument.getPipValue()*0.1,
-							slippage);
-					orderBuyStop.waitForUpdate(ORDER_TIMEOUT, State.OPENED);
-					log("[Order] Submit success! " + orderBuyStop);
-					IOrder orderSellStop = engine.submitOrder(
-							"Order_SellStop_" + i + "_" + StratUtils.generateLabel(),
-							instrument,
-							OrderCommand.SELLSTOP,
-							lots_normal,
-							bid - i*gap_normal*instrument.getPipValue()*0.1,
-							slippage);
-					orderSellStop.waitForUpdate(ORDER_TIMEOUT, State.OPENED);
-					log("[Order] Submit success! " + orderSellStop);
-				}
-				
-				// 设置最大/小价格
-				price_max = bid + (stop_orders+1)*gap_normal*instrument.getPipValue()*0.1;
-				price_min = bid - (stop_orders+1)*gap_normal*instrument.getPipValue()*0.1;
-				
-				// 画线
-				chart.removeAll();
-				IChartObjectFactory cof = chart.getChartObjectFactory();
-				IHorizontalLineChartObject line_max = cof.createHorizontalLine("Line_Max_" + price_max, price_max);
-				IHorizontalLineChartObject line_min = cof.createHorizontalLine("Line_Min_" + price_min, price_min);
-				chart.add(line_max);
-				chart.add(line_min);
-				
-				log("Order submit done!");
+				ladder_base = bid;
+				placeLadder(newLadder().submit(ORDER_TIMEOUT));
 			} else {
 				// 判断价格已突破最大/小值
 				if(bid > price_max || bid < price_min) {
@@ -143,6 +133,8 @@ public class AutoOpenOrders3 implements IStrategy {
 
 	@Override
 	public void onMessage(IMessage message) throws JFException {
+		orderCache.onMessage(message);
+		
 		// 判断当前币种有订单 FILL_OK
 		if(message.getType().equals(Type.ORDER_FILL_OK)) {
 			IOrder o = message.getOrder();
@@ -150,9 +142,8 @@ public class AutoOpenOrders3 implements IStrategy {
 				/*
 				 * 判断多空手数如果不同则合并
 				 */
-				List<IOrder> orders = engine.getOrders(instrument);
 				List<IOrder> fillOrders = new ArrayList<IOrder>();
-				for (IOrder order : orders) {
+				for (IOrder order : orderCache.getOrders(instrument)) {
 					if(order.getState().equals(State.FILLED)) {
 						fillOrders.add(order);
 					}
@@ -179,6 +170,7 @@ public class AutoOpenOrders3 implements IStrategy {
 						// 合并全部
 						IOrder order = engine.mergeOrders("Order_Merge_" + StratUtils.generateLabel(), fillOrders);
 						order.waitForUpdate(ORDER_TIMEOUT, IOrder.State.FILLED);
+						orderCache.update(order);
 						log("[Order] Merge success!" + order);
 					}
 				}
@@ -192,6 +184,7 @@ public class AutoOpenOrders3 implements IStrategy {
 
 	@Override
 	public void onStop() throws JFException {
+		logger.close();
 	}
 	
 	/**
@@ -199,11 +192,7 @@ public class AutoOpenOrders3 implements IStrategy {
 	 * @param str
 	 */
 	public void log(String... str) {
-		StringBuilder sb = new StringBuilder();
-		for (String s : str) {
-			sb.append(s);
-		}
-		console.getOut().println(sb.toString());
+		logger.log(str);
 	}
 	
 	private void closeAll(int type) {
@@ -220,21 +209,19 @@ public class AutoOpenOrders3 implements IStrategy {
 		
 		try {
 			log("==== close begin / " + reason + " ====");
+			if(auto && recenter) {
+				recenterLadder();
+				running = true;
+				return;
+			}
+			// 所有订单一起发出平仓(撤单)请求, 共用一个超时时间
 			List<IOrder> orders = engine.getOrders(this.instrument);
-			for (IOrder order : orders) {
-				order.close();
-				// wait for update
-				switch(order.getOrderCommand()) {
-					case BUY:
-					case SELL:
-						order.waitForUpdate(ORDER_TIMEOUT, State.CLOSED);
-						break;
-					case BUYSTOP:
-					case SELLSTOP:
-						order.waitForUpdate(ORDER_TIMEOUT, State.CANCELED);
-						break;
-					default:
-						break;
+			for (CloseBatch.Outcome outcome : CloseBatch.closeAll(orders, ORDER_TIMEOUT)) {
+				IOrder order = outcome.getOrder();
+				orderCache.update(order);
+				if(outcome.getError() != null) {
+					log("[ERROR] close order error: " + order.getLabel() + ", " + outcome.getError().getLocalizedMessage());
+					continue;
 				}
 				log("[Order][Close] " + order.getLabel() + ", " + order.getOrderCommand() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
 			}
@@ -250,12 +237,93 @@ public class AutoOpenOrders3 implements IStrategy {
 		running = true;
 	}
 
+	/**
+	 * 以ladder_base为基准的挂单阶梯
+	 * @return
+	 */
+	private OrderLadder newLadder() {
+		return new OrderLadder(engine, instrument, lots_normal,
+				gap_normal*instrument.getPipValue()*0.1, new OrderLadder.LabelFactory() {
+			@Override
+			public String label(OrderCommand command, int level) {
+				return (command == OrderCommand.BUYSTOP ? "Order_BuyStop_" : "Order_SellStop_") + level + "_" + StratUtils.generateLabel();
+			}
+		})
+		.buyStops(ladder_base, stop_orders)
+		.sellStops(ladder_base, stop_orders)
+		.slippage(slippage)
+		.maxInFlight(LADDER_MAX_IN_FLIGHT);
+	}
+	
+	/**
+	 * 记录挂单结果, 按ladder_base设置最大/小价格并画线
+	 * @param requests
+	 */
+	private void placeLadder(List<OrderBatch.Request<Integer>> requests) {
+		for (OrderBatch.Request<Integer> request : requests) {
+			if(request.getOrder() == null) {
+				log("[ERROR] Submit error! " + request.getLabel() + ": " + request.getError().getLocalizedMessage());
+				continue;
+			}
+			orderCache.update(request.getOrder());
+			log("[Order] Submit success! " + request.getOrder());
+		}
+		
+		// 设置最大/小价格
+		price_max = ladder_base + (stop_orders+1)*gap_normal*instrument.getPipValue()*0.1;
+		price_min = ladder_base - (stop_orders+1)*gap_normal*instrument.getPipValue()*0.1;
+		
+		// 画线
+		chart.removeAll();
+		IChartObjectFactory cof = chart.getChartObjectFactory();
+		IHorizontalLineChartObject line_max = cof.createHorizontalLine("Line_Max_" + price_max, price_max);
+		IHorizontalLineChartObject line_min = cof.createHorizontalLine("Line_Min_" + price_min, price_min);
+		chart.add(line_max);
+		chart.add(line_min);
+		
+		log("Order submit done!");
+	}
+	
+	/**
+	 * 平掉已成交订单, 阶梯按当前bid增量重新居中:
+	 * 新基准对齐到原阶梯, 仍在新档位上的挂单保留, 只撤销窗口外的挂单并补交缺少的档位
+	 * @throws JFException
+	 */
+	private void recenterLadder() throws JFException {
+		List<IOrder> filled = new ArrayList<IOrder>();
+		for (IOrder order : orderCache.getOrders(instrument)) {
+			if(order.getState() == State.FILLED) {
+				filled.add(order);
+			}
+		}
+		for (CloseBatch.Outcome outcome : CloseBatch.closeAll(filled, ORDER_TIMEOUT)) {
+			IOrder order = outcome.getOrder();
+			orderCache.update(order);
+			if(outcome.getError() != null) {
+				log("[ERROR] close order error: " + order.getLabel() + ", " + outcome.getError().getLocalizedMessage());
+				continue;
+			}
+			log("[Order][Close] " + order.getLabel() + ", " + order.getOrderCommand() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
+		}
+		
+		OrderLadder ladder = newLadder();
+		ladder_base = ladder.align(ladder_base, history.getLastTick(instrument).getBid());
+		ladder.buyStops(ladder_base, stop_orders).sellStops(ladder_base, stop_orders);
+		
+		OrderLadder.Recentering result = ladder.recenter(orderCache.getOrders(instrument), ORDER_TIMEOUT);
+		for (CloseBatch.Outcome outcome : result.getCanceled()) {
+			orderCache.update(outcome.getOrder());
+		}
+		log("==== recenter: kept " + result.getKept().size() + ", canceled " + result.getCanceled().size() + ", submit " + result.getSubmitted().size() + " ====");
+		placeLadder(result.getSubmitted());
+	}
+	
 	/**
 	 * 获取订单总获利
 	 * @param orders
 	 * @return
 	 */
-	public double countProfit(List<IOrder> orders) {
+	public double countProfit(Collection<IOrder> orders) {
 		double count = 0.0;
 		for (IOrder order : orders) {
 			count += order.getProfitLossInAccountCurrency();
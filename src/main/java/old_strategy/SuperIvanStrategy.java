@@ -3,17 +3,30 @@ package old_strategy;
 import com.dukascopy.api.*;
 import com.dukascopy.api.IEngine.OrderCommand;
 import com.dukascopy.api.IIndicators.MaType;
-import com.dukascopy.api.IOrder.State;
-import com.dukascopy.api.drawings.IChartObjectFactory;
-import com.dukascopy.api.drawings.IHorizontalLineChartObject;
 import com.dukascopy.api.indicators.IIndicator;
+import com.gearcode.forex.ea.grid.Grid;
+import com.gearcode.forex.ea.grid.GridCallback;
+import com.gearcode.forex.ea.grid.GridSystem;
+import com.gearcode.forex.ea.grid.OrderHandle;
+import com.gearcode.forex.ea.grid.OrderPipeline;
+import com.gearcode.forex.ea.grid.OrderReconciler;
+import com.gearcode.forex.ea.grid.OrderType;
+import com.gearcode.forex.ea.indicator.StreamingSma;
+import com.gearcode.forex.ea.log.AsyncLog;
+import com.gearcode.forex.ea.log.TradeJournal;
+import com.gearcode.forex.ea.metrics.LatencyHistogram;
+import com.gearcode.forex.ea.metrics.LatencyMetrics;
+import com.gearcode.forex.ea.state.GridSnapshot;
+import com.gearcode.forex.ea.state.StateSnapshot;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.BigDecimal;
-import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 /**
@@ -24,8 +37,10 @@ import java.util.Random;
  */
 public class SuperIvanStrategy implements IStrategy {
 	
-	public static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
+	// SimpleDateFormat不是线程安全的, 每个实例一个(参数扫描时多个实例并行运行)
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
 	public static final int ORDER_TIMEOUT = 2000;
+	public static final String ORDER_PREFIX = "SuperIvan_Order";
 	private Random random = new Random();
 
 	@Configurable("货币对")
@@ -54,12 +69,53 @@ public class SuperIvanStrategy implements IStrategy {
 	
 	@Configurable("均线周期长度")
 	public int smaPeriodTime = 800;
+	
+	@Configurable("记录交易事件(二进制日志)")
+	public boolean journalEnabled = false;
+	
+	@Configurable("状态快照(重启后恢复网格和订单)")
+	public boolean snapshotEnabled = false;
+	
+	@Configurable("快照间隔(秒)")
+	public int snapshotSeconds = 10;
+	
+	@Configurable("延迟统计输出间隔(秒), 0为不统计")
+	public int metricsSeconds = 0;
 
 	IEngine engine = null;
 	IHistory history = null;
 	IConsole console = null;
+	// 日志由后台线程输出, 不阻塞tick线程
+	AsyncLog logger = null;
 	IIndicators indicators = null;
 	IChart chart = null;
+	
+	// 异步下单/平仓, 确认消息由onMessage转交
+	OrderPipeline pipeline = null;
+	
+	// 交易事件日志, 未启用时不记录
+	TradeJournal journal = TradeJournal.disabled();
+	
+	// 状态快照, 未启用时为null; 状态变化后在本次回调结束时保存, 另外每snapshotSeconds秒保存一次
+	static final int SNAPSHOT_VERSION = 1;
+	StateSnapshot snapshot = null;
+	boolean stateChanged = false;
+	long lastSnapshotTime = 0;
+	
+	// 延迟统计(纳秒), 未启用时不计时; 订单相关的按OrderType分别统计
+	LatencyMetrics metrics = LatencyMetrics.disabled();
+	LatencyHistogram tickLatency = null;
+	LatencyHistogram gridChangeLatency = null;
+	LatencyHistogram[] tickToSubmitLatency = null;
+	LatencyHistogram[] submitLatency = null;
+	LatencyHistogram[] fillLatency = null;
+	LatencyHistogram[] closeRequestLatency = null;
+	LatencyHistogram[] closeLatency = null;
+	long tickStart = 0;
+
+	// 均线: onStart时用历史K线初始化, 之后由onBar更新, 格子回调直接读取缓存值
+	StreamingSma smaStream = null;
+	double smaValue = Double.NaN;
 
 	GridSystem askGrids = null;
 	GridSystem bidGrids = null;
@@ -82,13 +138,68 @@ public class SuperIvanStrategy implements IStrategy {
 	List<IOrder> round_hedge_orders_ask = new ArrayList<IOrder>();
 	List<IOrder> round_hedge_orders_bid = new ArrayList<IOrder>();
 	
+	// 已提交未成交的对冲单, 本轮结束时清空(之后才成交的对冲单直接平仓)
+	List<OrderHandle> round_hedge_pending_ask = new ArrayList<OrderHandle>();
+	List<OrderHandle> round_hedge_pending_bid = new ArrayList<OrderHandle>();
+	
 	@Override
 	public void onStart(IContext context) throws JFException {
 		engine = context.getEngine();
 		history = context.getHistory();
 		console = context.getConsole();
+		logger = new AsyncLog(console.getOut());
 		indicators = context.getIndicators();
 		chart = context.getChart(instrument);
+		pipeline = new OrderPipeline(engine);
+		
+		if(journalEnabled) {
+			File file = new File(context.getFilesDir(), "SuperIvan_" + instrument.name() + "_" + dateFormat.format(new Date()) + ".journal");
+			try {
+				journal = new TradeJournal(file);
+			} catch (IOException e) {
+				log("[ERROR] open trade journal error: " + e.getLocalizedMessage());
+			}
+		}
+		
+		if(snapshotEnabled) {
+			File file = new File(context.getFilesDir(), "SuperIvan_" + instrument.name() + ".snapshot");
+			try {
+				snapshot = new StateSnapshot(file);
+				restoreState();
+			} catch (IOException e) {
+				log("[ERROR] open state snapshot error: " + e.getLocalizedMessage());
+			}
+		}
+		
+		if(metricsSeconds > 0) {
+			metrics = new LatencyMetrics("SuperIvan");
+			File file = new File(context.getFilesDir(), "SuperIvan_" + instrument.name() + "_" + dateFormat.format(new Date()) + ".latency");
+			try {
+				metrics.dumpTo(file, metricsSeconds * 1000L);
+			} catch (IOException e) {
+				log("[ERROR] open latency file error: " + e.getLocalizedMessage());
+			}
+		}
+		tickLatency = metrics.histogram("tick");
+		gridChangeLatency = metrics.histogram("grid_change");
+		tickToSubmitLatency = metrics.histograms("tick_to_submit");
+		submitLatency = metrics.histograms("submit");
+		fillLatency = metrics.histograms("fill");
+		closeRequestLatency = metrics.histograms("close_request");
+		closeLatency = metrics.histograms("close");
+		
+		// 接管重启前留下的订单
+		reconcileOrders();
+		
+		// 用已完成的K线初始化均线
+		smaStream = new StreamingSma(smaPeriodTime);
+		IBar lastBar = history.getBar(instrument, smaPeriod, OfferSide.BID, 1);
+		if(lastBar != null) {
+			for (IBar bar : history.getBars(instrument, smaPeriod, OfferSide.BID, Filter.WEEKENDS, smaPeriodTime, lastBar.getTime(), 0)) {
+				smaStream.add(bar.getClose());
+			}
+			updateSma();
+		}
 		
 		if(chart != null) {
 			// add indicator(SMA) to chart
@@ -102,11 +213,17 @@ public class SuperIvanStrategy implements IStrategy {
 	public void onTick(Instrument instrument, ITick tick) throws JFException {
 		
 		if(instrument.equals(this.instrument)) {
+			tickStart = metrics.now();
 			double ask = tick.getAsk(), bid = tick.getBid();
+			journal.setTime(tick.getTime());
+			
+			// 超时未确认的订单按当前状态完成
+			pipeline.expire(ORDER_TIMEOUT);
 			
 			// init grid system
 			double realPipValue = instrument.getPipValue() * 0.1;
-			if(askGrids == null && bidGrids == null) {
+			// 对账时按订单重建了一侧网格的, 只创建另一侧
+			if(askGrids == null || bidGrids == null) {
 				double sma = sma();
 				
 				// SMA - 200 < bid < SMA + 200
@@ -114,14 +231,13 @@ public class SuperIvanStrategy implements IStrategy {
 					/*
 					 *  init grid system
 					 */
-					askGrids = new GridSystem("ask_grids", ask, gap * realPipValue, instrument.getPipScale() + 1);
-					askGrids.setGridCallback(askGridsCallback);
-					askGrids.setConsole(console);
-					log("AskGrid create: " + "ask_grids, " + ask + ", " + gap + ", " + (instrument.getPipScale() + 1));
-					bidGrids = new GridSystem("bid_grids", bid, gap * realPipValue, instrument.getPipScale() + 1);
-					bidGrids.setGridCallback(bidGridsCallback);
-					bidGrids.setConsole(console);
-					log("BidGrid create: " + "bid_grids, " + bid + ", " + gap + ", " + (instrument.getPipScale() + 1));
+					if(askGrids == null) {
+						askGrids = createGrids(OfferSide.ASK, ask);
+					}
+					if(bidGrids == null) {
+						bidGrids = createGrids(OfferSide.BID, bid);
+					}
+					stateChanged = true;
 				}
 			}
 			
@@ -132,6 +248,11 @@ public class SuperIvanStrategy implements IStrategy {
 				askGrids.offer(ask);
 				bidGrids.offer(bid);
 			}
+			
+			snapshotIfNeeded(tick.getTime());
+			
+			metrics.record(tickLatency, tickStart);
+			metrics.dumpIfDue(tick.getTime());
 		}
 	}
 	
@@ -146,134 +267,138 @@ public class SuperIvanStrategy implements IStrategy {
 			
 			// first grid
 			if(leave == null) return;
+			journal.gridChange(OfferSide.ASK, leave.getOffset(), enter.getOffset(), price);
+			stateChanged = true;
+			long start = metrics.now();
 			
-			try {
-				double sma = sma();
-				// 当前价格在均线之上时
-				if(price > sma) {
-					// up
-					if(leave.getOffset() < enter.getOffset()) {
-						// 记录均线上最高抵达格子的offset & 平对头最亏单
-						if(round_max_grid_offset == 0 || round_max_grid_offset < enter.getOffset()) {
-							round_max_grid_offset = enter.getOffset();
-							
-							// 平对头最亏单
-							IOrder maxLossOrder = getMaxLossOrder(bidGrids);
-							if(maxLossOrder != null) {
-								bidGrids.closeAndRemoveOrder(maxLossOrder);
-							}
+			double sma = sma();
+			// 当前价格在均线之上时
+			if(price > sma) {
+				// up
+				if(leave.getOffset() < enter.getOffset()) {
+					// 记录均线上最高抵达格子的offset & 平对头最亏单
+					if(round_max_grid_offset == 0 || round_max_grid_offset < enter.getOffset()) {
+						round_max_grid_offset = enter.getOffset();
+						
+						// 平对头最亏单
+						IOrder maxLossOrder = getMaxLossOrder(bidGrids);
+						if(maxLossOrder != null) {
+							closeAndRemoveOrder(bidGrids, maxLossOrder);
 						}
+					}
+
+					/*
+					 * 趋势单
+					 * 条件: 当前格子没有趋势单 && (最大趋势单为null || 当前价格大于最大趋势单价格)
+					 */
+					IOrder maxNormalOrder = getOrder(askGrids, OrderType.Normal, true);
+					if(!existOrder(enter, OrderType.Normal) && (maxNormalOrder == null || enter.compareStart(maxNormalOrder.getOpenPrice()) > 0)) {
+						// normal order
+						submitOrder(enter, OrderType.Normal, IEngine.OrderCommand.BUY, lots);
 
 						/*
-						 * 趋势单
-						 * 条件: 当前格子没有趋势单 && (最大趋势单为null || 当前价格大于最大趋势单价格)
+						 * 记录趋势单最大净利润额(趋势单总利润 - 已对锁利润)
 						 */
-						IOrder maxNormalOrder = getOrder(askGrids, OrderType.Normal, true);
-						if(!existOrder(enter, OrderType.Normal) && (maxNormalOrder == null || enter.getStart() > maxNormalOrder.getOpenPrice())) {
-							// normal order
-							submitOrder(enter, OrderType.Normal, IEngine.OrderCommand.BUY, lots);
+						double normalCountProfit = countProfit(getOrders(askGrids, OrderType.Normal));
+						double hedge_profit = countProfit(round_hedge_orders_ask);
 
-							/*
-							 * 记录趋势单最大净利润额(趋势单总利润 - 已对锁利润)
-							 */
-							double normalCountProfit = countProfit(getOrders(askGrids, OrderType.Normal));
-							double hedge_profit = countProfit(round_hedge_orders_ask);
+						double net_profit = normalCountProfit + hedge_profit - round_lock_profit_ask;
+						if(net_profit > round_highest_net_profit_ask) {
+							round_highest_net_profit_ask = net_profit;
+//							round_normal_profit_break_ask = true;
+						}
+					}
 
-							double net_profit = normalCountProfit + hedge_profit - round_lock_profit_ask;
-							if(net_profit > round_highest_net_profit_ask) {
-								round_highest_net_profit_ask = net_profit;
-//								round_normal_profit_break_ask = true;
-							}
+					/*
+					 * 判断是否需要平掉所有马丁单
+					 */
+					List<IOrder> martinOrders = getOrders(askGrids, OrderType.Martin);
+					if(martinOrders.size() > 0) {
+						IOrder maxMartinOrder = getOrder(askGrids, OrderType.Martin, true);
+						if(leave.compareStart(maxMartinOrder.getOpenPrice()) > 0) {
+							closeAndRemoveOrder(askGrids, martinOrders);
 						}
+					}
 
-						/*
-						 * 判断是否需要平掉所有马丁单
-						 */
-						List<IOrder> martinOrders = getOrders(askGrids, OrderType.Martin);
-						if(martinOrders.size() > 0) {
-							IOrder maxMartinOrder = getOrder(askGrids, OrderType.Martin, true);
-							if(leave.getStart() > maxMartinOrder.getOpenPrice()) {
-								askGrids.closeAndRemoveOrder(martinOrders);
-							}
+				}
+				// down
+				else {
+					/*
+					 * 趋势下降时是否要开马丁单
+					 * 条件: 无马丁单 || (leave有马丁单 && enter无马丁单)
+					 */
+					if(!existOrder(askGrids, OrderType.Martin) || (existOrder(leave, OrderType.Martin) && !existOrder(enter, OrderType.Martin))) {
+						// 马丁单手数根据上一格的马丁单手数决定
+						double martin_lots = lots;
+
+						// 如果上一格已开马丁单, 则此格以上一格基础计算马丁单手数
+						double last_martin_lots = getMartinLots(leave, true);
+						if(last_martin_lots > 0) {
+							martin_lots = last_martin_lots * martinMultiple;
+						}
+
+						// 判断是否超过马丁单总手数限制
+						double countMartinLots = countOrdersLots(askGrids, OrderType.Martin);
+						double countNormalLots = countOrdersLots(askGrids, OrderType.Normal);
+						if((countMartinLots + martin_lots) / countNormalLots <= martinLotsDivNormalLots) {
+							// 开单
+							submitOrder(enter, OrderType.Martin, IEngine.OrderCommand.BUY, martin_lots);
 						}
 
 					}
-					// down
-					else {
-						/*
-						 * 趋势下降时是否要开马丁单
-						 * 条件: 无马丁单 || (leave有马丁单 && enter无马丁单)
-						 */
-						IOrder maxMartinOrder = getOrder(askGrids, OrderType.Martin, true);
-						if(maxMartinOrder == null || (existOrder(leave, OrderType.Martin) && !existOrder(enter, OrderType.Martin))) {
-							// 马丁单手数根据上一格的马丁单手数决定
-							double martin_lots = lots;
-
-							// 如果上一格已开马丁单, 则此格以上一格基础计算马丁单手数
-							IOrder lastMartinOrder = getOrder(leave, OrderType.Martin, true);
-							if(lastMartinOrder != null) {
-								martin_lots = lastMartinOrder.getAmount() * martinMultiple;
-							}
 
-							// 判断是否超过马丁单总手数限制
-							double countMartinLots = countOrdersLots(askGrids, OrderType.Martin);
-							double countNormalLots = countOrdersLots(askGrids, OrderType.Normal);
-							if((countMartinLots + martin_lots) / countNormalLots <= martinLotsDivNormalLots) {
-								// 开单
-								submitOrder(enter, OrderType.Martin, IEngine.OrderCommand.BUY, martin_lots);
-							}
+					/*
+					 * 判断是否需要开对冲单
+					 */
+					// 最大获利已达目标
+					if(round_highest_net_profit_ask > targetProfit) {
+						List<IOrder> askNormalOrders = getOrders(askGrids, OrderType.Normal);
+						double current_profit = countProfit(round_hedge_orders_ask) + countProfit(askNormalOrders);
+						double current_net_profit = current_profit - round_lock_profit_ask;
 
-						}
+						logger.line().append("///////").append(current_profit).append("     ").append(backProfitPercent / 100.00).append("           ").append(round_highest_net_profit_ask).commit();
 
-						/*
-						 * 判断是否需要开对冲单
-						 */
-						// 最大获利已达目标
-						if(round_highest_net_profit_ask > targetProfit) {
-							List<IOrder> askNormalOrders = getOrders(askGrids, OrderType.Normal);
-							double current_profit = countProfit(round_hedge_orders_ask) + countProfit(askNormalOrders);
-							double current_net_profit = current_profit - round_lock_profit_ask;
-
-							log("///////" + current_profit + "     " + (backProfitPercent / 100.00) + "           " + round_highest_net_profit_ask);
-
-							// 回撤已低于可接受百分比
-							if(current_net_profit / round_highest_net_profit_ask < backProfitPercent / 100.00) {
-								/*
-								 * 下对冲单
-								 * 对冲手数: 趋势单总手数 - 已对冲手数
-								 */
-								double hedge_lots = countLots(askNormalOrders) - countLots(round_hedge_orders_ask);
-								if(hedge_lots > 0) {
-									log("==============", round_highest_net_profit_ask+"", "," , "" + round_lock_profit_ask, "," , current_profit+"");
-									submitHedgeOrder(round_hedge_orders_ask, OrderCommand.SELL, hedge_lots);
-									round_lock_profit_ask += current_net_profit;
-									log("lock profit(ask): " + round_lock_profit_ask);
-									round_highest_net_profit_ask = 0.0;
-//										round_normal_profit_break_ask = false;
-								}
+						// 回撤已低于可接受百分比
+						if(current_net_profit / round_highest_net_profit_ask < backProfitPercent / 100.00) {
+							/*
+							 * 下对冲单
+							 * 对冲手数: 趋势单总手数 - 已对冲手数
+							 */
+							double hedge_lots = countLots(askNormalOrders) + askGrids.getPendingLots(OrderType.Normal)
+									- countLots(round_hedge_orders_ask) - countPendingLots(round_hedge_pending_ask);
+							if(hedge_lots > 0) {
+								log("==============", round_highest_net_profit_ask+"", "," , "" + round_lock_profit_ask, "," , current_profit+"");
+								submitHedgeOrder(round_hedge_orders_ask, round_hedge_pending_ask, OrderCommand.SELL, hedge_lots);
+								round_lock_profit_ask += current_net_profit;
+								journal.hedgeLock(OfferSide.ASK, OrderCommand.SELL, hedge_lots, round_lock_profit_ask, current_profit);
+								log("lock profit(ask): " + round_lock_profit_ask);
+								round_highest_net_profit_ask = 0.0;
+//									round_normal_profit_break_ask = false;
 							}
 						}
 					}
-				} else {
-					// 均线下
-					if(round_max_grid_offset != 0) {
-						round_max_grid_offset = 0;
-//						// 回均线, 平所有单
-//						log("==== close all / ASK return MA ====");
-//						askGrids.closeAndRemoveOrder(askGrids.getAllOrders());
-					}
+				}
+			} else {
+				// 均线下
+				if(round_max_grid_offset != 0) {
+					round_max_grid_offset = 0;
+//					// 回均线, 平所有单
+//					log("==== close all / ASK return MA ====");
+//					askGrids.closeAndRemoveOrder(askGrids.getAllOrders());
+				}
 
-					// 平对冲单
-					closeOrder(round_hedge_orders_ask);
-					round_lock_profit_ask = 0.0;
-					round_highest_net_profit_ask = 0.0;
-//					round_normal_profit_break_ask = false;
+				// 平对冲单
+				if(!round_hedge_orders_ask.isEmpty() || !round_hedge_pending_ask.isEmpty() || round_lock_profit_ask != 0.0 || round_highest_net_profit_ask != 0.0) {
+					journal.roundReset(OfferSide.ASK, round_hedge_orders_ask.size() + round_hedge_pending_ask.size(), round_lock_profit_ask, round_highest_net_profit_ask);
 				}
-			} catch (JFException e) {
-				log("[ERROR] error: " + e.getLocalizedMessage());
-				e.printStackTrace();
+				closeOrder(round_hedge_orders_ask);
+				round_hedge_pending_ask.clear();
+				round_lock_profit_ask = 0.0;
+				round_highest_net_profit_ask = 0.0;
+//				round_normal_profit_break_ask = false;
 			}
 
+			metrics.record(gridChangeLatency, start);
 		}
 	};
 
@@ -287,136 +412,153 @@ public class SuperIvanStrategy implements IStrategy {
 
 			// first grid
 			if(leave == null) return;
+			journal.gridChange(OfferSide.BID, leave.getOffset(), enter.getOffset(), price);
+			stateChanged = true;
+			long start = metrics.now();
 
-			try {
-				double sma = sma();
+			double sma = sma();
 
-				// 当前价格在均线之下时
-				if(price < sma) {
-					// up
-					if(leave.getOffset() < enter.getOffset()) {
-						/*
-						 * 趋势上升时是否要开马丁单
-						 * 条件: 无马丁单 || (leave有马丁单 && enter无马丁单)
-						 */
-						IOrder minMartinOrder = getOrder(bidGrids, OrderType.Martin, false);
-						if(minMartinOrder == null || (existOrder(leave, OrderType.Martin) && !existOrder(enter, OrderType.Martin))) {
-							// 马丁单手数根据上一格的马丁单手数决定
-							double martin_lots = lots;
-
-							// 如果上一格已开马丁单, 则此格以上一格基础计算马丁单手数
-							IOrder lastMartinOrder = getOrder(leave, OrderType.Martin, false);
-							if(lastMartinOrder != null) {
-								martin_lots = lastMartinOrder.getAmount() * martinMultiple;
-							}
+			// 当前价格在均线之下时
+			if(price < sma) {
+				// up
+				if(leave.getOffset() < enter.getOffset()) {
+					/*
+					 * 趋势上升时是否要开马丁单
+					 * 条件: 无马丁单 || (leave有马丁单 && enter无马丁单)
+					 */
+					if(!existOrder(bidGrids, OrderType.Martin) || (existOrder(leave, OrderType.Martin) && !existOrder(enter, OrderType.Martin))) {
+						// 马丁单手数根据上一格的马丁单手数决定
+						double martin_lots = lots;
 
-							// 判断是否超过马丁单总手数限制
-							double countMartinLots = countOrdersLots(bidGrids, OrderType.Martin);
-							double countNormalLots = countOrdersLots(bidGrids, OrderType.Normal);
-							if((countMartinLots + martin_lots) / countNormalLots <= martinLotsDivNormalLots) {
-								// 开单
-								submitOrder(enter, OrderType.Martin, IEngine.OrderCommand.SELL, martin_lots);
-							}
+						// 如果上一格已开马丁单, 则此格以上一格基础计算马丁单手数
+						double last_martin_lots = getMartinLots(leave, false);
+						if(last_martin_lots > 0) {
+							martin_lots = last_martin_lots * martinMultiple;
 						}
 
-						// 最大获利已达目标
-						if(round_highest_net_profit_bid > targetProfit) {
-							List<IOrder> bidNormalOrders = getOrders(bidGrids, OrderType.Normal);
-							double current_profit = countProfit(round_hedge_orders_bid) + countProfit(bidNormalOrders);
-							double current_net_profit = current_profit - round_lock_profit_bid;
-
-							// 回撤已低于可接受百分比
-							if(current_net_profit / round_highest_net_profit_bid < backProfitPercent / 100.00) {
-								/*
-								 * 下对冲单
-								 * 对冲手数: 趋势单总手数 - 已对冲手数
-								 */
-								double hedge_lots = countLots(bidNormalOrders) - countLots(round_hedge_orders_bid);
-								if(hedge_lots > 0) {
-									log("==============", round_highest_net_profit_bid+"", "," , "" + round_lock_profit_bid, "," , current_profit+"");
-									submitHedgeOrder(round_hedge_orders_bid, OrderCommand.BUY, hedge_lots);
-									round_lock_profit_bid += current_net_profit;
-									log("lock profit(bid): " + round_lock_profit_bid);
-									round_highest_net_profit_bid = 0.0;
- 								}
-							}
+						// 判断是否超过马丁单总手数限制
+						double countMartinLots = countOrdersLots(bidGrids, OrderType.Martin);
+						double countNormalLots = countOrdersLots(bidGrids, OrderType.Normal);
+						if((countMartinLots + martin_lots) / countNormalLots <= martinLotsDivNormalLots) {
+							// 开单
+							submitOrder(enter, OrderType.Martin, IEngine.OrderCommand.SELL, martin_lots);
 						}
 					}
-					// down
-					else {
-						// 记录均线上最高抵达格子的offset
-						if(round_min_grid_offset == 0 || round_min_grid_offset > enter.getOffset()) {
-							round_min_grid_offset = enter.getOffset();
-
-							// 平对头最亏单
-							IOrder maxLossOrder = getMaxLossOrder(askGrids);
-							if(maxLossOrder != null) {
-								askGrids.closeAndRemoveOrder(maxLossOrder);
-							}
-						}
 
-						/*
-						 * 趋势单
-						 * 条件: 当前格子没有趋势单 && (最小趋势单为null || 当前价格小于最小趋势单价格)
-						 */
-						IOrder minNormalOrder = getOrder(bidGrids, OrderType.Normal, false);
-						if(!existOrder(enter, OrderType.Normal) && (minNormalOrder == null || enter.getStart() < minNormalOrder.getOpenPrice())) {
-							// normal order
-							submitOrder(enter, OrderType.Normal, IEngine.OrderCommand.SELL, lots);
-							
+					// 最大获利已达目标
+					if(round_highest_net_profit_bid > targetProfit) {
+						List<IOrder> bidNormalOrders = getOrders(bidGrids, OrderType.Normal);
+						double current_profit = countProfit(round_hedge_orders_bid) + countProfit(bidNormalOrders);
+						double current_net_profit = current_profit - round_lock_profit_bid;
+
+						// 回撤已低于可接受百分比
+						if(current_net_profit / round_highest_net_profit_bid < backProfitPercent / 100.00) {
 							/*
-							 * 记录趋势单最大净利润额(趋势单总利润 - 已对锁利润)
+							 * 下对冲单
+							 * 对冲手数: 趋势单总手数 - 已对冲手数
 							 */
-							double normalCountProfit = countProfit(getOrders(bidGrids, OrderType.Normal));
-							double hedge_profit = countProfit(round_hedge_orders_bid);
-							
-							double net_profit = normalCountProfit + hedge_profit - round_lock_profit_bid;
-							if(net_profit > round_highest_net_profit_bid) {
-								round_highest_net_profit_bid = net_profit;
-//								round_normal_profit_break_ask = true;
-							}
+							double hedge_lots = countLots(bidNormalOrders) + bidGrids.getPendingLots(OrderType.Normal)
+									- countLots(round_hedge_orders_bid) - countPendingLots(round_hedge_pending_bid);
+							if(hedge_lots > 0) {
+								log("==============", round_highest_net_profit_bid+"", "," , "" + round_lock_profit_bid, "," , current_profit+"");
+								submitHedgeOrder(round_hedge_orders_bid, round_hedge_pending_bid, OrderCommand.BUY, hedge_lots);
+								round_lock_profit_bid += current_net_profit;
+								journal.hedgeLock(OfferSide.BID, OrderCommand.BUY, hedge_lots, round_lock_profit_bid, current_profit);
+								log("lock profit(bid): " + round_lock_profit_bid);
+								round_highest_net_profit_bid = 0.0;
+ 								}
+						}
+					}
+				}
+				// down
+				else {
+					// 记录均线上最高抵达格子的offset
+					if(round_min_grid_offset == 0 || round_min_grid_offset > enter.getOffset()) {
+						round_min_grid_offset = enter.getOffset();
+
+						// 平对头最亏单
+						IOrder maxLossOrder = getMaxLossOrder(askGrids);
+						if(maxLossOrder != null) {
+							closeAndRemoveOrder(askGrids, maxLossOrder);
 						}
+					}
+
+					/*
+					 * 趋势单
+					 * 条件: 当前格子没有趋势单 && (最小趋势单为null || 当前价格小于最小趋势单价格)
+					 */
+					IOrder minNormalOrder = getOrder(bidGrids, OrderType.Normal, false);
+					if(!existOrder(enter, OrderType.Normal) && (minNormalOrder == null || enter.compareStart(minNormalOrder.getOpenPrice()) < 0)) {
+						// normal order
+						submitOrder(enter, OrderType.Normal, IEngine.OrderCommand.SELL, lots);
 						
 						/*
-						 * 判断是否需要平掉所有马丁单
+						 * 记录趋势单最大净利润额(趋势单总利润 - 已对锁利润)
 						 */
-						List<IOrder> martinOrders = getOrders(bidGrids, OrderType.Martin);
-						if(martinOrders.size() > 0) {
-							IOrder minMartinOrder = getOrder(bidGrids, OrderType.Martin, false);
-							if(leave.getStart() < minMartinOrder.getOpenPrice()) {
-								bidGrids.closeAndRemoveOrder(martinOrders);
-							}
+						double normalCountProfit = countProfit(getOrders(bidGrids, OrderType.Normal));
+						double hedge_profit = countProfit(round_hedge_orders_bid);
+						
+						double net_profit = normalCountProfit + hedge_profit - round_lock_profit_bid;
+						if(net_profit > round_highest_net_profit_bid) {
+							round_highest_net_profit_bid = net_profit;
+//							round_normal_profit_break_ask = true;
 						}
-					
-					}
-				} else {
-					// 均线上
-					if(round_min_grid_offset != 0) {
-						round_min_grid_offset = 0;
-//						// 回均线, 平所有单
-//						log("==== close all / BID return MA ====");
-//						bidGrids.closeAndRemoveOrder(bidGrids.getAllOrders());
 					}
 					
-					// 平对冲单
-					closeOrder(round_hedge_orders_bid);
-					round_lock_profit_bid = 0.0;
-					round_highest_net_profit_bid = 0.0;
+					/*
+					 * 判断是否需要平掉所有马丁单
+					 */
+					List<IOrder> martinOrders = getOrders(bidGrids, OrderType.Martin);
+					if(martinOrders.size() > 0) {
+						IOrder minMartinOrder = getOrder(bidGrids, OrderType.Martin, false);
+						if(leave.compareStart(minMartinOrder.getOpenPrice()) < 0) {
+							closeAndRemoveOrder(bidGrids, martinOrders);
+						}
+					}
+				
 				}
-			} catch (JFException e) {
-				log("[ERROR] error: " + e.getLocalizedMessage());
-				e.printStackTrace();
+			} else {
+				// 均线上
+				if(round_min_grid_offset != 0) {
+					round_min_grid_offset = 0;
+//					// 回均线, 平所有单
+//					log("==== close all / BID return MA ====");
+//					bidGrids.closeAndRemoveOrder(bidGrids.getAllOrders());
+				}
+				
+				// 平对冲单
+				if(!round_hedge_orders_bid.isEmpty() || !round_hedge_pending_bid.isEmpty() || round_lock_profit_bid != 0.0 || round_highest_net_profit_bid != 0.0) {
+					journal.roundReset(OfferSide.BID, round_hedge_orders_bid.size() + round_hedge_pending_bid.size(), round_lock_profit_bid, round_highest_net_profit_bid);
+				}
+				closeOrder(round_hedge_orders_bid);
+				round_hedge_pending_bid.clear();
+				round_lock_profit_bid = 0.0;
+				round_highest_net_profit_bid = 0.0;
 			}
 
+			metrics.record(gridChangeLatency, start);
 		}
 	};
 
 	@Override
 	public void onBar(Instrument instrument, Period period, IBar askBar, IBar bidBar) throws JFException {
+		// 周末K线无成交量, 与历史数据的Filter.WEEKENDS一致跳过
+		if(instrument.equals(this.instrument) && period.equals(smaPeriod) && bidBar.getVolume() > 0) {
+			smaStream.add(bidBar.getClose());
+			updateSma();
+		}
 	}
 
 	@Override
 	public void onMessage(IMessage message) throws JFException {
+		pipeline.onMessage(message);
+		// 重连后按标签对账, 断线期间的成交/平仓在此补上
+		if(message instanceof IConnectionStatusMessage && ((IConnectionStatusMessage) message).isConnected()) {
+			reconcileOrders();
+		}
+		if(stateChanged) {
+			snapshotIfNeeded(message.getCreationTime());
+		}
 	}
 
 	@Override
@@ -425,19 +567,121 @@ public class SuperIvanStrategy implements IStrategy {
 
 	@Override
 	public void onStop() throws JFException {
+		metrics.close();
+		if(snapshot != null) {
+			saveState();
+			try {
+				snapshot.close();
+			} catch (IOException e) {
+				log("[ERROR] close state snapshot error: " + e.getLocalizedMessage());
+			}
+		}
+		try {
+			journal.close();
+		} catch (IOException e) {
+			log("[ERROR] close trade journal error: " + e.getLocalizedMessage());
+		}
+		logger.close();
 	}
 	
 	/**
-	 * 计算SMA指标
+	 * 创建网格系统
+	 * @param side
+	 * @param startPrice
 	 * @return
+	 */
+	private GridSystem createGrids(OfferSide side, double startPrice) {
+		String name = side == OfferSide.ASK ? "ask_grids" : "bid_grids";
+		GridSystem grids = new GridSystem(name, startPrice, gap * instrument.getPipValue() * 0.1, instrument.getPipScale() + 1);
+		grids.setGridCallback(side == OfferSide.ASK ? askGridsCallback : bidGridsCallback);
+		grids.setConsole(console);
+		grids.setLog(logger);
+		log((side == OfferSide.ASK ? "AskGrid" : "BidGrid") + " create: " + name + ", " + startPrice + ", " + gap + ", " + (instrument.getPipScale() + 1));
+		return grids;
+	}
+	
+	/**
+	 * 按标签把当前订单放回网格和对冲单列表(一次查询); 没有网格时按订单推算原点创建网格
 	 * @throws JFException
 	 */
-	private double sma() throws JFException {
-		IBar currentBar = history.getBar(this.instrument, Period.FIVE_MINS, OfferSide.BID, 0);
-		double sma = indicators.sma(this.instrument, smaPeriod, OfferSide.BID, IIndicators.AppliedPrice.CLOSE, smaPeriodTime, Filter.WEEKENDS, currentBar.getTime(), currentBar.getTime())[0];
-
-		// 四舍五入
-		return new BigDecimal(sma).setScale(this.instrument.getPipScale() + 1, BigDecimal.ROUND_HALF_UP).doubleValue();
+	private void reconcileOrders() throws JFException {
+		// 先按订单状态完成未确认的请求, 避免同一订单被放入两次
+		pipeline.expire(0);
+		List<IOrder> orders = engine.getOrders(instrument);
+		
+		OrderReconciler reconciler = new OrderReconciler(ORDER_PREFIX);
+		double gapPrice = gap * instrument.getPipValue() * 0.1;
+		int scale = instrument.getPipScale() + 1;
+		if(askGrids == null) {
+			double start = reconciler.inferStartPrice(orders, OrderCommand.BUY, null, gapPrice, scale);
+			if(!Double.isNaN(start)) {
+				askGrids = createGrids(OfferSide.ASK, start);
+			}
+		}
+		if(bidGrids == null) {
+			double start = reconciler.inferStartPrice(orders, OrderCommand.SELL, null, gapPrice, scale);
+			if(!Double.isNaN(start)) {
+				bidGrids = createGrids(OfferSide.BID, start);
+			}
+		}
+		// 买单在卖价网格, 卖单在买价网格
+		reconciler.route(OrderCommand.BUY, askGrids).route(OrderCommand.SELL, bidGrids).pipeline(pipeline);
+		OrderReconciler.Result result = reconciler.reconcile(orders);
+		
+		// 对冲单: 卖单对冲卖价网格的趋势单, 买单对冲买价网格
+		int hedges = 0;
+		for (IOrder order : result.getOthers()) {
+			OrderReconciler.Label label = OrderReconciler.parse(ORDER_PREFIX, order.getLabel());
+			if(!"Hedge".equals(label.getName())) continue;
+			List<IOrder> list = label.getCommand() == OrderCommand.SELL ? round_hedge_orders_ask : round_hedge_orders_bid;
+			if(!list.contains(order)) {
+				list.add(order);
+				hedges++;
+			}
+		}
+		hedges += removeInactive(round_hedge_orders_ask) + removeInactive(round_hedge_orders_bid);
+		
+		if(!result.getAdded().isEmpty() || !result.getRemoved().isEmpty() || hedges > 0) {
+			stateChanged = true;
+			log("[Reconcile] " + result + ", hedge changes: " + hedges);
+		}
+		for (IOrder order : result.getUnknown()) {
+			log("[Reconcile] order not placed: " + order.getLabel());
+		}
+	}
+	
+	/**
+	 * 移除已不是成交状态的订单
+	 * @param orders
+	 * @return 移除的订单数
+	 */
+	private int removeInactive(List<IOrder> orders) {
+		int count = 0;
+		for (int i = orders.size() - 1; i >= 0; i--) {
+			if(orders.get(i).getState() != IOrder.State.FILLED) {
+				orders.remove(i);
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * SMA指标(最近smaPeriodTime根已完成K线的收盘价), K线不足时为NaN
+	 * @return
+	 */
+	private double sma() {
+		return smaValue;
+	}
+	
+	/**
+	 * 按均线窗口重新计算缓存的SMA值
+	 */
+	private void updateSma() {
+		if(smaStream.isReady()) {
+			// 四舍五入
+			smaValue = new BigDecimal(smaStream.getValue()).setScale(this.instrument.getPipScale() + 1, BigDecimal.ROUND_HALF_UP).doubleValue();
+		}
 	}
 	
 	/**
@@ -445,15 +689,11 @@ public class SuperIvanStrategy implements IStrategy {
 	 * @param str
 	 */
 	public void log(String... str) {
-		StringBuilder sb = new StringBuilder();
-		for (String s : str) {
-			sb.append(s);
-		}
-		console.getOut().println(sb.toString());
+		logger.log(str);
 	}
 	
 	/**
-	 * 提交订单
+	 * 提交订单(异步), 成交后加入格子
 	 * @param grid
 	 * @param type
 	 * @param command
@@ -461,74 +701,219 @@ public class SuperIvanStrategy implements IStrategy {
 	 */
 	public void submitOrder(Grid grid, OrderType type, OrderCommand command, double lots) {
 		String orderLabel = "SuperIvan_Order_" + command + "_" + type + "_" + (grid.getOffset() < 0 ? "n" + (-grid.getOffset()) : grid.getOffset());
-		try {
-			IOrder order = engine.submitOrder(
-					orderLabel,
-					instrument,
-					command,
-					lots);
-			if(command.equals(OrderCommand.BUY) || command.equals(OrderCommand.SELL)) {
-				order.waitForUpdate(ORDER_TIMEOUT, State.FILLED);
-			}
-			log("[Order][Open] " + orderLabel + ", price: " + order.getOpenPrice() + ", lots: " + lots);
-			grid.getOrders().add(order);
-		} catch (JFException e) {
-			e.printStackTrace();
-			log("[ERROR] submit order error: " + e.getLocalizedMessage());
-		}
+		journal.orderSubmit(orderLabel, command, type, grid.getOffset(), lots);
+		pipeline.submit(grid, type, orderLabel, instrument, command, lots).whenDone(openListener);
+		metrics.record(LatencyMetrics.byType(tickToSubmitLatency, type), tickStart);
 	}
 	
-	public void submitHedgeOrder(List<IOrder> list, OrderCommand command, double lots) {
+	/**
+	 * 提交对冲单(异步), 成交前在pending中, 成交后加入list;
+	 * 成交前本轮已结束(pending已清空)时直接平仓
+	 * @param list
+	 * @param pending
+	 * @param command
+	 * @param lots
+	 */
+	public void submitHedgeOrder(final List<IOrder> list, final List<OrderHandle> pending, OrderCommand command, double lots) {
 		String orderLabel = "SuperIvan_Order_" + command + "_Hedge_" +  dateFormat.format(new Date()) + "_" + random.nextInt(1000);
-		try {
-			IOrder order = engine.submitOrder(
-					orderLabel,
-					instrument,
-					command,
-					lots);
-			if(command.equals(OrderCommand.BUY) || command.equals(OrderCommand.SELL)) {
-				order.waitForUpdate(ORDER_TIMEOUT, State.FILLED);
+		journal.orderSubmit(orderLabel, command, null, 0, lots);
+		OrderHandle submitted = pipeline.submit(orderLabel, instrument, command, lots).whenDone(openListener);
+		pending.add(submitted);
+		submitted.whenDone(new OrderHandle.Listener() {
+			@Override
+			public void onComplete(OrderHandle handle) {
+				boolean current = pending.remove(handle);
+				if(handle.isSuccess()) {
+					if(current) {
+						list.add(handle.getOrder());
+					} else {
+						log("[Order] hedge filled after round reset, close: " + handle.getLabel());
+						pipeline.close(handle.getOrder()).whenDone(closeListener);
+					}
+				}
 			}
-			log("[Order][Open] " + orderLabel + ", price: " + order.getOpenPrice() + ", lots: " + lots);
-			list.add(order);
-		} catch (JFException e) {
-			e.printStackTrace();
-			log("[ERROR] submit order error: " + e.getLocalizedMessage());
-		}
+		});
+		metrics.record(LatencyMetrics.byType(tickToSubmitLatency, null), tickStart);
 	}
 	
 	/**
-	 * 平仓
+	 * 平仓(异步), 确认后从格子移除; 已在平仓中的订单不再处理(回调只注册一次)
 	 * @param grid
 	 * @param order
 	 */
 	public void closeOrder(Grid grid, IOrder order) {
-		try {
-			order.close();
-			order.waitForUpdate(ORDER_TIMEOUT, State.CLOSED);
-			log("[Order][Close] " + order.getLabel() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
-			grid.getOrders().remove(order);
-		} catch (JFException e) {
-			e.printStackTrace();
-			log("[ERROR] close order error: " + e.getLocalizedMessage());
-		}
+		if(pipeline.isClosing(order)) return;
+		pipeline.close(grid, order).whenDone(closeListener);
 	}
 	
-	public void closeOrder(List<IOrder> orders) {
+	/**
+	 * 平仓(异步), 确认后从list移除; 已在平仓中的订单不再处理
+	 * @param orders
+	 */
+	public void closeOrder(final List<IOrder> orders) {
 		for(int i = orders.size() - 1; i >= 0; i--) {
-			IOrder order = orders.get(i);
-			try {
-				order.close();
-				order.waitForUpdate(ORDER_TIMEOUT, State.CLOSED);
-				log("[Order][Close] " + order.getLabel() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
-				orders.remove(i);
-			} catch (JFException e) {
-				e.printStackTrace();
-				log("[ERROR] close order error: " + e.getLocalizedMessage());
+			if(pipeline.isClosing(orders.get(i))) continue;
+			pipeline.close(orders.get(i)).whenDone(closeListener).whenDone(new OrderHandle.Listener() {
+				@Override
+				public void onComplete(OrderHandle handle) {
+					if(handle.isSuccess()) {
+						orders.remove(handle.getOrder());
+					}
+				}
+			});
+		}
+	}
+	
+	public void closeAndRemoveOrder(GridSystem gridSystem, List<IOrder> orders) {
+		for (IOrder order : orders) {
+			closeAndRemoveOrder(gridSystem, order);
+		}
+	}
+	
+	public void closeAndRemoveOrder(GridSystem gridSystem, IOrder order) {
+		Grid grid = gridSystem.getGridOf(order);
+		if(grid != null) {
+			closeOrder(grid, order);
+		}
+	}
+	
+	/**
+	 * 开仓结果日志
+	 */
+	OrderHandle.Listener openListener = new OrderHandle.Listener() {
+		@Override
+		public void onComplete(OrderHandle handle) {
+			IOrder order = handle.getOrder();
+			metrics.recordValue(LatencyMetrics.byType(submitLatency, handle.getType()), handle.getRequestNanos());
+			if(handle.isSuccess()) {
+				metrics.recordValue(LatencyMetrics.byType(fillLatency, handle.getType()), handle.getLatencyNanos());
+				logger.line().append("[Order][Open] ").append(handle.getLabel()).append(", price: ").append(order.getOpenPrice()).append(", lots: ").append(order.getAmount()).commit();
+				journal.orderFill(handle.getLabel(), order.getOrderCommand(), order.getAmount(), order.getOpenPrice());
+				stateChanged = true;
+			} else {
+				log("[ERROR] submit order error: " + errorOf(handle));
+				journal.orderError(handle.getLabel(), false);
+			}
+		}
+	};
+	
+	/**
+	 * 平仓结果日志
+	 */
+	OrderHandle.Listener closeListener = new OrderHandle.Listener() {
+		@Override
+		public void onComplete(OrderHandle handle) {
+			IOrder order = handle.getOrder();
+			metrics.recordValue(LatencyMetrics.byType(closeRequestLatency, handle.getType()), handle.getRequestNanos());
+			if(handle.isSuccess()) {
+				metrics.recordValue(LatencyMetrics.byType(closeLatency, handle.getType()), handle.getLatencyNanos());
+				logger.line().append("[Order][Close] ").append(order.getLabel()).append(", close: ").append(order.getClosePrice()).append(", profit: ").append(order.getProfitLossInAccountCurrency()).commit();
+				journal.orderClose(order.getLabel(), order.getAmount(), order.getClosePrice(), order.getProfitLossInAccountCurrency());
+				stateChanged = true;
+			} else {
+				log("[ERROR] close order error: " + errorOf(handle));
+				journal.orderError(handle.getLabel(), true);
+			}
+		}
+	};
+	
+	/**
+	 * 状态有变化或距上次快照超过snapshotSeconds秒时保存快照
+	 * @param time
+	 */
+	private void snapshotIfNeeded(long time) {
+		if(snapshot != null && (stateChanged || time - lastSnapshotTime >= snapshotSeconds * 1000L)) {
+			saveState();
+			lastSnapshotTime = time;
+		}
+	}
+	
+	/**
+	 * 保存网格、订单及本轮的移动止损状态
+	 */
+	private void saveState() {
+		stateChanged = false;
+		StateSnapshot.Writer out = snapshot.begin();
+		out.putInt(SNAPSHOT_VERSION).putString(instrument.name());
+		GridSnapshot.write(out, askGrids);
+		GridSnapshot.write(out, bidGrids);
+		out.putInt(round_max_grid_offset)
+			.putInt(round_min_grid_offset)
+			.putDouble(round_highest_net_profit_ask)
+			.putDouble(round_highest_net_profit_bid)
+			.putDouble(round_lock_profit_ask)
+			.putDouble(round_lock_profit_bid);
+		GridSnapshot.writeOrders(out, round_hedge_orders_ask);
+		GridSnapshot.writeOrders(out, round_hedge_orders_bid);
+		if(!out.commit()) {
+			log("[ERROR] state snapshot too large");
+		}
+	}
+	
+	/**
+	 * 从快照恢复状态, 按标签重新绑定当前的订单; 没有快照或快照不匹配时从头开始
+	 * @throws JFException
+	 */
+	private void restoreState() throws JFException {
+		StateSnapshot.Reader in = snapshot.read();
+		if(in == null) {
+			return;
+		}
+		Map<String, IOrder> liveOrders = GridSnapshot.byLabel(engine.getOrders(instrument));
+		List<String> missing = new ArrayList<String>();
+		try {
+			if(in.getInt() != SNAPSHOT_VERSION || !instrument.name().equals(in.getString())) {
+				log("[Snapshot] version or instrument mismatch, ignored");
+				return;
+			}
+			GridSystem ask = GridSnapshot.read(in, liveOrders, missing);
+			GridSystem bid = GridSnapshot.read(in, liveOrders, missing);
+			int maxOffset = in.getInt(), minOffset = in.getInt();
+			double highestAsk = in.getDouble(), highestBid = in.getDouble();
+			double lockAsk = in.getDouble(), lockBid = in.getDouble();
+			List<IOrder> hedgeAsk = GridSnapshot.readOrders(in, liveOrders, missing);
+			List<IOrder> hedgeBid = GridSnapshot.readOrders(in, liveOrders, missing);
+			
+			// 全部读取成功后再替换当前状态
+			if(ask != null && bid != null) {
+				askGrids = ask;
+				askGrids.setGridCallback(askGridsCallback);
+				askGrids.setConsole(console);
+				askGrids.setLog(logger);
+				bidGrids = bid;
+				bidGrids.setGridCallback(bidGridsCallback);
+				bidGrids.setConsole(console);
+				bidGrids.setLog(logger);
 			}
+			round_max_grid_offset = maxOffset;
+			round_min_grid_offset = minOffset;
+			round_highest_net_profit_ask = highestAsk;
+			round_highest_net_profit_bid = highestBid;
+			round_lock_profit_ask = lockAsk;
+			round_lock_profit_bid = lockBid;
+			round_hedge_orders_ask.addAll(hedgeAsk);
+			round_hedge_orders_bid.addAll(hedgeBid);
+		} catch (RuntimeException e) {
+			log("[ERROR] read state snapshot error: " + e);
+			return;
+		}
+		
+		log("[Snapshot] restored #" + in.getSequence() + " saved at " + dateFormat.format(new Date(in.getTime())) + ", missing orders: " + missing.size() + ", untracked orders: " + liveOrders.size());
+		for (String label : missing) {
+			log("[Snapshot] order not found: " + label);
+		}
+		for (String label : liveOrders.keySet()) {
+			log("[Snapshot] order not in snapshot: " + label);
 		}
 	}
 	
+	private String errorOf(OrderHandle handle) {
+		if(handle.getError() != null) {
+			return handle.getError().getLocalizedMessage();
+		}
+		return handle.getMessage() == null ? "" + handle.getOrder().getState() : handle.getMessage().getContent();
+	}
+	
 
 	/************************************
 	 * 
@@ -537,19 +922,13 @@ public class SuperIvanStrategy implements IStrategy {
 	 *
 	 ************************************/
 	/**
-	 * 判断是否为指定类型订单
+	 * 判断是否为指定类型订单(按下单时登记的类型)
+	 * @param gridSystem
 	 * @param order
 	 * @return
 	 */
-	private boolean isOrder(IOrder order, OrderType type) {
-		switch (type) {
-		case Normal:
-			return order.getLabel().contains("Normal");
-		case Martin:
-			return order.getLabel().contains("Martin"); 
-		default:
-			return false;
-		}
+	private boolean isOrder(GridSystem gridSystem, IOrder order, OrderType type) {
+		return gridSystem.isOrder(order, type);
 	}
 	
 	/**
@@ -558,13 +937,28 @@ public class SuperIvanStrategy implements IStrategy {
 	 * @return
 	 */
 	private boolean existOrder(Grid grid, OrderType type) {
-		List<IOrder> orders = grid.getOrders();
-		for (IOrder order : orders) {
-			if(isOrder(order, type)) {
-				return true;
-			}
-		}
-		return false;
+		return grid.existOrder(type);
+	}
+	
+	/**
+	 * 判断网格系统中是否存在指定类型订单(包括已提交未成交的订单)
+	 * @param gridSystem
+	 * @param type
+	 * @return
+	 */
+	private boolean existOrder(GridSystem gridSystem, OrderType type) {
+		return gridSystem.getRegistry().count(type) > 0 || gridSystem.countPending(type) > 0;
+	}
+	
+	/**
+	 * 格子中马丁单的手数(最大or最小价格的订单), 没有已成交的马丁单时取已提交未成交的马丁单
+	 * @param grid
+	 * @param max true:最大 / false:最小
+	 * @return 没有马丁单时为0
+	 */
+	private double getMartinLots(Grid grid, boolean max) {
+		IOrder order = getOrder(grid, OrderType.Martin, max);
+		return order != null ? order.getAmount() : grid.getPendingLots(OrderType.Martin);
 	}
 	
 	/**
@@ -575,33 +969,7 @@ public class SuperIvanStrategy implements IStrategy {
 	 * @return
 	 */
 	private IOrder getOrder(GridSystem gridSystem, OrderType type, boolean max) {
-		IOrder result = null;
-		
-		List<Grid> grids = new ArrayList<Grid>(gridSystem.getGridsAbove());
-		grids.addAll(gridSystem.getGridsUnder());
-		
-		// foreach all grids
-		for (Grid grid : grids) {
-			
-			//foreach all order of this grid
-			List<IOrder> orders = grid.getOrders();
-			for (IOrder order : orders) {
-				if(!isOrder(order, type)) continue;
-				if(result == null) {
-					result = order;
-				} else {
-					// 比较大小
-					if(max) {
-						if(result.getOpenPrice() < order.getOpenPrice()) result = order;
-					} else {
-						if(result.getOpenPrice() > order.getOpenPrice()) result = order;
-					}
-				}
-			}
-			
-		}
-		
-		return result;
+		return gridSystem.getOrder(type, max);
 	}
 
 	/**
@@ -617,7 +985,7 @@ public class SuperIvanStrategy implements IStrategy {
 		//foreach all order of this grid
 		List<IOrder> orders = grid.getOrders();
 		for (IOrder order : orders) {
-			if(!isOrder(order, type)) continue;
+			if(!isOrder(grid.getGridSystem(), order, type)) continue;
 			if(result == null) {
 				result = order;
 			} else {
@@ -639,23 +1007,11 @@ public class SuperIvanStrategy implements IStrategy {
 	 * @return
 	 */
 	private List<IOrder> getOrders(GridSystem gridSystem, OrderType type) {
-		List<IOrder> result = new ArrayList<IOrder>();
-		
-		List<Grid> grids = gridSystem.getAllGrids();
-		for (Grid grid : grids) {
-			List<IOrder> orders = grid.getOrders();
-			for (IOrder order : orders) {
-				if(isOrder(order, type)) {
-					result.add(order);
-				}
-			}
-		}
-		
-		return result;
+		return new ArrayList<IOrder>(gridSystem.getOrders(type));
 	}
 	
 	/**
-	 * 获取最大亏损单
+	 * 获取最大亏损单(不含正在平仓的订单)
 	 * @param gridSystem
 	 * @return
 	 */
@@ -663,6 +1019,7 @@ public class SuperIvanStrategy implements IStrategy {
 		IOrder result = null;
 		List<IOrder> orders = gridSystem.getAllOrders();
 		for (IOrder order : orders) {
+			if(pipeline.isClosing(order)) continue;
 			if(result == null || result.getProfitLossInAccountCurrency() > order.getProfitLossInAccountCurrency()) {
 				result = order;
 			}
@@ -671,15 +1028,14 @@ public class SuperIvanStrategy implements IStrategy {
 	}
 	
 	/**
-	 * 计算指定订单总手数
+	 * 计算指定订单总手数(包括已提交未成交的订单)
 	 * 
 	 * @param gridSystem
 	 * @param type
 	 * @return
 	 */
 	public double countOrdersLots(GridSystem gridSystem, OrderType type) {
-		List<IOrder> orders = getOrders(gridSystem, type);
-		return countLots(orders);
+		return gridSystem.getLots(type) + gridSystem.getPendingLots(type);
 	}
 	
 	/**
@@ -708,292 +1064,16 @@ public class SuperIvanStrategy implements IStrategy {
 		return count;
 	}
 	
-	enum OrderType {
-		Normal, Martin
-	}
-	
-	/************************************
-	 * 
-	 * 基础类开始
-	 * @author liteng
-	 *
-	 ************************************/
-	class GridSystem {
-		
-		private String name;
-		
-		private IChart chart;
-		
-		private int pointScale;
-		private DecimalFormat df = new DecimalFormat("#");
-		
-		private double pointgap;
-		private double startPrice;
-	
-		private List<Grid> gridsAbove = new ArrayList<Grid>();
-		private List<Grid> gridsUnder = new ArrayList<Grid>();
-		
-		private Grid lastGrid;
-		
-		private Integer highest = null;
-		private Integer lowest  = null;
-		
-		GridCallback gridCallback;
-		
-		private IConsole console;
-		
-		public GridSystem(String name, double startPrice, double pointGap, int pointScale) {
-			this(name, startPrice, pointGap, pointScale, null);
-		}
-		
-		public GridSystem(String name, double startPrice, double pointGap, int pointScale, IChart chart) {
-			this.name = name;
-			this.chart = chart;
-			this.pointgap = pointGap;
-			this.startPrice = startPrice;
-			this.pointScale = pointScale;
-			
-			if(pointScale > 0) {
-				StringBuilder sb = new StringBuilder("#.");
-				for(int i=0;i<pointScale;i++) {
-					sb.append('0');
-				}
-				this.df = new DecimalFormat(sb.toString());
-			}
-		}
-		
-		public Grid offer(double price) {
-			Grid grid = getGridByPrice(price);
-			
-			// grid change
-			if(lastGrid == null || !lastGrid.equals(grid)) {
-				if(gridCallback != null) {
-					gridCallback.onGridChange(lastGrid, grid, price);
-				}
-			}
-			
-			// highest & lowest
-			if(highest == null || highest < grid.getOffset()) {
-				highest = grid.getOffset();
-			}
-			if(lowest == null || lowest > grid.getOffset()) {
-				lowest = grid.getOffset();
-			}
-			
-			lastGrid = grid;
-			return grid;
-		}
-		
-		private int countOffset(double price) {
-			int front = 0;
-			if(price >= startPrice) {
-				front = 1;
-			} else {
-				front = -1;
-			}
-			double d = (price - startPrice) / pointgap + front;
-			
-			/*
-			 *  当前价格大于初始价格时, 格子的价格区间为[small, large)
-			 *  当前价格小于初始价格时, 格子的价格区间为[large, small)
-			 *  当前价格等于初始价格时, 默认为+1格子
-			 */
-			return new BigDecimal(d).setScale(pointScale, BigDecimal.ROUND_HALF_UP).intValue();
-		}
-		
-		public Grid getGridByOffset(int offset) {
-			if(offset > 0) {
-				while(gridsAbove.size() < offset) {
-					Grid grid = new Grid(this, gridsAbove.size() + 1);
-					gridsAbove.add(grid);
-				}
-				return gridsAbove.get(offset - 1);
-			} else if (offset < 0) {
-				while(gridsUnder.size() < -offset) {
-					Grid grid = new Grid(this, -gridsUnder.size() - 1);
-					gridsUnder.add(grid);
-				}
-				return gridsUnder.get(-offset - 1);
-			} else {
-				return null;
-			}
-		}
-		
-		public List<Grid> getAllGrids() {
-			List<Grid> grids = new ArrayList<Grid>(gridsAbove);
-			grids.addAll(gridsUnder);
-			return grids;
-		}
-		
-	
-		public void closeAndRemoveOrder(List<IOrder> orders) {
-			for (IOrder order : orders) {
-				closeAndRemoveOrder(order);
-			}
-		}
-		
-		public void closeAndRemoveOrder(IOrder order) {
-			for (Grid grid : gridsAbove) {
-				List<IOrder> orders = grid.getOrders();
-				for (int i = orders.size() - 1; i >= 0; i--) {
-					IOrder o = orders.get(i);
-					if(o.equals(order)) {
-						closeOrder(grid, order);
-					}
-				}
-			}
-	
-			for (Grid grid : gridsUnder) {
-				List<IOrder> orders = grid.getOrders();
-				for (int i = orders.size() - 1; i >= 0; i--) {
-					IOrder o = orders.get(i);
-					if(o.equals(order)) {
-						closeOrder(grid, order);
-					}
-				}
-			}
-		}
-		
-		/**
-		 * Get all orders
-		 * @return
-		 */
-		public List<IOrder> getAllOrders() {
-			List<IOrder> result = new ArrayList<IOrder>();
-			List<Grid> grids = getAllGrids();
-			for (Grid grid : grids) {
-				result.addAll(grid.getOrders());
-			}
-			return result;
-		}
-		
-		public IChart getChart() {
-			return chart;
-		}
-	
-		public Grid getGridByPrice(double price) {
-			return getGridByOffset(countOffset(price));
-		}
-	
-		public DecimalFormat getDf() {
-			return df;
-		}
-	
-		public void setGridCallback(GridCallback gridCallback) {
-			this.gridCallback = gridCallback;
-		}
-	
-		public double getGap() {
-			return pointgap;
-		}
-	
-		public double getStartPrice() {
-			return startPrice;
-		}
-	
-		public int getPointScale() {
-			return pointScale;
-		}
-	
-		public List<Grid> getGridsAbove() {
-			return gridsAbove;
-		}
-	
-		public List<Grid> getGridsUnder() {
-			return gridsUnder;
-		}
-	
-		public String getName() {
-			return name;
-		}
-	
-		public void setConsole(IConsole console) {
-			this.console = console;
-		}
-	
-	}
-	
-	class Grid {
-	
-		private GridSystem gridSystem;
-		
-		private List<IOrder> orders = new ArrayList<IOrder>();
-		
-		// -3, -2, -1, 1, 2, 3 ...
-		private Integer offset;
-		
-		// contain
-		private Double start;
-		
-		// not contain
-		private Double end;
-		
-		public Grid(GridSystem gridSystem, int offset) {
-			
-			this.gridSystem = gridSystem;
-			this.offset = offset;
-			
-			double gap = gridSystem.getGap();
-			double origin = gridSystem.getStartPrice();
-			int pointScale = gridSystem.getPointScale();
-			
-			this.setEnd(new BigDecimal(origin + offset * gap).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue());
-			this.setStart(new BigDecimal(this.getEnd() + (offset > 0 ? -gap : gap)).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue());
-			
-			if(gridSystem.getChart() != null) {
-				IChartObjectFactory cof = gridSystem.getChart().getChartObjectFactory();
-				IHorizontalLineChartObject line = cof.createHorizontalLine(Math.random() + "", this.getStart());
-				gridSystem.getChart().add(line);
-			}
-		}
-	
-		public GridSystem getGridSystem() {
-			return gridSystem;
-		}
-	
-		public Integer getOffset() {
-			return offset;
-		}
-	
-		public void setOffset(Integer offset) {
-			this.offset = offset;
-		}
-	
-		public Double getStart() {
-			return start;
-		}
-	
-		public void setStart(Double start) {
-			this.start = start;
-		}
-	
-		public Double getEnd() {
-			return end;
-		}
-	
-		public void setEnd(Double end) {
-			this.end = end;
-		}
-	
-		public List<IOrder> getOrders() {
-			return orders;
-		}
-		
-		@Override
-		public boolean equals(Object o) {
-			if(o instanceof Grid) {
-				return this.getOffset().equals(((Grid) o).getOffset()); 
-			}
-			return super.equals(o);
-		}
-		
-		@Override
-		public String toString() {
-			return this.getOffset() + " [" + this.gridSystem.getDf().format(this.getStart()) + ", " + this.gridSystem.getDf().format(this.getEnd()) + ")";
+	/**
+	 * 获取已提交未成交订单的总手数
+	 * @param handles
+	 * @return
+	 */
+	public double countPendingLots(List<OrderHandle> handles) {
+		double count = 0.0;
+		for (OrderHandle handle : handles) {
+			count += handle.getAmount();
 		}
+		return count;
 	}
-	
-	interface GridCallback {
-		public void onGridChange(Grid leave, Grid enter, double price);
-	}
-}
\ No newline at end of file
+}
@@ -3,12 +3,15 @@ package old_strategy;
 import com.dukascopy.api.*;
 import com.dukascopy.api.IIndicators.MaType;
 import com.dukascopy.api.IOrder.State;
-import com.dukascopy.api.drawings.IChartObjectFactory;
-import com.dukascopy.api.drawings.IHorizontalLineChartObject;
 import com.dukascopy.api.indicators.IIndicator;
+import com.gearcode.forex.ea.grid.Grid;
+import com.gearcode.forex.ea.grid.GridCallback;
+import com.gearcode.forex.ea.grid.GridSystem;
+import com.gearcode.forex.ea.grid.OrderType;
+import com.gearcode.forex.ea.indicator.StreamingSma;
+import com.gearcode.forex.ea.log.AsyncLog;
 
 import java.math.BigDecimal;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -46,8 +49,12 @@ public class SuperIvanTickStrategy implements IStrategy {
 	IEngine engine = null;
 	IHistory history = null;
 	IConsole console = null;
+	AsyncLog logger = null;
 	IIndicators indicators = null;
 	IChart chart = null;
+	
+	// tick均线窗口(smaPeriod为TICK时使用), 由onTick更新
+	StreamingSma tickSma = null;
 
 	GridSystem askGrids = null;
 	GridSystem bidGrids = null;
@@ -60,8 +67,10 @@ public class SuperIvanTickStrategy implements IStrategy {
 		engine = context.getEngine();
 		history = context.getHistory();
 		console = context.getConsole();
+		logger = new AsyncLog(console.getOut());
 		indicators = context.getIndicators();
 		chart = context.getChart(instrument);
+		tickSma = new StreamingSma(smaPeriodTime);
 		
 		if(chart != null) {
 			// add indicator(SMA) to chart
@@ -78,6 +87,9 @@ public class SuperIvanTickStrategy implements IStrategy {
 		if(instrument.equals(this.instrument)) {
 			double ask = tick.getAsk(), bid = tick.getBid();
 			
+			// 先更新tick均线, 与按当前tick计算的指标一致
+			tickSma.add(bid);
+			
 			// init grid system
 			double realPipValue = instrument.getPipValue() * 0.1;
 			if(askGrids == null && bidGrids == null) {
@@ -91,11 +103,13 @@ public class SuperIvanTickStrategy implements IStrategy {
 					askGrids = new GridSystem("ask_grids", ask, gap * realPipValue, instrument.getPipScale() + 1);
 					askGrids.setGridCallback(askGridsCallback);
 					askGrids.setConsole(console);
-					console.getOut().println("AskGrid create: " + "ask_grids, " + ask + ", " + gap + ", " + (instrument.getPipScale() + 1));
+					askGrids.setLog(logger);
+					log("AskGrid create: " + "ask_grids, " + ask + ", " + gap + ", " + (instrument.getPipScale() + 1));
 					bidGrids = new GridSystem("bid_grids", bid, gap * realPipValue, instrument.getPipScale() + 1);
 					bidGrids.setGridCallback(bidGridsCallback);
 					bidGrids.setConsole(console);
-					console.getOut().println("BidGrid create: " + "bid_grids, " + bid + ", " + gap + ", " + (instrument.getPipScale() + 1));
+					bidGrids.setLog(logger);
+					log("BidGrid create: " + "bid_grids, " + bid + ", " + gap + ", " + (instrument.getPipScale() + 1));
 				}
 			}
 			
@@ -145,7 +159,7 @@ public class SuperIvanTickStrategy implements IStrategy {
 						 * 条件: 当前格子没有趋势单 && (最大趋势单为null || 当前价格大于最大趋势单价格)
 						 */
 						IOrder maxNormalOrder = getOrder(askGrids, OrderType.Normal, true);
-						if(!existOrder(enter, OrderType.Normal) && (maxNormalOrder == null || enter.getStart() > maxNormalOrder.getOpenPrice())) {
+						if(!existOrder(enter, OrderType.Normal) && (maxNormalOrder == null || enter.compareStart(maxNormalOrder.getOpenPrice()) > 0)) {
 							// normal order
 							try {
 								String orderLabel = "SuperIvan_Order_Buy_Normal_" + (enter.getOffset() < 0 ? "n" + (-enter.getOffset()) : enter.getOffset());
@@ -155,11 +169,11 @@ public class SuperIvanTickStrategy implements IStrategy {
 										IEngine.OrderCommand.BUY,
 										lots);
 								order.waitForUpdate(ORDER_TIMEOUT, State.FILLED);
-								console.getOut().println("[Order][Open] " + orderLabel + ", price: " + price + ", lots: " + lots);
-								enter.getOrders().add(order);
+								log("[Order][Open] " + orderLabel + ", price: " + price + ", lots: " + lots);
+								enter.addOrder(order, OrderType.Normal);
 								
 							} catch (JFException e) {
-								console.getOut().println("[ERROR] submit order error: " + e.getLocalizedMessage());
+								log("[ERROR] submit order error: " + e.getLocalizedMessage());
 								e.printStackTrace();
 							}	
 						}
@@ -170,7 +184,7 @@ public class SuperIvanTickStrategy implements IStrategy {
 						List<IOrder> martinOrders = getOrders(askGrids, OrderType.Martin);
 						if(martinOrders.size() > 0) {
 							IOrder maxMartinOrder = getOrder(askGrids, OrderType.Martin, true);
-							if(leave.getStart() > maxMartinOrder.getOpenPrice()) {
+							if(leave.compareStart(maxMartinOrder.getOpenPrice()) > 0) {
 								askGrids.closeAndRemoveOrder(martinOrders);
 							}
 						}
@@ -212,8 +226,8 @@ public class SuperIvanTickStrategy implements IStrategy {
 										IEngine.OrderCommand.BUY,
 										martin_lots);
 								martinOrder.waitForUpdate(ORDER_TIMEOUT, State.FILLED);
-								console.getOut().println("[Order][Open] " + orderMartinLabel + ", price: " + price + ", lots: " + martin_lots);
-								enter.getOrders().add(martinOrder);
+								log("[Order][Open] " + orderMartinLabel + ", price: " + price + ", lots: " + martin_lots);
+								enter.addOrder(martinOrder, OrderType.Martin);
 							}
 							
 						}
@@ -223,7 +237,7 @@ public class SuperIvanTickStrategy implements IStrategy {
 					round_max_grid_offset = 0;
 				}
 			} catch (JFException e) {
-				console.getOut().println("[ERROR] error: " + e.getLocalizedMessage());
+				log("[ERROR] error: " + e.getLocalizedMessage());
 				e.printStackTrace();
 			}
 			
@@ -275,8 +289,8 @@ public class SuperIvanTickStrategy implements IStrategy {
 										IEngine.OrderCommand.SELL,
 										martin_lots);
 								martinOrder.waitForUpdate(ORDER_TIMEOUT, State.FILLED);
-								console.getOut().println("[Order][Open] " + orderMartinLabel + ", price: " + price + ", lots: " + martin_lots);
-								enter.getOrders().add(martinOrder);
+								log("[Order][Open] " + orderMartinLabel + ", price: " + price + ", lots: " + martin_lots);
+								enter.addOrder(martinOrder, OrderType.Martin);
 							}
 						}
 					}
@@ -300,7 +314,7 @@ public class SuperIvanTickStrategy implements IStrategy {
 						 * 条件: 当前格子没有趋势单 && (最小趋势单为null || 当前价格小于最小趋势单价格)
 						 */
 						IOrder minNormalOrder = getOrder(bidGrids, OrderType.Normal, false);
-						if(!existOrder(enter, OrderType.Normal) && (minNormalOrder == null || enter.getStart() < minNormalOrder.getOpenPrice())) {
+						if(!existOrder(enter, OrderType.Normal) && (minNormalOrder == null || enter.compareStart(minNormalOrder.getOpenPrice()) < 0)) {
 							// normal order
 							try {
 								String orderLabel = "SuperIvan_Order_Sell_Normal_" + (enter.getOffset() < 0 ? "n" + (-enter.getOffset()) : enter.getOffset());
@@ -310,10 +324,10 @@ public class SuperIvanTickStrategy implements IStrategy {
 										IEngine.OrderCommand.SELL,
 										lots);
 								order.waitForUpdate(ORDER_TIMEOUT, State.FILLED);
-								console.getOut().println("[Order][Open] " + orderLabel + ", price: " + price + ", lots: " + lots);
-								enter.getOrders().add(order);
+								log("[Order][Open] " + orderLabel + ", price: " + price + ", lots: " + lots);
+								enter.addOrder(order, OrderType.Normal);
 							} catch (JFException e) {
-								console.getOut().println("[ERROR] submit order error: " + e.getLocalizedMessage());
+								log("[ERROR] submit order error: " + e.getLocalizedMessage());
 								e.printStackTrace();
 							}
 						}
@@ -324,7 +338,7 @@ public class SuperIvanTickStrategy implements IStrategy {
 						List<IOrder> martinOrders = getOrders(bidGrids, OrderType.Martin);
 						if(martinOrders.size() > 0) {
 							IOrder minMartinOrder = getOrder(bidGrids, OrderType.Martin, false);
-							if(leave.getStart() < minMartinOrder.getOpenPrice()) {
+							if(leave.compareStart(minMartinOrder.getOpenPrice()) < 0) {
 								bidGrids.closeAndRemoveOrder(martinOrders);
 							}
 						}
@@ -343,7 +357,7 @@ public class SuperIvanTickStrategy implements IStrategy {
 					round_min_grid_offset = 0;
 				}
 			} catch (JFException e) {
-				console.getOut().println("[ERROR] error: " + e.getLocalizedMessage());
+				log("[ERROR] error: " + e.getLocalizedMessage());
 				e.printStackTrace();
 			}
 
@@ -364,14 +378,28 @@ public class SuperIvanTickStrategy implements IStrategy {
 
 	@Override
 	public void onStop() throws JFException {
+		logger.close();
+	}
+
+	/**
+	 * 打印日志
+	 * @param str
+	 */
+	public void log(String... str) {
+		logger.log(str);
 	}
 	
 	/**
 	 * 计算SMA指标
+	 * smaPeriod为TICK时直接读取tick均线窗口, 窗口未满时为NaN
 	 * @return
 	 * @throws JFException
 	 */
 	private double sma() throws JFException {
+		if(smaPeriod.equals(Period.TICK)) {
+			return tickSma.isReady() ? round(tickSma.getValue()) : Double.NaN;
+		}
+		
 		ITick lastTick = null;
 		do {
 			lastTick = history.getLastTick(this.instrument);
@@ -384,8 +412,16 @@ public class SuperIvanTickStrategy implements IStrategy {
 		
 		double sma = indicators.sma(this.instrument, smaPeriod, OfferSide.BID, IIndicators.AppliedPrice.CLOSE, smaPeriodTime, Filter.WEEKENDS, lastTick.getTime(), lastTick.getTime())[0];
 
-		// 四舍五入
-		return new BigDecimal(sma).setScale(this.instrument.getPipScale() + 1, BigDecimal.ROUND_HALF_UP).doubleValue();
+		return round(sma);
+	}
+	
+	/**
+	 * 四舍五入到pipette
+	 * @param price
+	 * @return
+	 */
+	private double round(double price) {
+		return new BigDecimal(price).setScale(this.instrument.getPipScale() + 1, BigDecimal.ROUND_HALF_UP).doubleValue();
 	}
 	
 
@@ -396,19 +432,13 @@ public class SuperIvanTickStrategy implements IStrategy {
 	 *
 	 ************************************/
 	/**
-	 * 判断是否为指定类型订单
+	 * 判断是否为指定类型订单(按下单时登记的类型)
+	 * @param gridSystem
 	 * @param order
 	 * @return
 	 */
-	private boolean isOrder(IOrder order, OrderType type) {
-		switch (type) {
-		case Normal:
-			return order.getLabel().contains("Normal");
-		case Martin:
-			return order.getLabel().contains("Martin"); 
-		default:
-			return false;
-		}
+	private boolean isOrder(GridSystem gridSystem, IOrder order, OrderType type) {
+		return gridSystem.isOrder(order, type);
 	}
 	
 	/**
@@ -417,13 +447,7 @@ public class SuperIvanTickStrategy implements IStrategy {
 	 * @return
 	 */
 	private boolean existOrder(Grid grid, OrderType type) {
-		List<IOrder> orders = grid.getOrders();
-		for (IOrder order : orders) {
-			if(isOrder(order, type)) {
-				return true;
-			}
-		}
-		return false;
+		return grid.existOrder(type);
 	}
 	
 	/**
@@ -434,33 +458,7 @@ public class SuperIvanTickStrategy implements IStrategy {
 	 * @return
 	 */
 	private IOrder getOrder(GridSystem gridSystem, OrderType type, boolean max) {
-		IOrder result = null;
-		
-		List<Grid> grids = new ArrayList<Grid>(gridSystem.getGridsAbove());
-		grids.addAll(gridSystem.getGridsUnder());
-		
-		// foreach all grids
-		for (Grid grid : grids) {
-			
-			//foreach all order of this grid
-			List<IOrder> orders = grid.getOrders();
-			for (IOrder order : orders) {
-				if(!isOrder(order, type)) continue;
-				if(result == null) {
-					result = order;
-				} else {
-					// 比较大小
-					if(max) {
-						if(result.getOpenPrice() < order.getOpenPrice()) result = order;
-					} else {
-						if(result.getOpenPrice() > order.getOpenPrice()) result = order;
-					}
-				}
-			}
-			
-		}
-		
-		return result;
+		return gridSystem.getOrder(type, max);
 	}
 
 	/**
@@ -476,7 +474,7 @@ public class SuperIvanTickStrategy implements IStrategy {
 		//foreach all order of this grid
 		List<IOrder> orders = grid.getOrders();
 		for (IOrder order : orders) {
-			if(!isOrder(order, type)) continue;
+			if(!isOrder(grid.getGridSystem(), order, type)) continue;
 			if(result == null) {
 				result = order;
 			} else {
@@ -514,19 +512,7 @@ public class SuperIvanTickStrategy implements IStrategy {
 	 * @return
 	 */
 	private List<IOrder> getOrders(GridSystem gridSystem, OrderType type) {
-		List<IOrder> result = new ArrayList<IOrder>();
-		
-		List<Grid> grids = gridSystem.getAllGrids();
-		for (Grid grid : grids) {
-			List<IOrder> orders = grid.getOrders();
-			for (IOrder order : orders) {
-				if(isOrder(order, type)) {
-					result.add(order);
-				}
-			}
-		}
-		
-		return result;
+		return new ArrayList<IOrder>(gridSystem.getOrders(type));
 	}
 	
 	/**
@@ -537,305 +523,6 @@ public class SuperIvanTickStrategy implements IStrategy {
 	 * @return
 	 */
 	public double countOrdersLots(GridSystem gridSystem, OrderType type) {
-		double count = 0;
-		List<IOrder> orders = getOrders(gridSystem, type);
-		for (IOrder order : orders) {
-			count += order.getAmount();
-		}
-		return count;
-	}
-	
-	enum OrderType {
-		Normal, Martin
-	}
-	
-	/************************************
-	 * 
-	 * 基础类开始
-	 * @author liteng
-	 *
-	 ************************************/
-	class GridSystem {
-		
-		private String name;
-		
-		private IChart chart;
-		
-		private int pointScale;
-		private DecimalFormat df = new DecimalFormat("#");
-		
-		private double pointgap;
-		private double startPrice;
-	
-		private List<Grid> gridsAbove = new ArrayList<Grid>();
-		private List<Grid> gridsUnder = new ArrayList<Grid>();
-		
-		private Grid lastGrid;
-		
-		GridCallback gridCallback;
-		
-		private IConsole console;
-		
-		public GridSystem(String name, double startPrice, double pointGap, int pointScale) {
-			this(name, startPrice, pointGap, pointScale, null);
-		}
-		
-		public GridSystem(String name, double startPrice, double pointGap, int pointScale, IChart chart) {
-			this.name = name;
-			this.chart = chart;
-			this.pointgap = pointGap;
-			this.startPrice = startPrice;
-			this.pointScale = pointScale;
-			
-			if(pointScale > 0) {
-				StringBuilder sb = new StringBuilder("#.");
-				for(int i=0;i<pointScale;i++) {
-					sb.append('0');
-				}
-				this.df = new DecimalFormat(sb.toString());
-			}
-		}
-		
-		public Grid offer(double price) {
-			Grid grid = getGridByPrice(price);
-			
-			// grid change
-			if(lastGrid == null || !lastGrid.equals(grid)) {
-				if(gridCallback != null) {
-					gridCallback.onGridChange(lastGrid, grid, price);
-				}
-			}
-			
-			lastGrid = grid;
-			return grid;
-		}
-		
-		private int countOffset(double price) {
-			int front = 0;
-			if(price >= startPrice) {
-				front = 1;
-			} else {
-				front = -1;
-			}
-			double d = (price - startPrice) / pointgap + front;
-			
-			/*
-			 *  当前价格大于初始价格时, 格子的价格区间为[small, large)
-			 *  当前价格小于初始价格时, 格子的价格区间为[large, small)
-			 *  当前价格等于初始价格时, 默认为+1格子
-			 */
-			return new BigDecimal(d).setScale(pointScale, BigDecimal.ROUND_HALF_UP).intValue();
-		}
-		
-		public Grid getGridByOffset(int offset) {
-			if(offset > 0) {
-				while(gridsAbove.size() < offset) {
-					Grid grid = new Grid(this, gridsAbove.size() + 1);
-					gridsAbove.add(grid);
-				}
-				return gridsAbove.get(offset - 1);
-			} else if (offset < 0) {
-				while(gridsUnder.size() < -offset) {
-					Grid grid = new Grid(this, -gridsUnder.size() - 1);
-					gridsUnder.add(grid);
-				}
-				return gridsUnder.get(-offset - 1);
-			} else {
-				return null;
-			}
-		}
-		
-		public List<Grid> getAllGrids() {
-			List<Grid> grids = new ArrayList<Grid>(gridsAbove);
-			grids.addAll(gridsUnder);
-			return grids;
-		}
-		
-	
-		public void closeAndRemoveOrder(List<IOrder> orders) {
-			for (IOrder order : orders) {
-				closeAndRemoveOrder(order);
-			}
-		}
-		
-		public void closeAndRemoveOrder(IOrder order) {
-			for (Grid grid : gridsAbove) {
-				List<IOrder> orders = grid.getOrders();
-				for (int i = orders.size() - 1; i >= 0; i--) {
-					IOrder o = orders.get(i);
-					if(o.equals(order)) {
-						try {
-							order.close();
-							order.waitForUpdate(SuperIvanTickStrategy.ORDER_TIMEOUT, State.CLOSED);
-							console.getOut().println("[Order][Close] " + order.getLabel() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
-							orders.remove(order);
-						} catch (JFException e) {
-							e.printStackTrace();
-							console.getOut().println("[ERROR] close order error: " + e.getLocalizedMessage());
-						}
-					}
-				}
-			}
-	
-			for (Grid grid : gridsUnder) {
-				List<IOrder> orders = grid.getOrders();
-				for (int i = orders.size() - 1; i >= 0; i--) {
-					IOrder o = orders.get(i);
-					if(o.equals(order)) {
-						try {
-							order.close();
-							order.waitForUpdate(SuperIvanTickStrategy.ORDER_TIMEOUT, State.CLOSED);
-							console.getOut().println("[Order][Close] " + order.getLabel() + ", close: " + order.getClosePrice() + ", profit: " + order.getProfitLossInAccountCurrency());
-							orders.remove(order);
-						} catch (JFException e) {
-							e.printStackTrace();
-							console.getOut().println("[ERROR] close order error: " + e.getLocalizedMessage());
-						}
-					}
-				}
-			}
-		}
-		
-		/**
-		 * Get all orders
-		 * @return
-		 */
-		public List<IOrder> getAllOrders() {
-			List<IOrder> result = new ArrayList<IOrder>();
-			List<Grid> grids = getAllGrids();
-			for (Grid grid : grids) {
-				result.addAll(grid.getOrders());
-			}
-			return result;
-		}
-		
-		public IChart getChart() {
-			return chart;
-		}
-	
-		public Grid getGridByPrice(double price) {
-			return getGridByOffset(countOffset(price));
-		}
-	
-		public DecimalFormat getDf() {
-			return df;
-		}
-	
-		public void setGridCallback(GridCallback gridCallback) {
-			this.gridCallback = gridCallback;
-		}
-	
-		public double getGap() {
-			return pointgap;
-		}
-	
-		public double getStartPrice() {
-			return startPrice;
-		}
-	
-		public int getPointScale() {
-			return pointScale;
-		}
-	
-		public List<Grid> getGridsAbove() {
-			return gridsAbove;
-		}
-	
-		public List<Grid> getGridsUnder() {
-			return gridsUnder;
-		}
-	
-		public String getName() {
-			return name;
-		}
-	
-		public void setConsole(IConsole console) {
-			this.console = console;
-		}
-	
-	}
-	
-	class Grid {
-	
-		private GridSystem gridSystem;
-		
-		private List<IOrder> orders = new ArrayList<IOrder>();
-		
-		// -3, -2, -1, 1, 2, 3 ...
-		private Integer offset;
-		
-		// contain
-		private Double start;
-		
-		// not contain
-		private Double end;
-		
-		public Grid(GridSystem gridSystem, int offset) {
-			
-			this.gridSystem = gridSystem;
-			this.offset = offset;
-			
-			double gap = gridSystem.getGap();
-			double origin = gridSystem.getStartPrice();
-			int pointScale = gridSystem.getPointScale();
-			
-			this.setEnd(new BigDecimal(origin + offset * gap).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue());
-			this.setStart(new BigDecimal(this.getEnd() + (offset > 0 ? -gap : gap)).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue());
-			
-			if(gridSystem.getChart() != null) {
-				IChartObjectFactory cof = gridSystem.getChart().getChartObjectFactory();
-				IHorizontalLineChartObject line = cof.createHorizontalLine(Math.random() + "", this.getStart());
-				gridSystem.getChart().add(line);
-			}
-		}
-	
-		public GridSystem getGridSystem() {
-			return gridSystem;
-		}
-	
-		public Integer getOffset() {
-			return offset;
-		}
-	
-		public void setOffset(Integer offset) {
-			this.offset = offset;
-		}
-	
-		public Double getStart() {
-			return start;
-		}
-	
-		public void setStart(Double start) {
-			this.start = start;
-		}
-	
-		public Double getEnd() {
-			return end;
-		}
-	
-		public void setEnd(Double end) {
-			this.end = end;
-		}
-	
-		public List<IOrder> getOrders() {
-			return orders;
-		}
-		
-		@Override
-		public boolean equals(Object o) {
-			if(o instanceof Grid) {
-				return this.getOffset().equals(((Grid) o).getOffset()); 
-			}
-			return super.equals(o);
-		}
-		
-		@Override
-		public String toString() {
-			return this.getOffset() + " [" + this.gridSystem.getDf().format(this.getStart()) + ", " + this.gridSystem.getDf().format(this.getEnd()) + ")";
-		}
-	}
-	
-	interface GridCallback {
-		public void onGridChange(Grid leave, Grid enter, double price);
+		return gridSystem.getLots(type);
 	}
-}
\ No newline at end of file
+}
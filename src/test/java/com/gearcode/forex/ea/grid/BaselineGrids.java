@@ -0,0 +1,310 @@
+package com.gearcode.forex.ea.grid;
+
+import com.dukascopy.api.IChart;
+import com.dukascopy.api.IConsole;
+import com.dukascopy.api.IOrder;
+import com.dukascopy.api.drawings.IChartObjectFactory;
+import com.dukascopy.api.drawings.IHorizontalLineChartObject;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 原SuperIvanStrategy中的内部类GridSystem/Grid/GridCallback(原样复制), 用于与共享网格引擎对比
+ *
+ * @author liteng
+ *
+ */
+class BaselineGrids {
+
+	void closeOrder(Grid grid, IOrder order) {
+		grid.getOrders().remove(order);
+	}
+
+	/************************************
+	 * 
+	 * 基础类开始
+	 * @author liteng
+	 *
+	 ************************************/
+	class GridSystem {
+		
+		private String name;
+		
+		private IChart chart;
+		
+		private int pointScale;
+		private DecimalFormat df = new DecimalFormat("#");
+		
+		private double pointgap;
+		private double startPrice;
+	
+		private List<Grid> gridsAbove = new ArrayList<Grid>();
+		private List<Grid> gridsUnder = new ArrayList<Grid>();
+		
+		private Grid lastGrid;
+		
+		private Integer highest = null;
+		private Integer lowest  = null;
+		
+		GridCallback gridCallback;
+		
+		private IConsole console;
+		
+		public GridSystem(String name, double startPrice, double pointGap, int pointScale) {
+			this(name, startPrice, pointGap, pointScale, null);
+		}
+		
+		public GridSystem(String name, double startPrice, double pointGap, int pointScale, IChart chart) {
+			this.name = name;
+			this.chart = chart;
+			this.pointgap = pointGap;
+			this.startPrice = startPrice;
+			this.pointScale = pointScale;
+			
+			if(pointScale > 0) {
+				StringBuilder sb = new StringBuilder("#.");
+				for(int i=0;i<pointScale;i++) {
+					sb.append('0');
+				}
+				this.df = new DecimalFormat(sb.toString());
+			}
+		}
+		
+		public Grid offer(double price) {
+			Grid grid = getGridByPrice(price);
+			
+			// grid change
+			if(lastGrid == null || !lastGrid.equals(grid)) {
+				if(gridCallback != null) {
+					gridCallback.onGridChange(lastGrid, grid, price);
+				}
+			}
+			
+			// highest & lowest
+			if(highest == null || highest < grid.getOffset()) {
+				highest = grid.getOffset();
+			}
+			if(lowest == null || lowest > grid.getOffset()) {
+				lowest = grid.getOffset();
+			}
+			
+			lastGrid = grid;
+			return grid;
+		}
+		
+		private int countOffset(double price) {
+			int front = 0;
+			if(price >= startPrice) {
+				front = 1;
+			} else {
+				front = -1;
+			}
+			double d = (price - startPrice) / pointgap + front;
+			
+			/*
+			 *  当前价格大于初始价格时, 格子的价格区间为[small, large)
+			 *  当前价格小于初始价格时, 格子的价格区间为[large, small)
+			 *  当前价格等于初始价格时, 默认为+1格子
+			 */
+			return new BigDecimal(d).setScale(pointScale, BigDecimal.ROUND_HALF_UP).intValue();
+		}
+		
+		public Grid getGridByOffset(int offset) {
+			if(offset > 0) {
+				while(gridsAbove.size() < offset) {
+					Grid grid = new Grid(this, gridsAbove.size() + 1);
+					gridsAbove.add(grid);
+				}
+				return gridsAbove.get(offset - 1);
+			} else if (offset < 0) {
+				while(gridsUnder.size() < -offset) {
+					Grid grid = new Grid(this, -gridsUnder.size() - 1);
+					gridsUnder.add(grid);
+				}
+				return gridsUnder.get(-offset - 1);
+			} else {
+				return null;
+			}
+		}
+		
+		public List<Grid> getAllGrids() {
+			List<Grid> grids = new ArrayList<Grid>(gridsAbove);
+			grids.addAll(gridsUnder);
+			return grids;
+		}
+		
+	
+		public void closeAndRemoveOrder(List<IOrder> orders) {
+			for (IOrder order : orders) {
+				closeAndRemoveOrder(order);
+			}
+		}
+		
+		public void closeAndRemoveOrder(IOrder order) {
+			for (Grid grid : gridsAbove) {
+				List<IOrder> orders = grid.getOrders();
+				for (int i = orders.size() - 1; i >= 0; i--) {
+					IOrder o = orders.get(i);
+					if(o.equals(order)) {
+						closeOrder(grid, order);
+					}
+				}
+			}
+	
+			for (Grid grid : gridsUnder) {
+				List<IOrder> orders = grid.getOrders();
+				for (int i = orders.size() - 1; i >= 0; i--) {
+					IOrder o = orders.get(i);
+					if(o.equals(order)) {
+						closeOrder(grid, order);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Get all orders
+		 * @return
+		 */
+		public List<IOrder> getAllOrders() {
+			List<IOrder> result = new ArrayList<IOrder>();
+			List<Grid> grids = getAllGrids();
+			for (Grid grid : grids) {
+				result.addAll(grid.getOrders());
+			}
+			return result;
+		}
+		
+		public IChart getChart() {
+			return chart;
+		}
+	
+		public Grid getGridByPrice(double price) {
+			return getGridByOffset(countOffset(price));
+		}
+	
+		public DecimalFormat getDf() {
+			return df;
+		}
+	
+		public void setGridCallback(GridCallback gridCallback) {
+			this.gridCallback = gridCallback;
+		}
+	
+		public double getGap() {
+			return pointgap;
+		}
+	
+		public double getStartPrice() {
+			return startPrice;
+		}
+	
+		public int getPointScale() {
+			return pointScale;
+		}
+	
+		public List<Grid> getGridsAbove() {
+			return gridsAbove;
+		}
+	
+		public List<Grid> getGridsUnder() {
+			return gridsUnder;
+		}
+	
+		public String getName() {
+			return name;
+		}
+	
+		public void setConsole(IConsole console) {
+			this.console = console;
+		}
+	
+	}
+	
+	class Grid {
+	
+		private GridSystem gridSystem;
+		
+		private List<IOrder> orders = new ArrayList<IOrder>();
+		
+		// -3, -2, -1, 1, 2, 3 ...
+		private Integer offset;
+		
+		// contain
+		private Double start;
+		
+		// not contain
+		private Double end;
+		
+		public Grid(GridSystem gridSystem, int offset) {
+			
+			this.gridSystem = gridSystem;
+			this.offset = offset;
+			
+			double gap = gridSystem.getGap();
+			double origin = gridSystem.getStartPrice();
+			int pointScale = gridSystem.getPointScale();
+			
+			this.setEnd(new BigDecimal(origin + offset * gap).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue());
+			this.setStart(new BigDecimal(this.getEnd() + (offset > 0 ? -gap : gap)).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue());
+			
+			if(gridSystem.getChart() != null) {
+				IChartObjectFactory cof = gridSystem.getChart().getChartObjectFactory();
+				IHorizontalLineChartObject line = cof.createHorizontalLine(Math.random() + "", this.getStart());
+				gridSystem.getChart().add(line);
+			}
+		}
+	
+		public GridSystem getGridSystem() {
+			return gridSystem;
+		}
+	
+		public Integer getOffset() {
+			return offset;
+		}
+	
+		public void setOffset(Integer offset) {
+			this.offset = offset;
+		}
+	
+		public Double getStart() {
+			return start;
+		}
+	
+		public void setStart(Double start) {
+			this.start = start;
+		}
+	
+		public Double getEnd() {
+			return end;
+		}
+	
+		public void setEnd(Double end) {
+			this.end = end;
+		}
+	
+		public List<IOrder> getOrders() {
+			return orders;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(o instanceof Grid) {
+				return this.getOffset().equals(((Grid) o).getOffset()); 
+			}
+			return super.equals(o);
+		}
+		
+		@Override
+		public String toString() {
+			return this.getOffset() + " [" + this.gridSystem.getDf().format(this.getStart()) + ", " + this.gridSystem.getDf().format(this.getEnd()) + ")";
+		}
+	}
+	
+	interface GridCallback {
+		public void onGridChange(Grid leave, Grid enter, double price);
+	}
+}
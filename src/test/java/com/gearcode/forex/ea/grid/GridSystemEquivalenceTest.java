@@ -0,0 +1,154 @@
+package com.gearcode.forex.ea.grid;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 共享网格引擎与原内部类GridSystem的等价测试
+ *
+ * 同一随机价格序列(含跳空)分别输入两个网格系统, onGridChange的回调序列
+ * (离开/进入的格子offset、进入格子的价格区间、价格)必须完全一致
+ *
+ * @author liteng
+ *
+ */
+public class GridSystemEquivalenceTest {
+
+	private static final int WALKS = 200;
+	private static final int TICKS = 5000;
+
+	@Test
+	public void sameCallbacksOnRandomWalks() {
+		int events = 0;
+		for (int seed = 0; seed < WALKS; seed++) {
+			events += compare(seed, 1.0 + seed % 7 * 0.05, 0.0010 + seed % 5 * 0.0005, 5);
+		}
+		assertTrue(events > WALKS);
+	}
+
+	@Test
+	public void sameCallbacksWithOddGapAndScale() {
+		// 间隔不是常用的整数pip, 以及JPY等3位小数的货币对
+		compare(1, 1.13571, 0.00037, 5);
+		compare(2, 1.13570, 0.00333, 5);
+		compare(3, 108.512, 0.125, 3);
+		compare(4, 108.5, 0.3, 3);
+	}
+
+	@Test
+	public void gridBoundsContainPrice() {
+		// 价格所属格子的边界(按pipette)包含该价格
+		double[][] cases = {{1.13571, 0.00037, 5}, {108.512, 0.125, 3}, {1.1, 0.00001, 5}};
+		for (int i = 0; i < cases.length; i++) {
+			double startPrice = cases[i][0], gap = cases[i][1];
+			int pointScale = (int) cases[i][2];
+			GridSystem shared = shared("s", startPrice, gap, pointScale, new ArrayList<String>());
+			Random random = new Random(i);
+			double point = Math.pow(10, -pointScale);
+			for (int n = 0; n < 10000; n++) {
+				double price = new BigDecimal(startPrice + (random.nextInt(2001) - 1000) * point)
+						.setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue();
+				Grid grid = shared.getGridByPrice(price);
+				String message = price + " in " + grid;
+				if(grid.getOffset() > 0) {
+					assertTrue(message, grid.compareStart(price) <= 0 && price < grid.getEnd());
+				} else {
+					assertTrue(message, grid.compareStart(price) >= 0 && price > grid.getEnd());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void rejectsFractionalPipetteGap() {
+		// 3.75 / 12.5 pipettes: 格子归属与pipette边界无法一致
+		double[][] cases = {{1.13571, 0.0000375, 5}, {108.512, 0.0125, 3}, {1.1, 0, 5}};
+		for (double[] c : cases) {
+			try {
+				new GridSystem("s", c[0], c[1], (int) c[2]);
+				fail("gap " + c[1] + " accepted");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		// 浮点误差不影响整数倍的间隔
+		new GridSystem("s", 1.1, 50 * 0.0001 * 0.1, 5);
+		new GridSystem("s", 108.5, 15 * 0.01 * 0.1, 3);
+	}
+
+	@Test
+	public void sameCallbacksAtGridBoundaries() {
+		// 价格恰好落在原点和格子边界上
+		final List<String> expected = new ArrayList<String>();
+		final List<String> actual = new ArrayList<String>();
+		BaselineGrids.GridSystem baseline = baseline("b", 1.1, 0.001, 5, expected);
+		GridSystem shared = shared("s", 1.1, 0.001, 5, actual);
+		double[] prices = {1.1, 1.101, 1.09999, 1.099, 1.1, 1.102, 1.10199, 1.098, 1.1001, 1.1};
+		for (double price : prices) {
+			baseline.offer(price);
+			shared.offer(price);
+		}
+		assertEquals(expected, actual);
+	}
+
+	/**
+	 * @return 回调次数
+	 */
+	private int compare(long seed, double startPrice, double gap, int pointScale) {
+		List<String> expected = new ArrayList<String>();
+		List<String> actual = new ArrayList<String>();
+		BaselineGrids.GridSystem baseline = baseline("b", startPrice, gap, pointScale, expected);
+		GridSystem shared = shared("s", startPrice, gap, pointScale, actual);
+
+		Random random = new Random(seed);
+		double point = Math.pow(10, -pointScale);
+		double price = startPrice;
+		for (int i = 0; i < TICKS; i++) {
+			if(random.nextInt(200) == 0) {
+				// 跳空: 一次跨越多个格子
+				price += (random.nextBoolean() ? 1 : -1) * gap * (2 + random.nextInt(5));
+			} else {
+				price += (random.nextInt(7) - 3) * point;
+			}
+			price = new BigDecimal(price).setScale(pointScale, BigDecimal.ROUND_HALF_UP).doubleValue();
+			baseline.offer(price);
+			shared.offer(price);
+		}
+		assertEquals("seed " + seed, expected, actual);
+		return actual.size();
+	}
+
+	private static BaselineGrids.GridSystem baseline(String name, double startPrice, double gap, int pointScale, final List<String> events) {
+		BaselineGrids.GridSystem gridSystem = new BaselineGrids().new GridSystem(name, startPrice, gap, pointScale);
+		gridSystem.setGridCallback(new BaselineGrids.GridCallback() {
+			@Override
+			public void onGridChange(BaselineGrids.Grid leave, BaselineGrids.Grid enter, double price) {
+				events.add(event(leave == null ? null : leave.getOffset(), enter.getOffset(), enter.getStart(), enter.getEnd(), price));
+			}
+		});
+		return gridSystem;
+	}
+
+	private static GridSystem shared(String name, double startPrice, double gap, int pointScale, final List<String> events) {
+		GridSystem gridSystem = new GridSystem(name, startPrice, gap, pointScale);
+		gridSystem.setGridCallback(new GridCallback() {
+			@Override
+			public void onGridChange(Grid leave, Grid enter, double price) {
+				events.add(event(leave == null ? null : leave.getOffset(), enter.getOffset(), enter.getStart(), enter.getEnd(), price));
+			}
+		});
+		return gridSystem;
+	}
+
+	private static String event(Integer leave, int enter, double start, double end, double price) {
+		return leave + " -> " + enter + " [" + start + ", " + end + ") @ " + price;
+	}
+}
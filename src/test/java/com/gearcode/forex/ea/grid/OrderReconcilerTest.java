@@ -0,0 +1,211 @@
+package com.gearcode.forex.ea.grid;
+
+import com.dukascopy.api.IEngine;
+import com.dukascopy.api.IEngine.OrderCommand;
+import com.dukascopy.api.IOrder;
+import com.dukascopy.api.IOrder.State;
+import com.dukascopy.api.Instrument;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 订单对账测试: 标签解析、按订单推算原点、放回格子
+ *
+ * @author liteng
+ *
+ */
+public class OrderReconcilerTest {
+
+	private static final String PREFIX = "SuperIvan_Order";
+
+	// 原点1.10000, 间隔50 pipettes
+	private static final double START = 1.1;
+	private static final double GAP = 0.0005;
+	private static final int SCALE = 5;
+
+	@Test
+	public void parseGridLabels() {
+		OrderReconciler.Label label = OrderReconciler.parse(PREFIX, "SuperIvan_Order_BUY_Normal_3");
+		assertSame(OrderCommand.BUY, label.getCommand());
+		assertSame(OrderType.Normal, label.getType());
+		assertEquals(3, label.getOffset());
+
+		// 负数格子写作n3, 可以带后缀
+		label = OrderReconciler.parse(PREFIX, "SuperIvan_Order_SELL_Martin_n3_1539849600000");
+		assertSame(OrderCommand.SELL, label.getCommand());
+		assertSame(OrderType.Martin, label.getType());
+		assertEquals(-3, label.getOffset());
+	}
+
+	@Test
+	public void parseHedgeLabel() {
+		OrderReconciler.Label label = OrderReconciler.parse(PREFIX, "SuperIvan_Order_SELL_Hedge_20181018_120000_42");
+		assertSame(OrderCommand.SELL, label.getCommand());
+		assertNull(label.getType());
+		assertEquals("Hedge", label.getName());
+		assertEquals(0, label.getOffset());
+	}
+
+	@Test
+	public void parseRejectsOtherPrefixAndMalformedLabels() {
+		assertNull(OrderReconciler.parse(PREFIX, "A07_Order_BUY_Normal_3"));
+		assertNull(OrderReconciler.parse(PREFIX, "SuperIvan_OrderX_BUY_Normal_3"));
+		assertNull(OrderReconciler.parse(PREFIX, "SuperIvan_Order"));
+		assertNull(OrderReconciler.parse(PREFIX, null));
+		assertNull(OrderReconciler.parse(PREFIX, "SuperIvan_Order_BUY"));
+		assertNull(OrderReconciler.parse(PREFIX, "SuperIvan_Order_HOLD_Normal_3"));
+		assertNull(OrderReconciler.parse(PREFIX, "SuperIvan_Order_BUY_Normal"));
+		assertNull(OrderReconciler.parse(PREFIX, "SuperIvan_Order_BUY_Normal_x3"));
+	}
+
+	@Test
+	public void inferStartPriceFromPositiveAndNegativeOffsets() {
+		List<IOrder> orders = Arrays.asList(
+				order("SuperIvan_Order_BUY_Normal_3", OrderCommand.BUY, State.FILLED, 1.10125),
+				order("SuperIvan_Order_BUY_Normal_1", OrderCommand.BUY, State.FILLED, 1.10025),
+				order("SuperIvan_Order_BUY_Martin_n3", OrderCommand.BUY, State.FILLED, 1.09875));
+		OrderReconciler reconciler = new OrderReconciler(PREFIX);
+		assertEquals(START, reconciler.inferStartPrice(orders, OrderCommand.BUY, null, GAP, SCALE), 0);
+	}
+
+	@Test
+	public void inferStartPriceIgnoresSlippedAndUnrelatedOrders() {
+		List<IOrder> orders = Arrays.asList(
+				order("SuperIvan_Order_BUY_Normal_3", OrderCommand.BUY, State.FILLED, 1.10125),
+				order("SuperIvan_Order_BUY_Normal_1", OrderCommand.BUY, State.FILLED, 1.10025),
+				order("SuperIvan_Order_BUY_Normal_n3", OrderCommand.BUY, State.FILLED, 1.09875),
+				// 滑点: 开仓价不在标签格子内, 推算的区间与其他订单不重叠
+				order("SuperIvan_Order_BUY_Normal_2", OrderCommand.BUY, State.FILLED, 1.10180),
+				// 对冲单、其他方向、其他前缀、未成交的订单不参与推算
+				order("SuperIvan_Order_SELL_Hedge_20181018_120000_1", OrderCommand.SELL, State.FILLED, 1.20000),
+				order("SuperIvan_Order_SELL_Normal_1", OrderCommand.SELL, State.FILLED, 1.30000),
+				order("A07_Order_BUY_Normal_1", OrderCommand.BUY, State.FILLED, 1.40000),
+				order("SuperIvan_Order_BUY_Normal_4", OrderCommand.BUYSTOP, State.OPENED, 1.50000));
+		OrderReconciler reconciler = new OrderReconciler(PREFIX);
+		assertEquals(START, reconciler.inferStartPrice(orders, OrderCommand.BUY, null, GAP, SCALE), 0);
+		assertEquals(START, reconciler.inferStartPrice(orders, OrderCommand.BUY, OrderType.Normal, GAP, SCALE), 0);
+		assertTrue(Double.isNaN(reconciler.inferStartPrice(orders, OrderCommand.BUY, OrderType.Martin, GAP, SCALE)));
+	}
+
+	@Test
+	public void reconcilePlacesOrdersByLabel() {
+		GridSystem grids = new GridSystem("ask", START, GAP, SCALE);
+		IOrder normal = order("SuperIvan_Order_BUY_Normal_3", OrderCommand.BUY, State.FILLED, 1.10125);
+		IOrder martin = order("SuperIvan_Order_BUY_Martin_n3", OrderCommand.BUY, State.FILLED, 1.09875);
+		IOrder hedge = order("SuperIvan_Order_SELL_Hedge_20181018_120000_1", OrderCommand.SELL, State.FILLED, 1.1);
+		IOrder sell = order("SuperIvan_Order_SELL_Normal_2", OrderCommand.SELL, State.FILLED, 1.1);
+		IOrder other = order("A07_Order_BUY_Normal_1", OrderCommand.BUY, State.FILLED, 1.1);
+		List<IOrder> orders = Arrays.asList(normal, martin, hedge, sell, other);
+
+		OrderReconciler reconciler = new OrderReconciler(PREFIX).route(OrderCommand.BUY, grids);
+		OrderReconciler.Result result = reconciler.reconcile(orders);
+		assertEquals(Arrays.asList(normal, martin), result.getAdded());
+		assertEquals(Collections.singletonList(hedge), result.getOthers());
+		assertEquals(Collections.singletonList(sell), result.getUnknown());
+		assertEquals(3, grids.getRegistry().get(normal).getOffset());
+		assertEquals(-3, grids.getRegistry().get(martin).getOffset());
+		assertSame(OrderType.Martin, grids.getRegistry().typeOf(martin));
+		assertTrue(grids.getGridByOffset(-3).getOrders().contains(martin));
+
+		// 再次对账不重复放入
+		result = reconciler.reconcile(orders);
+		assertTrue(result.getAdded().isEmpty());
+		assertEquals(2, grids.getAllOrders().size());
+	}
+
+	@Test
+	public void reconcileSkipsOrdersWithSubmitInFlight() {
+		GridSystem grids = new GridSystem("ask", START, GAP, SCALE);
+		IOrder order = order("SuperIvan_Order_BUY_Normal_1", OrderCommand.BUY, State.CREATED, 1.10025);
+		OrderPipeline pipeline = new OrderPipeline(engine(order));
+		pipeline.submit(grids.getGridByOffset(1), OrderType.Normal, order.getLabel(), Instrument.EURUSD, OrderCommand.BUY, 0.01);
+
+		// 查询订单前后刚成交, 确认消息还未处理
+		fill(order);
+		OrderReconciler.Result result = new OrderReconciler(PREFIX).route(OrderCommand.BUY, grids)
+				.pipeline(pipeline).reconcile(Collections.singletonList(order));
+		assertTrue(result.getAdded().isEmpty());
+		assertTrue(result.getRemoved().isEmpty());
+
+		pipeline.expire(0);
+		assertEquals(Collections.singletonList(order), grids.getAllOrders());
+	}
+
+	@Test
+	public void addOrderTwiceFails() {
+		GridSystem grids = new GridSystem("ask", START, GAP, SCALE);
+		IOrder order = order("SuperIvan_Order_BUY_Normal_1", OrderCommand.BUY, State.FILLED, 1.10025);
+		grids.getGridByOffset(1).addOrder(order, OrderType.Normal);
+		try {
+			grids.getGridByOffset(2).addOrder(order, OrderType.Martin);
+			fail("order placed twice");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(1, grids.getAllOrders().size());
+	}
+
+	private static IOrder order(String label, OrderCommand command, State state, double openPrice) {
+		return (IOrder) Proxy.newProxyInstance(IOrder.class.getClassLoader(), new Class<?>[] {IOrder.class},
+				new StubOrder(label, command, state, openPrice));
+	}
+
+	private static void fill(IOrder order) {
+		((StubOrder) Proxy.getInvocationHandler(order)).state = State.FILLED;
+	}
+
+	/**
+	 * 订单桩: 只实现网格和对账用到的方法
+	 */
+	private static class StubOrder implements InvocationHandler {
+		private final String label;
+		private final OrderCommand command;
+		private final double openPrice;
+		private State state;
+
+		StubOrder(String label, OrderCommand command, State state, double openPrice) {
+			this.label = label;
+			this.command = command;
+			this.state = state;
+			this.openPrice = openPrice;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if("getLabel".equals(name)) return label;
+			if("getOrderCommand".equals(name)) return command;
+			if("getState".equals(name)) return state;
+			if("getOpenPrice".equals(name)) return openPrice;
+			if("getAmount".equals(name)) return 0.01;
+			if("isLong".equals(name)) return command.isLong();
+			if("getFillTime".equals(name)) return 0L;
+			if("hashCode".equals(name)) return System.identityHashCode(proxy);
+			if("equals".equals(name)) return proxy == args[0];
+			if("toString".equals(name)) return label;
+			throw new UnsupportedOperationException(name);
+		}
+	}
+
+	private static IEngine engine(final IOrder order) {
+		return (IEngine) Proxy.newProxyInstance(IEngine.class.getClassLoader(), new Class<?>[] {IEngine.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if("submitOrder".equals(method.getName())) return order;
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+}